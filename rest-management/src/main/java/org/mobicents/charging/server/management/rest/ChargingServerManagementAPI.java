@@ -4,6 +4,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +23,8 @@ import javax.sql.DataSource;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.mobicents.charging.server.management.rest.json.ResultSetConverter;
 
 @Path("/charging")
@@ -24,38 +34,235 @@ public class ChargingServerManagementAPI {
 
 	private static final String DS_CONTEXT = "java:/DefaultDS";
 
+	// comma separated JNDI names of the datasources of all the shards, when the users are sharded
+	private static final String DS_LIST_ENTRY = "java:comp/env/chargingServerDataSources";
+
+	// read replicas of the datasources above, as primary=replica[,replica...][;...], for the listings
+	private static final String DS_REPLICAS_ENTRY = "java:comp/env/chargingServerReadReplicas";
+
+	// how far behind its primary a read replica may be to still list from it
+	private static final String DS_REPLICA_MAX_STALENESS_ENTRY = "java:comp/env/chargingServerReplicaMaxStalenessMillis";
+
 	private static final String USERS_TABLE = "CONCHA_USERS";
 
-	private static DataSource datasource = null;
+	// stamped with the time on the primary by the charging server, see its ReplicaRouter
+	private static final String HEARTBEAT_QUERY = "SELECT BEAT FROM CONCHA_HEARTBEAT WHERE ID = 0";
+
+	private static final String RESERVATIONS_TABLE = "CONCHA_RESERVATIONS";
+
+	private static final Map<String, DataSource> datasources = new ConcurrentHashMap<String, DataSource>();
+
+	private static volatile String[] datasourceNames = null;
+
+	private static volatile Map<String, String[]> replicaNames = null;
+
+	private static volatile long replicaMaxStalenessMillis = 2000;
+
+	private String[] getDataSourceNames() {
+		if (datasourceNames == null) {
+			String[] names = new String[] { DS_CONTEXT };
+			try {
+				String list = (String) new InitialContext().lookup(DS_LIST_ENTRY);
+				if (list != null && list.trim().length() > 0) {
+					names = list.trim().split("\\s*,\\s*");
+				}
+			}
+			catch (NamingException e) {
+				// not set, single datasource
+			}
+			datasourceNames = names;
+		}
+		return datasourceNames;
+	}
+
+	private String[] getReplicaNames(String datasourceName) {
+		if (replicaNames == null) {
+			Map<String, String[]> names = new HashMap<String, String[]>();
+			try {
+				Context ctx = new InitialContext();
+				String list = (String) ctx.lookup(DS_REPLICAS_ENTRY);
+				if (list != null && list.trim().length() > 0) {
+					for (String entry : list.trim().split("\\s*;\\s*")) {
+						String[] primaryReplicas = entry.split("\\s*=\\s*");
+						if (primaryReplicas.length != 2) {
+							logger.error("Malformed read replicas entry '" + entry + "'. Format should be: primary=replica[,replica...]");
+							continue;
+						}
+						names.put(primaryReplicas[0], primaryReplicas[1].split("\\s*,\\s*"));
+					}
+				}
+				replicaMaxStalenessMillis = (Long) ctx.lookup(DS_REPLICA_MAX_STALENESS_ENTRY);
+			}
+			catch (NamingException e) {
+				// not set, no replicas
+			}
+			replicaNames = Collections.unmodifiableMap(names);
+		}
+		String[] replicas = replicaNames.get(datasourceName);
+		return replicas != null ? replicas : new String[0];
+	}
+
+	/**
+	 * Gets a connection to a read replica, if it's not further behind its primary than the staleness bound.
+	 *
+	 * @param replicaName the JNDI name of the replica datasource
+	 * @return the connection, or null if the replica is unavailable or too far behind
+	 */
+	private Connection getReplicaConnection(String replicaName) {
+		Connection connection = getConnection(replicaName);
+		if (connection == null) {
+			return null;
+		}
+		DataSourceStats stats = DataSourceStats.get(replicaName, true);
+		try {
+			long staleness;
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet rs = statement.executeQuery(HEARTBEAT_QUERY);
+				staleness = rs.next() ? System.currentTimeMillis() - rs.getLong(1) : Long.MAX_VALUE;
+				rs.close();
+			}
+			finally {
+				statement.close();
+			}
+			stats.setStalenessMillis(staleness);
+			if (staleness <= replicaMaxStalenessMillis) {
+				return connection;
+			}
+			logger.warn("Read replica " + replicaName + " is " + (staleness == Long.MAX_VALUE ? "not replicating" : staleness + "ms behind") + ", using its primary.");
+		}
+		catch (Exception e) {
+			stats.setStalenessMillis(-1);
+			logger.warn("Unable to check how far behind read replica " + replicaName + " is, using its primary.", e);
+		}
+		try {
+			connection.close();
+		}
+		catch (Exception e) {
+			logger.error("Failure trying to close connection.", e);
+		}
+		return null;
+	}
 
-	private Connection getConnection() {
+	private Connection getConnection(String datasourceName) {
 		Connection connection = null;
 
 		Context initialContext;
 		try {
 			initialContext = new InitialContext();
 
+			DataSource datasource = datasources.get(datasourceName);
 			if (datasource == null) {
-				datasource = (DataSource) initialContext.lookup(DS_CONTEXT);
+				datasource = (DataSource) initialContext.lookup(datasourceName);
+				datasources.put(datasourceName, datasource);
 			}
 
-			if (datasource != null) {
-				connection = datasource.getConnection();
-			}
-			else {
-				logger.error("Failed to get connection to datasource (null).");
-			}
+			connection = datasource.getConnection();
 		}
 		catch (NamingException e) {
-			logger.error("Unable to get JNDI InitialContext", e);
+			logger.error("Unable to lookup datasource " + datasourceName, e);
 		}
 		catch (SQLException e) {
-			logger.error("Failed to get connection to datasource.", e);
+			logger.error("Failed to get connection to datasource " + datasourceName, e);
 		}
 
 		return connection;
 	}
 
+	/**
+	 * Executes an update of a single user on each datasource until one has the user, as each user is in one shard only.
+	 *
+	 * @param sql the update statement
+	 * @param params the statement parameters
+	 * @return true if the user was updated
+	 */
+	private boolean updateUser(String sql, Object... params) {
+		for (String datasourceName : getDataSourceNames()) {
+			Connection connection = getConnection(datasourceName);
+			if (connection == null) {
+				continue;
+			}
+			long started = System.nanoTime();
+			boolean error = false;
+			try {
+				PreparedStatement ps = connection.prepareStatement(sql);
+				for (int i = 0; i < params.length; i++) {
+					ps.setObject(i + 1, params[i]);
+				}
+				if (ps.executeUpdate() == 1) {
+					return true;
+				}
+			}
+			catch (Exception e) {
+				error = true;
+				logger.error("Unable to execute SQL statement on " + datasourceName, e);
+			}
+			finally {
+				DataSourceStats.get(datasourceName, false).record(started, error);
+				try {
+					connection.close();
+				}
+				catch (Exception e) {
+					logger.error("Failure trying to close connection.", e);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Executes an update of a single user which drops the reservations of its sessions, along with removing those,
+	 * in the same transaction. Otherwise, a session would give back its reservation again, when settling it.
+	 *
+	 * @param sql the update statement, with the MSISDN as the only parameter
+	 * @param msisdn the MSISDN of the user
+	 * @return true if the user was updated
+	 */
+	private boolean updateUserAndReservations(String sql, String msisdn) {
+		for (String datasourceName : getDataSourceNames()) {
+			Connection connection = getConnection(datasourceName);
+			if (connection == null) {
+				continue;
+			}
+			long started = System.nanoTime();
+			boolean error = false;
+			try {
+				connection.setAutoCommit(false);
+				PreparedStatement ps = connection.prepareStatement(sql);
+				ps.setString(1, msisdn);
+				if (ps.executeUpdate() == 1) {
+					ps = connection.prepareStatement("DELETE FROM " + RESERVATIONS_TABLE + " WHERE MSISDN = ?");
+					ps.setString(1, msisdn);
+					ps.executeUpdate();
+					connection.commit();
+					return true;
+				}
+				connection.rollback();
+			}
+			catch (Exception e) {
+				error = true;
+				logger.error("Unable to execute SQL statement on " + datasourceName, e);
+				try {
+					connection.rollback();
+				}
+				catch (Exception f) {
+					logger.error("Failure trying to rollback.", f);
+				}
+			}
+			finally {
+				DataSourceStats.get(datasourceName, false).record(started, error);
+				try {
+					connection.setAutoCommit(true);
+					connection.close();
+				}
+				catch (Exception e) {
+					logger.error("Failure trying to close connection.", e);
+				}
+			}
+		}
+		return false;
+	}
+
     /**
      * Fetch All Users
      * [GET] http://mob-chaser/api/[version]/charging/users[?filter]
@@ -69,26 +276,91 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-		Connection connection = getConnection();
-		try {
-			ResultSet rSet = connection.createStatement().executeQuery("SELECT * FROM " + USERS_TABLE);
-			result = ResultSetConverter.convert(rSet).toString();
-		}
-		catch (Exception e) {
-			logger.error("Unable to execute SQL statement.", e);
-		}
-		finally {
+		List<JSONObject> users = new ArrayList<JSONObject>();
+		// scatter-gather over all the shards, from a read replica of each if there's one close enough behind
+		for (String datasourceName : getDataSourceNames()) {
+			String source = datasourceName;
+			Connection connection = null;
+			for (String replicaName : getReplicaNames(datasourceName)) {
+				connection = getReplicaConnection(replicaName);
+				if (connection != null) {
+					source = replicaName;
+					break;
+				}
+			}
+			if (connection == null) {
+				connection = getConnection(datasourceName);
+			}
+			if (connection == null) {
+				continue;
+			}
+			long started = System.nanoTime();
+			boolean error = false;
 			try {
-				connection.close();
+				JSONArray shardUsers = ResultSetConverter.convert(connection.createStatement().executeQuery("SELECT * FROM " + USERS_TABLE));
+				for (int i = 0; i < shardUsers.length(); i++) {
+					users.add(shardUsers.getJSONObject(i));
+				}
 			}
 			catch (Exception e) {
-				logger.error("Failure trying to close connection.", e);
+				error = true;
+				logger.error("Unable to execute SQL statement on " + source, e);
 			}
+			finally {
+				DataSourceStats.get(source, !source.equals(datasourceName)).record(started, error);
+				try {
+					connection.close();
+				}
+				catch (Exception e) {
+					logger.error("Failure trying to close connection.", e);
+				}
+			}
+		}
+		// listed by MSISDN, whichever shard each user is in
+		Collections.sort(users, BY_MSISDN);
+		JSONArray sorted = new JSONArray();
+		for (JSONObject user : users) {
+			sorted.put(user);
 		}
+		result = sorted.toString();
 
 		return Response.status(200).entity(result).build();
 	}
 
+	private static final Comparator<JSONObject> BY_MSISDN = new Comparator<JSONObject>() {
+		public int compare(JSONObject user1, JSONObject user2) {
+			return msisdnOf(user1).compareTo(msisdnOf(user2));
+		}
+	};
+
+	private static String msisdnOf(JSONObject user) {
+		// the column names are in the case the database reports them
+		String msisdn = user.optString("MSISDN", null);
+		return msisdn != null ? msisdn : user.optString("msisdn", "");
+	}
+
+    /**
+     * Datasource Statistics, the latency and errors of the statements run on each datasource, primary or read replica
+     * [GET] http://mob-chaser/api/[version]/charging/datasources
+     *
+     * @return a list with the statistics of each datasource used so far
+     */
+	@GET
+	@Path("/datasources")
+	public Response getDataSourceStats() {
+		JSONArray result = new JSONArray();
+		try {
+			for (DataSourceStats stats : DataSourceStats.getAll()) {
+				result.put(stats.toJSON());
+			}
+		}
+		catch (Exception e) {
+			logger.error("Unable to list datasource statistics.", e);
+		}
+
+		return Response.status(200).entity(result.toString()).build();
+	}
+
     /**
      * Set User Balance
      * [PUT] http://mob-chaser/api/[version]/charging/users/msisdn/{msisdn}/balance/{value}
@@ -104,26 +376,7 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-		Connection connection = getConnection();
-		try {
-            PreparedStatement ps = connection.prepareStatement("UPDATE " + USERS_TABLE + " SET BALANCE = ? WHERE MSISDN = ?");
-            ps.setLong(1, value);
-            ps.setString(2, msisdn);
-            int updated = ps.executeUpdate();
-
-			result = (updated == 1 ? "OK" : "FAIL");
-		}
-		catch (Exception e) {
-			logger.error("Unable to execute SQL statement.", e);
-		}
-		finally {
-			try {
-				connection.close();
-			}
-			catch (Exception e) {
-				logger.error("Failure trying to close connection.", e);
-			}
-		}
+		result = updateUser("UPDATE " + USERS_TABLE + " SET BALANCE = ?, VERSION = VERSION + 1 WHERE MSISDN = ?", value, msisdn) ? "OK" : "FAIL";
 
 		return Response.status(200).entity(result).build();
 	}
@@ -143,22 +396,7 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-		Connection connection = getConnection();
-		try {
-			int updated = connection.createStatement().executeUpdate("UPDATE " + USERS_TABLE + " SET RESERVED = " + value + " WHERE MSISDN = " + msisdn);
-			result = (updated == 1 ? "OK" : "FAIL");
-		}
-		catch (Exception e) {
-			logger.error("Unable to execute SQL statement.", e);
-		}
-		finally {
-			try {
-				connection.close();
-			}
-			catch (Exception e) {
-				logger.error("Failure trying to close connection.", e);
-			}
-		}
+		result = updateUser("UPDATE " + USERS_TABLE + " SET RESERVED = ?, VERSION = VERSION + 1 WHERE MSISDN = ?", value, msisdn) ? "OK" : "FAIL";
 
 		return Response.status(200).entity(result).build();
 	}
@@ -177,22 +415,7 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-        Connection connection = getConnection();
-        try {
-            int updated = connection.createStatement().executeUpdate("UPDATE " + USERS_TABLE + " SET BALANCE = BALANCE + RESERVED, RESERVED = 0 WHERE MSISDN = " + msisdn);
-            result = (updated == 1 ? "OK" : "FAIL");
-        }
-        catch (Exception e) {
-			logger.error("Unable to execute SQL statement.", e);
-        }
-        finally {
-            try {
-                connection.close();
-            }
-            catch (Exception e) {
-				logger.error("Failure trying to close connection.", e);
-            }
-        }
+        result = updateUserAndReservations("UPDATE " + USERS_TABLE + " SET BALANCE = BALANCE + RESERVED, RESERVED = 0, VERSION = VERSION + 1 WHERE MSISDN = ?", msisdn) ? "OK" : "FAIL";
 
         return Response.status(200).entity(result).build();
     }
@@ -211,23 +434,8 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-        Connection connection = getConnection();
-        try {
-            // TODO: SELECT first so that we can return the deleted user information ?
-            int updated = connection.createStatement().executeUpdate("DELETE FROM " + USERS_TABLE + " WHERE MSISDN = " + msisdn);
-            result = (updated == 1 ? "OK" : "FAIL");
-        }
-        catch (Exception e) {
-			logger.error("Unable to execute SQL statement.", e);
-        }
-        finally {
-            try {
-                connection.close();
-            }
-            catch (Exception e) {
-				logger.error("Failure trying to close connection.", e);
-            }
-        }
+        // TODO: SELECT first so that we can return the deleted user information ?
+        result = updateUserAndReservations("DELETE FROM " + USERS_TABLE + " WHERE MSISDN = ?", msisdn) ? "OK" : "FAIL";
 
         return Response.status(200).entity(result).build();
     }
@@ -260,7 +468,14 @@ public class ChargingServerManagementAPI {
 		if (logger.isInfoEnabled()) {
 			logger.info("[><] " + result);
 		}
-        Connection connection = getConnection();
+        if (getDataSourceNames().length > 1) {
+            // the shard of a new user is decided by the charging server shard map, which is not known here
+            logger.error("Unable to add USER '" + msisdn + "', users can't be added through REST when sharded.");
+            return Response.status(200).entity("FAIL").build();
+        }
+        Connection connection = getConnection(getDataSourceNames()[0]);
+        long started = System.nanoTime();
+        boolean error = false;
         try {
             PreparedStatement ps = connection.prepareStatement("INSERT INTO " + USERS_TABLE + " (MSISDN, BALANCE, RESERVED, USER_STATUS) VALUES (?, ?, ?, ?)");
             ps.setString(1, msisdn);
@@ -272,9 +487,11 @@ public class ChargingServerManagementAPI {
             result = (updated == 1 ? "OK" : "FAIL");
         }
         catch (Exception e) {
+            error = true;
             logger.error("Unable to execute SQL statement.", e);
         }
         finally {
+            DataSourceStats.get(getDataSourceNames()[0], false).record(started, error);
             try {
                 connection.close();
             }
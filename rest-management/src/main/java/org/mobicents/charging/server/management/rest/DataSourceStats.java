@@ -0,0 +1,98 @@
+package org.mobicents.charging.server.management.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency and error counters of the statements run on a datasource (a shard primary or a read replica), since start,
+ * so that it shows how much of the load the replicas take off the primaries.
+ */
+public final class DataSourceStats {
+
+	private static final ConcurrentMap<String, DataSourceStats> stats = new ConcurrentHashMap<String, DataSourceStats>();
+
+	private final String datasource;
+	private final boolean replica;
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	// how far behind a replica was, as of its last heartbeat check
+	private volatile long stalenessMillis = -1;
+
+	private DataSourceStats(String datasource, boolean replica) {
+		this.datasource = datasource;
+		this.replica = replica;
+	}
+
+	/**
+	 * @param datasource the JNDI name of the datasource
+	 * @param replica true if it is a read replica
+	 * @return the counters for the datasource, created if needed
+	 */
+	public static DataSourceStats get(String datasource, boolean replica) {
+		DataSourceStats dataSourceStats = stats.get(datasource);
+		if (dataSourceStats == null) {
+			DataSourceStats created = new DataSourceStats(datasource, replica);
+			dataSourceStats = stats.putIfAbsent(datasource, created);
+			if (dataSourceStats == null) {
+				dataSourceStats = created;
+			}
+		}
+		return dataSourceStats;
+	}
+
+	/**
+	 * @return the counters of all the datasources used so far
+	 */
+	public static List<DataSourceStats> getAll() {
+		return new ArrayList<DataSourceStats>(stats.values());
+	}
+
+	/**
+	 * Records a statement run.
+	 * 
+	 * @param startedNanos when it was started, as of {@link System#nanoTime()}
+	 * @param error true if it failed
+	 */
+	public void record(long startedNanos, boolean error) {
+		long latencyNanos = System.nanoTime() - startedNanos;
+		operations.incrementAndGet();
+		if (error) {
+			errors.incrementAndGet();
+		}
+		totalLatencyNanos.addAndGet(latencyNanos);
+		long max = maxLatencyNanos.get();
+		while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+			max = maxLatencyNanos.get();
+		}
+	}
+
+	public void setStalenessMillis(long stalenessMillis) {
+		this.stalenessMillis = stalenessMillis;
+	}
+
+	public JSONObject toJSON() throws JSONException {
+		long count = operations.get();
+		JSONObject json = new JSONObject();
+		json.put("datasource", datasource);
+		json.put("role", replica ? "replica" : "primary");
+		json.put("operations", count);
+		json.put("errors", errors.get());
+		json.put("avgLatencyMillis", count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count);
+		json.put("maxLatencyMillis", maxLatencyNanos.get() / 1e6);
+		if (replica) {
+			json.put("stalenessMillis", stalenessMillis);
+		}
+		return json;
+	}
+
+}
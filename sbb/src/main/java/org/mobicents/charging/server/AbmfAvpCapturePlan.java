@@ -0,0 +1,169 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable, compiled plan of which CCR AVPs are captured into the CreditControlInfo service info for the ABMF.
+ *
+ * It is built from the "ABMF_AVPs" env-entry, with format <code>[group/]*code=name,...</code>:
+ * <ul>
+ *   <li><code>30=apn</code> captures AVP 30 wherever it shows up, so every Grouped AVP has to be scanned;</li>
+ *   <li><code>873/874/30=apn</code> also names the Grouped AVPs AVP 30 is found in, so that, provided all entries are
+ *   qualified this way, the subtrees of any other Grouped AVP are skipped.</li>
+ * </ul>
+ * Qualifiers are not matched as paths: the groups of all the entries make up a single set of Grouped AVPs to scan, at
+ * any depth, and the AVPs to capture are looked up by code in all of them, as well as at the top level of the CCR. So
+ * with <code>873/874/30=apn, 456/446/421=data-amount</code>, AVP 421 is captured inside 873 too, but not inside
+ * Grouped AVPs outside the set, eg, Requested-Service-Unit (437) within Multiple-Services-Credit-Control (456).
+ * Lookups are done on sorted primitive int arrays. The plan in use is installed once, when the SBB reads its
+ * env-entries, and each CCR takes it with {@link #getCurrent()} before scanning its AVPs.
+ */
+public final class AbmfAvpCapturePlan {
+
+	public static final AbmfAvpCapturePlan EMPTY = new AbmfAvpCapturePlan(new int[0], new String[0], new int[0], false);
+
+	private static volatile AbmfAvpCapturePlan current = EMPTY;
+
+	// sorted AVP codes to capture, and the name for each, at the same index
+	private final int[] codes;
+	private final String[] names;
+
+	// sorted Grouped AVP codes that may contain AVPs to capture
+	private final int[] groupCodes;
+
+	// true when some AVP to capture is not qualified by its groups, meaning any Grouped AVP may contain it
+	private final boolean scanAllGroups;
+
+	private AbmfAvpCapturePlan(int[] codes, String[] names, int[] groupCodes, boolean scanAllGroups) {
+		this.codes = codes;
+		this.names = names;
+		this.groupCodes = groupCodes;
+		this.scanAllGroups = scanAllGroups;
+	}
+
+	/**
+	 * Compiles a plan from its textual definition.
+	 *
+	 * @param definition the definition, in <code>[group/]*code=name,...</code> format. Null or empty means capture nothing.
+	 * @return the compiled plan
+	 * @throws IllegalArgumentException if the definition is malformed
+	 */
+	public static AbmfAvpCapturePlan parse(String definition) throws IllegalArgumentException {
+		if (definition == null || definition.trim().length() == 0) {
+			return EMPTY;
+		}
+
+		TreeMap<Integer, String> targets = new TreeMap<Integer, String>();
+		TreeSet<Integer> groups = new TreeSet<Integer>();
+		boolean scanAllGroups = false;
+
+		for (String entry : definition.trim().split(",")) {
+			String[] codeName = entry.trim().split("=");
+			if (codeName.length != 2 || codeName[1].trim().length() == 0) {
+				throw new IllegalArgumentException("Malformed ABMF AVP entry '" + entry + "'. Format should be: [group/]*code=name");
+			}
+			String[] path = codeName[0].trim().split("/");
+			try {
+				for (int i = 0; i < path.length - 1; i++) {
+					groups.add(Integer.valueOf(path[i].trim()));
+				}
+				targets.put(Integer.valueOf(path[path.length - 1].trim()), codeName[1].trim());
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Malformed ABMF AVP code in entry '" + entry + "'.", e);
+			}
+			if (path.length == 1) {
+				scanAllGroups = true;
+			}
+		}
+
+		int[] codes = new int[targets.size()];
+		String[] names = new String[targets.size()];
+		int i = 0;
+		for (Integer code : targets.keySet()) {
+			codes[i] = code;
+			names[i++] = targets.get(code);
+		}
+		int[] groupCodes = new int[groups.size()];
+		i = 0;
+		for (Integer code : groups) {
+			groupCodes[i++] = code;
+		}
+
+		return new AbmfAvpCapturePlan(codes, names, groupCodes, scanAllGroups);
+	}
+
+	/**
+	 * @return the plan currently in use
+	 */
+	public static AbmfAvpCapturePlan getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Installs the plan in use, done when the SBB reads its env-entries. CCRs being processed keep the plan they started with.
+	 *
+	 * @param plan the new plan
+	 */
+	public static void setCurrent(AbmfAvpCapturePlan plan) {
+		current = plan == null ? EMPTY : plan;
+	}
+
+	/**
+	 * @return true if there's nothing to capture, so the CCR AVPs don't need to be scanned at all
+	 */
+	public boolean isEmpty() {
+		return codes.length == 0;
+	}
+
+	/**
+	 * @param code the (non-grouped) AVP code
+	 * @return the name to store the AVP value with, or null if the AVP is not to be captured
+	 */
+	public String getName(int code) {
+		int index = Arrays.binarySearch(codes, code);
+		return index < 0 ? null : names[index];
+	}
+
+	/**
+	 * @param groupCode the Grouped AVP code
+	 * @return true if the Grouped AVP may contain AVPs to capture and should be scanned
+	 */
+	public boolean mayContainTargets(int groupCode) {
+		return scanAllGroups || Arrays.binarySearch(groupCodes, groupCode) >= 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("AbmfAvpCapturePlan[");
+		for (int i = 0; i < codes.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(codes[i]).append("=").append(names[i]);
+		}
+		sb.append("; Groups=").append(scanAllGroups ? "*" : Arrays.toString(groupCodes)).append("]");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.RequestedServiceUnitAvp;
+import net.java.slee.resource.diameter.cca.events.avp.UsedServiceUnitAvp;
+
+/**
+ * Reads the CC-* unit values out of a Requested/Used-Service-Unit AVP in a single pass, into a long[] indexed by
+ * {@link CcUnitType} ordinal. There is one precompiled extractor per AVP class, so no method names are built and no
+ * reflection, boxing or exceptions are involved per CCR.
+ *
+ * Unit types not present in the AVP (and CC-Money, which is not supported by 3GPP) are reported as {@link #ABSENT}.
+ */
+public abstract class CcUnitExtractor<T> {
+
+	/**
+	 * Value reported for unit types not present in the AVP. It's what the Diameter RA returns for missing Unsigned64.
+	 */
+	public static final long ABSENT = Long.MIN_VALUE;
+
+	private static final CcUnitType[] UNIT_TYPES = CcUnitType.values();
+
+	/**
+	 * Size of the arrays filled by {@link #extract(Object, long[])}.
+	 */
+	public static final int UNIT_TYPE_COUNT = UNIT_TYPES.length;
+
+	private static final int TIME = CcUnitType.TIME.ordinal();
+	private static final int MONEY = CcUnitType.MONEY.ordinal();
+	private static final int TOTAL_OCTETS = CcUnitType.TOTAL_OCTETS.ordinal();
+	private static final int INPUT_OCTETS = CcUnitType.INPUT_OCTETS.ordinal();
+	private static final int OUTPUT_OCTETS = CcUnitType.OUTPUT_OCTETS.ordinal();
+	private static final int SERVICE_SPECIFIC_UNITS = CcUnitType.SERVICE_SPECIFIC_UNITS.ordinal();
+
+	public static final CcUnitExtractor<RequestedServiceUnitAvp> REQUESTED = new CcUnitExtractor<RequestedServiceUnitAvp>() {
+		@Override
+		protected void read(RequestedServiceUnitAvp rsu, long[] units) {
+			units[TIME] = rsu.getCreditControlTime();
+			units[MONEY] = ABSENT;
+			units[TOTAL_OCTETS] = rsu.getCreditControlTotalOctets();
+			units[INPUT_OCTETS] = rsu.getCreditControlInputOctets();
+			units[OUTPUT_OCTETS] = rsu.getCreditControlOutputOctets();
+			units[SERVICE_SPECIFIC_UNITS] = rsu.getCreditControlServiceSpecificUnits();
+		}
+	};
+
+	public static final CcUnitExtractor<UsedServiceUnitAvp> USED = new CcUnitExtractor<UsedServiceUnitAvp>() {
+		@Override
+		protected void read(UsedServiceUnitAvp usu, long[] units) {
+			units[TIME] = usu.getCreditControlTime();
+			units[MONEY] = ABSENT;
+			units[TOTAL_OCTETS] = usu.getCreditControlTotalOctets();
+			units[INPUT_OCTETS] = usu.getCreditControlInputOctets();
+			units[OUTPUT_OCTETS] = usu.getCreditControlOutputOctets();
+			units[SERVICE_SPECIFIC_UNITS] = usu.getCreditControlServiceSpecificUnits();
+		}
+	};
+
+	/**
+	 * Fills the given array with the unit values present in the AVP, indexed by {@link CcUnitType} ordinal.
+	 *
+	 * @param avp the AVP to read from, may be null (all units will be {@link #ABSENT})
+	 * @param units the array to fill, with at least {@link #UNIT_TYPE_COUNT} positions
+	 * @return the same array, for convenience
+	 */
+	public long[] extract(T avp, long[] units) {
+		if (avp == null) {
+			for (int i = 0; i < UNIT_TYPE_COUNT; i++) {
+				units[i] = ABSENT;
+			}
+		}
+		else {
+			read(avp, units);
+		}
+		return units;
+	}
+
+	/**
+	 * Gets the unit type for the given index of the extracted values array, without cloning values().
+	 *
+	 * @param ordinal the index in the extracted values array
+	 * @return the corresponding unit type
+	 */
+	public static CcUnitType unitType(int ordinal) {
+		return UNIT_TYPES[ordinal];
+	}
+
+	protected abstract void read(T avp, long[] units);
+
+}
@@ -22,6 +22,8 @@
 
 package org.mobicents.charging.server;
 
+import java.util.List;
+
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 
@@ -30,9 +32,9 @@ public interface DiameterChargingServer {
 	/**
 	 * Callback for resuming handling of Credit-Control-Request.
 	 * 
-	 * @param ccInfo
+	 * @param ccInfos the outcome for each Multiple-Services-Credit-Control AVP in the request
 	 */
-	public void resumeOnCreditControlRequest(CreditControlInfo ccInfo);
+	public void resumeOnCreditControlRequest(List<CreditControlInfo> ccInfos);
 
 	// Datasource Callbacks -----------------------------------------------------
 
@@ -23,16 +23,15 @@
 package org.mobicents.charging.server;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Properties;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.slee.ActivityContextInterface;
+import javax.slee.ActivityEndEvent;
 import javax.slee.ChildRelation;
 import javax.slee.CreateException;
 import javax.slee.InitialEventSelector;
@@ -46,6 +45,7 @@ import javax.slee.facilities.TimerOptions;
 import javax.slee.facilities.TimerPreserveMissed;
 import javax.slee.facilities.Tracer;
 import javax.slee.resource.ResourceAdaptorTypeID;
+import javax.slee.serviceactivity.ServiceActivity;
 import javax.slee.serviceactivity.ServiceStartedEvent;
 
 import net.java.slee.resource.diameter.base.events.avp.DiameterAvp;
@@ -54,6 +54,7 @@ import net.java.slee.resource.diameter.base.events.avp.DiameterResultCode;
 import net.java.slee.resource.diameter.base.events.avp.GroupedAvp;
 import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
 import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.CreditControlFailureHandlingType;
 import net.java.slee.resource.diameter.cca.events.avp.CreditControlResultCode;
 import net.java.slee.resource.diameter.cca.events.avp.FinalUnitActionType;
 import net.java.slee.resource.diameter.cca.events.avp.FinalUnitIndicationAvp;
@@ -95,6 +96,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	private static final long DEFAULT_VALIDITY_TIME = 86400;
 	private static final TimerOptions DEFAULT_TIMER_OPTIONS = new TimerOptions(0, TimerPreserveMissed.ALL);
 
+	// session validity, supervised in a timing wheel rather than a SLEE timer per session, if configured
+	private static volatile SessionSupervisor<RoServerSessionActivity> sessionSupervisor;
+
+	// what clients are told to do when answered as too busy, if anything
+	private static volatile CreditControlFailureHandlingType overloadFailureHandling;
+
 	private boolean performRating = false; // true = centralized, false = decentralized (ie, has been done by CTF (eg SIP AS))
 	private boolean generateCDR = false;
 
@@ -119,8 +126,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	private String sidString = "SID<Unknown/?#?>";
 
-	private static HashMap<String, String> abmfAVPs = new HashMap<String, String>();
-
 	// ---------------------------- SLEE Callbacks ----------------------------
 
 	public void setSbbContext(SbbContext context) {
@@ -221,6 +226,14 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return (CDRGenerator) sbbLocalObject;
 	}
 
+	/**
+	 * @param ccInfo an unsuccessful Credit Control Info
+	 * @return the result code for it, DIAMETER_UNABLE_TO_COMPLY if the error can't be determined
+	 */
+	protected long getResultCode(CreditControlInfo ccInfo) {
+		return ccInfo.getErrorCodeType() != null ? getResultCode(ccInfo.getErrorCodeType()) : DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY;
+	}
+
 	/**
 	 * @param errorCodeType
 	 * @return
@@ -286,50 +299,61 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		try {
 			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
 			boolean loadUsersFromCSV = (Boolean) loadEnvEntry(ctx, "loadUsersFromCSV", false);
+			String usersFile = (String) loadEnvEntry(ctx, "usersFile", "");
 			performRating = (Boolean) loadEnvEntry(ctx, "performRating", false);
 			generateCDR = (Boolean) loadEnvEntry(ctx, "generateCDR", false);
 			String abmfAVPsProp = (String) loadEnvEntry(ctx, "ABMF_AVPs", "");
+			long sessionSupervisionTickMillis = (Long) loadEnvEntry(ctx, "sessionSupervisionTickMillis", 0L);
+			int sessionSupervisionWheelSize = (Integer) loadEnvEntry(ctx, "sessionSupervisionWheelSize", 0);
 
+			startSessionSupervision(sessionSupervisionTickMillis, sessionSupervisionWheelSize);
 
+			// admission control, if configured
+			OverloadController.configure((Integer) loadEnvEntry(ctx, "overloadMaxRequestsPerSecond", 0), (Integer) loadEnvEntry(ctx, "overloadBurst", 1),
+					(Integer) loadEnvEntry(ctx, "overloadMaxInFlightPerHost", 0), (Double) loadEnvEntry(ctx, "overloadPriorityShare", 0.0),
+					(Long) loadEnvEntry(ctx, "overloadLatencyTargetMillis", 0L));
+			String failureHandling = null;
 			try {
-				String[] avps = abmfAVPsProp.trim().split(",");
-				for (String avp : avps) {
-					String[] codeName = avp.trim().split("=");
-					if (tracer.isInfoEnabled()) {
-						tracer.info("[><] Mapping AVP with Code " + codeName[0] + " as '" + codeName[1] + "' on received CCRs for ABMF Data.");
-					}
-					abmfAVPs.put(codeName[0], codeName[1]);
-				}
+				failureHandling = (String) ctx.lookup("overloadFailureHandling");
 			}
 			catch (Exception e) {
-				tracer.warning("[!!] Error reading ABMF Data AVPs. Format should be: code=name,code2=name2,... No custom data will be passed.");
+				// an empty value may not be bound at all, no failure handling then
+			}
+			try {
+				overloadFailureHandling = failureHandling != null && failureHandling.trim().length() > 0 ? CreditControlFailureHandlingType.valueOf(failureHandling.trim()) : null;
+			}
+			catch (IllegalArgumentException e) {
+				tracer.warning("[!!] Unknown Credit-Control-Failure-Handling '" + failureHandling + "'. Should be one of TERMINATE, CONTINUE or RETRY_AND_TERMINATE. Not sending any.");
+				overloadFailureHandling = null;
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Admission control " + (OverloadController.isEnabled() ? "enabled, " + OverloadController.getStats()
+						+ (overloadFailureHandling != null ? ", answering too busy with Credit-Control-Failure-Handling " + overloadFailureHandling + "." : ".") : "disabled."));
+			}
+
+			try {
+				AbmfAvpCapturePlan plan = AbmfAvpCapturePlan.parse(abmfAVPsProp);
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Capturing AVPs on received CCRs for ABMF Data as " + plan);
+				}
+				AbmfAvpCapturePlan.setCurrent(plan);
+			}
+			catch (IllegalArgumentException e) {
+				tracer.warning("[!!] Error reading ABMF Data AVPs. Format should be: [group/]*code=name,... No custom data will be passed.", e);
 			}
 
 			if (loadUsersFromCSV) {
 				try {
-
-					Properties props = new Properties();
-					props.load(this.getClass().getClassLoader().getResourceAsStream("users.properties"));
-					for (Object key : props.keySet()) {
-						String msisdn = (String) key;
-						// am.addUser(imsi, Long.valueOf(props.getProperty(imsi)));
-						// TODO: remove the properties to database mapping later on. useful for now
-						ds.updateUser(msisdn, Long.valueOf(props.getProperty(msisdn)));
-					}
-					if (tracer.isInfoEnabled()) {
-						tracer.info("[--] Loaded users from properties file.");
+					// streamed and inserted in bulk, the result comes back at updateAccountDataResult once done
+					if (!ds.loadUsers(usersFile)) {
+						tracer.warning("[!!] Users file '" + usersFile + "' not found. Allowing everything!");
+						am.setBypass(true);
 					}
 				}
 				catch (Exception e) {
-					tracer.warning("[!!] Unable to load users from properties file. Allowing everything!");
+					tracer.warning("[!!] Unable to load users from file. Allowing everything!");
 					am.setBypass(true);
 				}
-				finally {
-					if (tracer.isFineEnabled()) {
-						tracer.fine("[--] Dumping users state...");
-						am.dump("%");
-					}
-				}
 			}
 		}
 		catch(Exception e) {
@@ -337,6 +361,48 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	/**
+	 * Starts supervising session validity in a timing wheel, replacing any supervisor already running, or falls back to
+	 * a SLEE timer per session. Expired sessions have their activity ended from the tick thread, and the activity end
+	 * event then releases what they hold, see {@link #onActivityEndEvent(ActivityEndEvent, ActivityContextInterface)}.
+	 * 
+	 * @param tickMillis the time between ticks of the wheel, 0 to use SLEE timers
+	 * @param wheelSize the number of ticks in a turn of the wheel
+	 */
+	private void startSessionSupervision(long tickMillis, int wheelSize) {
+		SessionSupervisor<RoServerSessionActivity> previous = sessionSupervisor;
+		if (previous != null) {
+			previous.stop();
+		}
+		if (tickMillis <= 0) {
+			sessionSupervisor = null;
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Supervising session validity with SLEE timers.");
+			}
+			return;
+		}
+		final Tracer supervisionTracer = tracer;
+		sessionSupervisor = new SessionSupervisor<RoServerSessionActivity>("CS-SessionSupervisor", tickMillis, wheelSize, new SessionSupervisor.Expiry<RoServerSessionActivity>() {
+			@Override
+			public void expired(List<RoServerSessionActivity> sessions) {
+				if (supervisionTracer.isInfoEnabled()) {
+					supervisionTracer.info("[--] Forcing termination of " + sessions.size() + " sessions due to timeout expire.");
+				}
+				for (RoServerSessionActivity session : sessions) {
+					try {
+						session.endActivity();
+					}
+					catch (Exception e) {
+						supervisionTracer.warning("[!!] Failed to end expired session '" + session.getSessionId() + "'.", e);
+					}
+				}
+			}
+		}, tracer);
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Supervising session validity in a timing wheel, " + sessionSupervisor.getStats() + ".");
+		}
+	}
+
 	/**
 	 * Helper method to load env-entry. In case of exception returns the default value
 	 *
@@ -365,8 +431,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 			sessionInfo = new UserSessionInfo();
 			sessionInfo.setSessionStartTime(System.currentTimeMillis());
 		}
-		sessionInfo.setCcr(ccr);
-		sessionInfo.setSessionId(sessionId);
+		sessionInfo.setRequest(ccr);
 		setSessionInfo(sessionInfo);
 
 		String reqType = ccr.getCcRequestType().toString();
@@ -383,6 +448,20 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		// Some common ops. may be moved to proper places to avoid unnecessary ops
 		RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
 
+		if (!OverloadController.admit(sessionId, reqNumber, sessionInfo.getOriginHost(), ccr.getCcRequestType())) {
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[xx] " + sidString + " Overloaded. Rejecting CCR as too busy. " + OverloadController.getStats());
+			}
+			RoCreditControlAnswer cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_TOO_BUSY);
+			if (overloadFailureHandling != null) {
+				cca.setCreditControlFailureHandling(overloadFailureHandling);
+			}
+			// sessions already granted units are kept, to be settled by a later request or released on expiry
+			CcRequestType requestType = ccr.getCcRequestType();
+			sendCCA(cca, aci, requestType == CcRequestType.INITIAL_REQUEST || requestType == CcRequestType.EVENT_REQUEST, false);
+			return;
+		}
+
 		SubscriptionIdType endUserType = null; 
 		String endUserId = null;
 
@@ -403,14 +482,14 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		else {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP missing in CCR. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
 			return;
 		}
 
 		if (endUserId == null) {
 			tracer.severe("[xx] " + sidString + " Subscription-Id AVP is present but could not read it's data. Rejecting CCR.");
-			cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+			cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 			sendCCA(cca, aci, true);
 			return;
 		}
@@ -424,8 +503,9 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		catch (Exception e) {
 			// TODO: By configuration it should be possible to proceed
 			tracer.severe("[xx] " + sidString + " Unable to retrieve Account & Balance Management or Rating Child SBB. Unable to continue.", e);
-			cca = createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+			cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			sendCCA(cca, aci, true);
+			return;
 		}
 
 		switch (ccr.getCcRequestType()) {
@@ -443,22 +523,21 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				if (serviceContextId == null) {
 					tracer.severe("[xx] " + sidString + " Service-Context-Id AVP missing in CCR. Rejecting CCR.");
 					// TODO: include missing avp - its a "SHOULD"
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+					cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
+					return;
 				}
 				else {
 					if (serviceContextId.equals("")) {
 						tracer.severe("[xx] " + sidString + " Service-Context-Id AVP is empty in CCR. Rejecting CCR.");
-						cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
+						cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
 						sendCCA(cca, aci, true);
+						return;
 					}
 				}
 
 				// TODO: For Ro, support Service-Information AVP
 
-				List<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-				long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
-
 				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
 				if (multipleServicesCreditControlAvps != null && tracer.isFineEnabled()) {
 					tracer.fine("[--] " + sidString + " Received CCR has Multiple-Services-Credit-Control AVP with length = " + multipleServicesCreditControlAvps.length);
@@ -477,6 +556,10 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				// RFC4006 / 8.16.  Multiple-Services-Credit-Control AVP
 				// Note that each instance of this AVP carries units related to one or more services or related to a
 				// single rating group.
+				// All of them are handled together, with a single round trip to the ABMF.
+				List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>(multipleServicesCreditControlAvps.length);
+				long[] allServiceIds = new long[0];
+				sessionInfo = getSessionInfo();
 				for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
 
 					// The Service-Identifier and the Rating-Group AVPs are used to associate the granted units to a
@@ -487,6 +570,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 					long ratingGroup = mscc.getRatingGroup();
 					long[] serviceIds = mscc.getServiceIdentifiers();
+					allServiceIds = concat(allServiceIds, serviceIds);
 
 					// The Requested-Service-Unit AVP MAY contain the amount of requested service units [...]. It MUST
 					// be present in the initial interrogation and within the intermediate interrogations in which new
@@ -503,47 +587,34 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 						// update used units for each CC-Type.
 						UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
 
-						sessionInfo = getSessionInfo();
-						CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
-
-						ArrayList<CreditControlUnit> usedCCUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+						ArrayList<CreditControlUnit> usedCCUnits = collectUsedUnits(usedUnitsAvps, getReservedUnits(sessionInfo, ratingGroup, serviceIds));
 
 						// Merge Requested with Used/Reserved CC Units into a single CCUnits
 						ccUnits.addAll(usedCCUnits);
-
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.updateRequest(ccInfo);
 					}
-					else {
-						// Initial Request
 
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.initialRequest(ccInfo);
-					}
-
-					// Store Credit Control Info in CMP
-					sessionInfo = getSessionInfo();
-					sessionInfo.setCcr(ccr);
-					sessionInfo.setServiceIds(serviceIds);
-					sessionInfo.setEndUserId(endUserId);
-					sessionInfo.setEndUserType(endUserType);
-					setSessionInfo(sessionInfo);
-
-					return; // we'll continue @ resumeOnCreditControlRequest(..)
+					ccInfos.add(buildCCInfo(ccr, endUserId, endUserType, ratingGroup, serviceIds, ccUnits, ccInfos.isEmpty() ? null : ccInfos.get(0)));
 				}
 
-				if (reservations.size() > 0) {
-					cca = createCCA(ccServerActivity, ccr, reservations, resultCode);
+				// Store Credit Control Info in CMP
+				sessionInfo.setServiceIds(allServiceIds);
+				sessionInfo.setEndUserId(endUserId);
+				sessionInfo.setEndUserType(endUserType);
+				setSessionInfo(sessionInfo);
+
+				// Call ABMF with this Credit Control Info
+				if (ccr.getCcRequestType() == CcRequestType.UPDATE_REQUEST) {
+					accountBalanceManagement.updateRequest(ccInfos);
 				}
 				else {
-					cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+					// Initial Request
+					accountBalanceManagement.initialRequest(ccInfos);
 				}
-				sendCCA(cca, aci, false);
+				return; // we'll continue @ resumeOnCreditControlRequest(..)
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [" + (ccr.getCcRequestType() == CcRequestType.INITIAL_REQUEST ? "INITIAL" : "UPDATE") + "]", e);
+				sendFailureCCA(ccServerActivity, sessionInfo, aci, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			}
 			break;
 			// TERMINATION_REQUEST 3
@@ -553,22 +624,26 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					tracer.info("[>>] " + sidString + " '" + endUserId + "' requested service termination for '" + serviceContextId + "'.");
 				}
 
-				for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
-
-					UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
-
+				MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+				if (multipleServicesCreditControlAvps.length > 0) {
+					List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>(multipleServicesCreditControlAvps.length);
 					sessionInfo = getSessionInfo();
-					CreditControlInfo reservedInfo = sessionInfo.getReservations().get(sessionInfo.getReservations().size() - 1);
+					for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
+						UsedServiceUnitAvp[] usedUnitsAvps = mscc.getUsedServiceUnits();
+
+						long ratingGroup = mscc.getRatingGroup();
+						long[] serviceIds = mscc.getServiceIdentifiers();
+						ArrayList<CreditControlUnit> ccUnits = collectUsedUnits(usedUnitsAvps, getReservedUnits(sessionInfo, ratingGroup, serviceIds));
 
-					ArrayList<CreditControlUnit> ccUnits = collectUsedUnits(usedUnitsAvps, reservedInfo.getCcUnits());
+						ccInfos.add(buildCCInfo(ccr, endUserId, endUserType, ratingGroup, serviceIds, ccUnits, ccInfos.isEmpty() ? null : ccInfos.get(0)));
+					}
 
 					// Call ABMF with this Credit Control Info
-					CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-					accountBalanceManagement.terminateRequest(ccInfo);
+					accountBalanceManagement.terminateRequest(ccInfos);
 
 					// No need to Store Credit Control Info in CMP. SLEE Container automatically takes care of garbage collection.
 					// sessionInfo = getSessionInfo();
-					// sessionInfo.getReservations().add(ccInfo);
+					// sessionInfo.addReservations(ccInfos);
 					// setSessionInfo(sessionInfo);
 
 					return; // we'll continue @ resumeOnCreditControlRequest(..)
@@ -627,11 +702,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				// Answer with DIAMETER_SUCCESS, since "4) The default action for failed operations should be to terminate the data session"
 				// its terminated, we cant do much here...
-				cca = createCCA(ccServerActivity, ccr, null, DiameterResultCode.DIAMETER_SUCCESS);
+				cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_SUCCESS);
 				sendCCA(cca, aci, true);
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [TERMINATION]", e);
+				sendFailureCCA(ccServerActivity, sessionInfo, aci, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			}
 			break;
 			// EVENT_REQUEST 4
@@ -648,52 +724,77 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 				if (reqAction == null) {
 					tracer.severe("[xx] " + sidString + " Unable to retrieve Requested-Action AVP. Replying with MISSING_AVP.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_MISSING_AVP);
+					cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_MISSING_AVP);
 					sendCCA(cca, aci, true);
 				}
 				else if (reqAction == RequestedActionType.DIRECT_DEBITING) {
-					for (MultipleServicesCreditControlAvp mscc : ccr.getMultipleServicesCreditControls()) {
+					MultipleServicesCreditControlAvp[] multipleServicesCreditControlAvps = ccr.getMultipleServicesCreditControls();
+					List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>(multipleServicesCreditControlAvps.length);
+					for (MultipleServicesCreditControlAvp mscc : multipleServicesCreditControlAvps) {
 						RequestedServiceUnitAvp rsu = mscc.getRequestedServiceUnit();
 
+						long ratingGroup = mscc.getRatingGroup();
 						long[] serviceIds = mscc.getServiceIdentifiers();
 
 						ArrayList<CreditControlUnit> ccUnits = getRequestedUnits(ccr, rsu, serviceIds);
 
-						// Call ABMF with this Credit Control Info
-						CreditControlInfo ccInfo = buildCCInfo(ccr, endUserId, endUserType, ccUnits);
-						accountBalanceManagement.eventRequest(ccInfo);
+						ccInfos.add(buildCCInfo(ccr, endUserId, endUserType, ratingGroup, serviceIds, ccUnits, ccInfos.isEmpty() ? null : ccInfos.get(0)));
+					}
 
+					if (ccInfos.size() > 0) {
 						// Store Credit Control Info in CMP
 						sessionInfo = getSessionInfo();
-						sessionInfo.setCcr(ccr);
 						sessionInfo.setEndUserId(endUserId);
-						//sessionInfo.getReservations().add(ccInfo);
+						//sessionInfo.addReservations(ccInfos);
 						setSessionInfo(sessionInfo);
 
 						if (tracer.isInfoEnabled()) {
 							tracer.info(sessionInfo.toString());
 						}
 
+						// Call ABMF with this Credit Control Info
+						accountBalanceManagement.eventRequest(ccInfos);
+
 						return; // we'll continue @ resumeOnCreditControlRequest(..)
 					}
+
+					tracer.severe("[xx] " + sidString + " Multiple-Services-Credit-Control AVP missing in CCR [EVENT]. Replying with MISSING_AVP.");
+					cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_MISSING_AVP);
+					sendCCA(cca, aci, true);
 				}
 				else {
 					tracer.severe("[xx] " + sidString + " Unsupported Requested-Action AVP (" + reqAction + "). Replying with DIAMETER_UNABLE_TO_COMPLY.");
-					createCCA(ccServerActivity, ccr, new ArrayList<CreditControlInfo>(), DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
+					cca = createCCA(ccServerActivity, sessionInfo, null, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 					sendCCA(cca, aci, true);
 				}
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] " + sidString + " Failure processing Credit-Control-Request [EVENT]", e);
+				sendFailureCCA(ccServerActivity, sessionInfo, aci, DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY);
 			}
 			break;
 		default:
-			tracer.warning("[xx] " + sidString + " Unknown request type found!");
+			tracer.warning("[xx] " + sidString + " Unknown request type found! Replying with INVALID_AVP_VALUE.");
+			sendFailureCCA(ccServerActivity, sessionInfo, aci, DiameterResultCode.DIAMETER_INVALID_AVP_VALUE);
 			break;
 		}
 	}
 
-	private CreditControlInfo buildCCInfo(RoCreditControlRequest ccr, String endUserId, SubscriptionIdType endUserType, ArrayList<CreditControlUnit> ccUnits) {
+	/**
+	 * Builds the Credit Control Info for one of the Multiple-Services-Credit-Control AVPs in the CCR.
+	 * 
+	 * @param ccr the request
+	 * @param endUserId the Subscription-Id data
+	 * @param endUserType the Subscription-Id type
+	 * @param ratingGroup the MSCC Rating-Group
+	 * @param serviceIds the MSCC Service-Identifier(s)
+	 * @param ccUnits the MSCC requested and/or used units
+	 * @param first the Credit Control Info already built for the first MSCC in the CCR, to copy the AVPs captured for
+	 *        the ABMF from, or null if this is the first
+	 * @return the Credit Control Info
+	 */
+	private CreditControlInfo buildCCInfo(RoCreditControlRequest ccr, String endUserId, SubscriptionIdType endUserType, long ratingGroup, long[] serviceIds,
+			ArrayList<CreditControlUnit> ccUnits, CreditControlInfo first) {
 		// Build Credit Control Info Request to ABMF
 		CreditControlInfo ccInfo = new CreditControlInfo();
 		ccInfo.setEventTimestamp(System.currentTimeMillis());
@@ -706,11 +807,24 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		ccInfo.setSessionId(ccr.getSessionId());
 		ccInfo.setSubscriptionId(endUserId);
 		ccInfo.setSubscriptionIdType(endUserType);
+		ccInfo.setRatingGroup(ratingGroup);
+		ccInfo.setServiceIds(serviceIds);
 		ccInfo.setCcUnits(ccUnits);
 
-		// Iterate CCR to capture needed AVPs
-		for (DiameterAvp avp : ccr.getAvps()) {
-			fetchDataFromAvp(avp, ccInfo);
+		// The captured AVPs are the same for every MSCC in the CCR, no need to iterate it again
+		if (first != null) {
+			for (String name : first.getServiceInfoKeys()) {
+				ccInfo.addServiceInfo(name, first.getServiceInfo(name));
+			}
+			return ccInfo;
+		}
+
+		// Iterate CCR to capture needed AVPs, using the same plan snapshot for the whole CCR
+		AbmfAvpCapturePlan plan = AbmfAvpCapturePlan.getCurrent();
+		if (!plan.isEmpty()) {
+			for (DiameterAvp avp : ccr.getAvps()) {
+				fetchDataFromAvp(plan, avp, ccInfo, 0);
+			}
 		}
 
 		return ccInfo;
@@ -724,16 +838,74 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		// TODO: allow for different options, such as sending a RAR request.
 		((RoServerSessionActivity) aci.getActivity()).endActivity();
+		expireSessionReservations();
+	}
+
+	/**
+	 * The service activity ended, as the service is deactivated, see {@link #stopService()}. Otherwise a session
+	 * activity ended while still attached, ie, without a terminate request, as when expired by the session supervisor.
+	 */
+	public void onActivityEndEvent(ActivityEndEvent event, ActivityContextInterface aci) {
+		if (aci.getActivity() instanceof ServiceActivity) {
+			stopService();
+			return;
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[--] " + sidString + " Activity '" + aci.getActivity() + "' ended without termination.");
+		}
+		aci.detach(this.sbbContextExt.getSbbLocalObject());
+		SessionSupervisor<RoServerSessionActivity> supervisor = sessionSupervisor;
+		if (supervisor != null) {
+			supervisor.disarm(((RoServerSessionActivity) aci.getActivity()).getSessionId());
+		}
+		expireSessionReservations();
+	}
+
+	/**
+	 * Stops what was started along with the service: the session supervisor and the datasource, so that no thread is
+	 * left behind and the datasource gets to write what it holds.
+	 */
+	private void stopService() {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Service deactivated, stopping the session supervisor and the datasource.");
+		}
+		SessionSupervisor<RoServerSessionActivity> supervisor = sessionSupervisor;
+		if (supervisor != null) {
+			sessionSupervisor = null;
+			supervisor.stop();
+		}
+		try {
+			getDatasource().stop();
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to stop the Datasource Child SBB.", e);
+		}
+	}
+
+	/**
+	 * No terminate request is coming to release what the session holds, have it released by the datasource: right
+	 * away by the ones keeping the reserved amount per user, through the reservation sweeper by the others.
+	 */
+	private void expireSessionReservations() {
+		UserSessionInfo sessionInfo = getSessionInfo();
+		if (sessionInfo != null && !sessionInfo.getLastReservations().isEmpty()) {
+			try {
+				getDatasource().expireReservations(sessionInfo.getEndUserId(), sessionInfo.getSessionId(), sessionInfo.getLastReservations());
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] " + sidString + " Unable to expire the session reservations. They will be released after the reservation timeout.", e);
+			}
+		}
 	}
 
 	/**
 	 * @param ccServerActivity
-	 * @param request
-	 * @param reservations
+	 * @param sessionInfo the session info, holding the data of the request being answered
+	 * @param ccInfos the outcome of each MSCC in the request, to answer with, or null if there's none to include
 	 * @param resultCode
 	 * @return
 	 */
-	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, RoCreditControlRequest request, List<CreditControlInfo> reservations, long resultCode) {
+	private RoCreditControlAnswer createCCA(RoServerSessionActivity ccServerActivity, UserSessionInfo sessionInfo, List<CreditControlInfo> ccInfos, long resultCode) {
 		RoCreditControlAnswer answer = ccServerActivity.createRoCreditControlAnswer();
 
 		// <Credit-Control-Answer> ::= < Diameter Header: 272, PXY >
@@ -785,16 +957,13 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		//                          [ CC-Output-Octets ]
 		//                          [ CC-Service-Specific-Units ]
 		//                         *[ AVP ]
-		if (reservations != null && reservations.size() > 0) {
-			MultipleServicesCreditControlAvp[] reqMSCCs = request.getMultipleServicesCreditControls();
-			List<MultipleServicesCreditControlAvp> ansMSCCs = new ArrayList<MultipleServicesCreditControlAvp>();
-			for (int index = 0; index < reqMSCCs.length; index++) {
-				MultipleServicesCreditControlAvp reqMSCC = reqMSCCs[index];
+		// Only answer with MSCCs if the request had them
+		if (ccInfos != null && sessionInfo.getMsccCount() > 0) {
+			List<MultipleServicesCreditControlAvp> ansMSCCs = new ArrayList<MultipleServicesCreditControlAvp>(ccInfos.size());
+			for (CreditControlInfo ccInfo : ccInfos) {
 				MultipleServicesCreditControlAvp ansMscc = avpFactory.createMultipleServicesCreditControl();
-				ansMscc.setRatingGroup(reqMSCC.getRatingGroup());
-				ansMscc.setServiceIdentifiers(reqMSCC.getServiceIdentifiers());
-				// FIXME: Check how to handle this in case of MSCC if anything different is needed
-				CreditControlInfo ccInfo = reservations.get(reservations.size()-1);
+				ansMscc.setRatingGroup(ccInfo.getRatingGroup());
+				ansMscc.setServiceIdentifiers(ccInfo.getServiceIds());
 				if (ccInfo.isSuccessful()) {
 					GrantedServiceUnitAvp gsu = avpFactory.createGrantedServiceUnit();
 					ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
@@ -834,7 +1003,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 					fuiAvp.setFinalUnitAction(FinalUnitActionType.TERMINATE);
 					ansMscc.setFinalUnitIndication(fuiAvp);
 
-					ansMscc.setResultCode(resultCode);
+					ansMscc.setResultCode(getResultCode(ccInfo));
 				}
 				ansMSCCs.add(ansMscc);
 				ansMscc.setValidityTime(DEFAULT_VALIDITY_TIME);
@@ -876,6 +1045,23 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	 * @return true if it succeeds sending, false otherwise
 	 */
 	private boolean sendCCA(RoCreditControlAnswer cca, ActivityContextInterface aci, boolean detach) {
+		return sendCCA(cca, aci, detach, true);
+	}
+
+	/**
+	 * Sends the Credit-Control-Answer through the ACI and detaches if set to.
+	 * @param cca the Credit-Control-Answer to send
+	 * @param aci the ACI where to send from
+	 * @param detach boolean indicating whether to detach or not
+	 * @param admitted false if answering a request rejected by admission control, which is not in flight
+	 * @return true if it succeeds sending, false otherwise
+	 */
+	private boolean sendCCA(RoCreditControlAnswer cca, ActivityContextInterface aci, boolean detach, boolean admitted) {
+		if (admitted) {
+			// the request is no longer in flight, whatever the answer
+			OverloadController.completed(((RoServerSessionActivity) aci.getActivity()).getSessionId(), cca.getCcRequestNumber());
+		}
+
 		// Start by cancelling any existing Timer
 		TimerID timerID = getTimerID();
 		if (timerID != null) {
@@ -884,8 +1070,22 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				tracer.info("[><] " + sidString + " Cancelling existing timer " + timerID);
 			}
 		}
+		SessionSupervisor<RoServerSessionActivity> supervisor = sessionSupervisor;
+		if (supervisor != null) {
+			// no timer, just (re-)arm the session in the supervisor, unless we are leaving...
+			if (timerID != null) {
+				setTimerID(null);
+			}
+			RoServerSessionActivity ccServerActivity = (RoServerSessionActivity) aci.getActivity();
+			if (detach) {
+				supervisor.disarm(ccServerActivity.getSessionId());
+			}
+			else {
+				supervisor.arm(ccServerActivity.getSessionId(), ccServerActivity, DEFAULT_VALIDITY_TIME*1000);
+			}
+		}
 		// Set a new one, unless we are leaving...
-		if (!detach) {
+		else if (!detach) {
 			timerID = timerFacility.setTimer(aci, null, System.currentTimeMillis() + DEFAULT_VALIDITY_TIME*1000, DEFAULT_TIMER_OPTIONS);
 			setTimerID(timerID);
 			if(tracer.isFineEnabled()) {
@@ -909,36 +1109,60 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 	}
 
+	/**
+	 * Answers a request which failed to be handled, so that the client is not left waiting and the request is no
+	 * longer counted in flight, even if the answer can't be created or sent.
+	 * 
+	 * @param ccServerActivity the session activity
+	 * @param sessionInfo the session info, holding the data of the request being answered
+	 * @param aci the ACI where to send from
+	 * @param resultCode the Result-Code to answer with
+	 */
+	private void sendFailureCCA(RoServerSessionActivity ccServerActivity, UserSessionInfo sessionInfo, ActivityContextInterface aci, long resultCode) {
+		try {
+			sendCCA(createCCA(ccServerActivity, sessionInfo, null, resultCode), aci, true);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] " + sidString + " Unable to send Credit-Control-Answer.", e);
+			OverloadController.completed(sessionInfo.getSessionId(), sessionInfo.getRequestNumber());
+		}
+	}
+
 	//private String storedEndUserId;
 	//private long storedRequestedUnits;
 	//private long[] storedServiceIds;
 	//private ArrayList<UnitReservation> storedReservations = new ArrayList<UnitReservation>();
 
 	@Override
-	public void resumeOnCreditControlRequest(CreditControlInfo ccInfo) {
+	public void resumeOnCreditControlRequest(List<CreditControlInfo> ccInfos) {
 		UserSessionInfo sessionInfo = getSessionInfo();
-		RoCreditControlRequest storedCCR = sessionInfo.getCcr();
+		CcRequestType requestType = sessionInfo.getRequestType();
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + storedCCR.getCcRequestType().toString() + "]");
+			tracer.info("[<<] " + sidString + " Resuming Handling of Credit-Control-Request [" + requestType.toString() + "]");
 		}
 		if (tracer.isFineEnabled()) {
-			tracer.fine("[<<] \" + sidString + \" " + ccInfo);
+			tracer.fine("[<<] " + sidString + " " + ccInfos);
 		}
-		sessionInfo.getReservations().add(ccInfo);
+		sessionInfo.addReservations(ccInfos);
 		setSessionInfo(sessionInfo);
-		long resultCode = DiameterResultCode.DIAMETER_SUCCESS;
-		if (ccInfo.isSuccessful()) {
+
+		// The request succeeds if any of the services was granted, each MSCC carries its own result. Otherwise, the
+		// result of the first one is used for the whole request.
+		boolean granted = false;
+		CreditControlInfo firstDenied = null;
+		for (CreditControlInfo ccInfo : ccInfos) {
 			if (tracer.isInfoEnabled()) {
-				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' GRANTED for '" + Arrays.toString(sessionInfo.getServiceIds()) + "'.");
+				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' " + (ccInfo.isSuccessful() ? "GRANTED" : "DENIED") +
+						" for Rating-Group " + ccInfo.getRatingGroup() + " / '" + Arrays.toString(ccInfo.getServiceIds()) + "'.");
 			}
-		}
-		else {
-			if (tracer.isInfoEnabled()) {
-				tracer.info("[>>] " + sidString + " '" + sessionInfo.getEndUserId() + "' DENIED for '" + Arrays.toString(sessionInfo.getServiceIds()) + "'.");
+			if (ccInfo.isSuccessful()) {
+				granted = true;
+			}
+			else if (firstDenied == null) {
+				firstDenied = ccInfo;
 			}
-			// If we can't determine error, say UNABLE_TO_COMPLY
-			resultCode = ccInfo.getErrorCodeType() != null ? getResultCode(ccInfo.getErrorCodeType()) : DiameterResultCode.DIAMETER_UNABLE_TO_COMPLY;
 		}
+		long resultCode = granted || firstDenied == null ? DiameterResultCode.DIAMETER_SUCCESS : getResultCode(firstDenied);
 
 		try {
 			ActivityContextInterface[] acis = this.sbbContextExt.getActivities();
@@ -952,8 +1176,8 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 				}
 			}
 
-			RoCreditControlAnswer cca = sessionInfo.getReservations().size() > 0 ? createCCA(activity, storedCCR, sessionInfo.getReservations(), resultCode) : createCCA(activity, storedCCR, null, DiameterResultCode.DIAMETER_MISSING_AVP);
-			sendCCA(cca, aci, storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST || storedCCR.getCcRequestType() == CcRequestType.EVENT_REQUEST);
+			RoCreditControlAnswer cca = createCCA(activity, sessionInfo, ccInfos, resultCode);
+			sendCCA(cca, aci, requestType == CcRequestType.TERMINATION_REQUEST || requestType == CcRequestType.EVENT_REQUEST);
 
 			// Output the user session details.
 			if (tracer.isInfoEnabled()) {
@@ -965,10 +1189,12 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		}
 		catch (Exception e) {
 			tracer.severe("[xx] " + sidString + " Unable to send Credit-Control-Answer.", e);
+			// not answered, but no longer in flight either
+			OverloadController.completed(sessionInfo.getSessionId(), sessionInfo.getRequestNumber());
 		}
 
 
-		if (generateCDR && cdrGenerator != null && storedCCR.getCcRequestType() == CcRequestType.TERMINATION_REQUEST) {
+		if (generateCDR && cdrGenerator != null && requestType == CcRequestType.TERMINATION_REQUEST) {
 			if (tracer.isInfoEnabled()) {
 				tracer.info("[><] " + sidString + " Generating CDR.");
 			}
@@ -996,7 +1222,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	// --------- Call to decentralized rating engine ---------------------
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private double getRateForService(RoCreditControlRequest ccr, long serviceId, long unitTypeId, long requestedUnits) {
+	private long getRateForService(RoCreditControlRequest ccr, long serviceId, long unitTypeId, long requestedUnits) {
 
 		// Let's make some variables available to be sent to the rating engine
 		HashMap params = new HashMap();
@@ -1023,7 +1249,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		// Retrieve the rating information [and optionally the unit type] from ratingInfo.
 
 		int responseCode = ratingInfo.getResponseCode();
-		double rate = 1.0;
+		long rate = Money.RATE_ONE;
 		if (responseCode == 0) {
 			// Rate obtained successfully from Rating Engine, let's use that.
 			rate = ratingInfo.getRate();
@@ -1086,32 +1312,28 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 
 	/**
 	 * Fetch data from AVP to be passed in CreditControlInfo, as configured in env entry.
-	 * @param avp the AVP to look at
-	 * @param ccInfo the CreditControlInfo object to store properties at
-	 */
-	private void fetchDataFromAvp(DiameterAvp avp, CreditControlInfo ccInfo) {
-		fetchDataFromAvp(avp, ccInfo, 0);
-	}
-
-	/**
-	 * Fetch data from AVP to be passed in CreditControlInfo, as configured in env entry.
+	 * @param plan the capture plan in use
 	 * @param avp the AVP to look at
 	 * @param ccInfo the CreditControlInfo object to store properties at
 	 * @param depth the AVP depth, for recursive calls
 	 */
-	private void fetchDataFromAvp(DiameterAvp avp, CreditControlInfo ccInfo, int depth) {
+	private void fetchDataFromAvp(AbmfAvpCapturePlan plan, DiameterAvp avp, CreditControlInfo ccInfo, int depth) {
+		int code = avp.getCode();
 		if (tracer.isFinerEnabled()) {
-			tracer.finer("[><] " + sidString + " Scanning AVP at depth " + depth + " with code " + avp.getCode() + " and type " + avp.getType() + " ...");
+			tracer.finer("[><] " + sidString + " Scanning AVP at depth " + depth + " with code " + code + " and type " + avp.getType() + " ...");
 		}
 		if(avp.getType() == DiameterAvpType.GROUPED) {
-			GroupedAvp gAvp = (GroupedAvp) avp;
-			DiameterAvp[] subAvps = gAvp.getExtensionAvps();
-			for(DiameterAvp subAvp : subAvps) {
-				fetchDataFromAvp(subAvp, ccInfo, depth+1);
+			// skip subtrees which can't contain any of the AVPs to capture
+			if (plan.mayContainTargets(code)) {
+				GroupedAvp gAvp = (GroupedAvp) avp;
+				DiameterAvp[] subAvps = gAvp.getExtensionAvps();
+				for(DiameterAvp subAvp : subAvps) {
+					fetchDataFromAvp(plan, subAvp, ccInfo, depth+1);
+				}
 			}
 		}
 		else {
-			String name = abmfAVPs.get(String.valueOf(avp.getCode()));
+			String name = plan.getName(code);
 			if (name != null) {
 				Object value = null;
 				switch (avp.getType().getType())
@@ -1154,7 +1376,7 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 						break;
 				}
 				if (tracer.isFineEnabled()) {
-					tracer.fine("[><] " + sidString + " Storing AVP with code " + avp.getCode() + " as '" + name + "' with value '" + value.toString() + "'");
+					tracer.fine("[><] " + sidString + " Storing AVP with code " + code + " as '" + name + "' with value '" + value.toString() + "'");
 				}
 				ccInfo.addServiceInfo(name, value.toString());
 			}
@@ -1164,112 +1386,104 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 	private ArrayList<CreditControlUnit> getRequestedUnits(RoCreditControlRequest ccr, RequestedServiceUnitAvp rsu, long[] serviceIds) {
 		ArrayList<CreditControlUnit> ccRequestedUnits = new ArrayList<CreditControlUnit>();
 
-		long requestedUnits = 0;
-		for (int i = 0; i < CcUnitType.values().length; i++) {
-			CcUnitType type = CcUnitType.fromInt(i);
-
-			// MONEY is not supported by 3GPP. TODO: Add support for non 3GPP ?
-			if (type == CcUnitType.MONEY) {
+		long[] requestedUnits = CcUnitExtractor.REQUESTED.extract(rsu, new long[CcUnitExtractor.UNIT_TYPE_COUNT]);
+		for (int i = 0; i < CcUnitExtractor.UNIT_TYPE_COUNT; i++) {
+			// MONEY is not supported by 3GPP, so it's always ABSENT. TODO: Add support for non 3GPP ?
+			if (requestedUnits[i] == CcUnitExtractor.ABSENT) {
 				continue;
 			}
+			CcUnitType type = CcUnitExtractor.unitType(i);
 
-			String methodName = "getCreditControl" + toCamelCase(type.toString());
-			try {
-				Method m = rsu.getClass().getMethod(methodName, new Class[0]);
-				requestedUnits = (Long) m.invoke(rsu, new Object[0]);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] " + sidString + " Requested Units of type '" + type +  "' in CCR = " + requestedUnits[i]);
+			}
 
-				if (tracer.isInfoEnabled() && requestedUnits != Long.MIN_VALUE) {
-					tracer.info("[><] " + sidString + " Requested Units of type '" + type +  "' in CCR = " + requestedUnits);
+			if (requestedUnits[i] >= 0) {
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.setUnitType(type);
+				if (performRating) {
+					long rateForService = getRateForService(ccr, serviceIds[0], type.getValue(), requestedUnits[i]);
+					ccUnit.setRateForService(rateForService);
+					ccUnit.setRequestedAmount(Money.amountFor(requestedUnits[i], rateForService));
 				}
-
-				if (requestedUnits >= 0) {
-					CreditControlUnit ccUnit = new CreditControlUnit();
-					ccUnit.setUnitType(type);
-					if (performRating) {
-						double rateForService = getRateForService(ccr, serviceIds[0], type.getValue(), requestedUnits);
-						ccUnit.setRateForService(rateForService);
-						// FIXME: This is not right. Rating should convert to monetary units...
-						ccUnit.setRequestedAmount((long) Math.ceil(requestedUnits * rateForService));
-					}
-          else {
-            ccUnit.setRequestedAmount(requestedUnits);
-          }
-					ccUnit.setRequestedUnits(requestedUnits);
-					ccRequestedUnits.add(ccUnit);
+				else {
+					ccUnit.setRequestedAmount(requestedUnits[i]);
 				}
-			}
-			catch (Exception e) {
-				tracer.severe("[xx] " + sidString + " Unable to retrieve/invoke '" + methodName + "' for extracting Requested Units of type " + type, e);
+				ccUnit.setRequestedUnits(requestedUnits[i]);
+				ccRequestedUnits.add(ccUnit);
 			}
 		}
 
 		return ccRequestedUnits;
 	}
 
+	/**
+	 * @param sessionInfo the session info
+	 * @param ratingGroup the MSCC Rating-Group
+	 * @param serviceIds the MSCC Service-Identifier(s)
+	 * @return the units reserved by the latest reservation in the session for the MSCC service, or an empty list if
+	 *         there's none
+	 */
+	private ArrayList<CreditControlUnit> getReservedUnits(UserSessionInfo sessionInfo, long ratingGroup, long[] serviceIds) {
+		CreditControlInfo reservedInfo = sessionInfo.getLastReservation(ratingGroup, serviceIds);
+		return reservedInfo != null ? reservedInfo.getCcUnits() : new ArrayList<CreditControlUnit>();
+	}
+
+	private long[] concat(long[] a, long[] b) {
+		if (b == null || b.length == 0) {
+			return a;
+		}
+		long[] result = new long[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
 	private ArrayList<CreditControlUnit> collectUsedUnits(UsedServiceUnitAvp[] usuAvps, ArrayList<CreditControlUnit> reservedCCUnits) {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] " + sidString + " Collecting " + usuAvps.length + " Used Units AVPs.");
 		}
 		ArrayList<CreditControlUnit> usedCCUnits = new ArrayList<CreditControlUnit>();
+		long[] usedUnits = new long[CcUnitExtractor.UNIT_TYPE_COUNT];
 		for (UsedServiceUnitAvp usuAvp : usuAvps) {
-			for (int n = 0; n < CcUnitType.values().length; n++) {
-				CcUnitType type = CcUnitType.fromInt(n);
-
-				// MONEY is not supported by 3GPP
-				if (type == CcUnitType.MONEY) {
+			CcUnitExtractor.USED.extract(usuAvp, usedUnits);
+			for (int n = 0; n < CcUnitExtractor.UNIT_TYPE_COUNT; n++) {
+				// It means the AVP was not present (or is MONEY, not supported by 3GPP).. no null or NoSuchAvpException :(
+				if (usedUnits[n] == CcUnitExtractor.ABSENT) {
 					continue;
 				}
+				CcUnitType type = CcUnitExtractor.unitType(n);
 
-				String methodName = "getCreditControl" + toCamelCase(type.toString());
-				try {
-					Method m = usuAvp.getClass().getMethod(methodName);
-					long value = (Long) m.invoke(usuAvp);
-
-					if (value == Long.MIN_VALUE) {
-						// It means the AVP was not present.. no null or NoSuchAvpException :(
-						continue;
-					}
-
-					if (tracer.isInfoEnabled()) {
-						tracer.info("[><] " + sidString + " Got " + value + " Used Units of type '" + type.toString() + "' ");
-					}
-
-					CreditControlUnit ccUnit = new CreditControlUnit();
-					ccUnit.setUnitType(type);
-					ccUnit.setUsedUnits(ccUnit.getUsedUnits() + value);
-
-					// If we can find Reserved Units and Rate Information, let's fill with it
-					for (CreditControlUnit reservedCCUnit : reservedCCUnits) {
-						if (reservedCCUnit.getUnitType() == type) {
-							// Copy the reserved amount from the last session into this session so that ABMF can update used units.
-							ccUnit.setReservedUnits(reservedCCUnit.getReservedUnits());
-							ccUnit.setReservedAmount(reservedCCUnit.getReservedAmount());
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] " + sidString + " Got " + usedUnits[n] + " Used Units of type '" + type + "' ");
+				}
 
-							ccUnit.setUsedAmount((long)Math.ceil(reservedCCUnit.getRateForService() * ccUnit.getUsedUnits()));
-							ccUnit.setRateForService(reservedCCUnit.getRateForService());
-						}
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.setUnitType(type);
+				ccUnit.setUsedUnits(ccUnit.getUsedUnits() + usedUnits[n]);
+
+				// If we can find Reserved Units and Rate Information, let's fill with it
+				for (CreditControlUnit reservedCCUnit : reservedCCUnits) {
+					if (reservedCCUnit.getUnitType() == type) {
+						// Copy the reserved amount from the last session into this session so that ABMF can update used units.
+						ccUnit.setReservedUnits(reservedCCUnit.getReservedUnits());
+						ccUnit.setReservedAmount(reservedCCUnit.getReservedAmount());
+
+						ccUnit.setUsedAmount(Money.amountFor(ccUnit.getUsedUnits(), reservedCCUnit.getRateForService()));
+						ccUnit.setRateForService(reservedCCUnit.getRateForService());
+						// The first one is the unit granted by the last reservation. Any other of the same type is a
+						// used unit it already settled, and would settle it again.
+						break;
 					}
-
-					usedCCUnits.add(ccUnit);
-				}
-				catch (Exception e) {
-					tracer.severe("[xx] " + sidString + " Unable to retrieve/invoke '" + methodName + "' for extracting Used Units of type " + type, e);
 				}
+
+				usedCCUnits.add(ccUnit);
 			}
 		}
 
 		return usedCCUnits;
 	}
 
-	private static String toCamelCase(String s) {
-		String[] parts = s.split("-");
-		String camelCaseString = "";
-		for (String part : parts){
-			camelCaseString = camelCaseString + toProperCase(part);
-		}
-		return camelCaseString;
-	}
-
 	private String limitString(String str, int start, int end, String sep) {
 		if(str.length() <= (start + end + sep.length())) {
 			return str;
@@ -1277,10 +1491,6 @@ public abstract class DiameterChargingServerSbb extends BaseSbb implements Sbb,
 		return str.substring(0, start) + sep + str.substring(str.length()-end);
 	}
 
-	private static String toProperCase(String s) {
-		return s.substring(0, 1).toUpperCase() + s.substring(1).toLowerCase();
-	}
-
 	// 'sessionInfo' CMP field setter
 	public abstract void setSessionInfo(UserSessionInfo value);
 
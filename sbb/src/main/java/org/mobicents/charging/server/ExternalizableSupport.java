@@ -0,0 +1,98 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Helpers for the hand-written Externalizable encodings of the charging state kept in CMP fields.
+ *
+ * Every encoding starts with a format version byte, so that a newer reader can still decode what an older writer
+ * (e.g. another cluster node during an upgrade) replicated, and an older reader fails clearly on a newer format.
+ * Nullable values are prefixed with a presence flag (or a negative length/value), enums are written by their value.
+ */
+public final class ExternalizableSupport {
+
+	/**
+	 * Value written for a null enum.
+	 */
+	public static final int NULL_ENUM = -1;
+
+	private ExternalizableSupport() {
+	}
+
+	/**
+	 * Reads the format version byte and checks it can be decoded.
+	 *
+	 * @param in the input to read from
+	 * @param maxVersion the latest format version known by the reader
+	 * @param type the class being decoded, for the error message
+	 * @return the format version read
+	 * @throws IOException if reading fails or the version is unknown
+	 */
+	public static int readVersion(ObjectInput in, int maxVersion, Class<?> type) throws IOException {
+		int version = in.readByte();
+		if (version < 1 || version > maxVersion) {
+			throw new InvalidClassException(type.getName(), "Unsupported serialized format version " + version + ", expected up to " + maxVersion);
+		}
+		return version;
+	}
+
+	public static void writeString(ObjectOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	public static String readString(ObjectInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	public static void writeLongs(ObjectOutput out, long[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	public static long[] readLongs(ObjectInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		long[] values = new long[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point arithmetic for the money handled by the charging server.
+ *
+ * Amounts (balances, reservations, used amounts in CDRs) are whole balance units, as stored in the database, and
+ * are kept as plain longs. Rates are the amount charged per service unit, kept as a long number of millionths of a
+ * balance unit ({@link #RATE_SCALE} decimal places), so that a rating engine answer such as "0.07" is represented
+ * exactly instead of as the nearest double.
+ *
+ * The conversions between units and amounts are exact and allocation free. Amounts are rounded in favour of the
+ * operator, as before: a cost is rounded up and the units an amount pays for are rounded down. Results that don't
+ * fit a long saturate at {@link Long#MAX_VALUE}, which no balance can cover.
+ */
+public final class Money {
+
+	/**
+	 * Number of decimal places of a rate.
+	 */
+	public static final int RATE_SCALE = 6;
+
+	/**
+	 * The rate of one balance unit per service unit.
+	 */
+	public static final long RATE_ONE = 1000000L;
+
+	private Money() {
+	}
+
+	/**
+	 * Computes the amount charged for the given units, ie, units times rate, rounded up.
+	 *
+	 * @param units the number of service units, negative if read from an unsigned 64 bit AVP beyond the long range
+	 * @param rate the rate, in millionths of a balance unit per service unit, not negative
+	 * @return the amount, or {@link Long#MAX_VALUE} if it doesn't fit a long
+	 */
+	public static long amountFor(long units, long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("Negative rate: " + rate);
+		}
+		if (units < 0) {
+			return rate == 0 ? 0 : Long.MAX_VALUE;
+		}
+		// units * rate / ONE = units * (rate / ONE) + units * (rate % ONE) / ONE, the latter split again on units so
+		// that no product overflows: (units / ONE) * (rate % ONE) < units, and (units % ONE) * (rate % ONE) < ONE^2
+		long whole = rate / RATE_ONE;
+		long fraction = rate % RATE_ONE;
+		if (whole != 0 && units > Long.MAX_VALUE / whole) {
+			return Long.MAX_VALUE;
+		}
+		long remainder = (units % RATE_ONE) * fraction;
+		long amount = (units / RATE_ONE) * fraction + remainder / RATE_ONE + (remainder % RATE_ONE != 0 ? 1 : 0);
+		whole *= units;
+		return amount > Long.MAX_VALUE - whole ? Long.MAX_VALUE : whole + amount;
+	}
+
+	/**
+	 * Computes the service units the given amount pays for, ie, amount divided by rate, rounded down.
+	 *
+	 * @param amount the amount, not negative
+	 * @param rate the rate, in millionths of a balance unit per service unit, positive
+	 * @return the units, or {@link Long#MAX_VALUE} if they don't fit a long
+	 */
+	public static long unitsFor(long amount, long rate) {
+		if (amount < 0 || rate <= 0) {
+			throw new IllegalArgumentException("Negative amount (" + amount + ") or non positive rate (" + rate + ")");
+		}
+		long whole = amount / rate;
+		if (whole > Long.MAX_VALUE / RATE_ONE) {
+			return Long.MAX_VALUE;
+		}
+		long remainder = amount % rate;
+		long units;
+		if (remainder <= Long.MAX_VALUE / RATE_ONE) {
+			units = remainder * RATE_ONE / rate;
+		}
+		else {
+			// only for rates above ~9.2 million balance units: long division one digit at a time, each digit
+			// obtained by adding the remainder ten times modulo the rate, so that nothing overflows
+			units = 0;
+			for (int i = 0; i < RATE_SCALE; i++) {
+				long next = 0;
+				int digit = 0;
+				for (int j = 0; j < 10; j++) {
+					if (next >= rate - remainder) {
+						next -= rate - remainder;
+						digit++;
+					}
+					else {
+						next += remainder;
+					}
+				}
+				units = units * 10 + digit;
+				remainder = next;
+			}
+		}
+		return whole * RATE_ONE + units;
+	}
+
+	/**
+	 * Parses a decimal rate, such as "0.07" or "1.5E-3", as given by a rating engine. Digits beyond
+	 * {@link #RATE_SCALE} decimal places are rounded up.
+	 *
+	 * @param value the decimal rate
+	 * @return the rate, in millionths of a balance unit per service unit
+	 * @throws NumberFormatException if the value is not a valid, non negative rate
+	 */
+	public static long parseRate(String value) {
+		BigDecimal rate = new BigDecimal(value.trim());
+		if (rate.signum() < 0) {
+			throw new NumberFormatException("Negative rate: " + value);
+		}
+		try {
+			return rate.setScale(RATE_SCALE, RoundingMode.UP).movePointRight(RATE_SCALE).longValueExact();
+		}
+		catch (ArithmeticException e) {
+			throw new NumberFormatException("Rate out of range: " + value);
+		}
+	}
+
+	/**
+	 * Formats a rate as a decimal number, without trailing zeros, eg, 70000 as "0.07".
+	 *
+	 * @param rate the rate, in millionths of a balance unit per service unit
+	 * @return the decimal rate
+	 */
+	public static String formatRate(long rate) {
+		StringBuilder sb = new StringBuilder(24);
+		if (rate < 0) {
+			sb.append('-');
+		}
+		long whole = Math.abs(rate / RATE_ONE);
+		long fraction = Math.abs(rate % RATE_ONE);
+		sb.append(whole);
+		if (fraction != 0) {
+			sb.append('.');
+			for (long digit = RATE_ONE / 10; fraction != 0; digit /= 10) {
+				sb.append((char) ('0' + fraction / digit));
+				fraction %= digit;
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+
+/**
+ * Admission control of Credit-Control-Requests, so that when the database or the rating engine slow down, requests
+ * are answered as too busy right away, rather than queued up for ever longer.
+ * 
+ * A request is admitted when it gets a token from a token bucket, refilled at the configured rate up to the burst,
+ * and its Origin-Host has fewer requests in flight (admitted and not answered yet) than the configured maximum. Update
+ * and terminate requests settle sessions already granted units, so they get priority: initial and event requests are
+ * only admitted while the bucket holds more than the priority share of the burst, and the Origin-Host is below its
+ * maximum less the priority share, leaving the rest to them.
+ * 
+ * The end-to-end latency of the requests, from admission to answer, is watched too: while its moving average is above
+ * the target, the refill rate and the maximums in flight are cut down, multiplicatively, and otherwise raised back, a
+ * step at a time, up to the configured ones.
+ * 
+ * Requests are told apart by Session-Id and CC-Request-Number, so a retransmission of a request in flight is admitted
+ * without being counted again. Requests not answered in a while (which should not happen, but an answer may fail) are
+ * no longer counted in flight.
+ */
+public final class OverloadController {
+
+	// how often the limits are adjusted to the latency, and the steps they are adjusted in
+	private static final long ADJUST_INTERVAL_NANOS = 100000000L;
+	private static final double DECREASE = 0.8;
+	private static final double INCREASE = 0.05;
+	private static final double MIN_FACTOR = 0.05;
+	// weight of each request in the latency moving average
+	private static final double LATENCY_WEIGHT = 0.05;
+	// requests not answered in this time are no longer counted in flight
+	private static final long STALE_NANOS = 60000000000L;
+
+	private static volatile boolean enabled;
+	private static volatile double ratePerNano;
+	private static volatile double burst;
+	private static volatile int maxInFlightPerHost;
+	private static volatile double priorityShare;
+	// the priority share of the burst, so that a full bucket still admits any request
+	private static volatile double burstPriorityShare;
+	private static volatile long latencyTargetNanos;
+
+	private static final Object lock = new Object();
+	// guarded by lock
+	private static double tokens;
+	private static long lastRefill;
+	private static double latencyAverageNanos;
+	private static long nextAdjust;
+	// the fraction of the configured limits in force, as adjusted to the latency
+	private static volatile double factor = 1;
+
+	private static final class Admission {
+
+		private final String originHost;
+		private final long admitted;
+
+		Admission(String originHost, long admitted) {
+			this.originHost = originHost;
+			this.admitted = admitted;
+		}
+	}
+
+	private static final ConcurrentMap<String, Admission> inFlight = new ConcurrentHashMap<String, Admission>();
+	private static final ConcurrentMap<String, AtomicInteger> inFlightPerHost = new ConcurrentHashMap<String, AtomicInteger>();
+	private static final AtomicLong nextPurge = new AtomicLong();
+
+	private static final AtomicLong admitted = new AtomicLong();
+	private static final AtomicLong rejectedRate = new AtomicLong();
+	private static final AtomicLong rejectedInFlight = new AtomicLong();
+	private static final AtomicLong purged = new AtomicLong();
+
+	private OverloadController() {
+	}
+
+	/**
+	 * Configures admission control.
+	 * 
+	 * @param maxRequestsPerSecond the token bucket refill rate, 0 for no rate limit
+	 * @param burstRequests the token bucket size, ie, how many requests may be admitted at once after a quiet while
+	 * @param maxInFlight the maximum requests in flight per Origin-Host, 0 for no maximum
+	 * @param priorityShareOfLimits the share of the burst and of the maximum in flight kept for update and terminate
+	 *        requests, from 0 to 1. The share of the burst is capped at (burst - 1) / burst, so that initial and event
+	 *        requests are still admitted with a full bucket, which means no share with a burst of 1
+	 * @param latencyTargetMillis the end-to-end latency above which the limits are cut down, 0 to not watch it
+	 */
+	public static void configure(double maxRequestsPerSecond, int burstRequests, int maxInFlight, double priorityShareOfLimits, long latencyTargetMillis) {
+		synchronized (lock) {
+			ratePerNano = Math.max(0, maxRequestsPerSecond) / 1e9;
+			burst = Math.max(1, burstRequests);
+			maxInFlightPerHost = Math.max(0, maxInFlight);
+			priorityShare = Math.max(0, Math.min(1, priorityShareOfLimits));
+			burstPriorityShare = Math.min(priorityShare, (burst - 1) / burst);
+			latencyTargetNanos = Math.max(0, latencyTargetMillis) * 1000000L;
+			tokens = burst;
+			lastRefill = System.nanoTime();
+			latencyAverageNanos = 0;
+			nextAdjust = lastRefill + ADJUST_INTERVAL_NANOS;
+			factor = 1;
+			enabled = ratePerNano > 0 || maxInFlightPerHost > 0;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Admits a request, or not. An admitted request has to be reported {@link #completed(String, long)} once answered,
+	 * a rejected one must not.
+	 * 
+	 * @param sessionId the session of the request
+	 * @param requestNumber the CC-Request-Number of the request
+	 * @param originHost the Origin-Host of the request
+	 * @param requestType the type of the request, update and terminate requests having priority
+	 * @return false if the request should be answered as too busy
+	 */
+	public static boolean admit(String sessionId, long requestNumber, String originHost, CcRequestType requestType) {
+		if (!enabled) {
+			return true;
+		}
+		long now = System.nanoTime();
+		purgeIfDue(now);
+		String key = keyOf(sessionId, requestNumber);
+		if (inFlight.containsKey(key)) {
+			// a retransmission of a request admitted and not answered yet, already counted
+			return true;
+		}
+		boolean priority = requestType == CcRequestType.UPDATE_REQUEST || requestType == CcRequestType.TERMINATION_REQUEST;
+		double share = priority ? 0 : priorityShare;
+		double burstShare = priority ? 0 : burstPriorityShare;
+
+		String host = originHost != null ? originHost : "";
+		AtomicInteger hostInFlight = null;
+		if (maxInFlightPerHost > 0) {
+			hostInFlight = inFlightPerHost.get(host);
+			if (hostInFlight == null) {
+				AtomicInteger created = new AtomicInteger();
+				hostInFlight = inFlightPerHost.putIfAbsent(host, created);
+				if (hostInFlight == null) {
+					hostInFlight = created;
+				}
+			}
+			int limit = Math.max(1, (int) (maxInFlightPerHost * factor * (1 - share)));
+			if (hostInFlight.incrementAndGet() > limit) {
+				hostInFlight.decrementAndGet();
+				rejectedInFlight.incrementAndGet();
+				return false;
+			}
+		}
+
+		if (ratePerNano > 0) {
+			synchronized (lock) {
+				tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano * factor);
+				lastRefill = now;
+				if (tokens < 1 + burst * burstShare) {
+					if (hostInFlight != null) {
+						hostInFlight.decrementAndGet();
+					}
+					rejectedRate.incrementAndGet();
+					return false;
+				}
+				tokens -= 1;
+			}
+		}
+
+		if (inFlight.putIfAbsent(key, new Admission(host, now)) != null) {
+			// a retransmission admitted concurrently, the first one is the one counted
+			if (hostInFlight != null) {
+				hostInFlight.decrementAndGet();
+			}
+			return true;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Reports an admitted request answered, or given up on. Reporting it more than once is harmless.
+	 * 
+	 * @param sessionId the session of the request
+	 * @param requestNumber the CC-Request-Number of the request
+	 */
+	public static void completed(String sessionId, long requestNumber) {
+		if (!enabled) {
+			return;
+		}
+		Admission admission = inFlight.remove(keyOf(sessionId, requestNumber));
+		if (admission == null) {
+			return;
+		}
+		release(admission);
+		if (latencyTargetNanos > 0) {
+			long now = System.nanoTime();
+			synchronized (lock) {
+				latencyAverageNanos += (now - admission.admitted - latencyAverageNanos) * LATENCY_WEIGHT;
+				if (now - nextAdjust >= 0) {
+					nextAdjust = now + ADJUST_INTERVAL_NANOS;
+					factor = latencyAverageNanos > latencyTargetNanos ? Math.max(MIN_FACTOR, factor * DECREASE) : Math.min(1, factor + INCREASE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the requests in flight, the limits in force and the requests admitted and rejected so far
+	 */
+	public static String getStats() {
+		double latencyAverage;
+		synchronized (lock) {
+			latencyAverage = latencyAverageNanos;
+		}
+		return "{inFlight=" + inFlight.size() + ", factor=" + Math.round(factor * 100) + "%, latency=" + Math.round(latencyAverage / 1e6) + "ms, admitted=" + admitted.get()
+				+ ", rejectedRate=" + rejectedRate.get() + ", rejectedInFlight=" + rejectedInFlight.get() + ", purged=" + purged.get() + "}";
+	}
+
+	private static String keyOf(String sessionId, long requestNumber) {
+		return sessionId + '#' + requestNumber;
+	}
+
+	private static void release(Admission admission) {
+		AtomicInteger hostInFlight = inFlightPerHost.get(admission.originHost);
+		if (hostInFlight != null) {
+			hostInFlight.decrementAndGet();
+		}
+	}
+
+	private static void purgeIfDue(long now) {
+		long next = nextPurge.get();
+		if (now - next < 0 || !nextPurge.compareAndSet(next, now + STALE_NANOS / 10)) {
+			return;
+		}
+		for (Iterator<Map.Entry<String, Admission>> i = inFlight.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Admission> entry = i.next();
+			if (now - entry.getValue().admitted > STALE_NANOS && inFlight.remove(entry.getKey(), entry.getValue())) {
+				release(entry.getValue());
+				purged.incrementAndGet();
+			}
+		}
+	}
+
+}
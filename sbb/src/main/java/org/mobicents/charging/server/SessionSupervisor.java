@@ -0,0 +1,306 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Supervises the validity of credit-control sessions, in place of a SLEE timer per session, which has to be cancelled
+ * and set again on every request. Sessions are kept in a hashed timing wheel: a ring of buckets, each a linked list of
+ * the sessions due in a tick, or in a later turn of the wheel. Arming, re-arming and disarming a session is just
+ * unlinking it from one bucket and linking it to another, under the lock of each, however many sessions are armed.
+ * 
+ * A single thread advances the wheel a tick at a time, and hands all the sessions due in a tick over to the
+ * {@link Expiry} at once. Each session is looked at by that thread once per turn of the wheel, so a turn should be
+ * about as long as the validity time, or longer. Sessions expire up to a tick late, never early.
+ * 
+ * @param <T> the session, as handed to the expiry
+ */
+public final class SessionSupervisor<T> implements Runnable {
+
+	/**
+	 * What to do with the sessions not heard of for their validity time. Called from the tick thread, with the sessions
+	 * due in a tick, so it should not block.
+	 */
+	public interface Expiry<T> {
+
+		void expired(List<T> sessions);
+	}
+
+	private static final class Bucket<T> {
+
+		private Entry<T> head;
+	}
+
+	private static final class Entry<T> {
+
+		private final String key;
+		private volatile T session;
+		private long deadline;
+		// null once expired, set under the bucket lock
+		private volatile Bucket<T> bucket;
+		private Entry<T> previous;
+		private Entry<T> next;
+
+		Entry(String key, T session) {
+			this.key = key;
+			this.session = session;
+		}
+	}
+
+	private final Bucket<T>[] wheel;
+	private final int mask;
+	private final long tickNanos;
+	private final long startNanos;
+	private final Expiry<T> expiry;
+	private final Tracer tracer;
+
+	private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+	// the tick being expired, or last expired
+	private volatile long tick;
+
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	private final AtomicLong armed = new AtomicLong();
+	private final AtomicLong rearmed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * Creates and starts a supervisor.
+	 * 
+	 * @param name the name of the tick thread
+	 * @param tickMillis the time between ticks, ie, how late at most sessions expire
+	 * @param wheelSize the number of buckets, rounded up to a power of two, the ticks in a turn of the wheel
+	 * @param expiry what to do with expired sessions
+	 * @param tracer
+	 */
+	@SuppressWarnings("unchecked")
+	public SessionSupervisor(String name, long tickMillis, int wheelSize, Expiry<T> expiry, Tracer tracer) {
+		int size = Integer.highestOneBit(Math.max(1, Math.min(wheelSize, 1 << 24)) * 2 - 1);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket<T>();
+		}
+		this.mask = size - 1;
+		this.tickNanos = Math.max(1, tickMillis) * 1000000L;
+		this.startNanos = System.nanoTime();
+		this.expiry = expiry;
+		this.tracer = tracer;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Arms a session to expire after the given time, or re-arms it if already armed.
+	 * 
+	 * @param key the session id
+	 * @param session the session to hand to the expiry
+	 * @param timeoutMillis the time from now it expires in, unless armed again or disarmed
+	 */
+	public void arm(String key, T session, long timeoutMillis) {
+		long deadline = (System.nanoTime() - startNanos + timeoutMillis * 1000000L + tickNanos - 1) / tickNanos;
+		while (true) {
+			Entry<T> entry = entries.get(key);
+			if (entry == null) {
+				entry = new Entry<T>(key, session);
+				synchronized (entry) {
+					if (entries.putIfAbsent(key, entry) != null) {
+						continue;
+					}
+					link(entry, deadline);
+				}
+				armed.incrementAndGet();
+				return;
+			}
+			synchronized (entry) {
+				if (!unlink(entry)) {
+					// just expired, arm anew
+					entries.remove(key, entry);
+					continue;
+				}
+				entry.session = session;
+				link(entry, deadline);
+			}
+			rearmed.incrementAndGet();
+			return;
+		}
+	}
+
+	/**
+	 * Disarms a session, as it's over.
+	 * 
+	 * @param key the session id
+	 * @return false if it was not armed, or just expired
+	 */
+	public boolean disarm(String key) {
+		Entry<T> entry = entries.remove(key);
+		if (entry == null) {
+			return false;
+		}
+		synchronized (entry) {
+			return unlink(entry);
+		}
+	}
+
+	/**
+	 * @return the number of sessions armed
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Stops the tick thread. Armed sessions do not expire anymore.
+	 */
+	public void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * @return the sessions armed now, and armed, re-armed and expired so far
+	 */
+	public String getStats() {
+		return "{sessions=" + entries.size() + ", armed=" + armed.get() + ", rearmed=" + rearmed.get() + ", expired=" + expired.get() + ", tick=" + tickNanos / 1000000L + "ms, wheel="
+				+ wheel.length + "}";
+	}
+
+	@Override
+	public void run() {
+		List<T> due = new ArrayList<T>();
+		while (running) {
+			long delay = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+				}
+				catch (InterruptedException e) {
+					// stopping
+				}
+				continue;
+			}
+			// when late, catch up a tick at a time
+			long current = tick + 1;
+			tick = current;
+			expire(wheel[(int) (current & mask)], current, due);
+			if (!due.isEmpty()) {
+				expired.addAndGet(due.size());
+				try {
+					expiry.expired(due);
+				}
+				catch (Exception e) {
+					tracer.severe("[xx] Failed to expire " + due.size() + " sessions.", e);
+				}
+				due.clear();
+			}
+		}
+	}
+
+	private void expire(Bucket<T> bucket, long current, List<T> due) {
+		synchronized (bucket) {
+			Entry<T> entry = bucket.head;
+			while (entry != null) {
+				Entry<T> next = entry.next;
+				if (entry.deadline <= current) {
+					remove(bucket, entry);
+					entry.bucket = null;
+					entries.remove(entry.key, entry);
+					due.add(entry.session);
+				}
+				entry = next;
+			}
+		}
+	}
+
+	/**
+	 * Links the entry in the bucket of its deadline, or of the next tick if that one may be expired already. Called
+	 * holding the entry lock.
+	 */
+	private void link(Entry<T> entry, long deadline) {
+		while (true) {
+			Bucket<T> bucket = wheel[(int) (deadline & mask)];
+			synchronized (bucket) {
+				// the tick thread sets the tick before taking the bucket lock, so a later tick is not expired yet
+				if (deadline > tick) {
+					entry.deadline = deadline;
+					entry.bucket = bucket;
+					entry.previous = null;
+					entry.next = bucket.head;
+					if (bucket.head != null) {
+						bucket.head.previous = entry;
+					}
+					bucket.head = entry;
+					return;
+				}
+			}
+			deadline = tick + 1;
+		}
+	}
+
+	/**
+	 * Unlinks the entry from its bucket. Called holding the entry lock.
+	 * 
+	 * @return false if it had expired
+	 */
+	private boolean unlink(Entry<T> entry) {
+		while (true) {
+			Bucket<T> bucket = entry.bucket;
+			if (bucket == null) {
+				return false;
+			}
+			synchronized (bucket) {
+				if (entry.bucket != bucket) {
+					// expired meanwhile
+					continue;
+				}
+				remove(bucket, entry);
+				entry.bucket = null;
+				return true;
+			}
+		}
+	}
+
+	private static <T> void remove(Bucket<T> bucket, Entry<T> entry) {
+		if (entry.previous != null) {
+			entry.previous.next = entry.next;
+		}
+		else {
+			bucket.head = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.previous = entry.previous;
+		}
+		entry.previous = null;
+		entry.next = null;
+	}
+
+}
@@ -38,33 +38,33 @@ public interface AccountBalanceManagement {
 	/**
 	 * Handler for CCR "INITIAL" Requests.
 	 * 
-	 * @param ccInfo CreditControlInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control AVP in the CCR
 	 */
-	void initialRequest(CreditControlInfo ccInfo);
+	void initialRequest(List<CreditControlInfo> ccInfos);
 
 	/**
 	 * Handler for CCR "UPDATE" Requests.
 	 * 
-	 * @param ccInfo CreditControlInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control AVP in the CCR
 	 */
-	void updateRequest(CreditControlInfo ccInfo);
+	void updateRequest(List<CreditControlInfo> ccInfos);
 
 	/**
 	 * Handler for CCR "TERMINATE" Requests.
 	 * 
-	 * @param ccInfo CreditControlInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control AVP in the CCR
 	 */
-	void terminateRequest(CreditControlInfo ccInfo);
+	void terminateRequest(List<CreditControlInfo> ccInfos);
 	
 	/**
 	 * Handler for CCR "EVENT" Requests.
 	 * 
-	 * @param ccInfo CreditControlInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control AVP in the CCR
 	 */
-	void eventRequest(CreditControlInfo ccInfo);
+	void eventRequest(List<CreditControlInfo> ccInfos);
 
 	/**
-	 * Dump data from Database into console, filtering users by regular expression.
+	 * Dump data from Database into console, filtering users by MSISDN pattern (SQL LIKE, eg: "%" for all).
 	 * 
 	 * @param usersRegExp
 	 */
@@ -97,9 +97,9 @@ public interface AccountBalanceManagement {
 	/**
 	 * Datasource callback method for updating user data (reservation/termination) in database
 	 * 
-	 * @param ccInfo
-	 * @param uad
+	 * @param ccInfos the CreditControlInfo for each service, flagged as successful or not
+	 * @param uad the user account data after all of them, null if the datasource failed
 	 */
-	public void reserveUnitsResult(CreditControlInfo ccInfo, UserAccountData uad);
+	public void reserveUnitsResult(List<CreditControlInfo> ccInfos, UserAccountData uad);
 
 }
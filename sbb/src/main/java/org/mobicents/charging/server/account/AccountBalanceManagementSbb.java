@@ -101,44 +101,44 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 	 * Initial Request Handling
 	 * 
 	 */
-	public void initialRequest(CreditControlInfo ccInfo){
+	public void initialRequest(List<CreditControlInfo> ccInfos){
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[>>] Received an Initial Request to Account and Balance Management SBB. SessionId="+ccInfo.getSessionId()+", userId="+ccInfo.getSubscriptionId());
+			tracer.info("[>>] Received an Initial Request to Account and Balance Management SBB. SessionId="+ccInfos.get(0).getSessionId()+", userId="+ccInfos.get(0).getSubscriptionId()+", services="+ccInfos.size());
 		}
-		handleRequest(ccInfo);
+		handleRequest(ccInfos);
 	}
 
 	/*
 	 * Update Request Handling
 	 * 
 	 */
-	public void updateRequest(CreditControlInfo ccInfo) {
+	public void updateRequest(List<CreditControlInfo> ccInfos) {
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[>>] Received an Update Request to Account and Balance Management SBB. SessionId="+ccInfo.getSessionId()+", userId="+ccInfo.getSubscriptionId());
+			tracer.info("[>>] Received an Update Request to Account and Balance Management SBB. SessionId="+ccInfos.get(0).getSessionId()+", userId="+ccInfos.get(0).getSubscriptionId()+", services="+ccInfos.size());
 		}
-		handleRequest(ccInfo);
+		handleRequest(ccInfos);
 	}
 
 	/*
 	 * Terminate Request Handling
 	 * 
 	 */
-	public void terminateRequest(CreditControlInfo ccInfo) {
+	public void terminateRequest(List<CreditControlInfo> ccInfos) {
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[>>] Received a Terminate Request to Account and Balance Management SBB. SessionId="+ccInfo.getSessionId()+", userId="+ccInfo.getSubscriptionId());
+			tracer.info("[>>] Received a Terminate Request to Account and Balance Management SBB. SessionId="+ccInfos.get(0).getSessionId()+", userId="+ccInfos.get(0).getSubscriptionId()+", services="+ccInfos.size());
 		}
-		handleRequest(ccInfo);
+		handleRequest(ccInfos);
 	}
 
 	/*
 	 * Event Request (IEC, service-type=4) Handling
 	 * 
 	 */
-	public void eventRequest(CreditControlInfo ccInfo){
+	public void eventRequest(List<CreditControlInfo> ccInfos){
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[>>] Received an Event Request to Account and Balance Management SBB. SessionId="+ccInfo.getSessionId()+", userId="+ccInfo.getSubscriptionId());
+			tracer.info("[>>] Received an Event Request to Account and Balance Management SBB. SessionId="+ccInfos.get(0).getSessionId()+", userId="+ccInfos.get(0).getSubscriptionId()+", services="+ccInfos.size());
 		}
-		handleRequest(ccInfo);
+		handleRequest(ccInfos);
 	}
 
 	public void dump(String usersRegExp) {
@@ -146,7 +146,7 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 			DataSource ds = null;
 			try {
 				ds = getDatasource();
-				ds.getUserAccountData(usersRegExp);
+				ds.findUserAccountData(usersRegExp);
 			}
 			catch (Exception e) {
 				tracer.severe("[xx] Unable to obtain Datasource Child SBB", e);
@@ -182,28 +182,32 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 
 	// ---------------------------- Helper Methods ----------------------------
 
-	private void handleRequest(CreditControlInfo ccInfo) {
+	private void handleRequest(List<CreditControlInfo> ccInfos) {
+		String sessionId = ccInfos.get(0).getSessionId();
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[><] SID<" + ccInfo.getSessionId() + "> Handling Credit-Control-Request...");
+			tracer.info("[><] SID<" + sessionId + "> Handling Credit-Control-Request...");
 		}
 
 		if (bypass) {
 			if (tracer.isInfoEnabled()) {
-				tracer.info("[><] SID<" + ccInfo.getSessionId() + "> Bypassing Unit Reservation...");
+				tracer.info("[><] SID<" + sessionId + "> Bypassing Unit Reservation...");
 			}
 			
-			ccInfo.setSuccess(true);
-			((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccInfo);
+			for (CreditControlInfo ccInfo : ccInfos) {
+				ccInfo.setSuccess(true);
+			}
+			((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccInfos);
 		}
 		else {
 			DataSource ds = null;
 			try {
 				ds = getDatasource();
-				if (ccInfo.getRequestedAction() == RequestedActionType.DIRECT_DEBITING) {
-					ds.directDebitUnits(ccInfo);
+				// all the services in a CCR have the same Requested-Action
+				if (ccInfos.get(0).getRequestedAction() == RequestedActionType.DIRECT_DEBITING) {
+					ds.directDebitUnits(ccInfos);
 				}
 				else {
-					ds.requestUnits(ccInfo);
+					ds.requestUnits(ccInfos);
 				}
 			}
 			catch (Exception e) {
@@ -212,43 +216,47 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 		}
 	}
 
-	private void handleResponse(CreditControlInfo ccInfo, UserAccountData data) {
-		// We got a response, so let's look at it
-		CreditControlInfo ccIA = ccInfo;
-		
-		//tracer.info("Unit Request: "+unitRequest+" UserAccountData: "+data);
-		
+	private void handleResponse(List<CreditControlInfo> ccInfos, UserAccountData data) {
+		// We got a response, so let's look at it, for each service
 		if (data != null) {
-			if (data.isFailure()) {
-				//ccIA.setSessionId(ccInfo.getSessionId());
-				//ccIA.setEventTimestamp(System.currentTimeMillis());
-				//ccIA.setSubscriptionId(ccInfo.getSubscriptionId());
+			for (CreditControlInfo ccInfo : ccInfos) {
 				if (data.getMsisdn() == null) {
-					ccIA.setErrorCode(CreditControlInfo.ErrorCodeType.InvalidUser.ordinal());
-					ccIA.setErrorMessage("Invalid User");
+					setError(ccInfo, CreditControlInfo.ErrorCodeType.InvalidUser, "Invalid User");
 				}
-				else if (ccInfo.getCcUnits().get(0).getRequestedUnits() > 0) {
-					ccIA.setErrorCode(CreditControlInfo.ErrorCodeType.NotEnoughBalance.ordinal());
-					ccIA.setErrorMessage("No Units Available");
+				else if (!ccInfo.isSuccessful()) {
+					if (ccInfo.getCcUnits().size() > 0 && ccInfo.getCcUnits().get(0).getRequestedUnits() > 0) {
+						setError(ccInfo, CreditControlInfo.ErrorCodeType.NotEnoughBalance, "No Units Available");
+					}
+					else {
+						setError(ccInfo, CreditControlInfo.ErrorCodeType.General, "Other Error");
+						// TODO: Expand response code list. Determine what else could cause number of rows updated to be <> 1 and return appropriate response.
+					}
 				}
-				else{
-					ccIA.setErrorCode(CreditControlInfo.ErrorCodeType.General.ordinal());
-					ccIA.setErrorMessage("Other Error");
-					// TODO: Expand response code list. Determine what else could cause number of rows updated to be <> 1 and return appropriate response.
+				else {
+					reserveUnits(ccInfo);
 				}
-			} 
-			else {
-				ccIA = reserveUnits(ccInfo);
 			}
 		}
 		else {
 			//Data was null... JDBC issues? Need to handle appropriately.
 		}
 		
-		((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccIA);
+		((DiameterChargingServer)sbbContext.getSbbLocalObject().getParent()).resumeOnCreditControlRequest(ccInfos);
 
 		// Print the session info here.
-		dump(ccIA, data);
+		if (data != null) {
+			for (CreditControlInfo ccInfo : ccInfos) {
+				dump(ccInfo, data);
+			}
+		}
+	}
+
+	private void setError(CreditControlInfo ccInfo, CreditControlInfo.ErrorCodeType errorCodeType, String errorMessage) {
+		ccInfo.setSuccess(false);
+		ccInfo.setErrorCode(errorCodeType.ordinal());
+		// setErrorCode maps from the numeric code ranges, not from the ordinal, so set the type explicitly
+		ccInfo.setErrorCodeType(errorCodeType);
+		ccInfo.setErrorMessage(errorMessage);
 	}
 
 	private CreditControlInfo reserveUnits(CreditControlInfo ccInfo) {
@@ -272,16 +280,16 @@ public abstract class AccountBalanceManagementSbb extends BaseSbb implements Sbb
 
 	/**
 	 * Callback method from JDBC
-	 * @param ccInfo
+	 * @param ccInfos
 	 * @param uad
 	 */
 	@Override
-	public void reserveUnitsResult(CreditControlInfo ccInfo, UserAccountData uad) {
+	public void reserveUnitsResult(List<CreditControlInfo> ccInfos, UserAccountData uad) {
 		if (tracer.isInfoEnabled()) {
-			//tracer.info("[><] SID<" + ccInfo.getSessionId() + "> Just received UPDATE callback from DataSource Child SBB (Credit Control Info Result) Processing response...");
-			tracer.info("[><] SID<" + ccInfo.getSessionId() + "> Received Credit Control Info Result: \n" + uad + "\n" + ccInfo);
+			//tracer.info("[><] SID<" + ccInfos.get(0).getSessionId() + "> Just received UPDATE callback from DataSource Child SBB (Credit Control Info Result) Processing response...");
+			tracer.info("[><] SID<" + ccInfos.get(0).getSessionId() + "> Received Credit Control Info Result: \n" + uad + "\n" + ccInfos);
 		}
-		handleResponse(ccInfo, uad);
+		handleResponse(ccInfos, uad);
 	}
 
 	public void setBypass(boolean bypass) {
@@ -24,9 +24,16 @@ package org.mobicents.charging.server.account;
 
 import net.java.slee.resource.diameter.cca.events.avp.RequestedActionType;
 
-import java.io.Serializable;
+import org.mobicents.charging.server.ExternalizableSupport;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper class for handling unit reservation
@@ -35,10 +42,12 @@ import java.util.HashMap;
  * @author baranowb
  * @author rsaranathan
  */
-public class CreditControlInfo implements Serializable {
+public class CreditControlInfo implements Externalizable {
 
 	private static final long serialVersionUID = -382210507958956695L;
 
+	private static final int VERSION = 2;
+
 	public enum SubscriptionIdType {
 
 		END_USER_E164(0),
@@ -130,6 +139,10 @@ public class CreditControlInfo implements Serializable {
 	private net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType subscriptionIdType;
 	private String subscriptionId = "";
 
+	// Rating-Group and Service-Identifier(s) of the Multiple-Services-Credit-Control AVP this refers to
+	private long ratingGroup;
+	private long[] serviceIds;
+
 	private ArrayList<CreditControlUnit> ccUnits;
 	
 	private long eventTimestamp;
@@ -194,6 +207,22 @@ public class CreditControlInfo implements Serializable {
 		this.subscriptionId = subscriptionId;
 	}
 
+	public long getRatingGroup() {
+		return ratingGroup;
+	}
+
+	public void setRatingGroup(long ratingGroup) {
+		this.ratingGroup = ratingGroup;
+	}
+
+	public long[] getServiceIds() {
+		return serviceIds;
+	}
+
+	public void setServiceIds(long[] serviceIds) {
+		this.serviceIds = serviceIds;
+	}
+
 	public long getEventTimestamp() {
 		return eventTimestamp;
 	}
@@ -278,6 +307,94 @@ public class CreditControlInfo implements Serializable {
 		return serviceInfo.get(name);
 	}
 
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		ExternalizableSupport.writeString(out, sessionId);
+		out.writeInt(requestNumber);
+		out.writeInt(requestedAction != null ? requestedAction.getValue() : ExternalizableSupport.NULL_ENUM);
+		out.writeInt(subscriptionIdType != null ? subscriptionIdType.getValue() : ExternalizableSupport.NULL_ENUM);
+		ExternalizableSupport.writeString(out, subscriptionId);
+		out.writeLong(ratingGroup);
+		ExternalizableSupport.writeLongs(out, serviceIds);
+		out.writeLong(eventTimestamp);
+		ExternalizableSupport.writeString(out, eventType);
+		out.writeBoolean(success);
+		out.writeLong(errorCode);
+		out.writeInt(errorCodeType != null ? errorCodeType.ordinal() : ExternalizableSupport.NULL_ENUM);
+		ExternalizableSupport.writeString(out, errorMessage);
+		out.writeLong(balanceBefore);
+		out.writeLong(balanceAfter);
+
+		if (ccUnits == null) {
+			out.writeInt(-1);
+		}
+		else {
+			out.writeInt(ccUnits.size());
+			for (int i = 0; i < ccUnits.size(); i++) {
+				ccUnits.get(i).writeExternal(out);
+			}
+		}
+
+		// Service info values are captured from AVPs as strings; anything else goes through regular serialization
+		out.writeInt(serviceInfo.size());
+		for (Map.Entry<String, Object> entry : serviceInfo.entrySet()) {
+			out.writeUTF(entry.getKey());
+			Object value = entry.getValue();
+			if (value instanceof String) {
+				out.writeBoolean(true);
+				out.writeUTF((String) value);
+			}
+			else {
+				out.writeBoolean(false);
+				out.writeObject(value);
+			}
+		}
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = ExternalizableSupport.readVersion(in, VERSION, CreditControlInfo.class);
+		sessionId = ExternalizableSupport.readString(in);
+		requestNumber = in.readInt();
+		int action = in.readInt();
+		requestedAction = action != ExternalizableSupport.NULL_ENUM ? RequestedActionType.fromInt(action) : null;
+		int idType = in.readInt();
+		subscriptionIdType = idType != ExternalizableSupport.NULL_ENUM ? net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType.fromInt(idType) : null;
+		subscriptionId = ExternalizableSupport.readString(in);
+		if (version >= 2) {
+			ratingGroup = in.readLong();
+			serviceIds = ExternalizableSupport.readLongs(in);
+		}
+		eventTimestamp = in.readLong();
+		eventType = ExternalizableSupport.readString(in);
+		success = in.readBoolean();
+		errorCode = in.readLong();
+		int codeType = in.readInt();
+		errorCodeType = codeType != ExternalizableSupport.NULL_ENUM ? ErrorCodeType.values()[codeType] : null;
+		errorMessage = ExternalizableSupport.readString(in);
+		balanceBefore = in.readLong();
+		balanceAfter = in.readLong();
+
+		int unitCount = in.readInt();
+		if (unitCount < 0) {
+			ccUnits = null;
+		}
+		else {
+			ccUnits = new ArrayList<CreditControlUnit>(unitCount);
+			for (int i = 0; i < unitCount; i++) {
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.readExternal(in);
+				ccUnits.add(ccUnit);
+			}
+		}
+
+		int serviceInfoCount = in.readInt();
+		serviceInfo = new HashMap<String, Object>(serviceInfoCount * 2);
+		for (int i = 0; i < serviceInfoCount; i++) {
+			String name = in.readUTF();
+			serviceInfo.put(name, in.readBoolean() ? in.readUTF() : in.readObject());
+		}
+	}
+
 	@Override
 	public String toString() {
 		String ret = "CreditControlInfo[Event-Timestamp=" + eventTimestamp +
@@ -286,6 +403,8 @@ public class CreditControlInfo implements Serializable {
 				"; Request-Number=" + requestNumber +
 				"; Subscription-ID-Type=" + subscriptionIdType +
 				"; Subscription-ID=" + subscriptionId +
+				"; Rating-Group=" + ratingGroup +
+				"; Service-IDs=" + Arrays.toString(serviceIds) +
 				"; Balance-Before=" + balanceBefore +
 				"; Balance-After=" + balanceAfter +
 				"; Success=" + success;
@@ -22,20 +22,29 @@
 
 package org.mobicents.charging.server.account;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
 
+import org.mobicents.charging.server.ExternalizableSupport;
+import org.mobicents.charging.server.Money;
+
 /**
  * Helper class for handling unit determination for each MSCC.
  *
  * @author rsaranathan
  * @author ammendonca
  */
-public class CreditControlUnit implements Serializable {
+public class CreditControlUnit implements Externalizable {
 
 	private static final long serialVersionUID = -2984035448946896438L;
 
+	private static final int VERSION = 2;
+
 	/**
 	 * [ CC-Time ]
 	 * [ CC-Money ]
@@ -55,7 +64,10 @@ public class CreditControlUnit implements Serializable {
 	private long usedUnits;
 	private long usedAmount;
 
-	private double rateForService;
+	/**
+	 * Rate, in millionths of a balance unit per unit, see {@link Money}.
+	 */
+	private long rateForService;
 
 	public CcUnitType getUnitType() {
 		return unitType;
@@ -107,13 +119,50 @@ public class CreditControlUnit implements Serializable {
 		this.usedAmount = usedAmount;
 	}
 
-	public double getRateForService() {
+	public long getRateForService() {
 		return rateForService;
 	}
-	public void setRateForService(double rateForService) {
+	public void setRateForService(long rateForService) {
 		this.rateForService = rateForService;
 	}
 
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeInt(unitType != null ? unitType.getValue() : ExternalizableSupport.NULL_ENUM);
+		out.writeLong(requestedUnits);
+		out.writeLong(requestedAmount);
+		out.writeLong(reservedUnits);
+		out.writeLong(reservedAmount);
+		out.writeLong(usedUnits);
+		out.writeLong(usedAmount);
+		out.writeLong(rateForService);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = ExternalizableSupport.readVersion(in, VERSION, CreditControlUnit.class);
+		int type = in.readInt();
+		unitType = type != ExternalizableSupport.NULL_ENUM ? CcUnitType.fromInt(type) : null;
+		requestedUnits = in.readLong();
+		requestedAmount = in.readLong();
+		reservedUnits = in.readLong();
+		reservedAmount = in.readLong();
+		usedUnits = in.readLong();
+		usedAmount = in.readLong();
+		if (version == 1) {
+			// written as a double, its shortest decimal representation is what the rating engine answered
+			double rate = in.readDouble();
+			try {
+				rateForService = Money.parseRate(Double.toString(rate));
+			}
+			catch (NumberFormatException e) {
+				throw new InvalidObjectException("Invalid rate " + rate);
+			}
+		}
+		else {
+			rateForService = in.readLong();
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("CreditControlUnits[UnitType=").append(unitType).
@@ -123,7 +172,7 @@ public class CreditControlUnit implements Serializable {
 				append("; ReservedAmount=").append(reservedAmount).
 				append("; UsedUnits=").append(usedUnits).
 				append("; UsedAmount=").append(usedAmount).
-				append("; RateForService=").append(rateForService).
+				append("; RateForService=").append(Money.formatRate(rateForService)).
 				append("]");
 		return sb.toString();
 	}
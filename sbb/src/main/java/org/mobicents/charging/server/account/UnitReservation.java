@@ -22,7 +22,12 @@
 
 package org.mobicents.charging.server.account;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.mobicents.charging.server.ExternalizableSupport;
 
 /**
  * Helper class for handling unit reservation
@@ -30,16 +35,19 @@ import java.io.Serializable;
  * @author ammendonca
  * @author baranowb
  */
-public class UnitReservation implements Serializable {
+public class UnitReservation implements Externalizable {
 
 	private static final long serialVersionUID = 1L;
 
-	private final boolean success;
-	private final long errorCode;
-	private final String errorMessage;
-	private final long units;
-	private final String sessionId;
-	private final long timeStamp;
+	private static final int VERSION = 1;
+
+	// not final, as they're set by readExternal
+	private boolean success;
+	private long errorCode;
+	private String errorMessage;
+	private long units;
+	private String sessionId;
+	private long timeStamp;
 
 	private ErrorCodeType errorCodeType;
 
@@ -87,6 +95,12 @@ public class UnitReservation implements Serializable {
 
 	}
 
+	/**
+	 * Public no-arg constructor, required by Externalizable. Not to be used otherwise.
+	 */
+	public UnitReservation() {
+	}
+
 	/**
 	 * @param success
 	 * @param units
@@ -168,6 +182,29 @@ public class UnitReservation implements Serializable {
 		return timeStamp;
 	}
 
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeBoolean(success);
+		out.writeLong(errorCode);
+		ExternalizableSupport.writeString(out, errorMessage);
+		out.writeLong(units);
+		ExternalizableSupport.writeString(out, sessionId);
+		out.writeLong(timeStamp);
+		out.writeInt(errorCodeType != null ? errorCodeType.ordinal() : ExternalizableSupport.NULL_ENUM);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		ExternalizableSupport.readVersion(in, VERSION, UnitReservation.class);
+		success = in.readBoolean();
+		errorCode = in.readLong();
+		errorMessage = ExternalizableSupport.readString(in);
+		units = in.readLong();
+		sessionId = ExternalizableSupport.readString(in);
+		timeStamp = in.readLong();
+		int codeType = in.readInt();
+		errorCodeType = codeType != ExternalizableSupport.NULL_ENUM ? ErrorCodeType.values()[codeType] : null;
+	}
+
 	public String toString() {
 		String ret = "Unit Reservation[session-id: " + sessionId + "; success: " + success + "; ";
 
@@ -23,8 +23,6 @@ package org.mobicents.charging.server.cdr;
 
 import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
 import org.mobicents.charging.server.BaseSbb;
-import org.mobicents.charging.server.account.CreditControlInfo;
-import org.mobicents.charging.server.account.CreditControlUnit;
 import org.mobicents.charging.server.data.UserSessionInfo;
 import org.mobicents.slee.SbbContextExt;
 
@@ -32,7 +30,6 @@ import javax.slee.Sbb;
 import javax.slee.SbbContext;
 import javax.slee.facilities.Tracer;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -57,64 +54,21 @@ public abstract class CDRGeneratorSbb extends BaseSbb implements Sbb, CDRGenerat
 	}
 
 	public void writeCDR(UserSessionInfo sessionInfo) {
-		// Let's sum up the total used units and total used amount for the CDR.
-		ArrayList<CreditControlInfo> reserv = sessionInfo.getReservations();
-
-		long balanceBefore = 0;
-		long balanceAfter = 0;
-		long totalUsedUnitsInput = 0;
-		long totalUsedUnitsMoney = 0;
-		long totalUsedUnitsOutput = 0;
-		long totalUsedUnitsServiceSpecific = 0;
-		long totalUsedUnitsTime = 0;
-		long totalUsedUnitsTotal = 0;
-		long totalUsedAmountInput = 0;
-		long totalUsedAmountMoney = 0;
-		long totalUsedAmountOutput = 0;
-		long totalUsedAmountServiceSpecific = 0;
-		long totalUsedAmountTime = 0;
-		long totalUsedAmountTotal = 0;
-
-		for (int i = 0; i < reserv.size(); i++) {
-			CreditControlInfo ccI = reserv.get(i);
-
-			ArrayList<CreditControlUnit> ccUnits = ccI.getCcUnits();
-			for (int j = 0; j < ccUnits.size(); j++) {
-				CreditControlUnit ccUnit = ccUnits.get(j);
-				if (ccUnit.getUnitType() == CcUnitType.INPUT_OCTETS) {
-					totalUsedUnitsInput += ccUnit.getUsedUnits();
-					totalUsedAmountInput += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType() == CcUnitType.MONEY) {
-					totalUsedUnitsMoney += ccUnit.getUsedUnits();
-					totalUsedAmountMoney += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.OUTPUT_OCTETS) {
-					totalUsedUnitsOutput += ccUnit.getUsedUnits();
-					totalUsedAmountOutput += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.SERVICE_SPECIFIC_UNITS) {
-					totalUsedUnitsServiceSpecific += ccUnit.getUsedUnits();
-					totalUsedAmountServiceSpecific += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.TIME) {
-					totalUsedUnitsTime += ccUnit.getUsedUnits();
-					totalUsedAmountTime += ccUnit.getUsedAmount();
-				}
-				if (ccUnit.getUnitType()==CcUnitType.TOTAL_OCTETS) {
-					totalUsedUnitsTotal += ccUnit.getUsedUnits();
-					totalUsedAmountTotal += ccUnit.getUsedAmount();
-				}
-			}
-
-			if (i == 0) {
-				balanceBefore = ccI.getBalanceBefore();
-			}
-			if (i == reserv.size() - 1) {
-				balanceAfter = ccI.getBalanceAfter();
-			}
-		}
-
+		// The session totals are kept up to date as each reservation is added, no need to sum them up here.
+		long balanceBefore = sessionInfo.getBalanceBefore();
+		long balanceAfter = sessionInfo.getBalanceAfter();
+		long totalUsedUnitsInput = sessionInfo.getTotalUsedUnits(CcUnitType.INPUT_OCTETS);
+		long totalUsedUnitsMoney = sessionInfo.getTotalUsedUnits(CcUnitType.MONEY);
+		long totalUsedUnitsOutput = sessionInfo.getTotalUsedUnits(CcUnitType.OUTPUT_OCTETS);
+		long totalUsedUnitsServiceSpecific = sessionInfo.getTotalUsedUnits(CcUnitType.SERVICE_SPECIFIC_UNITS);
+		long totalUsedUnitsTime = sessionInfo.getTotalUsedUnits(CcUnitType.TIME);
+		long totalUsedUnitsTotal = sessionInfo.getTotalUsedUnits(CcUnitType.TOTAL_OCTETS);
+		long totalUsedAmountInput = sessionInfo.getTotalUsedAmount(CcUnitType.INPUT_OCTETS);
+		long totalUsedAmountMoney = sessionInfo.getTotalUsedAmount(CcUnitType.MONEY);
+		long totalUsedAmountOutput = sessionInfo.getTotalUsedAmount(CcUnitType.OUTPUT_OCTETS);
+		long totalUsedAmountServiceSpecific = sessionInfo.getTotalUsedAmount(CcUnitType.SERVICE_SPECIFIC_UNITS);
+		long totalUsedAmountTime = sessionInfo.getTotalUsedAmount(CcUnitType.TIME);
+		long totalUsedAmountTotal = sessionInfo.getTotalUsedAmount(CcUnitType.TOTAL_OCTETS);
 
 		/**
 		 * Date Time of record (Format: yyyy-MM-dd'T'HH:mm:ss.SSSZ)
@@ -157,15 +111,15 @@ public abstract class CDRGeneratorSbb extends BaseSbb implements Sbb, CDRGenerat
 
 		try {
 			cdr.append(df.format(new Date())).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getOriginHost()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getOriginRealm()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getDestinationHost()).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getDestinationRealm()).append(DELIMITER);
+			cdr.append(sessionInfo.getOriginHost()).append(DELIMITER);
+			cdr.append(sessionInfo.getOriginRealm()).append(DELIMITER);
+			cdr.append(sessionInfo.getDestinationHost()).append(DELIMITER);
+			cdr.append(sessionInfo.getDestinationRealm()).append(DELIMITER);
 			cdr.append(Arrays.toString(sessionInfo.getServiceIds())).append(DELIMITER);
 			cdr.append(sessionInfo.getSessionStartTime()).append(DELIMITER);
 			cdr.append(System.currentTimeMillis()).append(DELIMITER);
 			cdr.append(elapsed).append(DELIMITER);
-			cdr.append(sessionInfo.getCcr().getSessionId()).append(DELIMITER);
+			cdr.append(sessionInfo.getSessionId()).append(DELIMITER);
 			cdr.append(sessionInfo.getEndUserType().getValue()).append(DELIMITER);
 			cdr.append(sessionInfo.getEndUserId()).append(DELIMITER);
 			// TODO: Get Destination Subscription ID Type and Value if available
@@ -185,8 +139,8 @@ public abstract class CDRGeneratorSbb extends BaseSbb implements Sbb, CDRGenerat
 			cdr.append(totalUsedAmountTime).append(DELIMITER);
 			cdr.append(totalUsedUnitsTotal).append(DELIMITER);
 			cdr.append(totalUsedAmountTotal).append(DELIMITER);
-			// FIXME? cdr.append(storedCCR.getCcRequestType().getValue()).append(DELIMITER);
-			cdr.append(sessionInfo.getReservations().size()).append(DELIMITER);
+			// FIXME? cdr.append(sessionInfo.getRequestType().getValue()).append(DELIMITER);
+			cdr.append(sessionInfo.getEventCount()).append(DELIMITER);
 			// FIXME? cdr.append(storedCCR.getTerminationCause()).append(DELIMITER);
 		}
 		catch (Exception e) {
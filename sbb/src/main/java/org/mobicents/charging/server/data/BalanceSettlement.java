@@ -0,0 +1,274 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.mobicents.charging.server.Money;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+
+/**
+ * Sums up what a Credit-Control-Request does to a user balance, over all its services and units, so that it can be
+ * applied at once: the previous reservation is returned, the used amount is debited and the new requested amount is
+ * reserved. In amounts:
+ *
+ * <pre>
+ * BALANCE  = BALANCE + released - granted      (released = reserved - used)
+ * RESERVED = RESERVED - settled + granted      (settled = reserved)
+ * </pre>
+ *
+ * The new reservation only fits if <code>BALANCE + released &gt;= granted</code>. If the whole requested amount
+ * doesn't, a partial grant can be computed from the available balance, and the units and outcome of each
+ * CreditControlInfo updated accordingly.
+ */
+public class BalanceSettlement {
+
+	private final List<CreditControlInfo> ccInfos;
+
+	private long released;
+	private long settled;
+	private long requested;
+	private long granted;
+
+	public BalanceSettlement(List<CreditControlInfo> ccInfos) {
+		this.ccInfos = ccInfos;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			List<CreditControlUnit> ccUnits = ccInfos.get(i).getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				CreditControlUnit ccUnit = ccUnits.get(j);
+				released += ccUnit.getReservedAmount() - ccUnit.getUsedAmount();
+				settled += ccUnit.getReservedAmount();
+				requested += ccUnit.getRequestedAmount();
+			}
+		}
+	}
+
+	/**
+	 * @param ccInfos the latest Credit Controls of a session, as granted
+	 * @return the amount they hold reserved
+	 */
+	public static long getReservedAmount(List<CreditControlInfo> ccInfos) {
+		long reserved = 0;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			List<CreditControlUnit> ccUnits = ccInfos.get(i).getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				reserved += ccUnits.get(j).getReservedAmount();
+			}
+		}
+		return reserved;
+	}
+
+	/**
+	 * Settles against what the datasource holds reserved for the session, per rating group, instead of what the
+	 * session remembers it was granted. A reservation the datasource no longer holds (released on expiry) is not
+	 * given back again, the used amount is just debited.
+	 *
+	 * @param held the amount held per rating group of the session
+	 * @param releaseAll true to also release the held rating groups not in the request, ie, on session termination
+	 * @param expired any amount held by expired reservations of other sessions, released along
+	 */
+	public void settleHeld(Map<Long, Long> held, boolean releaseAll, long expired) {
+		long used = 0;
+		settled = 0;
+		HashSet<Long> ratingGroups = new HashSet<Long>();
+		for (int i = 0; i < ccInfos.size(); i++) {
+			CreditControlInfo ccInfo = ccInfos.get(i);
+			if (ratingGroups.add(ccInfo.getRatingGroup())) {
+				Long amount = held.get(ccInfo.getRatingGroup());
+				settled += amount != null ? amount : 0;
+			}
+			List<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				used += ccUnits.get(j).getUsedAmount();
+			}
+		}
+		if (releaseAll) {
+			for (Map.Entry<Long, Long> entry : held.entrySet()) {
+				if (!ratingGroups.contains(entry.getKey())) {
+					settled += entry.getValue();
+				}
+			}
+		}
+		settled += expired;
+		released = settled - used;
+	}
+
+	/**
+	 * @return the previously reserved amount minus the used amount, to be given back to the balance. Negative if more
+	 *         was used than reserved.
+	 */
+	public long getReleased() {
+		return released;
+	}
+
+	/**
+	 * @return the previously reserved amount, to be removed from the reserved total
+	 */
+	public long getSettled() {
+		return settled;
+	}
+
+	/**
+	 * @return the total requested amount
+	 */
+	public long getRequested() {
+		return requested;
+	}
+
+	/**
+	 * @return the total granted amount, after one of the grant methods was called
+	 */
+	public long getGranted() {
+		return granted;
+	}
+
+	/**
+	 * Grants the whole requested amount to every unit.
+	 */
+	public void grantAll() {
+		granted = 0;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			CreditControlInfo ccInfo = ccInfos.get(i);
+			List<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				CreditControlUnit ccUnit = ccUnits.get(j);
+				ccUnit.setReservedUnits(ccUnit.getRequestedUnits());
+				ccUnit.setReservedAmount(ccUnit.getRequestedAmount());
+				granted += ccUnit.getRequestedAmount();
+			}
+			ccInfo.setSuccess(true);
+		}
+	}
+
+	/**
+	 * Grants what fits in the available amount, unit by unit, in order. A unit which doesn't fully fit gets the
+	 * units the remaining amount pays for at its rate (or the remaining amount itself, if not rated). A service is
+	 * successful if all its requested units got something granted.
+	 *
+	 * @param available the amount available for the new reservation, ie, balance plus released amount
+	 * @return the total granted amount
+	 */
+	public long grantPartially(long available) {
+		granted = 0;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			CreditControlInfo ccInfo = ccInfos.get(i);
+			boolean success = true;
+			List<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				CreditControlUnit ccUnit = ccUnits.get(j);
+				long requestedAmount = ccUnit.getRequestedAmount();
+				long grantedAmount = Math.max(0, Math.min(requestedAmount, available - granted));
+				long grantedUnits;
+				if (grantedAmount == requestedAmount) {
+					grantedUnits = ccUnit.getRequestedUnits();
+				}
+				else if (ccUnit.getRateForService() > 0) {
+					// only reserve what the granted units cost, the rest is left for the next units
+					grantedUnits = Money.unitsFor(grantedAmount, ccUnit.getRateForService());
+					grantedAmount = Money.amountFor(grantedUnits, ccUnit.getRateForService());
+				}
+				else {
+					grantedUnits = grantedAmount;
+				}
+				if (ccUnit.getRequestedUnits() > 0 && grantedUnits <= 0) {
+					grantedAmount = 0;
+					grantedUnits = 0;
+					success = false;
+				}
+				ccUnit.setReservedUnits(grantedUnits);
+				ccUnit.setReservedAmount(grantedAmount);
+				granted += grantedAmount;
+			}
+			ccInfo.setSuccess(success);
+		}
+		return granted;
+	}
+
+	/**
+	 * Grants whole services only, in order, as long as their requested amount fits in the available amount. Meant for
+	 * direct debiting, where a service is either fully charged or not at all.
+	 *
+	 * @param available the amount available
+	 * @return the total granted amount
+	 */
+	public long grantWholeServices(long available) {
+		granted = 0;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			CreditControlInfo ccInfo = ccInfos.get(i);
+			List<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			long serviceAmount = 0;
+			for (int j = 0; j < ccUnits.size(); j++) {
+				serviceAmount += ccUnits.get(j).getRequestedAmount();
+			}
+			boolean success = granted + serviceAmount <= available;
+			for (int j = 0; j < ccUnits.size(); j++) {
+				CreditControlUnit ccUnit = ccUnits.get(j);
+				ccUnit.setReservedUnits(success ? ccUnit.getRequestedUnits() : 0);
+				ccUnit.setReservedAmount(success ? ccUnit.getRequestedAmount() : 0);
+			}
+			if (success) {
+				granted += serviceAmount;
+			}
+			ccInfo.setSuccess(success);
+		}
+		return granted;
+	}
+
+	/**
+	 * Denies every service, nothing is granted.
+	 */
+	public void denyAll() {
+		granted = 0;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			CreditControlInfo ccInfo = ccInfos.get(i);
+			List<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			for (int j = 0; j < ccUnits.size(); j++) {
+				ccUnits.get(j).setReservedUnits(0);
+				ccUnits.get(j).setReservedAmount(0);
+			}
+			ccInfo.setSuccess(false);
+		}
+	}
+
+	/**
+	 * Sets the balance before and after the settlement on every CreditControlInfo.
+	 *
+	 * @param balanceAfter the balance after the settlement was applied
+	 */
+	public void setBalances(long balanceAfter) {
+		long balanceBefore = balanceAfter - released + granted;
+		for (int i = 0; i < ccInfos.size(); i++) {
+			ccInfos.get(i).setBalanceBefore(balanceBefore);
+			ccInfos.get(i).setBalanceAfter(balanceAfter);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BalanceSettlement[Released=" + released + "; Settled=" + settled + "; Requested=" + requested + "; Granted=" + granted + "]";
+	}
+
+}
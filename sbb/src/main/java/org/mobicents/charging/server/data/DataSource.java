@@ -22,6 +22,8 @@
 
 package org.mobicents.charging.server.data;
 
+import java.util.List;
+
 import org.mobicents.charging.server.account.CreditControlInfo;
 
 /**
@@ -38,25 +40,40 @@ public interface DataSource {
 	public void init();
 
 	/**
-	 * Gets the user account data from the database, by msisdn
+	 * Stops the data source, as the service is deactivated, ending whatever {@link #init()} started
+	 */
+	public void stop();
+
+	/**
+	 * Gets the user account data from the database, by exact msisdn (primary key lookup)
 	 * 
 	 * @param msisdn
 	 */
 	public void getUserAccountData(String msisdn);
 
 	/**
-	 * Places a new initial/update/terminate request for a user.
+	 * Searches the user account data from the database, by msisdn pattern. Meant for management and dumps only, as it
+	 * may scan the whole table.
+	 * 
+	 * @param msisdnPattern the SQL LIKE pattern, eg: "%" for all users or "351%" for a prefix
+	 */
+	public void findUserAccountData(String msisdnPattern);
+
+	/**
+	 * Places a new initial/update/terminate request for a user, for all the services in a Credit-Control-Request at
+	 * once. The result is reported for all of them in a single callback.
 	 *
-	 * @param ccInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control, all for the same user
 	 */
-	public void requestUnits(CreditControlInfo ccInfo);
+	public void requestUnits(List<CreditControlInfo> ccInfos);
 
 	/**
-	 * Places a new event/direct-debit request for a user.
+	 * Places a new event/direct-debit request for a user, for all the services in a Credit-Control-Request at once.
+	 * The result is reported for all of them in a single callback.
 	 *
-	 * @param ccInfo
+	 * @param ccInfos one CreditControlInfo per Multiple-Services-Credit-Control, all for the same user
 	 */
-	public void directDebitUnits(CreditControlInfo ccInfo);
+	public void directDebitUnits(List<CreditControlInfo> ccInfos);
 
 	/**
 	 * Update user with specific msisdn. Overwrites balance.
@@ -66,4 +83,26 @@ public interface DataSource {
 	 */
 	public void updateUser(String msisdn, long balance);
 
+	/**
+	 * Makes whatever a session holds reserved due for release, as the session ended without terminating, eg, on its
+	 * validity timeout. Nothing is reported back.
+	 * 
+	 * @param msisdn the user of the session
+	 * @param sessionId the session id
+	 * @param reservations the latest reservations of the session, for the datasources which only keep the reserved
+	 *        amount per user, not per session
+	 */
+	public void expireReservations(String msisdn, String sessionId, List<CreditControlInfo> reservations);
+
+	/**
+	 * Provisions users in bulk from a file, streaming it, as with {@link #updateUser(String, long)} for each of them
+	 * but without a transaction per user. Users already present keep their balance, only {@link #updateUser(String,
+	 * long)} overwrites it. Progress is traced, and the result reported once the whole file is loaded, in a single
+	 * callback.
+	 * 
+	 * @param location the users file, see {@link UserFileReader#open(String, ClassLoader)}
+	 * @return false if the file was not found, in which case nothing is reported back
+	 */
+	public boolean loadUsers(String location);
+
 }
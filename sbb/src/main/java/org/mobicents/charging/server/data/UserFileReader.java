@@ -0,0 +1,190 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Streams users to provision from a file, one per line, without loading it whole, so that it can hold millions of
+ * them. Both the users.properties format ("msisdn = balance", "msisdn: balance") and CSV ("msisdn,balance[,...]",
+ * also with ';' or tabs, any further columns ignored) are accepted. Blank lines, comments (starting with '#' or '!')
+ * and a CSV header line are skipped, as are lines not holding a number for the balance, which are counted.
+ * 
+ * Unlike {@link java.util.Properties}, no escapes or line continuations are handled, which MSISDNs and balances don't
+ * need anyway.
+ * 
+ * Not thread safe, users of a reader shared among threads should synchronize on it.
+ */
+public final class UserFileReader implements Closeable {
+
+	/**
+	 * The classpath resource users are loaded from when no file is given.
+	 */
+	public static final String DEFAULT_RESOURCE = "users.properties";
+
+	private final BufferedReader reader;
+	private final String name;
+
+	private long lineNumber = 0;
+	private long users = 0;
+	private long malformed = 0;
+
+	private String msisdn;
+	private long balance;
+
+	private UserFileReader(InputStream in, String name) {
+		this.reader = new BufferedReader(new InputStreamReader(in, Charset.forName("ISO-8859-1")), 1 << 16);
+		this.name = name;
+	}
+
+	/**
+	 * Opens a file of users.
+	 * 
+	 * @param location a file path, or a classpath resource name if there's no such file, or null/empty for
+	 *            {@link #DEFAULT_RESOURCE}
+	 * @param classLoader the class loader to look up resources with
+	 * @return the reader, or null if there's no such file or resource
+	 * @throws IOException if the file can't be opened
+	 */
+	public static UserFileReader open(String location, ClassLoader classLoader) throws IOException {
+		if (location == null || location.trim().length() == 0) {
+			location = DEFAULT_RESOURCE;
+		}
+		location = location.trim();
+		File file = new File(location);
+		if (file.isFile()) {
+			return new UserFileReader(new FileInputStream(file), file.getAbsolutePath());
+		}
+		InputStream in = classLoader.getResourceAsStream(location);
+		return in != null ? new UserFileReader(in, location) : null;
+	}
+
+	/**
+	 * Moves to the next user in the file.
+	 * 
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#' || line.charAt(0) == '!') {
+				continue;
+			}
+			int separator = -1;
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				if (c == '=' || c == ':' || c == ',' || c == ';' || c == '\t' || c == ' ') {
+					separator = i;
+					break;
+				}
+			}
+			if (separator <= 0) {
+				malformed++;
+				continue;
+			}
+			String value = line.substring(separator + 1).trim();
+			// properties separators may be surrounded by blanks, "msisdn = balance"
+			if (value.length() > 0 && (value.charAt(0) == '=' || value.charAt(0) == ':')) {
+				value = value.substring(1).trim();
+			}
+			int end = 0;
+			while (end < value.length() && (Character.isDigit(value.charAt(end)) || (end == 0 && value.charAt(end) == '-'))) {
+				end++;
+			}
+			if (end < value.length() && ",;\t ".indexOf(value.charAt(end)) < 0) {
+				end = 0;
+			}
+			try {
+				balance = Long.parseLong(value.substring(0, end));
+			}
+			catch (NumberFormatException e) {
+				// a CSV header is not malformed, anything else after it is
+				if (users > 0 || malformed > 0) {
+					malformed++;
+				}
+				continue;
+			}
+			msisdn = line.substring(0, separator);
+			users++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the MSISDN of the current user
+	 */
+	public String getMsisdn() {
+		return msisdn;
+	}
+
+	/**
+	 * @return the balance of the current user
+	 */
+	public long getBalance() {
+		return balance;
+	}
+
+	/**
+	 * @return the number of users read so far
+	 */
+	public long getUsers() {
+		return users;
+	}
+
+	/**
+	 * @return the number of lines read so far
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return the number of lines skipped so far for not holding a user
+	 */
+	public long getMalformed() {
+		return malformed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
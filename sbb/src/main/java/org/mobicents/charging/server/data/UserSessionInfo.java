@@ -22,24 +22,42 @@
 
 package org.mobicents.charging.server.data;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import net.java.slee.resource.diameter.base.events.avp.DiameterIdentity;
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.MultipleServicesCreditControlAvp;
 import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
 import net.java.slee.resource.diameter.ro.events.RoCreditControlRequest;
 
+import org.mobicents.charging.server.ExternalizableSupport;
 import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
 
 /**
  * POJO for keeping track of current user's session information
  * 
+ * Only the fields of the last Credit-Control-Request needed to answer it and to generate the CDR are kept, not the
+ * request itself, as this is stored in a CMP field and serialized on every write. For the same reason, reservations
+ * are not accumulated: only the latest one for each rating group/service is kept, and the session totals needed for the CDR are updated as each
+ * one is added, so the size of this object does not grow with the number of CCRs in the session. It is also
+ * Externalizable, with a compact versioned encoding, to keep CMP passivation and replication cheap.
+ * 
  * @author rsaranathan
  */
-public class UserSessionInfo implements Serializable {
+public class UserSessionInfo implements Externalizable {
 
 	private static final long serialVersionUID = -6258170300724976637L;
 
+	private static final int VERSION = 2;
+
 	private long sessionStartTime;
 	
 	private String sessionId;
@@ -47,17 +65,35 @@ public class UserSessionInfo implements Serializable {
 	private SubscriptionIdType endUserType;
 
 	private String endUserId;
-	
-	
-	private RoCreditControlRequest ccr;
-	
+
+	// Last Credit-Control-Request data
+	private int requestType;
+	private long requestNumber;
+	private String originHost;
+	private String originRealm;
+	private String destinationHost;
+	private String destinationRealm;
+
+	// Number of Multiple-Services-Credit-Control AVPs in the last request
+	private int msccCount;
+
 	private long[] serviceIds;
-		
+
+	private static final CcUnitType[] UNIT_TYPES = CcUnitType.values();
+
 	/**
-	 * List of Credit Controls for the session.
+	 * Latest Credit Control for each rating group/service in the session, the ones holding the currently reserved units.
 	 */
-	private ArrayList<CreditControlInfo> reservations = new ArrayList<CreditControlInfo>();
-	
+	private ArrayList<CreditControlInfo> lastReservations = new ArrayList<CreditControlInfo>();
+
+	// Session totals, indexed by CcUnitType ordinal
+	private long[] totalUsedUnits = new long[UNIT_TYPES.length];
+	private long[] totalUsedAmounts = new long[UNIT_TYPES.length];
+
+	private long balanceBefore;
+	private long balanceAfter;
+	private int eventCount;
+
 
 	public long getSessionStartTime() {
 		return sessionStartTime;
@@ -92,12 +128,57 @@ public class UserSessionInfo implements Serializable {
 		this.endUserId = endUserId;
 	}
 
-	public RoCreditControlRequest getCcr() {
-		return ccr;
+	/**
+	 * Stores the fields of the Credit-Control-Request being handled which are needed later on.
+	 * 
+	 * @param ccr the request
+	 */
+	public void setRequest(RoCreditControlRequest ccr) {
+		this.sessionId = ccr.getSessionId();
+		this.requestType = ccr.getCcRequestType().getValue();
+		this.requestNumber = ccr.getCcRequestNumber();
+		this.originHost = toString(ccr.getOriginHost());
+		this.originRealm = toString(ccr.getOriginRealm());
+		this.destinationHost = toString(ccr.getDestinationHost());
+		this.destinationRealm = toString(ccr.getDestinationRealm());
+
+		MultipleServicesCreditControlAvp[] msccs = ccr.getMultipleServicesCreditControls();
+		this.msccCount = msccs != null ? msccs.length : 0;
+	}
+
+	private static String toString(DiameterIdentity identity) {
+		return identity != null ? identity.toString() : null;
+	}
+
+	public CcRequestType getRequestType() {
+		return CcRequestType.fromInt(requestType);
+	}
+
+	public long getRequestNumber() {
+		return requestNumber;
 	}
 
-	public void setCcr(RoCreditControlRequest ccr) {
-		this.ccr = ccr;
+	public String getOriginHost() {
+		return originHost;
+	}
+
+	public String getOriginRealm() {
+		return originRealm;
+	}
+
+	public String getDestinationHost() {
+		return destinationHost;
+	}
+
+	public String getDestinationRealm() {
+		return destinationRealm;
+	}
+
+	/**
+	 * @return the number of Multiple-Services-Credit-Control AVPs in the last request
+	 */
+	public int getMsccCount() {
+		return msccCount;
 	}
 
 	public long[] getServiceIds() {
@@ -108,12 +189,171 @@ public class UserSessionInfo implements Serializable {
 		this.serviceIds = serviceIds;
 	}
 
-	public ArrayList<CreditControlInfo> getReservations() {
-		return reservations;
+	/**
+	 * Adds the Credit Controls resulting from a Credit-Control-Request (one per Multiple-Services-Credit-Control AVP)
+	 * to the session, updating the session totals with their used units and amounts and keeping each one as the
+	 * latest reservation for its rating group/service. The balance before is taken from the first Credit Control in
+	 * the session, the balance after from the last one.
+	 * 
+	 * @param ccInfos the Credit Controls to add
+	 */
+	public void addReservations(List<CreditControlInfo> ccInfos) {
+		for (int n = 0; n < ccInfos.size(); n++) {
+			CreditControlInfo ccInfo = ccInfos.get(n);
+			if (eventCount == 0 && n == 0) {
+				balanceBefore = ccInfo.getBalanceBefore();
+			}
+			balanceAfter = ccInfo.getBalanceAfter();
+
+			ArrayList<CreditControlUnit> ccUnits = ccInfo.getCcUnits();
+			for (int i = 0; i < ccUnits.size(); i++) {
+				CreditControlUnit ccUnit = ccUnits.get(i);
+				if (ccUnit.getUnitType() != null) {
+					int index = ccUnit.getUnitType().ordinal();
+					totalUsedUnits[index] += ccUnit.getUsedUnits();
+					totalUsedAmounts[index] += ccUnit.getUsedAmount();
+				}
+			}
+
+			int index = indexOfReservation(ccInfo.getRatingGroup(), ccInfo.getServiceIds());
+			if (index < 0) {
+				lastReservations.add(ccInfo);
+			}
+			else {
+				lastReservations.set(index, ccInfo);
+			}
+		}
+		eventCount++;
+	}
+
+	/**
+	 * @param ratingGroup the Rating-Group of the Multiple-Services-Credit-Control AVP
+	 * @param serviceIds the Service-Identifier(s) of the Multiple-Services-Credit-Control AVP
+	 * @return the latest Credit Control added to the session for it, or null if none was added yet
+	 */
+	public CreditControlInfo getLastReservation(long ratingGroup, long[] serviceIds) {
+		int index = indexOfReservation(ratingGroup, serviceIds);
+		return index < 0 ? null : lastReservations.get(index);
+	}
+
+	/**
+	 * @return the latest Credit Control for each rating group/service in the session
+	 */
+	public List<CreditControlInfo> getLastReservations() {
+		return lastReservations;
+	}
+
+	// The same Rating-Group, and the same first Service-Identifier unless one of them has none, is the same service
+	private int indexOfReservation(long ratingGroup, long[] serviceIds) {
+		for (int i = 0; i < lastReservations.size(); i++) {
+			CreditControlInfo ccInfo = lastReservations.get(i);
+			if (ccInfo.getRatingGroup() != ratingGroup) {
+				continue;
+			}
+			long[] reservedServiceIds = ccInfo.getServiceIds();
+			if (reservedServiceIds == null || reservedServiceIds.length == 0 || serviceIds == null || serviceIds.length == 0 || reservedServiceIds[0] == serviceIds[0]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public long getTotalUsedUnits(CcUnitType unitType) {
+		return totalUsedUnits[unitType.ordinal()];
+	}
+
+	public long getTotalUsedAmount(CcUnitType unitType) {
+		return totalUsedAmounts[unitType.ordinal()];
+	}
+
+	public long getBalanceBefore() {
+		return balanceBefore;
+	}
+
+	public long getBalanceAfter() {
+		return balanceAfter;
+	}
+
+	/**
+	 * @return the number of Credit-Control-Requests whose Credit Controls were added to the session
+	 */
+	public int getEventCount() {
+		return eventCount;
 	}
 
-	public void setStoredReservations(ArrayList<CreditControlInfo> reservations) {
-		this.reservations = reservations;
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeLong(sessionStartTime);
+		ExternalizableSupport.writeString(out, sessionId);
+		out.writeInt(endUserType != null ? endUserType.getValue() : ExternalizableSupport.NULL_ENUM);
+		ExternalizableSupport.writeString(out, endUserId);
+
+		out.writeInt(requestType);
+		out.writeLong(requestNumber);
+		ExternalizableSupport.writeString(out, originHost);
+		ExternalizableSupport.writeString(out, originRealm);
+		ExternalizableSupport.writeString(out, destinationHost);
+		ExternalizableSupport.writeString(out, destinationRealm);
+
+		out.writeInt(msccCount);
+		ExternalizableSupport.writeLongs(out, serviceIds);
+
+		out.writeInt(lastReservations.size());
+		for (int i = 0; i < lastReservations.size(); i++) {
+			lastReservations.get(i).writeExternal(out);
+		}
+		ExternalizableSupport.writeLongs(out, totalUsedUnits);
+		ExternalizableSupport.writeLongs(out, totalUsedAmounts);
+		out.writeLong(balanceBefore);
+		out.writeLong(balanceAfter);
+		out.writeInt(eventCount);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = ExternalizableSupport.readVersion(in, VERSION, UserSessionInfo.class);
+		sessionStartTime = in.readLong();
+		sessionId = ExternalizableSupport.readString(in);
+		int userType = in.readInt();
+		endUserType = userType != ExternalizableSupport.NULL_ENUM ? SubscriptionIdType.fromInt(userType) : null;
+		endUserId = ExternalizableSupport.readString(in);
+
+		requestType = in.readInt();
+		requestNumber = in.readLong();
+		originHost = ExternalizableSupport.readString(in);
+		originRealm = ExternalizableSupport.readString(in);
+		destinationHost = ExternalizableSupport.readString(in);
+		destinationRealm = ExternalizableSupport.readString(in);
+
+		lastReservations = new ArrayList<CreditControlInfo>();
+		if (version == 1) {
+			// v1 kept each MSCC Rating-Group and Service-Identifier(s), and a single last reservation
+			long[] msccRatingGroups = ExternalizableSupport.readLongs(in);
+			msccCount = msccRatingGroups != null ? msccRatingGroups.length : 0;
+			for (int i = 0; i < msccCount; i++) {
+				ExternalizableSupport.readLongs(in);
+			}
+			serviceIds = ExternalizableSupport.readLongs(in);
+			if (in.readBoolean()) {
+				CreditControlInfo ccInfo = new CreditControlInfo();
+				ccInfo.readExternal(in);
+				lastReservations.add(ccInfo);
+			}
+		}
+		else {
+			msccCount = in.readInt();
+			serviceIds = ExternalizableSupport.readLongs(in);
+			int reservationCount = in.readInt();
+			for (int i = 0; i < reservationCount; i++) {
+				CreditControlInfo ccInfo = new CreditControlInfo();
+				ccInfo.readExternal(in);
+				lastReservations.add(ccInfo);
+			}
+		}
+		totalUsedUnits = ExternalizableSupport.readLongs(in);
+		totalUsedAmounts = ExternalizableSupport.readLongs(in);
+		balanceBefore = in.readLong();
+		balanceAfter = in.readLong();
+		eventCount = in.readInt();
 	}
 
 	@Override
@@ -121,14 +361,24 @@ public class UserSessionInfo implements Serializable {
 		String ret = "UserSessionInfo[" +
 			"SessionStartTime=" + sessionStartTime + "; " +
 			"SessionId=" + sessionId + "; " +
+			"RequestType=" + requestType + "; " +
+			"RequestNumber=" + requestNumber + "; " +
 			"EndUserID=" + endUserId + "; " +
 			"EndUserType=" + endUserType + "; " +
-			"ServiceIDs=" + Arrays.toString(serviceIds) + ";";
-		
-		// This contains everything about the user's session. For debugging purposes only, need to format it better. 
-		for (int i = 0; i < reservations.size(); i++) {
-			CreditControlInfo ccInfo = reservations.get(i);
-			ret += "\nSession " + (i+1) + ":" + ccInfo;
+			"ServiceIDs=" + Arrays.toString(serviceIds) + "; " +
+			"Events=" + eventCount + "; " +
+			"BalanceBefore=" + balanceBefore + "; " +
+			"BalanceAfter=" + balanceAfter + ";";
+
+		for (int i = 0; i < UNIT_TYPES.length; i++) {
+			if (totalUsedUnits[i] != 0 || totalUsedAmounts[i] != 0) {
+				ret += " Used-" + UNIT_TYPES[i] + "=" + totalUsedUnits[i] + "/" + totalUsedAmounts[i] + ";";
+			}
+		}
+
+		// For debugging purposes only, need to format it better.
+		for (int i = 0; i < lastReservations.size(); i++) {
+			ret += "\nLast Reservation " + (i+1) + ":" + lastReservations.get(i);
 		}
 		ret += "]";
 		
@@ -0,0 +1,241 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.slee.Sbb;
+import javax.slee.SbbContext;
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.BaseSbb;
+import org.mobicents.charging.server.DiameterChargingServer;
+import org.mobicents.charging.server.account.AccountBalanceManagement;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.BalanceSettlement;
+import org.mobicents.charging.server.data.DataSource;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.charging.server.data.UserFileReader;
+import org.mobicents.slee.SbbContextExt;
+
+/**
+ * File Datasource Child SBB
+ * 
+ * This SBB keeps the user balances in a memory-mapped file of fixed size records, a {@link SubscriberFileStore}, with no
+ * database at all, for single node deployments. Requests are answered synchronously, with the same callbacks to the
+ * parent as the JDBC Datasource, so the parent SBB must be reentrant.
+ */
+public abstract class DataSourceFileSbb extends BaseSbb implements Sbb, DataSource {
+
+	/**
+	 * the SBB object context
+	 */
+	private SbbContextExt sbbContextExt;
+
+	/**
+	 * the SBB logger
+	 */
+	private static Tracer tracer;
+
+	// --------------------------- Local Interface ----------------------------
+
+	@Override
+	public void init() {
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			String path = (String) ctx.lookup("subscriberFile");
+			int capacity = (Integer) ctx.lookup("subscriberFileCapacity");
+			long forceIntervalMillis = (Long) ctx.lookup("subscriberFileForceIntervalMillis");
+			SubscriberFileStore.start(new File(path), capacity, forceIntervalMillis, tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Subscriber file store started. Forced to disk " + (forceIntervalMillis > 0 ? "every " + forceIntervalMillis + "ms." : "by the operating system, and on stop."));
+			}
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to start the subscriber file store.", e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		SubscriberFileStore.stop();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Subscriber file store stopped, changes forced to disk.");
+		}
+	}
+
+	@Override
+	public void getUserAccountData(String msisdn) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Calling getUserAccountData(" + msisdn + ")");
+		}
+		List<UserAccountData> result = new ArrayList<UserAccountData>(1);
+		SubscriberFileStore store = getStore();
+		if (store != null) {
+			UserAccountData accountData = store.get(msisdn);
+			if (accountData != null) {
+				result.add(accountData);
+			}
+		}
+		((AccountBalanceManagement) sbbContextExt.getSbbLocalObject().getParent()).getAccountDataResult(result);
+	}
+
+	@Override
+	public void findUserAccountData(String msisdnPattern) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Calling findUserAccountData(" + msisdnPattern + ")");
+		}
+		SubscriberFileStore store = getStore();
+		List<UserAccountData> result = store != null ? store.find(msisdnPattern) : new ArrayList<UserAccountData>();
+		((AccountBalanceManagement) sbbContextExt.getSbbLocalObject().getParent()).getAccountDataResult(result);
+	}
+
+	@Override
+	public void requestUnits(List<CreditControlInfo> ccInfos) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Requesting Units: " + ccInfos);
+		}
+		SubscriberFileStore store = getStore();
+		UserAccountData accountData = store != null ? store.reserve(ccInfos) : fail(ccInfos);
+		((AccountBalanceManagement) sbbContextExt.getSbbLocalObject().getParent()).reserveUnitsResult(ccInfos, accountData);
+	}
+
+	@Override
+	public void directDebitUnits(List<CreditControlInfo> ccInfos) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Debiting Units: " + ccInfos);
+		}
+		SubscriberFileStore store = getStore();
+		UserAccountData accountData = store != null ? store.debit(ccInfos) : fail(ccInfos);
+		((AccountBalanceManagement) sbbContextExt.getSbbLocalObject().getParent()).reserveUnitsResult(ccInfos, accountData);
+	}
+
+	@Override
+	public void updateUser(String msisdn, long balance) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Updating User with MSISDN '" + msisdn + "'. Balance = " + balance);
+		}
+		SubscriberFileStore store = getStore();
+		boolean success = store != null && store.update(msisdn, balance);
+		((DiameterChargingServer) sbbContextExt.getSbbLocalObject().getParent()).updateAccountDataResult(success);
+	}
+
+	@Override
+	public void expireReservations(String msisdn, String sessionId, List<CreditControlInfo> reservations) {
+		// reservations are only kept per user here, release what the session was last granted
+		SubscriberFileStore store = getStore();
+		if (store == null) {
+			return;
+		}
+		long released = store.release(msisdn, BalanceSettlement.getReservedAmount(reservations));
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Expired reservations of session '" + sessionId + "' for MSISDN '" + msisdn + "', " + released + " released.");
+		}
+	}
+
+	@Override
+	public boolean loadUsers(String location) {
+		UserFileReader reader;
+		try {
+			reader = UserFileReader.open(location, getClass().getClassLoader());
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Unable to open users file '" + location + "'.", e);
+			return false;
+		}
+		if (reader == null) {
+			return false;
+		}
+		SubscriberFileStore store = getStore();
+		boolean success = store != null;
+		long loaded = 0;
+		long existing = 0;
+		long started = System.nanoTime();
+		try {
+			while (success && reader.next()) {
+				// existing users keep their balance, only explicit updates overwrite it
+				if (store.contains(reader.getMsisdn())) {
+					existing++;
+				}
+				else if (store.insert(reader.getMsisdn(), reader.getBalance())) {
+					loaded++;
+				}
+			}
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Failed reading users file '" + reader + "' at line " + reader.getLineNumber() + ".", e);
+			success = false;
+		}
+		finally {
+			try {
+				reader.close();
+			}
+			catch (IOException e) {
+				// nothing to do
+			}
+		}
+		if (tracer.isInfoEnabled()) {
+			long millis = Math.max(1, (System.nanoTime() - started) / 1000000L);
+			tracer.info("[--] Loaded " + loaded + " of " + reader.getUsers() + " users from '" + reader + "' in " + millis + "ms (" + (loaded * 1000 / millis) + " users/s, "
+					+ existing + " already present, " + reader.getMalformed() + " malformed lines).");
+		}
+		((DiameterChargingServer) sbbContextExt.getSbbLocalObject().getParent()).updateAccountDataResult(success);
+		return true;
+	}
+
+	private SubscriberFileStore getStore() {
+		SubscriberFileStore store = SubscriberFileStore.getInstance();
+		if (store == null) {
+			tracer.severe("[xx] Subscriber file store not started.");
+		}
+		return store;
+	}
+
+	private UserAccountData fail(List<CreditControlInfo> ccInfos) {
+		for (CreditControlInfo ccInfo : ccInfos) {
+			ccInfo.setSuccess(false);
+		}
+		return null;
+	}
+
+	// ---------------------------- SLEE Callbacks ----------------------------
+
+	@Override
+	public void setSbbContext(SbbContext context) {
+		sbbContextExt = (SbbContextExt) context;
+		if (tracer == null) {
+			tracer = sbbContextExt.getTracer("CS-FILE");
+		}
+	}
+
+	@Override
+	public void unsetSbbContext() {
+		sbbContextExt = null;
+	}
+}
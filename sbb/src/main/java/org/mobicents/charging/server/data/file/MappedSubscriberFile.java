@@ -0,0 +1,320 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.mobicents.charging.server.data.memory.MsisdnCodec;
+
+/**
+ * File of fixed size subscriber records, memory-mapped and used in place as an open addressing (linear probing) hash
+ * table keyed by {@link MsisdnCodec encoded MSISDN}. A record is found by hashing its key to a slot, so there's no
+ * separate index, and reading or changing a record is done directly on the mapped buffer, by offset, without creating
+ * any object.
+ * 
+ * File layout: a header of {@value #HEADER_SIZE} bytes (magic int, version int, record size int, slots int), followed
+ * by one record per slot. Record layout (40 bytes): key long (0 for an empty slot), balance long, reserved long,
+ * expiry long (epoch millis, 0 for none), status byte, padding.
+ * 
+ * As in the in-memory table, keys are never removed, values are guarded by a lock striped by slot, see
+ * {@link #lockFor(int)}, which must be held to read or change them, and inserts are serialized among themselves. A key
+ * is written after its record values, and a lookup which misses is repeated under the insert lock, so a user being
+ * inserted is never reported as missing.
+ * 
+ * A single mapped buffer can't be over 2GB, which limits the file to some 50M slots.
+ */
+public final class MappedSubscriberFile {
+
+	public static final byte STATUS_ACTIVE = 0;
+	public static final byte STATUS_INACTIVE = 1;
+
+	public static final long NO_EXPIRY = 0;
+
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 40;
+
+	private static final int MAGIC = 0x43535346; // "CSSF"
+	private static final int VERSION = 1;
+
+	private static final int KEY = 0;
+	private static final int BALANCE = 8;
+	private static final int RESERVED = 16;
+	private static final int EXPIRY = 24;
+	private static final int STATUS = 32;
+
+	private static final int STRIPES = 256;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int mask;
+	private final int maxSize;
+	private volatile int size;
+
+	private final Object[] locks = new Object[STRIPES];
+	private final Object insertLock = new Object();
+
+	private MappedSubscriberFile(File file, MappedByteBuffer buffer, int slots, int size) {
+		this.file = file;
+		this.buffer = buffer;
+		this.mask = slots - 1;
+		// keep the load factor at 3/4 at most
+		this.maxSize = slots - slots / 4;
+		this.size = size;
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Opens the subscriber file, creating it if it doesn't exist.
+	 * 
+	 * @param file the file
+	 * @param maxSize the maximum number of subscribers, for a new file. An existing file keeps its own.
+	 * @return the opened file
+	 * @throws IOException if the file can't be mapped, or is not a subscriber file
+	 */
+	public static MappedSubscriberFile open(File file, int maxSize) throws IOException {
+		boolean exists = file.exists() && file.length() > 0;
+		int slots;
+		if (exists) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+					throw new IOException(file + " is not a subscriber file.");
+				}
+				if (raf.readInt() != VERSION || raf.readInt() != RECORD_SIZE) {
+					throw new IOException("Unsupported subscriber file format in " + file);
+				}
+				slots = raf.readInt();
+			}
+			finally {
+				raf.close();
+			}
+		}
+		else {
+			long wanted = Math.max(2, maxSize + (maxSize + 2) / 3);
+			slots = Integer.highestOneBit((int) Math.min(wanted - 1, 1 << 30)) << 1;
+		}
+		long length = HEADER_SIZE + (long) slots * RECORD_SIZE;
+		if (slots <= 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Subscriber file capacity too big: " + maxSize);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer;
+		try {
+			// the mapping stays valid after the channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+		finally {
+			raf.close();
+		}
+
+		int size = 0;
+		if (exists) {
+			for (int slot = 0; slot < slots; slot++) {
+				if (buffer.getLong(offset(slot) + KEY) != MsisdnCodec.NONE) {
+					size++;
+				}
+			}
+		}
+		else {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, RECORD_SIZE);
+			buffer.putInt(12, slots);
+			buffer.force();
+		}
+		return new MappedSubscriberFile(file, buffer, slots, size);
+	}
+
+	/**
+	 * @param key the encoded MSISDN
+	 * @return the slot for the subscriber, or -1 if not in the file
+	 */
+	public int find(long key) {
+		int slot = probe(key);
+		if (slot < 0) {
+			// may be being inserted right now
+			synchronized (insertLock) {
+				slot = probe(key);
+			}
+		}
+		return slot;
+	}
+
+	private int probe(long key) {
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = buffer.getLong(offset(slot) + KEY);
+			if (k == key) {
+				return slot;
+			}
+			if (k == MsisdnCodec.NONE) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Inserts a subscriber, if not in the file yet.
+	 * 
+	 * @param key the encoded MSISDN
+	 * @return the slot for the subscriber, either existing (its values left untouched) or new, or -1 if the file is
+	 *         full
+	 */
+	public int insert(long key, long balance, long reservedAmount, long expiry, byte status) {
+		synchronized (insertLock) {
+			int slot = probe(key);
+			if (slot >= 0) {
+				return slot;
+			}
+			if (size >= maxSize) {
+				return -1;
+			}
+			slot = hash(key) & mask;
+			while (buffer.getLong(offset(slot) + KEY) != MsisdnCodec.NONE) {
+				slot = (slot + 1) & mask;
+			}
+			synchronized (lockFor(slot)) {
+				set(slot, balance, reservedAmount, expiry, status);
+				// publish
+				buffer.putLong(offset(slot) + KEY, key);
+			}
+			size++;
+			return slot;
+		}
+	}
+
+	/**
+	 * @return the lock guarding the values of the slot
+	 */
+	public Object lockFor(int slot) {
+		return locks[slot & (STRIPES - 1)];
+	}
+
+	public long getKey(int slot) {
+		return buffer.getLong(offset(slot) + KEY);
+	}
+
+	// --- values, to be read and changed while holding the slot lock ---
+
+	public long getBalance(int slot) {
+		return buffer.getLong(offset(slot) + BALANCE);
+	}
+
+	public void setBalance(int slot, long balance) {
+		buffer.putLong(offset(slot) + BALANCE, balance);
+	}
+
+	public long getReserved(int slot) {
+		return buffer.getLong(offset(slot) + RESERVED);
+	}
+
+	public long getExpiry(int slot) {
+		return buffer.getLong(offset(slot) + EXPIRY);
+	}
+
+	public void setExpiry(int slot, long expiry) {
+		buffer.putLong(offset(slot) + EXPIRY, expiry);
+	}
+
+	public byte getStatus(int slot) {
+		return buffer.get(offset(slot) + STATUS);
+	}
+
+	/**
+	 * Sets all the values of a subscriber.
+	 */
+	public void set(int slot, long balance, long reservedAmount, long expiry, byte status) {
+		int offset = offset(slot);
+		buffer.putLong(offset + BALANCE, balance);
+		buffer.putLong(offset + RESERVED, reservedAmount);
+		buffer.putLong(offset + EXPIRY, expiry);
+		buffer.put(offset + STATUS, status);
+	}
+
+	/**
+	 * Adds to the balance and reserved amount of a subscriber.
+	 */
+	public void add(int slot, long balanceDelta, long reservedDelta) {
+		int offset = offset(slot);
+		buffer.putLong(offset + BALANCE, buffer.getLong(offset + BALANCE) + balanceDelta);
+		buffer.putLong(offset + RESERVED, buffer.getLong(offset + RESERVED) + reservedDelta);
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Writes the changes to disk. Until then, they survive the process but not the machine crashing.
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	/**
+	 * @return the number of subscribers in the file
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of subscribers in the file
+	 */
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of slots, ie, the exclusive upper bound for slot numbers
+	 */
+	public int slots() {
+		return mask + 1;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	private static int hash(long key) {
+		// murmur3 64 bit finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+}
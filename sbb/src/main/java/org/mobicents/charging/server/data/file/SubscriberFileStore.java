@@ -0,0 +1,339 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.BalanceSettlement;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.charging.server.data.memory.MsisdnCodec;
+
+/**
+ * Subscriber store on a {@link MappedSubscriberFile}, shared by all the file datasource SBB entities. Balances are
+ * checked and changed in place in the file, atomically per subscriber, with the same semantics as the JDBC datasource
+ * (see {@link BalanceSettlement}). A subscriber whose balance has expired can't be granted anything new, though
+ * previous reservations are still settled.
+ * 
+ * Changes are written to disk by the operating system, and forced periodically and on stop, so a machine crash may
+ * lose the changes since the last force (a process crash doesn't). The store is stopped when the service is
+ * deactivated.
+ */
+public final class SubscriberFileStore {
+
+	private static SubscriberFileStore instance;
+
+	private final MappedSubscriberFile file;
+	private final Tracer tracer;
+
+	private Forcer forcer;
+	private Thread forcerThread;
+
+	private SubscriberFileStore(MappedSubscriberFile file, Tracer tracer) {
+		this.file = file;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the store, opening the subscriber file, unless already started.
+	 * 
+	 * @param path the subscriber file
+	 * @param capacity the maximum number of subscribers, if the file is created
+	 * @param forceIntervalMillis the maximum time between forcing changes to disk, 0 to leave it to the operating system
+	 * @param tracer
+	 * @return the store
+	 * @throws IOException if the file can't be opened
+	 */
+	public static synchronized SubscriberFileStore start(File path, int capacity, long forceIntervalMillis, Tracer tracer) throws IOException {
+		if (instance == null) {
+			MappedSubscriberFile file = MappedSubscriberFile.open(path, capacity);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Opened subscriber file " + path.getAbsolutePath() + " with " + file.size() + " subscribers, up to " + file.maxSize() + ".");
+			}
+			instance = new SubscriberFileStore(file, tracer);
+			if (forceIntervalMillis > 0) {
+				instance.forcer = new Forcer(file, forceIntervalMillis, tracer);
+				instance.forcerThread = new Thread(instance.forcer, "CS-FileForce");
+				instance.forcerThread.setDaemon(true);
+				instance.forcerThread.start();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the store, or null if not started
+	 */
+	public static synchronized SubscriberFileStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Stops the store, forcing the changes to disk.
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			if (instance.forcer != null) {
+				instance.forcer.stop();
+				try {
+					instance.forcerThread.join();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			instance.file.force();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Reserves (and updates/terminates) units for all the services of a Credit-Control-Request.
+	 * 
+	 * @param ccInfos one CreditControlInfo per service, all for the same user, updated with the outcome
+	 * @return the user account data, same as the JDBC datasource would report
+	 */
+	public UserAccountData reserve(List<CreditControlInfo> ccInfos) {
+		return apply(ccInfos, false);
+	}
+
+	/**
+	 * Debits units for all the services of a Credit-Control-Request.
+	 * 
+	 * @param ccInfos one CreditControlInfo per service, all for the same user, updated with the outcome
+	 * @return the user account data, same as the JDBC datasource would report
+	 */
+	public UserAccountData debit(List<CreditControlInfo> ccInfos) {
+		return apply(ccInfos, true);
+	}
+
+	private UserAccountData apply(List<CreditControlInfo> ccInfos, boolean debit) {
+		String msisdn = ccInfos.get(0).getSubscriptionId();
+		BalanceSettlement settlement = new BalanceSettlement(ccInfos);
+		UserAccountData accountData = new UserAccountData();
+
+		int slot = slotOf(msisdn);
+		if (slot < 0) {
+			settlement.denyAll();
+			accountData.setFailure(true);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+			}
+			return accountData;
+		}
+
+		long requested = settlement.getRequested();
+		long released = debit ? 0 : settlement.getReleased();
+		long now = System.currentTimeMillis();
+		long balance;
+		synchronized (file.lockFor(slot)) {
+			long expiry = file.getExpiry(slot);
+			boolean expired = expiry != MappedSubscriberFile.NO_EXPIRY && expiry <= now;
+			// what's released still goes back to an expired balance, but can't be granted again
+			long available = expired ? 0 : file.getBalance(slot) + released;
+			if (available >= requested) {
+				settlement.grantAll();
+			}
+			else if (debit) {
+				settlement.grantWholeServices(available);
+			}
+			else {
+				settlement.grantPartially(available);
+			}
+			long granted = settlement.getGranted();
+			file.add(slot, released - granted, debit ? 0 : granted - settlement.getSettled());
+			balance = file.getBalance(slot);
+		}
+
+		settlement.setBalances(balance);
+		accountData.setMsisdn(msisdn);
+		accountData.setBalance(balance);
+		for (CreditControlInfo ccInfo : ccInfos) {
+			if (!ccInfo.isSuccessful()) {
+				accountData.setFailure(true);
+			}
+		}
+		return accountData;
+	}
+
+	/**
+	 * @param msisdn the user MSISDN
+	 * @return the user account data, or null if not found
+	 */
+	public UserAccountData get(String msisdn) {
+		int slot = slotOf(msisdn);
+		return slot < 0 ? null : toAccountData(slot);
+	}
+
+	/**
+	 * @param msisdn the user MSISDN
+	 * @return true if the user exists
+	 */
+	public boolean contains(String msisdn) {
+		return slotOf(msisdn) >= 0;
+	}
+
+	/**
+	 * Searches users by MSISDN pattern. Scans the whole file, for management only.
+	 * 
+	 * @param msisdnPattern the SQL LIKE pattern, eg: "%" for all users or "351%" for a prefix
+	 * @return the matching users
+	 */
+	public List<UserAccountData> find(String msisdnPattern) {
+		Pattern pattern = MsisdnCodec.toRegex(msisdnPattern);
+		List<UserAccountData> result = new ArrayList<UserAccountData>();
+		for (int slot = 0; slot < file.slots(); slot++) {
+			long key = file.getKey(slot);
+			if (key != MsisdnCodec.NONE && pattern.matcher(MsisdnCodec.decode(key)).matches()) {
+				result.add(toAccountData(slot));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a user with the given balance, unless already present, in which case its balance and reservations are
+	 * left untouched (as when loading the users file over an existing subscriber file).
+	 * 
+	 * @return false if the user already exists or can't be kept in the file
+	 */
+	public boolean insert(String msisdn, long balance) {
+		return slotOf(msisdn) < 0 && update(msisdn, balance);
+	}
+
+	/**
+	 * Sets the balance of a user, creating it if needed.
+	 * 
+	 * @return false if the user can't be kept in the file
+	 */
+	public boolean update(String msisdn, long balance) {
+		long key = MsisdnCodec.encode(msisdn);
+		if (key == MsisdnCodec.NONE) {
+			tracer.warning("[!!] User with MSISDN '" + msisdn + "' can't be kept in the subscriber file (up to " + MsisdnCodec.MAX_DIGITS + " digits only).");
+			return false;
+		}
+		int slot = file.insert(key, balance, 0, MappedSubscriberFile.NO_EXPIRY, MappedSubscriberFile.STATUS_ACTIVE);
+		if (slot < 0) {
+			tracer.warning("[!!] User with MSISDN '" + msisdn + "' can't be kept in the subscriber file, capacity (" + file.maxSize() + " users) reached.");
+			return false;
+		}
+		synchronized (file.lockFor(slot)) {
+			file.setBalance(slot, balance);
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back to the balance what a session holds reserved, as its next request would have, when the session
+	 * ended without terminating. Never releases more than the user holds reserved.
+	 * 
+	 * @param msisdn the user of the session
+	 * @param amount the amount reserved by the session
+	 * @return the amount released
+	 */
+	public long release(String msisdn, long amount) {
+		int slot = slotOf(msisdn);
+		if (slot < 0 || amount <= 0) {
+			return 0;
+		}
+		synchronized (file.lockFor(slot)) {
+			amount = Math.min(amount, file.getReserved(slot));
+			if (amount > 0) {
+				file.add(slot, amount, -amount);
+			}
+		}
+		return Math.max(0, amount);
+	}
+
+	private int slotOf(String msisdn) {
+		long key = MsisdnCodec.encode(msisdn);
+		return key == MsisdnCodec.NONE ? -1 : file.find(key);
+	}
+
+	private UserAccountData toAccountData(int slot) {
+		UserAccountData accountData = new UserAccountData();
+		accountData.setMsisdn(MsisdnCodec.decode(file.getKey(slot)));
+		synchronized (file.lockFor(slot)) {
+			accountData.setBalance(file.getBalance(slot));
+		}
+		return accountData;
+	}
+
+	/**
+	 * Forces the subscriber file to disk periodically.
+	 */
+	private static class Forcer implements Runnable {
+
+		private final MappedSubscriberFile file;
+		private final long intervalMillis;
+		private final Tracer tracer;
+
+		private volatile boolean running = true;
+
+		Forcer(MappedSubscriberFile file, long intervalMillis, Tracer tracer) {
+			this.file = file;
+			this.intervalMillis = intervalMillis;
+			this.tracer = tracer;
+		}
+
+		void stop() {
+			running = false;
+			synchronized (this) {
+				notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (this) {
+					try {
+						if (running) {
+							wait(intervalMillis);
+						}
+					}
+					catch (InterruptedException e) {
+						running = false;
+					}
+				}
+				if (!running) {
+					break;
+				}
+				try {
+					file.force();
+				}
+				catch (RuntimeException e) {
+					tracer.warning("[!!] Failed to force subscriber file to disk. Will retry in " + intervalMillis + "ms.", e);
+				}
+			}
+		}
+	}
+
+}
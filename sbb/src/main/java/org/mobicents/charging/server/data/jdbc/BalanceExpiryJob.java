@@ -0,0 +1,420 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * Zeroes the balances whose {@link DataSourceSchemaInfo#_COL_BALANCE_EXPIRY_DATE} has passed, from threads of its own,
+ * every run interval. Expired users get their expiry cleared and {@link DataSourceSchemaInfo#_COL_BAL_LAST_ADJUSTED}
+ * set, so that only users due are ever read, through the expiry date index. Users holding reservations are skipped
+ * until their sessions settle, as the unused part of a reservation goes back into the balance.
+ * 
+ * Each shard (or the single database) is split in key ranges of MSISDN, by its leading digits, which a few workers
+ * take in turn. A worker reads the users due in its range a batch at a time, through a forward only cursor with the
+ * batch size as fetch size, and expires them in one JDBC batch and transaction, with a pooled connection taken for
+ * the batch only. Balances changed by charging in between are left for the next run. After each batch, the worker
+ * pauses long enough to be busy on the database at most the configured fraction of its time, so the job as a whole
+ * takes at most workers times that fraction of a connection, and charging latency is not affected.
+ * 
+ * Each run reports the users expired per second and its total duration. Users updated by a driver which doesn't tell
+ * the rows each statement of a batch updated are reported apart, as their outcome is unknown.
+ */
+public final class BalanceExpiryJob implements Runnable {
+
+	// range bounds are the leading digits of the MSISDN, evenly spread over this many values
+	private static final int KEY_SPACE_DIGITS = 4;
+
+	private static BalanceExpiryJob instance;
+
+	private final long intervalMillis;
+	private final int partitions;
+	private final int workers;
+	private final int batchSize;
+	private final double dutyCycle;
+	private final Tracer tracer;
+
+	private volatile Map<String, JdbcResourceAdaptorSbbInterface> shards;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// of the current run
+	private final AtomicLong scanned = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong expiredAmount = new AtomicLong();
+	private final AtomicLong unknown = new AtomicLong();
+	private final AtomicLong unknownAmount = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+	private final AtomicLong failedRanges = new AtomicLong();
+
+	private volatile String lastRun = "none yet";
+
+	private static final class Range {
+
+		private final String shard;
+		private final JdbcResourceAdaptorSbbInterface jdbcRA;
+		private final String first;
+		// null for the last range
+		private final String end;
+
+		Range(String shard, JdbcResourceAdaptorSbbInterface jdbcRA, String first, String end) {
+			this.shard = shard;
+			this.jdbcRA = jdbcRA;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		public String toString() {
+			return shard + "[" + first + ", " + (end != null ? end : "") + ")";
+		}
+	}
+
+	private BalanceExpiryJob(Map<String, JdbcResourceAdaptorSbbInterface> shards, long intervalMillis, int partitions, int workers, int batchSize, double dutyCycle, Tracer tracer) {
+		this.shards = shards;
+		this.intervalMillis = intervalMillis;
+		this.partitions = Math.max(1, Math.min(partitions, pow10(KEY_SPACE_DIGITS)));
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+		this.dutyCycle = dutyCycle > 0 && dutyCycle < 1 ? dutyCycle : 1;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the job, replacing any already running.
+	 * 
+	 * @param shards the JDBC RA interface of each shard (or the single database) to expire balances on, by link
+	 * @param intervalMillis the time between runs, the first one starting after that time too, 0 to not run at all
+	 * @param partitions the number of key ranges each shard is split in
+	 * @param workers the number of ranges expired at once, over all the shards
+	 * @param batchSize the users read and expired per batch and transaction
+	 * @param dutyCycle the fraction of its time each worker may be busy on the database, 1 for no throttling
+	 * @param tracer
+	 */
+	public static synchronized void start(Map<String, JdbcResourceAdaptorSbbInterface> shards, long intervalMillis, int partitions, int workers, int batchSize, double dutyCycle, Tracer tracer) {
+		stop();
+		if (intervalMillis <= 0) {
+			return;
+		}
+		instance = new BalanceExpiryJob(new LinkedHashMap<String, JdbcResourceAdaptorSbbInterface>(shards), intervalMillis, partitions, workers, batchSize, dutyCycle, tracer);
+		instance.thread = new Thread(instance, "CS-BalanceExpiry");
+		instance.thread.setDaemon(true);
+		instance.thread.start();
+	}
+
+	/**
+	 * Changes the shards to expire balances on from the next run, eg, after the shard map is reloaded.
+	 * 
+	 * @param shards the JDBC RA interface of each shard, by link
+	 */
+	public static synchronized void setShards(Map<String, JdbcResourceAdaptorSbbInterface> shards) {
+		if (instance != null) {
+			instance.shards = new LinkedHashMap<String, JdbcResourceAdaptorSbbInterface>(shards);
+		}
+	}
+
+	/**
+	 * Stops the job, interrupting the current run between batches.
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.running = false;
+			instance.thread.interrupt();
+			instance = null;
+		}
+	}
+
+	/**
+	 * @return a summary of the last run, null if not started
+	 */
+	public static synchronized String getLastRun() {
+		return instance != null ? instance.lastRun : null;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(intervalMillis);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			if (running) {
+				expire();
+			}
+		}
+	}
+
+	/**
+	 * Runs once over all the shards, waiting for all the ranges to be done.
+	 */
+	void expire() {
+		Map<String, JdbcResourceAdaptorSbbInterface> shards = this.shards;
+		final Queue<Range> ranges = new ConcurrentLinkedQueue<Range>();
+		for (Map.Entry<String, JdbcResourceAdaptorSbbInterface> shard : shards.entrySet()) {
+			String first = "";
+			for (int i = 1; i <= partitions; i++) {
+				String end = i < partitions ? bound(i) : null;
+				ranges.add(new Range(shard.getKey(), shard.getValue(), first, end));
+				first = end;
+			}
+		}
+		scanned.set(0);
+		expired.set(0);
+		expiredAmount.set(0);
+		unknown.set(0);
+		unknownAmount.set(0);
+		throttledNanos.set(0);
+		failedRanges.set(0);
+		long started = System.nanoTime();
+		final Date today = today();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[--] Expiring balances due before " + today + " on " + shards.keySet() + ", " + ranges.size() + " key ranges, " + workers + " workers.");
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < Math.min(workers, ranges.size()); i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Range range;
+					while (running && (range = ranges.poll()) != null) {
+						expire(range, today);
+					}
+				}
+			}, "CS-BalanceExpiry-" + (i + 1));
+			worker.setDaemon(true);
+			worker.start();
+			threads.add(worker);
+		}
+		for (Thread worker : threads) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException e) {
+				// stopping, the workers stop after their batch
+				running = false;
+			}
+		}
+
+		long millis = Math.max(1, (System.nanoTime() - started) / 1000000L);
+		lastRun = "expired " + expired.get() + " users (" + expired.get() * 1000L / millis + " users/s), " + expiredAmount.get() + " in balances, out of " + scanned.get() + " read ("
+				+ scanned.get() * 1000L / millis + " rows/s)" + (unknown.get() > 0 ? ", " + unknown.get() + " more users (" + unknownAmount.get() + " in balances) with unknown outcome" : "") + ", in " + millis + "ms, " + throttledNanos.get() / 1000000L + "ms throttled" + (failedRanges.get() > 0 ? ", " + failedRanges.get() + " key ranges failed" : "")
+				+ (running ? "" : ", interrupted");
+		if (failedRanges.get() > 0) {
+			tracer.warning("[!!] Balance expiry run " + lastRun + ". Failed ranges will be retried on the next run.");
+		}
+		else if (tracer.isInfoEnabled()) {
+			tracer.info("[--] Balance expiry run " + lastRun + ".");
+		}
+	}
+
+	/**
+	 * Expires the users due in a key range, a batch at a time, until none is left or a batch expires none (all changed
+	 * by charging meanwhile, they are left for the next run). Users with unknown outcome count as expired here, as they
+	 * most likely are, and are not read again if so.
+	 */
+	private void expire(Range range, Date today) {
+		String[] msisdns = new String[batchSize];
+		long[] balances = new long[batchSize];
+		while (running) {
+			long started = System.nanoTime();
+			int read;
+			int updated = 0;
+			try {
+				Connection connection = range.jdbcRA.getConnection();
+				try {
+					connection.setAutoCommit(false);
+					read = select(connection, range, today, msisdns, balances);
+					if (read > 0) {
+						updated = update(connection, today, msisdns, balances, read);
+					}
+					connection.commit();
+				}
+				catch (SQLException e) {
+					try {
+						connection.rollback();
+					}
+					catch (SQLException f) {
+						// the original failure is the one to report
+					}
+					throw e;
+				}
+				finally {
+					connection.close();
+				}
+			}
+			catch (SQLException e) {
+				failedRanges.incrementAndGet();
+				tracer.warning("[!!] Failed to expire balances in key range " + range + ".", e);
+				return;
+			}
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Expired " + updated + " of " + read + " users due in key range " + range + ", counting those with unknown outcome.");
+			}
+			if (read < batchSize || updated == 0) {
+				return;
+			}
+			throttle(System.nanoTime() - started);
+		}
+	}
+
+	private int select(Connection connection, Range range, Date today, String[] msisdns, long[] balances) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(range.end != null ? DataSourceSchemaInfo._QUERY_SELECT_EXPIRED : DataSourceSchemaInfo._QUERY_SELECT_EXPIRED_FROM,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			preparedStatement.setFetchSize(batchSize);
+			preparedStatement.setMaxRows(batchSize);
+			preparedStatement.setDate(1, today);
+			preparedStatement.setString(2, range.first);
+			if (range.end != null) {
+				preparedStatement.setString(3, range.end);
+			}
+			ResultSet resultSet = preparedStatement.executeQuery();
+			int read = 0;
+			try {
+				while (read < batchSize && resultSet.next()) {
+					msisdns[read] = resultSet.getString(1);
+					balances[read] = resultSet.getLong(2);
+					read++;
+				}
+			}
+			finally {
+				resultSet.close();
+			}
+			scanned.addAndGet(read);
+			return read;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	private int update(Connection connection, Date today, String[] msisdns, long[] balances, int count) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_EXPIRE_BALANCE);
+		try {
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			for (int i = 0; i < count; i++) {
+				preparedStatement.setTimestamp(1, now);
+				preparedStatement.setString(2, msisdns[i]);
+				preparedStatement.setLong(3, balances[i]);
+				preparedStatement.setDate(4, today);
+				preparedStatement.addBatch();
+			}
+			int[] results = preparedStatement.executeBatch();
+			int updated = 0;
+			long amount = 0;
+			int unknowns = 0;
+			long unknownsAmount = 0;
+			for (int i = 0; i < count; i++) {
+				if (results[i] > 0) {
+					updated++;
+					amount += balances[i];
+				}
+				// some drivers don't tell how many rows each statement of a batch updated
+				else if (results[i] == PreparedStatement.SUCCESS_NO_INFO) {
+					unknowns++;
+					unknownsAmount += balances[i];
+				}
+			}
+			expired.addAndGet(updated);
+			expiredAmount.addAndGet(amount);
+			unknown.addAndGet(unknowns);
+			unknownAmount.addAndGet(unknownsAmount);
+			return updated + unknowns;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	/**
+	 * Pauses so that the time busy on the database is at most the duty cycle of the time elapsed.
+	 */
+	private void throttle(long busyNanos) {
+		if (dutyCycle >= 1) {
+			return;
+		}
+		long pauseNanos = (long) (busyNanos * (1 - dutyCycle) / dutyCycle);
+		throttledNanos.addAndGet(pauseNanos);
+		try {
+			Thread.sleep(pauseNanos / 1000000L, (int) (pauseNanos % 1000000L));
+		}
+		catch (InterruptedException e) {
+			running = false;
+		}
+	}
+
+	/**
+	 * @return the lower bound of a key range, ie, evenly spread leading digits, eg, "0625" for the 2nd of 16
+	 */
+	private String bound(int range) {
+		String digits = Long.toString((long) range * pow10(KEY_SPACE_DIGITS) / partitions);
+		StringBuilder sb = new StringBuilder(KEY_SPACE_DIGITS);
+		for (int i = digits.length(); i < KEY_SPACE_DIGITS; i++) {
+			sb.append('0');
+		}
+		return sb.append(digits).toString();
+	}
+
+	private static int pow10(int digits) {
+		int value = 1;
+		for (int i = 0; i < digits; i++) {
+			value *= 10;
+		}
+		return value;
+	}
+
+	/**
+	 * @return today's date, balances expiring today are still valid until tomorrow
+	 */
+	private static Date today() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return new Date(calendar.getTimeInMillis());
+	}
+
+}
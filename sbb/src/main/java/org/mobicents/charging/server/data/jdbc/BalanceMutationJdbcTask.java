@@ -0,0 +1,360 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.BalanceSettlement;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Base for the tasks changing a user balance for all the services of a Credit-Control-Request.
+ * 
+ * The whole request is first tried with a single conditional UPDATE ("the mutation"), which only applies if it fits
+ * in the balance. If it doesn't, the balance is read and a subclass specific partial grant is applied instead. At the
+ * end, the resulting balance is read back by primary key.
+ * 
+ * The task either runs in a transaction of its own or, when group commit is enabled, together with other concurrent
+ * tasks in a shared transaction, see {@link GroupCommitter}. The steps are the same in both cases, except that
+ * mutations of a group are executed as a JDBC batch. When subscriber lanes are enabled, they take precedence, and the
+ * task runs in the lane of its user, possibly along with other tasks for the same user, see {@link SubscriberLanes}.
+ * 
+ * Otherwise, with versioned updates enabled, the balance is read first and the grant applied with a compare-and-set
+ * of the user row version, retried on conflict, see {@link VersionedBalanceUpdates}.
+ */
+public abstract class BalanceMutationJdbcTask extends DataSourceJdbcTask {
+
+	protected final List<CreditControlInfo> ccInfos;
+	protected final String msisdn;
+	protected final Tracer tracer;
+
+	protected final BalanceSettlement settlement;
+
+	protected UserAccountData accountData = null;
+
+	private boolean found = true;
+
+	protected BalanceMutationJdbcTask(List<CreditControlInfo> ccInfos, Tracer tracer) {
+		this.ccInfos = ccInfos;
+		this.msisdn = ccInfos.get(0).getSubscriptionId();
+		this.tracer = tracer;
+		this.settlement = new BalanceSettlement(ccInfos);
+	}
+
+	/**
+	 * @return the conditional UPDATE statement applying the whole request
+	 */
+	protected abstract String getMutationQuery();
+
+	/**
+	 * Binds the mutation statement parameters, for the given amount.
+	 * 
+	 * @param preparedStatement the statement for {@link #getMutationQuery()}
+	 * @param amount the amount to reserve or debit
+	 * @throws SQLException
+	 */
+	protected abstract void bindMutation(PreparedStatement preparedStatement, long amount) throws SQLException;
+
+	/**
+	 * Grants (and applies) what fits in the balance, when the whole request didn't.
+	 * 
+	 * @param connection the connection in use
+	 * @param balance the user balance, as just read
+	 * @return false if nothing could be applied because the balance changed in the meantime
+	 * @throws SQLException
+	 */
+	protected abstract boolean applyPartially(Connection connection, long balance) throws SQLException;
+
+	/**
+	 * @return the operation name, for traces
+	 */
+	protected abstract String getOperationName();
+
+	/**
+	 * Grants what fits in the given balance, the whole request if it does, without applying it.
+	 * 
+	 * @param balance the user balance, as read
+	 */
+	protected abstract void grant(long balance);
+
+	/**
+	 * @return how much the granted settlement adds to the user reserved amount
+	 */
+	protected long getReservedChange() {
+		return 0;
+	}
+
+	/**
+	 * Called before the mutation is bound, to read (and lock) anything else the settlement depends on, and to write
+	 * ahead what it changes when the whole request is granted, so that the user row is locked for as little as possible.
+	 * 
+	 * @param connection the connection in use
+	 * @throws SQLException
+	 */
+	protected void beforeMutation(Connection connection) throws SQLException {
+	}
+
+	/**
+	 * Called once the settlement is applied to the balance of an existing user, to correct what was written ahead in
+	 * case the whole request was not granted.
+	 * 
+	 * @param connection the connection in use
+	 * @throws SQLException
+	 */
+	protected void afterSettlement(Connection connection) throws SQLException {
+	}
+
+	/**
+	 * Called when nothing was settled after all, to undo what was written ahead, as the transaction may still be
+	 * committed along with other tasks.
+	 * 
+	 * @param connection the connection in use
+	 * @throws SQLException
+	 */
+	protected void revertBeforeMutation(Connection connection) throws SQLException {
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Settling for MSISDN '" + msisdn + "': " + settlement);
+		}
+		if (SubscriberLanes.isEnabled()) {
+			SubscriberLanes.execute(this, taskContext);
+		}
+		else if (GroupCommitter.isEnabled()) {
+			GroupCommitter.execute(this, taskContext);
+		}
+		else if (VersionedBalanceUpdates.isEnabled()) {
+			VersionedBalanceUpdates.execute(this, taskContext);
+		}
+		else {
+			executeAlone(taskContext);
+		}
+		return this;
+	}
+
+	private void executeAlone(JdbcTaskContext taskContext) {
+		SleeTransaction tx = null;
+		Connection connection = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			connection = taskContext.getConnection();
+			apply(connection);
+			tx.commit();
+			tx = null;
+		}
+		catch (Exception e) {
+			fail(e);
+			if (connection != null) {
+				evictStatements(connection);
+			}
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the whole task, in the transaction of the caller.
+	 */
+	void apply(Connection connection) throws SQLException {
+		beforeMutation(connection);
+		PreparedStatement preparedStatement = prepareStatement(connection, getMutationQuery());
+		bindMutation(preparedStatement, settlement.getRequested());
+		mutationExecuted(connection, preparedStatement.executeUpdate());
+		complete(connection);
+	}
+
+	/**
+	 * Applies the whole task with a versioned update instead of the mutation, in the transaction of the caller: the
+	 * balance is read along with the user row version, the grant is worked out from it, and the update only applies if
+	 * the row is still at that version.
+	 * 
+	 * @return false if the user row changed since read, in which case the transaction is to be rolled back and the
+	 *         task retried
+	 */
+	boolean applyVersioned(Connection connection) throws SQLException {
+		found = true;
+		beforeMutation(connection);
+		long balance;
+		long version;
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_SELECT_BALANCE_VERSION);
+		preparedStatement.setString(1, msisdn);
+		ResultSet resultSet = preparedStatement.executeQuery();
+		try {
+			if (!resultSet.next()) {
+				found = false;
+				settlement.denyAll();
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+				}
+				complete(connection);
+				return true;
+			}
+			balance = resultSet.getLong(1);
+			version = resultSet.getLong(2);
+		}
+		finally {
+			closeQuietly(resultSet);
+		}
+
+		grant(balance);
+		long balanceChange = settlement.getReleased() - settlement.getGranted();
+		preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_VERSIONED_UPDATE);
+		preparedStatement.setLong(1, balanceChange);
+		preparedStatement.setLong(2, getReservedChange());
+		preparedStatement.setString(3, msisdn);
+		preparedStatement.setLong(4, version);
+		if (preparedStatement.executeUpdate() == 0) {
+			return false;
+		}
+		settled(connection, balance + balanceChange);
+		return true;
+	}
+
+	/**
+	 * Carries on after the mutation for the whole request was executed.
+	 * 
+	 * @param connection the connection in use
+	 * @param updated the mutation update count
+	 * @throws SQLException
+	 */
+	void mutationExecuted(Connection connection, int updated) throws SQLException {
+		if (updated == 1) {
+			// ok great, the whole request fits
+			settlement.grantAll();
+			return;
+		}
+
+		// either the user does not exist or the balance is not enough for the whole request
+		Long balance = selectBalance(connection);
+		if (balance == null) {
+			found = false;
+			settlement.denyAll();
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+			}
+		}
+		else if (!applyPartially(connection, balance)) {
+			// nothing was applied, let it fail and be retried by the client
+			fail(new SQLException("Balance for MSISDN '" + msisdn + "' changed while applying the request."));
+		}
+	}
+
+	/**
+	 * Reads back the resulting balance and fills in the account data.
+	 */
+	void complete(Connection connection) throws SQLException {
+		if (isFailed()) {
+			revertBeforeMutation(connection);
+			return;
+		}
+		if (found) {
+			Long balance = selectBalance(connection);
+			if (balance == null) {
+				fail(new SQLException("User with MSISDN '" + msisdn + "' removed while applying the request."));
+				revertBeforeMutation(connection);
+				return;
+			}
+			settled(connection, balance);
+		}
+		else {
+			revertBeforeMutation(connection);
+			accountData = new UserAccountData();
+			accountData.setFailure(true);
+		}
+	}
+
+	/**
+	 * Fills in the account data once the settlement is applied to an existing user.
+	 * 
+	 * @param balance the resulting balance
+	 */
+	private void settled(Connection connection, long balance) throws SQLException {
+		afterSettlement(connection);
+		settlement.setBalances(balance);
+		accountData = new UserAccountData();
+		accountData.setMsisdn(msisdn);
+		accountData.setBalance(balance);
+		for (CreditControlInfo ccInfo : ccInfos) {
+			if (!ccInfo.isSuccessful()) {
+				accountData.setFailure(true);
+			}
+		}
+	}
+
+	/**
+	 * Flags the task as failed: nothing was applied for it.
+	 */
+	void fail(Exception e) {
+		tracer.severe("[xx] Failed to execute task to " + getOperationName() + " for MSISDN '" + msisdn + "'", e);
+		setFailed();
+		accountData = null;
+		for (CreditControlInfo ccInfo : ccInfos) {
+			ccInfo.setSuccess(false);
+		}
+	}
+
+	@Override
+	void reject(Exception e) {
+		fail(e);
+	}
+
+	/**
+	 * @return the user balance, or null if the user does not exist
+	 */
+	protected Long selectBalance(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_SELECT_BALANCE);
+		preparedStatement.setString(1, msisdn);
+		ResultSet resultSet = preparedStatement.executeQuery();
+		try {
+			return resultSet.next() ? resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE) : null;
+		}
+		finally {
+			closeQuietly(resultSet);
+		}
+	}
+
+	public UserAccountData getAccountData() {
+		return accountData;
+	}
+
+}
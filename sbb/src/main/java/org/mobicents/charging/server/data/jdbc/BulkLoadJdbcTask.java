@@ -0,0 +1,416 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.charging.server.DiameterChargingServer;
+import org.mobicents.charging.server.data.UserFileReader;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * One of the workers of a bulk load of users, see {@link Load}. Each worker takes batches of users from the file as
+ * it streams and inserts each batch as a JDBC batch in a transaction of its own, until the file is over, so that
+ * workers insert in parallel while only one at a time reads. A batch failing (eg: as some of its users are already
+ * present, when loading the same file again) is inserted again without the users already present, which are left as
+ * they are, as with {@link UpdateUserJdbcTask}, and if that still fails, one user at a time.
+ * 
+ * Workers run on the JDBC RA threads, holding them for the whole load, so there shouldn't be more of them than such
+ * threads.
+ */
+class BulkLoadJdbcTask extends DataSourceJdbcTask {
+
+	private static volatile int workers = 4;
+	private static volatile int batchSize = 1000;
+
+	private final Load load;
+	private final Tracer tracer;
+
+	/**
+	 * Configures bulk loads.
+	 * 
+	 * @param workers the number of workers per datasource (per shard, if sharded)
+	 * @param batchSize the number of users inserted per batch and transaction
+	 */
+	static void configure(int workers, int batchSize) {
+		BulkLoadJdbcTask.workers = Math.max(1, workers);
+		BulkLoadJdbcTask.batchSize = Math.max(1, batchSize);
+	}
+
+	static int getWorkers() {
+		return workers;
+	}
+
+	BulkLoadJdbcTask(Load load, Tracer tracer) {
+		this.load = load;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		String[] msisdns = new String[batchSize];
+		long[] balances = new long[batchSize];
+		try {
+			int count;
+			while (!load.isFailed() && (count = load.nextBatch(getShard(), msisdns, balances)) > 0) {
+				if (!insertBatch(taskContext, msisdns, balances, count)) {
+					int missing = removePresent(taskContext, msisdns, balances, count);
+					load.existing(count - missing);
+					if (missing > 0 && !insertBatch(taskContext, msisdns, balances, missing)) {
+						for (int i = 0; i < missing; i++) {
+							insertOne(taskContext, msisdns[i], balances[i]);
+						}
+					}
+				}
+			}
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Failed to bulk load users.", e);
+			setFailed();
+			load.setFailed();
+		}
+		return null;
+	}
+
+	/**
+	 * @return false if the batch failed, and was rolled back
+	 */
+	private boolean insertBatch(JdbcTaskContext taskContext, String[] msisdns, long[] balances, int count) throws Exception {
+		SleeTransaction tx = null;
+		Connection connection = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			connection = taskContext.getConnection();
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_INSERT);
+			for (int i = 0; i < count; i++) {
+				bindInsert(preparedStatement, msisdns[i], balances[i]);
+				preparedStatement.addBatch();
+			}
+			preparedStatement.executeBatch();
+			tx.commit();
+			tx = null;
+			load.inserted(count);
+			return true;
+		}
+		catch (SQLException e) {
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Batch of " + count + " users starting with MSISDN '" + msisdns[0] + "' failed, retrying without the users already present ...", e);
+			}
+			if (connection != null) {
+				evictStatements(connection);
+			}
+			return false;
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+	}
+
+	private void insertOne(JdbcTaskContext taskContext, String msisdn, long balance) throws Exception {
+		SleeTransaction tx = null;
+		Connection connection = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			connection = taskContext.getConnection();
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_INSERT);
+			bindInsert(preparedStatement, msisdn, balance);
+			preparedStatement.executeUpdate();
+			tx.commit();
+			tx = null;
+			load.inserted(1);
+		}
+		catch (SQLException e) {
+			if (connection != null) {
+				evictStatements(connection);
+			}
+			if (tx != null) {
+				tx.rollback();
+				tx = null;
+			}
+			if (exists(taskContext, msisdn)) {
+				load.existing(1);
+			}
+			else {
+				tracer.warning("[!!] Failed to load user with MSISDN '" + msisdn + "'.", e);
+				load.rejected();
+			}
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the users already present from a batch, keeping the others in order.
+	 * 
+	 * @return the number of users left
+	 */
+	private int removePresent(JdbcTaskContext taskContext, String[] msisdns, long[] balances, int count) throws Exception {
+		Set<String> present = new HashSet<String>();
+		SleeTransaction tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+		try {
+			PreparedStatement preparedStatement = prepareStatement(taskContext.getConnection(), DataSourceSchemaInfo._QUERY_SELECT_PRESENT);
+			for (int from = 0; from < count; from += DataSourceSchemaInfo._PRESENT_CHUNK) {
+				for (int i = 0; i < DataSourceSchemaInfo._PRESENT_CHUNK; i++) {
+					preparedStatement.setString(i + 1, msisdns[Math.min(from + i, count - 1)]);
+				}
+				ResultSet resultSet = preparedStatement.executeQuery();
+				try {
+					while (resultSet.next()) {
+						present.add(resultSet.getString(1));
+					}
+				}
+				finally {
+					closeQuietly(resultSet);
+				}
+			}
+		}
+		finally {
+			tx.rollback();
+		}
+		int missing = 0;
+		for (int i = 0; i < count; i++) {
+			if (!present.contains(msisdns[i])) {
+				msisdns[missing] = msisdns[i];
+				balances[missing] = balances[i];
+				missing++;
+			}
+		}
+		return missing;
+	}
+
+	private boolean exists(JdbcTaskContext taskContext, String msisdn) throws Exception {
+		SleeTransaction tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+		try {
+			PreparedStatement preparedStatement = prepareStatement(taskContext.getConnection(), DataSourceSchemaInfo._QUERY_SELECT_BALANCE);
+			preparedStatement.setString(1, msisdn);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			try {
+				return resultSet.next();
+			}
+			finally {
+				closeQuietly(resultSet);
+			}
+		}
+		finally {
+			tx.rollback();
+		}
+	}
+
+	private void bindInsert(PreparedStatement preparedStatement, String msisdn, long balance) throws SQLException {
+		preparedStatement.setString(1, msisdn);
+		preparedStatement.setLong(2, balance);
+		preparedStatement.setDate(3, null);
+		preparedStatement.setTimestamp(4, null);
+		preparedStatement.setString(5, "Active");
+	}
+
+	@Override
+	public void callBackParentOnException(SbbLocalObject parent) {
+		setFailed();
+		load.setFailed();
+		callBackParentOnResult(parent);
+	}
+
+	@Override
+	public void callBackParentOnResult(SbbLocalObject parent) {
+		if (load.finished()) {
+			((DiameterChargingServer) parent).updateAccountDataResult(!load.isFailed());
+		}
+	}
+
+	/**
+	 * A bulk load of users from a file, shared by its workers. When sharded, the file is streamed once per shard, each
+	 * stream only holding the users of its shard, so that the workers of each shard insert into their own database.
+	 * Only the last worker to finish calls back the parent, for the whole load.
+	 */
+	static class Load {
+
+		// progress is traced every so many users
+		private static final long PROGRESS_INTERVAL = 100000;
+
+		private final Map<String, UserFileReader> readers = new HashMap<String, UserFileReader>();
+		private final ShardRing ring;
+		private final Tracer tracer;
+		private final String location;
+
+		private final long started = System.nanoTime();
+		private final AtomicLong inserted = new AtomicLong();
+		private final AtomicLong existing = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private volatile boolean failed = false;
+		private int pending;
+
+		/**
+		 * Opens the users file, once per shard.
+		 * 
+		 * @param location the users file, see {@link UserFileReader#open(String, ClassLoader)}
+		 * @param ring the ring the users are sharded with, null if not sharded
+		 * @param workers the total number of workers, for all shards
+		 * @return the load, or null if the file was not found
+		 * @throws IOException if the file can't be opened
+		 */
+		static Load open(String location, ShardRing ring, int workers, Tracer tracer) throws IOException {
+			Load load = new Load(location, ring, workers, tracer);
+			String[] shards = ring != null ? ring.getShards() : new String[] { null };
+			try {
+				for (String shard : shards) {
+					UserFileReader reader = UserFileReader.open(location, Load.class.getClassLoader());
+					if (reader == null) {
+						load.close();
+						return null;
+					}
+					load.readers.put(shard, reader);
+				}
+			}
+			catch (IOException e) {
+				load.close();
+				throw e;
+			}
+			return load;
+		}
+
+		private Load(String location, ShardRing ring, int workers, Tracer tracer) {
+			this.location = location;
+			this.ring = ring;
+			this.pending = workers;
+			this.tracer = tracer;
+		}
+
+		/**
+		 * Fills in the next batch of users of a shard.
+		 * 
+		 * @return the number of users filled in, 0 at the end of the file
+		 */
+		int nextBatch(String shard, String[] msisdns, long[] balances) throws IOException {
+			// a single reader, keyed by null, when not sharded
+			UserFileReader reader = readers.get(ring != null ? shard : null);
+			int count = 0;
+			synchronized (reader) {
+				while (count < msisdns.length && reader.next()) {
+					if (ring != null && !shard.equals(ring.shardFor(reader.getMsisdn()))) {
+						continue;
+					}
+					msisdns[count] = reader.getMsisdn();
+					balances[count] = reader.getBalance();
+					count++;
+				}
+			}
+			return count;
+		}
+
+		void inserted(long count) {
+			long before = inserted.getAndAdd(count);
+			if ((before + count) / PROGRESS_INTERVAL > before / PROGRESS_INTERVAL && tracer.isInfoEnabled()) {
+				tracer.info("[--] Loading users from '" + location + "': " + (before + count) + " inserted so far (" + rate(before + count) + " users/s).");
+			}
+		}
+
+		void existing(long count) {
+			existing.addAndGet(count);
+		}
+
+		void rejected() {
+			rejected.incrementAndGet();
+		}
+
+		void setFailed() {
+			failed = true;
+		}
+
+		boolean isFailed() {
+			return failed;
+		}
+
+		/**
+		 * Records a worker as finished.
+		 * 
+		 * @return true if it was the last one, the load being over
+		 */
+		boolean finished() {
+			synchronized (this) {
+				if (--pending > 0) {
+					return false;
+				}
+			}
+			long malformed = 0;
+			for (UserFileReader reader : readers.values()) {
+				malformed += reader.getMalformed();
+			}
+			close();
+			if (failed) {
+				tracer.warning("[!!] Failed loading users from '" + location + "', " + inserted + " inserted before failing.");
+			}
+			else if (tracer.isInfoEnabled()) {
+				long millis = Math.max(1, (System.nanoTime() - started) / 1000000L);
+				tracer.info("[--] Loaded users from '" + location + "' in " + millis + "ms: " + inserted + " inserted (" + rate(inserted.get()) + " users/s), " + existing
+						+ " already present, " + rejected + " rejected, " + malformed + " malformed lines.");
+			}
+			return true;
+		}
+
+		private long rate(long count) {
+			return count * 1000 / Math.max(1, (System.nanoTime() - started) / 1000000L);
+		}
+
+		private void close() {
+			for (UserFileReader reader : readers.values()) {
+				try {
+					reader.close();
+				}
+				catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+}
@@ -22,6 +22,15 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.slee.SbbLocalObject;
 
 import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTask;
@@ -29,12 +38,192 @@ import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTask;
 /**
  * Abstract class defining callback methods for Datasource parent
  * 
+ * Statements are prepared on the connection handle given by the pool, which tracks them and closes them along with
+ * the handle, so that they never outlive the physical connection. Reusing them across tasks is left to the pool's own
+ * prepared statement cache (prepared-statement-cache-size in the datasource definition), which should be set to at
+ * least the number of {@link DataSourceSchemaInfo} queries in use. Within a task, the statements are kept per query
+ * for the handle in use by the executing thread, so that a task (or a group of them sharing a connection) prepares
+ * each query once. They are dropped as soon as the thread uses another handle.
+ * 
  * @author ammendonca
  */
 public abstract class DataSourceJdbcTask extends SimpleJdbcTask {
 
+	// the statements prepared on the connection handle last used by each thread
+	private static final ThreadLocal<HandleStatements> handleStatements = new ThreadLocal<HandleStatements>();
+	// bumped to drop the statements of every thread, eg, after the schema has changed
+	private static final AtomicInteger statementsGeneration = new AtomicInteger();
+
+	private static final class HandleStatements {
+
+		// compared by identity, as connections may not implement equals consistently
+		private final Connection connection;
+		private final int generation;
+		private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+		HandleStatements(Connection connection, int generation) {
+			this.connection = connection;
+			this.generation = generation;
+		}
+	}
+
+	private static final AtomicLong statementCacheHits = new AtomicLong();
+	private static final AtomicLong statementCacheMisses = new AtomicLong();
+
+	// the JDBC RA entity link the task was submitted to (a shard or a read replica), and when
+	private String shard;
+	private long submittedNanos;
+
+	private boolean failed = false;
+
 	public abstract void callBackParentOnResult(SbbLocalObject parent);
 
 	public abstract void callBackParentOnException(SbbLocalObject parent);
 
+	/**
+	 * Records the JDBC RA entity the task is being submitted to, for routing and metrics.
+	 * 
+	 * @param shard the JDBC RA entity link, the shard (or the single database) or a read replica
+	 */
+	void submitted(String shard) {
+		this.shard = shard;
+		this.submittedNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return the JDBC RA entity link the task was submitted to
+	 */
+	String getShard() {
+		return shard;
+	}
+
+	long getSubmittedNanos() {
+		return submittedNanos;
+	}
+
+	/**
+	 * Flags the task as failed on a database error, as opposed to completing with a negative outcome (eg, not enough
+	 * balance).
+	 */
+	protected void setFailed() {
+		failed = true;
+	}
+
+	/**
+	 * Fails the task without executing it, eg, when its shard is unavailable, so that its parent can be called back
+	 * with {@link #callBackParentOnException(SbbLocalObject)}.
+	 */
+	void reject(Exception e) {
+		setFailed();
+	}
+
+	/**
+	 * @return true if the task failed on a database error
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Gets the prepared statement for the query on the connection handle, preparing it if the calling thread hasn't
+	 * yet on that handle. The statement must not be closed by the caller, only its result sets, the pool closes it
+	 * along with the handle.
+	 * 
+	 * @param connection the connection in use by the task
+	 * @param query one of the {@link DataSourceSchemaInfo} query constants
+	 * @return the prepared statement, with its parameters cleared
+	 * @throws SQLException
+	 */
+	protected PreparedStatement prepareStatement(Connection connection, String query) throws SQLException {
+		HandleStatements current = handleStatements.get();
+		int generation = statementsGeneration.get();
+		if (current == null || current.connection != connection || current.generation != generation) {
+			if (current != null) {
+				closeStatements(current.statements);
+			}
+			current = new HandleStatements(connection, generation);
+			handleStatements.set(current);
+		}
+		PreparedStatement preparedStatement = current.statements.get(query);
+		if (preparedStatement != null && !preparedStatement.isClosed()) {
+			statementCacheHits.incrementAndGet();
+			preparedStatement.clearParameters();
+			return preparedStatement;
+		}
+		statementCacheMisses.incrementAndGet();
+		preparedStatement = connection.prepareStatement(query);
+		current.statements.put(query, preparedStatement);
+		return preparedStatement;
+	}
+
+	/**
+	 * Closes and forgets the statements the calling thread prepared on a connection, eg, after a failure which may have
+	 * left them unusable.
+	 * 
+	 * @param connection
+	 */
+	protected static void evictStatements(Connection connection) {
+		HandleStatements current = handleStatements.get();
+		if (current != null && current.connection == connection) {
+			handleStatements.remove();
+			closeStatements(current.statements);
+		}
+	}
+
+	/**
+	 * Forgets the statements prepared by every thread, eg, after the schema has changed. Each thread closes its own,
+	 * if the pool didn't already, the next time it prepares one.
+	 */
+	public static void clearStatementCache() {
+		statementsGeneration.incrementAndGet();
+		HandleStatements current = handleStatements.get();
+		if (current != null) {
+			handleStatements.remove();
+			closeStatements(current.statements);
+		}
+	}
+
+	/**
+	 * @return the number of times a statement was reused within a task
+	 */
+	public static long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	/**
+	 * @return the number of times a statement had to be prepared on the connection handle, which the pool's prepared
+	 *         statement cache may still have served
+	 */
+	public static long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	/**
+	 * Closes a result set, ignoring any failure.
+	 * 
+	 * @param resultSet the result set to close, may be null
+	 */
+	protected static void closeQuietly(ResultSet resultSet) {
+		if (resultSet != null) {
+			try {
+				resultSet.close();
+			}
+			catch (SQLException e) {
+				// nothing else to do
+			}
+		}
+	}
+
+	private static void closeStatements(Map<String, PreparedStatement> statements) {
+		for (PreparedStatement preparedStatement : statements.values()) {
+			try {
+				preparedStatement.close();
+			}
+			catch (SQLException e) {
+				// nothing else to do
+			}
+		}
+		statements.clear();
+	}
+
 }
@@ -22,11 +22,15 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.slee.ActivityContextInterface;
 import javax.slee.Sbb;
 import javax.slee.SbbContext;
@@ -42,7 +46,6 @@ import org.mobicents.slee.resource.jdbc.JdbcActivity;
 import org.mobicents.slee.resource.jdbc.JdbcActivityContextInterfaceFactory;
 import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
 import org.mobicents.slee.resource.jdbc.event.JdbcTaskExecutionThrowableEvent;
-import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTask;
 import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTaskResultEvent;
 
 /**
@@ -50,6 +53,10 @@ import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTaskResultEvent;
  * 
  * This SBB is responsible for interacting with the Datasource, using the JDBC Resource Adaptor.
  * 
+ * Account lookups and searches may be routed to read replicas of the database, see {@link ReplicaRouter}, each being
+ * another JDBC RA entity link bound in the SBB descriptor. Latency and errors are counted per link, see
+ * {@link ShardStats}.
+ * 
  * @author ammendonca
  * @author rsaranathan
  */
@@ -75,53 +82,145 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 
 	@Override
 	public void init() {
-		// create db schema if needed
-		Connection connection = null;
-		boolean tableAlreadyExists = false;
+		// group commit of balance operations, if configured
 		try {
-			connection = jdbcRA.getConnection();
-			if (tracer.isFineEnabled()) {
-				tracer.fine("[><] Got JDBC Connection");
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			long groupCommitWindowMillis = (Long) ctx.lookup("groupCommitWindowMillis");
+			int groupCommitMaxOperations = (Integer) ctx.lookup("groupCommitMaxOperations");
+			GroupCommitter.configure(groupCommitWindowMillis, groupCommitMaxOperations);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Group commit of balance operations " + (GroupCommitter.isEnabled() ?
+						"enabled, up to " + groupCommitMaxOperations + " operations within " + groupCommitWindowMillis + "ms." : "disabled."));
 			}
-			try { 
-				PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_EXISTS);
-				preparedStatement.execute();
-				ResultSet resultSet = preparedStatement.getResultSet();
-				if (resultSet.next()) {
-					if (tracer.isFineEnabled()) {
-						tracer.fine("[><] Table " + DataSourceSchemaInfo._TBL_USERS + " found in schema.");
-					}
-					tableAlreadyExists = true;
-				}
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read group commit env entries. Group commit disabled.");
+			GroupCommitter.configure(0, 1);
+		}
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			ReserveUnitsJdbcTask.setReservationTimeout((Long) ctx.lookup("reservationTimeoutMillis"));
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read reservationTimeoutMillis env entry. Using default.");
+		}
+
+		// per subscriber lanes for balance operations, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			int subscriberLanes = (Integer) ctx.lookup("subscriberLanes");
+			int laneMaxCoalesced = (Integer) ctx.lookup("laneMaxCoalesced");
+			SubscriberLanes.configure(subscriberLanes, laneMaxCoalesced);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Subscriber lanes for balance operations " + (SubscriberLanes.isEnabled() ?
+						"enabled, " + subscriberLanes + " lanes coalescing up to " + laneMaxCoalesced + " operations." : "disabled."));
 			}
-			catch (SQLException e) {
-				// it's ok, maybe table does not exist. no need to do anything here. 
-				if (tracer.isFineEnabled()) {
-					tracer.fine("[><] Failed to retrieve data from users table. Probably it doesn't exist yet. We'll create.", e);
-				}
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read subscriber lanes env entries. Subscriber lanes disabled.");
+			SubscriberLanes.configure(0, 1);
+		}
+
+		// optimistic balance updates, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			boolean optimisticBalanceUpdates = (Boolean) ctx.lookup("optimisticBalanceUpdates");
+			int optimisticMaxRetries = (Integer) ctx.lookup("optimisticMaxRetries");
+			long optimisticBackoffMicros = (Long) ctx.lookup("optimisticBackoffMicros");
+			VersionedBalanceUpdates.configure(optimisticBalanceUpdates, optimisticMaxRetries, optimisticBackoffMicros);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Optimistic balance updates " + (VersionedBalanceUpdates.isEnabled() ?
+						"enabled, up to " + optimisticMaxRetries + " retries backing off from " + optimisticBackoffMicros + "us." : "disabled."));
 			}
-			
-			if (!tableAlreadyExists) {
-				try {
-					connection.createStatement().execute(DataSourceSchemaInfo._QUERY_DROP);
-					if (tracer.isFineEnabled()) {
-						tracer.fine("[><] Executed DROP Statement (" + DataSourceSchemaInfo._QUERY_DROP + ")");
-					}
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read optimistic balance updates env entries. Optimistic balance updates disabled.");
+			VersionedBalanceUpdates.configure(false, 0, 0);
+		}
+
+		// bulk load of users
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			BulkLoadJdbcTask.configure((Integer) ctx.lookup("bulkLoadWorkers"), (Integer) ctx.lookup("bulkLoadBatchSize"));
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read bulk load env entries. Using defaults.");
+		}
+
+		// read replicas, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			String readReplicas = null;
+			try {
+				readReplicas = (String) ctx.lookup("readReplicas");
+			}
+			catch (NamingException e) {
+				// an empty value may not be bound at all, no replicas then
+			}
+			ReplicaRouter.configure(readReplicas, (Long) ctx.lookup("replicaMaxStalenessMillis"), (Long) ctx.lookup("replicaProbeIntervalMillis"));
+			for (String primary : ReplicaRouter.getPrimaries()) {
+				if (!primary.equals(jdbcRALink)) {
+					throw new IllegalArgumentException("Read replicas for '" + primary + "', the Datasource SBB primary is '" + jdbcRALink + "'.");
 				}
-				catch (SQLException e) {
-					// Might happen.. we just want to make sure to drop if it exists and it's empty
+			}
+			for (String replica : ReplicaRouter.getReplicas()) {
+				if (getJdbcRA(replica) == null) {
+					throw new IllegalArgumentException("Read replica '" + replica + "' is not a JDBC RA entity link bound to the Datasource SBB.");
 				}
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Read replicas " + (ReplicaRouter.isEnabled() ? "enabled, " + readReplicas + " up to " + ReplicaRouter.getMaxStalenessMillis() + "ms behind." : "disabled."));
+			}
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to configure read replicas. Reading from the primary only.", e);
+			ReplicaRouter.configure(null, 0, 0);
+		}
 
-				connection.createStatement().execute(DataSourceSchemaInfo._QUERY_CREATE);
-				if (tracer.isFineEnabled()) {
-					tracer.fine("[><] Executed CREATE Statement (" + DataSourceSchemaInfo._QUERY_CREATE + ")");
-				}
+		// expiry of balances past their expiry date, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			long balanceExpiryIntervalMillis = (Long) ctx.lookup("balanceExpiryIntervalMillis");
+			BalanceExpiryJob.start(Collections.singletonMap(jdbcRALink, jdbcRA), balanceExpiryIntervalMillis, (Integer) ctx.lookup("balanceExpiryPartitions"),
+					(Integer) ctx.lookup("balanceExpiryWorkers"), (Integer) ctx.lookup("balanceExpiryBatchSize"), (Double) ctx.lookup("balanceExpiryDutyCycle"), tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Balance expiry " + (balanceExpiryIntervalMillis > 0 ? "enabled, every " + balanceExpiryIntervalMillis + "ms." : "disabled."));
+			}
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read balance expiry env entries. Balance expiry disabled.");
+			BalanceExpiryJob.stop();
+		}
+
+		// release of expired reservations, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			long reservationSweepIntervalMillis = (Long) ctx.lookup("reservationSweepIntervalMillis");
+			ReservationSweeper.start(Collections.singletonMap(jdbcRALink, jdbcRA), reservationSweepIntervalMillis, (Integer) ctx.lookup("reservationSweepBatchSize"), tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Reservation sweeper " + (reservationSweepIntervalMillis > 0 ? "enabled, every " + reservationSweepIntervalMillis + "ms." : "disabled."));
+			}
+		}
+		catch (NamingException e) {
+			tracer.warning("[!!] Unable to read reservation sweeper env entries. Reservation sweeper disabled.");
+			ReservationSweeper.stop();
+		}
+
+		// create db schema if needed
+		Connection connection = null;
+		try {
+			connection = jdbcRA.getConnection();
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[><] Got JDBC Connection");
 			}
+			DataSourceSchemaInfo.createSchemaIfNeeded(connection, tracer);
 		}
 		catch (SQLException e) {
-			tracer.warning("[!!] Unable to create the users table.", e);
+			tracer.warning("[!!] Unable to create or migrate the schema.", e);
 		}
 		finally {
+			// the schema may have changed under any statements already prepared
+			DataSourceJdbcTask.clearStatementCache();
 			try {
 				if (connection != null) {
 					connection.close();
@@ -136,28 +235,45 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		}
 	}
 
+	@Override
+	public void stop() {
+		BalanceExpiryJob.stop();
+		ReservationSweeper.stop();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Balance expiry and reservation sweeper stopped.");
+		}
+	}
+
 	@Override
 	public void getUserAccountData(String msisdn) {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] Calling getUserAccountData(" + msisdn + ")");
 		}
-		executeTask(new GetAccountDataJdbcTask(msisdn, tracer));
+		executeTask(ReplicaRouter.forRead(jdbcRALink), new GetAccountDataJdbcTask(msisdn, false, tracer));
 	}
 
 	@Override
-	public void requestUnits(CreditControlInfo ccInfo) {
+	public void findUserAccountData(String msisdnPattern) {
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[><] Requesting Units: " + ccInfo);
+			tracer.info("[><] Calling findUserAccountData(" + msisdnPattern + ")");
 		}
-		executeTask(new ReserveUnitsJdbcTask(ccInfo, tracer));
+		executeTask(ReplicaRouter.forRead(jdbcRALink), new GetAccountDataJdbcTask(msisdnPattern, true, tracer));
 	}
 
 	@Override
-	public void directDebitUnits(CreditControlInfo ccInfo) {
+	public void requestUnits(List<CreditControlInfo> ccInfos) {
 		if (tracer.isInfoEnabled()) {
-			tracer.info("[><] Debiting Units: " + ccInfo);
+			tracer.info("[><] Requesting Units: " + ccInfos);
 		}
-		executeTask(new DirectDebitUnitsJdbcTask(ccInfo, tracer));
+		executeTask(jdbcRALink, new ReserveUnitsJdbcTask(ccInfos, tracer));
+	}
+
+	@Override
+	public void directDebitUnits(List<CreditControlInfo> ccInfos) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Debiting Units: " + ccInfos);
+		}
+		executeTask(jdbcRALink, new DirectDebitUnitsJdbcTask(ccInfos, tracer));
 	}
 
 	@Override
@@ -165,21 +281,88 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		if (tracer.isInfoEnabled()) {
 			tracer.info("[><] Updating User with MSISDN '" + msisdn + "'. Balance = " + balance);
 		}
-		executeTask(new UpdateUserJdbcTask(msisdn, balance, tracer));
+		executeTask(jdbcRALink, new UpdateUserJdbcTask(msisdn, balance, tracer));
+	}
+
+	@Override
+	public void expireReservations(String msisdn, String sessionId, List<CreditControlInfo> reservations) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Expiring reservations of session '" + sessionId + "' for MSISDN '" + msisdn + "'");
+		}
+		executeTask(jdbcRALink, new ExpireSessionJdbcTask(msisdn, sessionId, tracer));
+	}
+
+	@Override
+	public boolean loadUsers(String location) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Loading Users from '" + (location != null ? location : "") + "' with " + BulkLoadJdbcTask.getWorkers() + " workers");
+		}
+		BulkLoadJdbcTask.Load load;
+		try {
+			load = BulkLoadJdbcTask.Load.open(location, null, BulkLoadJdbcTask.getWorkers(), tracer);
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Unable to open users file '" + location + "'.", e);
+			return false;
+		}
+		if (load == null) {
+			return false;
+		}
+		for (int i = 0; i < BulkLoadJdbcTask.getWorkers(); i++) {
+			executeTask(jdbcRALink, new BulkLoadJdbcTask(load, tracer));
+		}
+		return true;
 	}
 
 	// ---------------------------- Event Handlers ----------------------------
 
 	/**
-	 * Simple method to create JDBC activity and execute given task.
+	 * Creates a JDBC activity on the given RA entity and executes the given task, or fails it right away if the entity
+	 * is not available. Runs the read replica heartbeat probes along, when it's time to.
 	 * 
+	 * @param link the JDBC RA entity link, the primary or a read replica
 	 * @param jdbcTask
 	 */
-	private void executeTask(SimpleJdbcTask jdbcTask) {
-		JdbcActivity jdbcActivity = jdbcRA.createActivity();
-		ActivityContextInterface jdbcACI = jdbcACIF.getActivityContextInterface(jdbcActivity);
-		jdbcACI.attach(sbbContextExt.getSbbLocalObject());
-		jdbcActivity.execute(jdbcTask);
+	private void executeTask(String link, DataSourceJdbcTask jdbcTask) {
+		if (ReplicaRouter.isProbeDue()) {
+			for (String primary : ReplicaRouter.getPrimaries()) {
+				executeTask(primary, new HeartbeatJdbcTask(null, tracer));
+			}
+			for (String replica : ReplicaRouter.getReplicas()) {
+				executeTask(replica, new HeartbeatJdbcTask(replica, tracer));
+			}
+		}
+		jdbcTask.submitted(link);
+		try {
+			JdbcResourceAdaptorSbbInterface ra = link.equals(jdbcRALink) ? jdbcRA : getJdbcRA(link);
+			if (ra == null) {
+				throw new IllegalStateException("Read replica '" + link + "' is not a JDBC RA entity link bound to the Datasource SBB.");
+			}
+			JdbcActivity jdbcActivity = ra.createActivity();
+			ActivityContextInterface jdbcACI = jdbcACIF.getActivityContextInterface(jdbcActivity);
+			jdbcACI.attach(sbbContextExt.getSbbLocalObject());
+			jdbcActivity.execute(jdbcTask);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to execute task on '" + link + "'.", e);
+			jdbcTask.reject(e);
+			completed(jdbcTask, true);
+			jdbcTask.callBackParentOnException(sbbContextExt.getSbbLocalObject().getParent());
+		}
+	}
+
+	private JdbcResourceAdaptorSbbInterface getJdbcRA(String link) {
+		try {
+			return (JdbcResourceAdaptorSbbInterface) sbbContextExt.getResourceAdaptorInterface(jdbcRATypeID, link);
+		}
+		catch (Exception e) {
+			// not bound
+			return null;
+		}
+	}
+
+	private void completed(DataSourceJdbcTask jdbcTask, boolean error) {
+		ShardStats.get(jdbcTask.getShard()).record(System.nanoTime() - jdbcTask.getSubmittedNanos(), error || jdbcTask.isFailed());
 	}
 
 	/**
@@ -198,18 +381,24 @@ public abstract class DataSourceSbb extends BaseSbb implements Sbb, DataSource {
 		// call back parent
 		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
 		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		completed(jdbcTask, true);
 		jdbcTask.callBackParentOnException(parent);
 	}
 
 	public void onSimpleJdbcTaskResultEvent(SimpleJdbcTaskResultEvent event, ActivityContextInterface aci) {
-		if (tracer.isFineEnabled()) {
-			tracer.fine("Received a SimpleJdbcTaskResultEvent, as result of executed task " + event.getTask());
-		}
 		// end jdbc activity
 		((JdbcActivity) aci.getActivity()).endActivity();
 		// call back parent
 		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
 		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		completed(jdbcTask, false);
+		if (tracer.isFineEnabled()) {
+			tracer.fine("Received a SimpleJdbcTaskResultEvent, as result of executed task " + event.getTask() + " on " + ShardStats.get(jdbcTask.getShard()) + ". Statement cache hits/misses: " +
+					DataSourceJdbcTask.getStatementCacheHits() + "/" + DataSourceJdbcTask.getStatementCacheMisses() +
+					(SubscriberLanes.isEnabled() ? ". Lanes: " + SubscriberLanes.getStats() : "") +
+					(VersionedBalanceUpdates.isEnabled() ? ". Optimistic: " + VersionedBalanceUpdates.getStats() : "") +
+					(ReplicaRouter.isEnabled() ? ". Replicas: " + ReplicaRouter.getStats() : ""));
+		}
 		jdbcTask.callBackParentOnResult(parent);
 	}
 
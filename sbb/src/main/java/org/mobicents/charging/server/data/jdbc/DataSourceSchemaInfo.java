@@ -22,6 +22,11 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.slee.facilities.Tracer;
+
 /**
  * Class containing the schema information for the JDBC Datasource
  * 
@@ -40,64 +45,333 @@ public class DataSourceSchemaInfo {
 	public static final String _COL_BALANCE_EXPIRY_DATE = "BAL_EXPIRY_DATE";
 	public static final String _COL_BAL_LAST_ADJUSTED = "BAL_LAST_ADJUSTED";
 	public static final String _COL_USER_STATUS = "USER_STATUS";
-	// --- SQL Queries --------------------------------------------------------
+	public static final String _COL_VERSION = "VERSION";
+
+	public static final String _TBL_RESERVATIONS = "CONCHA_RESERVATIONS";
+
+	public static final String _COL_SESSION_ID = "SESSION_ID";
+	public static final String _COL_RATING_GROUP = "RATING_GROUP";
+	public static final String _COL_AMOUNT = "AMOUNT";
+	public static final String _COL_EXPIRY_TIME = "EXPIRY_TIME";
+
+	public static final String _TBL_SCHEMA_VERSION = "CONCHA_SCHEMA_VERSION";
+
+	public static final String _COL_SCHEMA_VERSION = "VERSION";
+	public static final String _COL_DESCRIPTION = "DESCRIPTION";
+	public static final String _COL_APPLIED = "APPLIED";
+
+	public static final String _TBL_HEARTBEAT = "CONCHA_HEARTBEAT";
 
-	public static final String _QUERY_EXISTS = "SELECT 1 FROM " + _TBL_USERS + ";";
+	public static final String _COL_HEARTBEAT_ID = "ID";
+	public static final String _COL_BEAT = "BEAT";
 
-	public static final String _QUERY_DROP = "DROP TABLE IF EXISTS " + _TBL_USERS + ";";
+	public static final String _IDX_RESERVATIONS_EXPIRY = _TBL_RESERVATIONS + "_EXPIRY";
+	public static final String _IDX_RESERVATIONS_DUE = _TBL_RESERVATIONS + "_DUE";
+	public static final String _IDX_USERS_BALANCE_EXPIRY = _TBL_USERS + "_BAL_EXPIRY";
 
+	// --- SQL Queries --------------------------------------------------------
+
+	/**
+	 * The users table, as of the latest schema version. Balances and reservations are whole balance units, held as
+	 * BIGINT, the same amounts {@link org.mobicents.charging.server.Money} works with; only rates have decimal places.
+	 */
 	public static final String _QUERY_CREATE = "CREATE TABLE " + _TBL_USERS
 			+ " (" 
 			+ _COL_MSISDN 				+ " VARCHAR(255) NOT NULL, "
-			+ _COL_BALANCE 				+ " FLOAT NOT NULL, "
-			+ _COL_RESERVED 			+ " FLOAT, "
+			+ _COL_BALANCE 				+ " BIGINT NOT NULL, "
+			+ _COL_RESERVED 			+ " BIGINT, "
 			+ _COL_BALANCE_EXPIRY_DATE 	+ " DATE NULL, "
 			+ _COL_BAL_LAST_ADJUSTED 	+ " TIMESTAMP NULL, "
 			+ _COL_USER_STATUS 			+ " VARCHAR(50) NOT NULL, "
+			+ _COL_VERSION 				+ " BIGINT DEFAULT 0 NOT NULL, "
 			+ "PRIMARY KEY(" + _COL_MSISDN + ")" + ");";
+
+	public static final String _QUERY_ADD_VERSION = "ALTER TABLE " + _TBL_USERS + " ADD " + _COL_VERSION + " BIGINT DEFAULT 0 NOT NULL";
 	
 	public static final String _QUERY_INSERT = "INSERT INTO " + _TBL_USERS
 			+ " (" + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_BALANCE_EXPIRY_DATE + ", " + _COL_BAL_LAST_ADJUSTED + ", " + _COL_USER_STATUS + ")  VALUES (?, ?, ?, ?, ?)";
 
-	public static final String _QUERY_SELECT = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ?;";
+	/**
+	 * Gets a single user, by primary key. This is the one to use when charging.
+	 */
+	public static final String _QUERY_SELECT = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?;";
+
+	/**
+	 * Searches users by MSISDN pattern (SQL LIKE). Not index friendly on most databases, for management only.
+	 */
+	public static final String _QUERY_SEARCH = "SELECT * FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " LIKE ? ORDER BY " + _COL_MSISDN + ";";
 
-	/*
+	/**
+	 * Settles the previous reservation and makes the new one, only if it fits in the balance, in a single atomic
+	 * statement. Parameters: released, granted, settled, granted, msisdn, released, granted.
+	 * See {@link org.mobicents.charging.server.data.BalanceSettlement}.
+	 */
 	public static final String _QUERY_RESERVE = 
 			"UPDATE " + _TBL_USERS +
 			//                                          B = B + (G - U) - R
-			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + (" + _COL_RESERVED_AMOUNT + " - ?) - ?, " +
-			//                                           G = G - U + R 
-			//       _COL_RESERVED + " = " + _COL_RESERVED + " - ? + ? "+
-			_COL_RESERVED_UNITS + " = " + " ?, "+
-			_COL_RESERVED_AMOUNT + " = " + " ? "+
+			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? - ?, " +
+			//                                           G = G - G + R
+			_COL_RESERVED + " = COALESCE(" + _COL_RESERVED + ", 0) - ? + ?, " +
+			_COL_VERSION + " = " + _COL_VERSION + " + 1 " +
 			//                                                                      B + (G - U) >= R
-			"WHERE " + _COL_IMSI + " = ? AND " + _COL_BALANCE + " + (" + _COL_RESERVED_AMOUNT + " - ?) >= ?";
-	*/
+			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " + ? >= ?";
 
-	/*
-	public static final String _QUERY_RESERVE = 
+	/**
+	 * Settles the previous reservation without making a new one, unconditionally, as used units have to be charged
+	 * anyway. Parameters: released, settled, msisdn.
+	 */
+	public static final String _QUERY_SETTLE =
 			"UPDATE " + _TBL_USERS +
-			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? " +
-			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
-	*/
-	
-	public static final String _QUERY_RESERVE = 
-			"UPDATE " + _TBL_USERS +
-			//                                          B = B + (G - U) - R
-			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ? - ?, " +
-			_COL_RESERVED + " = " + " ? "+
+			//                                          B = B + (G - U)
+			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ?, " +
+			//                                           G = G - G
+			_COL_RESERVED + " = COALESCE(" + _COL_RESERVED + ", 0) - ?, " +
+			_COL_VERSION + " = " + _COL_VERSION + " + 1 " +
 			"WHERE " + _COL_MSISDN + " = ?";
 
+	/**
+	 * Debits, only if it fits in the balance, in a single atomic statement. Parameters: debit, msisdn, debit.
+	 */
 	public static final String _QUERY_DEBIT =
 			"UPDATE " + _TBL_USERS +
 					//                                          B = B - R
-					" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " - ? " +
-					" WHERE " + _COL_MSISDN + " = ?";
+					" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " - ?, " + _COL_VERSION + " = " + _COL_VERSION + " + 1 " +
+					" WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " >= ?";
+
+	/**
+	 * Reads the balance of a single user along with its row version, for a versioned update. Parameters: msisdn.
+	 */
+	public static final String _QUERY_SELECT_BALANCE_VERSION = "SELECT " + _COL_BALANCE + ", " + _COL_VERSION + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
+
+	/**
+	 * Applies a balance change only if the user row is still at the version it was read at (compare-and-set), and
+	 * bumps the version. Parameters: balance change, reserved change, msisdn, version.
+	 */
+	public static final String _QUERY_VERSIONED_UPDATE =
+			"UPDATE " + _TBL_USERS +
+			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ?, " +
+			_COL_RESERVED + " = COALESCE(" + _COL_RESERVED + ", 0) + ?, " +
+			_COL_VERSION + " = " + _COL_VERSION + " + 1 " +
+			"WHERE " + _COL_MSISDN + " = ? AND " + _COL_VERSION + " = ?";
+
+	/**
+	 * Reads back the balance of a single user, by primary key.
+	 */
+	public static final String _QUERY_SELECT_BALANCE = "SELECT " + _COL_BALANCE + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " = ?";
+
+	/**
+	 * How many MSISDNs {@link #_QUERY_SELECT_PRESENT} takes at once.
+	 */
+	public static final int _PRESENT_CHUNK = 100;
+
+	/**
+	 * Reads which of {@link #_PRESENT_CHUNK} users are already present, by primary key. Unused parameters can be bound
+	 * to any of the others.
+	 */
+	public static final String _QUERY_SELECT_PRESENT = "SELECT " + _COL_MSISDN + " FROM " + _TBL_USERS + " WHERE " + _COL_MSISDN + " IN ("
+			+ placeholders(_PRESENT_CHUNK) + ")";
+
+	/**
+	 * Reads all the users, to load them into memory.
+	 */
+	public static final String _QUERY_SELECT_ALL = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + ", " + _COL_RESERVED + ", " + _COL_USER_STATUS + " FROM " + _TBL_USERS;
+
+	/**
+	 * Writes back the balance and reserved amount of a user kept in memory. Parameters: balance, reserved, msisdn.
+	 */
+	public static final String _QUERY_WRITE_BACK = "UPDATE " + _TBL_USERS + " SET " + _COL_BALANCE + " = ?, " + _COL_RESERVED + " = ?, " + _COL_VERSION + " = " + _COL_VERSION + " + 1 WHERE " + _COL_MSISDN + " = ?";
+
+	public static final String _QUERY_CREATE_BALANCE_EXPIRY_INDEX = "CREATE INDEX " + _IDX_USERS_BALANCE_EXPIRY + " ON " + _TBL_USERS
+			+ " (" + _COL_BALANCE_EXPIRY_DATE + ")";
+
+	/**
+	 * The users of a key range whose balance expired, and who hold no reservation. The unused part of a reservation goes
+	 * back into the balance when the session ends, so users with sessions open are only expired once these settle.
+	 * Parameters: today, first msisdn, msisdn past the range.
+	 */
+	public static final String _QUERY_SELECT_EXPIRED = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + " FROM " + _TBL_USERS
+			+ " WHERE " + _COL_BALANCE_EXPIRY_DATE + " < ? AND " + _COL_MSISDN + " >= ? AND " + _COL_MSISDN + " < ?"
+			+ " AND COALESCE(" + _COL_RESERVED + ", 0) = 0";
+
+	/**
+	 * Same as {@link #_QUERY_SELECT_EXPIRED}, for the last key range, which has no end. Parameters: today, first msisdn.
+	 */
+	public static final String _QUERY_SELECT_EXPIRED_FROM = "SELECT " + _COL_MSISDN + ", " + _COL_BALANCE + " FROM " + _TBL_USERS
+			+ " WHERE " + _COL_BALANCE_EXPIRY_DATE + " < ? AND " + _COL_MSISDN + " >= ?"
+			+ " AND COALESCE(" + _COL_RESERVED + ", 0) = 0";
+
+	/**
+	 * Zeroes an expired balance, and clears the expiry so the user is not scanned again, unless its balance changed since
+	 * read, its expiry was extended or a reservation was made meanwhile. Parameters: now, msisdn, balance read, today.
+	 */
+	public static final String _QUERY_EXPIRE_BALANCE = "UPDATE " + _TBL_USERS + " SET " + _COL_BALANCE + " = 0, " + _COL_BALANCE_EXPIRY_DATE + " = NULL, "
+			+ _COL_BAL_LAST_ADJUSTED + " = ?, " + _COL_VERSION + " = " + _COL_VERSION + " + 1"
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_BALANCE + " = ? AND " + _COL_BALANCE_EXPIRY_DATE + " < ?"
+			+ " AND COALESCE(" + _COL_RESERVED + ", 0) = 0";
+
+	// --- Schema Version -----------------------------------------------------
+
+	/**
+	 * The migrations applied to the schema, see {@link SchemaMigrations}.
+	 */
+	public static final String _QUERY_CREATE_SCHEMA_VERSION = "CREATE TABLE " + _TBL_SCHEMA_VERSION
+			+ " ("
+			+ _COL_SCHEMA_VERSION 		+ " INTEGER NOT NULL, "
+			+ _COL_DESCRIPTION 			+ " VARCHAR(255) NOT NULL, "
+			+ _COL_APPLIED 				+ " TIMESTAMP NOT NULL, "
+			+ "PRIMARY KEY(" + _COL_SCHEMA_VERSION + ")" + ")";
+
+	public static final String _QUERY_SELECT_SCHEMA_VERSION = "SELECT MAX(" + _COL_SCHEMA_VERSION + ") FROM " + _TBL_SCHEMA_VERSION;
+
+	public static final String _QUERY_INSERT_SCHEMA_VERSION = "INSERT INTO " + _TBL_SCHEMA_VERSION
+			+ " (" + _COL_SCHEMA_VERSION + ", " + _COL_DESCRIPTION + ", " + _COL_APPLIED + ") VALUES (?, ?, ?)";
+
+	// --- Replication Heartbeat ----------------------------------------------
+
+	/**
+	 * A single row, stamped by the servers with the time on the primary, so that how far behind a read replica is can
+	 * be told by how old the stamp it has is, see {@link ReplicaRouter}.
+	 */
+	public static final String _QUERY_CREATE_HEARTBEAT = "CREATE TABLE " + _TBL_HEARTBEAT
+			+ " ("
+			+ _COL_HEARTBEAT_ID 		+ " INTEGER NOT NULL, "
+			+ _COL_BEAT 				+ " BIGINT NOT NULL, "
+			+ "PRIMARY KEY(" + _COL_HEARTBEAT_ID + ")" + ")";
+
+	public static final String _QUERY_INSERT_HEARTBEAT = "INSERT INTO " + _TBL_HEARTBEAT + " (" + _COL_HEARTBEAT_ID + ", " + _COL_BEAT + ") VALUES (0, 0)";
+
+	/**
+	 * Never moves the stamp back, should another server clock be ahead. Parameters: now, now (milliseconds).
+	 */
+	public static final String _QUERY_UPDATE_HEARTBEAT = "UPDATE " + _TBL_HEARTBEAT + " SET " + _COL_BEAT + " = ? WHERE " + _COL_HEARTBEAT_ID + " = 0 AND " + _COL_BEAT + " < ?";
+
+	public static final String _QUERY_SELECT_HEARTBEAT = "SELECT " + _COL_BEAT + " FROM " + _TBL_HEARTBEAT + " WHERE " + _COL_HEARTBEAT_ID + " = 0";
+
+	// --- Reservations -------------------------------------------------------
+
+	/**
+	 * What each credit-control session holds reserved, per rating group. The RESERVED column of the users table is the
+	 * sum of these, and the BALANCE is already net of them, so checking what's available doesn't need to add them up.
+	 */
+	public static final String _QUERY_CREATE_RESERVATIONS = "CREATE TABLE " + _TBL_RESERVATIONS
+			+ " ("
+			+ _COL_MSISDN 				+ " VARCHAR(255) NOT NULL, "
+			+ _COL_SESSION_ID 			+ " VARCHAR(255) NOT NULL, "
+			+ _COL_RATING_GROUP 		+ " BIGINT NOT NULL, "
+			+ _COL_AMOUNT 				+ " BIGINT NOT NULL, "
+			+ _COL_EXPIRY_TIME 			+ " TIMESTAMP NOT NULL, "
+			+ "PRIMARY KEY(" + _COL_MSISDN + ", " + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ")" + ")";
+
+	public static final String _QUERY_CREATE_RESERVATIONS_INDEX = "CREATE INDEX " + _IDX_RESERVATIONS_EXPIRY + " ON " + _TBL_RESERVATIONS
+			+ " (" + _COL_MSISDN + ", " + _COL_EXPIRY_TIME + ")";
+
+	/**
+	 * Locks and reads the reservations of a session, along with any expired one of other sessions of the same user.
+	 * Parameters: msisdn, session id, now.
+	 */
+	public static final String _QUERY_SELECT_RESERVATIONS = "SELECT " + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_AMOUNT + " FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_MSISDN + " = ? AND (" + _COL_SESSION_ID + " = ? OR " + _COL_EXPIRY_TIME + " < ?) FOR UPDATE";
+
+	/**
+	 * Parameters: msisdn, session id, rating group, amount, expiry time.
+	 */
+	public static final String _QUERY_INSERT_RESERVATION = "INSERT INTO " + _TBL_RESERVATIONS
+			+ " (" + _COL_MSISDN + ", " + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_AMOUNT + ", " + _COL_EXPIRY_TIME + ") VALUES (?, ?, ?, ?, ?)";
+
+	/**
+	 * Parameters: amount, expiry time, msisdn, session id, rating group.
+	 */
+	public static final String _QUERY_UPDATE_RESERVATION = "UPDATE " + _TBL_RESERVATIONS + " SET " + _COL_AMOUNT + " = ?, " + _COL_EXPIRY_TIME + " = ?"
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " = ? AND " + _COL_RATING_GROUP + " = ?";
+
+	/**
+	 * Parameters: msisdn, session id, rating group.
+	 */
+	public static final String _QUERY_DELETE_RESERVATION = "DELETE FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " = ? AND " + _COL_RATING_GROUP + " = ?";
+
+	/**
+	 * Parameters: msisdn, session id.
+	 */
+	public static final String _QUERY_DELETE_SESSION_RESERVATIONS = "DELETE FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " = ?";
+
+	/**
+	 * Removes the expired reservations of the other sessions of a user. Parameters: msisdn, session id, now.
+	 */
+	public static final String _QUERY_DELETE_EXPIRED_RESERVATIONS = "DELETE FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " <> ? AND " + _COL_EXPIRY_TIME + " < ?";
+
+	/**
+	 * Orders all the reservations by expiry, for the {@link ReservationSweeper} to find the expired ones of any user.
+	 */
+	public static final String _QUERY_CREATE_RESERVATIONS_DUE_INDEX = "CREATE INDEX " + _IDX_RESERVATIONS_DUE + " ON " + _TBL_RESERVATIONS
+			+ " (" + _COL_EXPIRY_TIME + ")";
+
+	/**
+	 * Reads the expired reservations of any user, the longest expired first. Parameters: now.
+	 */
+	public static final String _QUERY_SELECT_DUE_RESERVATIONS = "SELECT " + _COL_MSISDN + ", " + _COL_SESSION_ID + ", " + _COL_RATING_GROUP + ", " + _COL_AMOUNT
+			+ " FROM " + _TBL_RESERVATIONS + " WHERE " + _COL_EXPIRY_TIME + " < ? ORDER BY " + _COL_EXPIRY_TIME;
+
+	/**
+	 * Removes a reservation only if still expired, ie, its session was not heard of since it was read. Parameters:
+	 * msisdn, session id, rating group, now.
+	 */
+	public static final String _QUERY_DELETE_DUE_RESERVATION = "DELETE FROM " + _TBL_RESERVATIONS
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " = ? AND " + _COL_RATING_GROUP + " = ? AND " + _COL_EXPIRY_TIME + " < ?";
+
+	/**
+	 * Makes all the reservations of a session expired, for the {@link ReservationSweeper} to release them. Parameters:
+	 * now, msisdn, session id.
+	 */
+	public static final String _QUERY_EXPIRE_SESSION_RESERVATIONS = "UPDATE " + _TBL_RESERVATIONS + " SET " + _COL_EXPIRY_TIME + " = ?"
+			+ " WHERE " + _COL_MSISDN + " = ? AND " + _COL_SESSION_ID + " = ?";
+
+	/**
+	 * Returns released reservations to the balance of a user. Parameters: released, released, msisdn.
+	 */
+	public static final String _QUERY_RELEASE =
+			"UPDATE " + _TBL_USERS +
+			//                                          B = B + G
+			" SET " + _COL_BALANCE + " = " + _COL_BALANCE + " + ?, " +
+			//                                           G = G - G
+			_COL_RESERVED + " = COALESCE(" + _COL_RESERVED + ", 0) - ?, " +
+			_COL_VERSION + " = " + _COL_VERSION + " + 1 " +
+			"WHERE " + _COL_MSISDN + " = ?";
+
+	/**
+	 * Creates the schema, or brings it up to date, see {@link SchemaMigrations}. It only looks at the database
+	 * metadata and the schema version table, so it takes the same time however many users there are.
+	 * 
+	 * @param connection the connection to use, not closed
+	 * @param tracer the tracer to trace with
+	 * @throws SQLException if a migration fails
+	 */
+	public static void createSchemaIfNeeded(Connection connection, Tracer tracer) throws SQLException {
+		SchemaMigrations.migrate(connection, tracer);
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder("?");
+		for (int i = 1; i < count; i++) {
+			sb.append(", ?");
+		}
+		return sb.toString();
+	}
 
 	public static void main(String[] args) {
 		System.out.println("Create Query: "+_QUERY_CREATE);
 		System.out.println("Reserve Query: "+_QUERY_RESERVE);
+		System.out.println("Settle Query: "+_QUERY_SETTLE);
+		System.out.println("Debit Query: "+_QUERY_DEBIT);
+		System.out.println("Versioned Update Query: "+_QUERY_VERSIONED_UPDATE);
 		System.out.println("Insert Query: "+_QUERY_INSERT);
+		System.out.println("Select Present Query: "+_QUERY_SELECT_PRESENT);
 		System.out.println("Select Query: "+_QUERY_SELECT);
+		System.out.println("Search Query: "+_QUERY_SEARCH);
+		System.out.println("Create Reservations Query: "+_QUERY_CREATE_RESERVATIONS);
+		System.out.println("Create Schema Version Query: "+_QUERY_CREATE_SCHEMA_VERSION);
+		System.out.println("Select Reservations Query: "+_QUERY_SELECT_RESERVATIONS);
 	}
 }
@@ -24,124 +24,86 @@ package org.mobicents.charging.server.data.jdbc;
 
 import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
-import org.mobicents.charging.server.account.CreditControlUnit;
-import org.mobicents.charging.server.data.UserAccountData;
-import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 import javax.slee.SbbLocalObject;
 import javax.slee.facilities.Tracer;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.ArrayList;
+import java.sql.SQLException;
+import java.util.List;
 
 /**
+ * Debits units for all the services of a Credit-Control-Request, in a single transaction. Each CreditControlInfo is
+ * flagged as successful or not on its own.
+ * 
+ * The balance check and debit for all the services are done in a single conditional UPDATE, followed by a primary key
+ * SELECT to read back the new balance. Only if the whole request doesn't fit, the balance is read and the services
+ * that fit are debited with a second conditional UPDATE.
+ * 
  * @author ammendonca
  */
-public class DirectDebitUnitsJdbcTask extends DataSourceJdbcTask {
+public class DirectDebitUnitsJdbcTask extends BalanceMutationJdbcTask {
 
-	private CreditControlInfo ccInfo = null;
-	private UserAccountData accountData = null;
-
-	private String msisdn;
-	private ArrayList<CreditControlUnit> ccUnits;
+	public DirectDebitUnitsJdbcTask(List<CreditControlInfo> ccInfos, Tracer tracer) {
+		super(ccInfos, tracer);
+	}
 
-	private Tracer tracer;
+	@Override
+	protected String getMutationQuery() {
+		return DataSourceSchemaInfo._QUERY_DEBIT;
+	}
 
-	public DirectDebitUnitsJdbcTask(CreditControlInfo ccInfo, Tracer tracer) {
-		this.ccInfo = ccInfo;
-		this.msisdn = ccInfo.getSubscriptionId();
-		this.ccUnits = ccInfo.getCcUnits();
-		this.tracer = tracer;
+	@Override
+	protected String getOperationName() {
+		return "Debit Units";
 	}
 
 	@Override
-	public Object executeSimple(JdbcTaskContext taskContext) {
-		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
-			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
-			}
-			
-			for(CreditControlUnit ccUnit : ccUnits) {
-				long reservedAmount = ccUnit.getReservedAmount();
-				long usedAmount = ccUnit.getUsedAmount();
-				long requestedAmount = ccUnit.getRequestedAmount();
-				long requestedUnits = ccUnit.getRequestedUnits();
+	protected void bindMutation(PreparedStatement preparedStatement, long amount) throws SQLException {
+		if (tracer.isInfoEnabled()) {
+			tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_DEBIT).
+					replaceFirst("\\?", String.valueOf(amount)).
+					replaceFirst("\\?", msisdn).
+					replaceFirst("\\?", String.valueOf(amount))
+					);
+		}
+		int n = 1;
+		preparedStatement.setLong(n++, amount);
+		preparedStatement.setString(n++, msisdn);
+		preparedStatement.setLong(n++, amount);
+	}
 
-				if (balance < requestedAmount){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: " + balance + ".");
-					}
-					break;
-				}
-				else if (balance > requestedAmount) {
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_DEBIT).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_DEBIT);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
-					}
-				}
-			}
+	@Override
+	protected boolean applyPartially(Connection connection, long balance) throws SQLException {
+		long granted = settlement.grantWholeServices(balance);
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[//] User does not have sufficient balance for the entire debit request (" + settlement.getRequested() + "). Balance available: " + balance + ". Debiting " + granted + " instead ...");
 		}
-		catch (Exception e) {
-			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+		if (granted > 0) {
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_DEBIT);
+			bindMutation(preparedStatement, granted);
+			return preparedStatement.executeUpdate() == 1;
 		}
-		return this;
+		return true;
 	}
 
-	public UserAccountData getAccountData() {
-		return accountData;
+	@Override
+	protected void grant(long balance) {
+		if (balance >= settlement.getRequested()) {
+			settlement.grantAll();
+		}
+		else {
+			settlement.grantWholeServices(balance);
+		}
 	}
 
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
-		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
+		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfos, accountData);
 	}
 
 	@Override
 	public void callBackParentOnResult(SbbLocalObject parent) {
-		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
+		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfos, accountData);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Makes the reservations of a session ended without terminating expired, for the {@link ReservationSweeper} to
+ * release them on its next run rather than after the reservation timeout. Nothing is reported back to the parent.
+ */
+final class ExpireSessionJdbcTask extends DataSourceJdbcTask {
+
+	private final String msisdn;
+	private final String sessionId;
+	private final Tracer tracer;
+
+	ExpireSessionJdbcTask(String msisdn, String sessionId, Tracer tracer) {
+		this.msisdn = msisdn;
+		this.sessionId = sessionId;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		SleeTransaction tx = null;
+		Connection connection = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			connection = taskContext.getConnection();
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_EXPIRE_SESSION_RESERVATIONS);
+			preparedStatement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+			preparedStatement.setString(2, msisdn);
+			preparedStatement.setString(3, sessionId);
+			int expired = preparedStatement.executeUpdate();
+			tx.commit();
+			tx = null;
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Expired " + expired + " reservations of session '" + sessionId + "' for MSISDN '" + msisdn + "'.");
+			}
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Failed to expire the reservations of session '" + sessionId + "'. They will be released after the reservation timeout.", e);
+			setFailed();
+			if (connection != null) {
+				evictStatements(connection);
+			}
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public void callBackParentOnException(SbbLocalObject parent) {
+		// nothing to report
+	}
+
+	@Override
+	public void callBackParentOnResult(SbbLocalObject parent) {
+		// nothing to report
+	}
+
+}
@@ -22,6 +22,7 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
@@ -35,6 +36,7 @@ import org.mobicents.charging.server.data.UserAccountData;
 import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 /**
+ * Gets the account data for a single user, by exact MSISDN, or for all the users matching an MSISDN pattern.
  * 
  * @author ammendonca
  * @author rsaranathan
@@ -45,21 +47,33 @@ public class GetAccountDataJdbcTask extends DataSourceJdbcTask {
 	private List<UserAccountData> accountDataList = null;
 
 	private String msisdn;
+	private boolean pattern;
 	private Tracer tracer;
 
-	public GetAccountDataJdbcTask(String msisdn, Tracer tracer) {
+	/**
+	 * @param msisdn the user MSISDN, or an SQL LIKE pattern if <code>pattern</code> is true
+	 * @param pattern true to search by pattern, false to look up the exact MSISDN by primary key
+	 * @param tracer
+	 */
+	public GetAccountDataJdbcTask(String msisdn, boolean pattern, Tracer tracer) {
 		this.msisdn = msisdn;
+		this.pattern = pattern;
 		this.tracer = tracer;
 	}
 
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
+		Connection connection = null;
+		ResultSet resultSet = null;
 		try {
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
+			connection = taskContext.getConnection();
+			String query = pattern ? DataSourceSchemaInfo._QUERY_SEARCH : DataSourceSchemaInfo._QUERY_SELECT;
+			PreparedStatement preparedStatement = prepareStatement(connection, query);
 			preparedStatement.setString(1, msisdn);
-			tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
+			if (tracer.isInfoEnabled()) {
+				tracer.info(("[//] Executing DB Statement '" + query).replaceFirst("\\?", msisdn));
+			}
+			resultSet = preparedStatement.executeQuery();
 			accountDataList = new ArrayList<UserAccountData>();
 			while (resultSet.next()) {
 				UserAccountData accountData = new UserAccountData();
@@ -70,6 +84,13 @@ public class GetAccountDataJdbcTask extends DataSourceJdbcTask {
 		}
 		catch (Exception e) {
 			tracer.severe("[xx] Failed to execute task to get Account Data for MSISDN '" + msisdn + "'", e);
+			setFailed();
+			if (connection != null) {
+				evictStatements(connection);
+			}
+		}
+		finally {
+			closeQuietly(resultSet);
 		}
 		return this;
 	}
@@ -0,0 +1,248 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Group commit of balance mutations: tasks executing concurrently (within a time window, or until a maximum number
+ * of them) are applied in a single transaction, so that a commit bound database pays one commit for all of them.
+ * 
+ * It's leader/follower based, with no thread of its own: the first task to arrive opens a group and waits for the
+ * window to elapse (or the group to fill up), then applies the whole group on its own connection, while the other
+ * tasks of the group just wait for it to finish. Each task ends up with its own outcome, so the JDBC RA reports it
+ * back to its own parent, as usual. As tasks block the JDBC RA threads while waiting, groups can't get bigger than the
+ * number of such threads.
+ * 
+ * Within a group, the mutations for the whole requests are executed as a JDBC batch, one per statement, and then
+ * any partial grant and balance read back is done task by task. Only the first task for each user is batched, any
+ * other for the same user is applied after, in arrival order, so that every task reads back its own balance.
+ * 
+ * Tasks that just don't fit in the balance fail on their own, but any database error fails the whole group.
+ * 
+ * When sharded, there's a group open per shard, as a group is applied on the connection of its leader.
+ */
+final class GroupCommitter {
+
+	private static volatile long windowNanos = 0;
+	private static volatile int maxOperations = 1;
+
+	private static final Object lock = new Object();
+
+	// the group still accepting tasks, if any, per shard (null when not sharded)
+	private static final Map<String, Group> open = new HashMap<String, Group>();
+
+	private GroupCommitter() {
+	}
+
+	/**
+	 * Configures group commit.
+	 * 
+	 * @param windowMillis the maximum time to wait for other tasks to join a group, 0 disables group commit
+	 * @param maxOperations the maximum number of tasks in a group, 1 disables group commit
+	 */
+	static void configure(long windowMillis, int maxOperations) {
+		GroupCommitter.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+		GroupCommitter.maxOperations = Math.max(1, maxOperations);
+	}
+
+	static boolean isEnabled() {
+		return windowNanos > 0 && maxOperations > 1;
+	}
+
+	/**
+	 * Executes the task as part of a group, returning once the group is done.
+	 */
+	static void execute(BalanceMutationJdbcTask task, JdbcTaskContext taskContext) {
+		String shard = task.getShard();
+		Group group;
+		boolean leader;
+		synchronized (lock) {
+			group = open.get(shard);
+			leader = group == null;
+			if (leader) {
+				group = new Group();
+				open.put(shard, group);
+			}
+			group.tasks.add(task);
+			if (group.tasks.size() >= maxOperations) {
+				// full, wake up the leader
+				open.remove(shard);
+				lock.notifyAll();
+			}
+		}
+
+		if (leader) {
+			boolean interrupted = false;
+			synchronized (lock) {
+				long deadline = System.nanoTime() + windowNanos;
+				while (open.get(shard) == group) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						open.remove(shard);
+						break;
+					}
+					try {
+						lock.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+						open.remove(shard);
+					}
+				}
+			}
+			group.execute(taskContext, task.tracer);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		else {
+			group.await();
+		}
+	}
+
+	private static class Group {
+
+		private final List<BalanceMutationJdbcTask> tasks = new ArrayList<BalanceMutationJdbcTask>();
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		void execute(JdbcTaskContext taskContext, Tracer tracer) {
+			SleeTransaction tx = null;
+			Connection connection = null;
+			try {
+				tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+				connection = taskContext.getConnection();
+
+				// first task for each user goes in a batch for its statement, the others go one by one, after
+				Map<String, List<BalanceMutationJdbcTask>> batches = new LinkedHashMap<String, List<BalanceMutationJdbcTask>>();
+				List<BalanceMutationJdbcTask> batched = new ArrayList<BalanceMutationJdbcTask>(tasks.size());
+				List<BalanceMutationJdbcTask> deferred = new ArrayList<BalanceMutationJdbcTask>();
+				HashSet<String> users = new HashSet<String>();
+				for (BalanceMutationJdbcTask task : tasks) {
+					if (users.add(task.msisdn)) {
+						List<BalanceMutationJdbcTask> batch = batches.get(task.getMutationQuery());
+						if (batch == null) {
+							batch = new ArrayList<BalanceMutationJdbcTask>();
+							batches.put(task.getMutationQuery(), batch);
+						}
+						batch.add(task);
+						batched.add(task);
+					}
+					else {
+						deferred.add(task);
+					}
+				}
+
+				for (BalanceMutationJdbcTask task : batched) {
+					task.beforeMutation(connection);
+				}
+				for (Map.Entry<String, List<BalanceMutationJdbcTask>> batch : batches.entrySet()) {
+					executeBatch(connection, batch.getKey(), batch.getValue());
+				}
+				for (BalanceMutationJdbcTask task : batched) {
+					task.complete(connection);
+				}
+				for (BalanceMutationJdbcTask task : deferred) {
+					task.apply(connection);
+				}
+
+				tx.commit();
+				tx = null;
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[//] Group committed " + tasks.size() + " balance operations (" + deferred.size() + " not batched).");
+				}
+			}
+			catch (Exception e) {
+				tracer.severe("[xx] Failed to execute group of " + tasks.size() + " balance operations.", e);
+				for (BalanceMutationJdbcTask task : tasks) {
+					task.fail(e);
+				}
+				if (connection != null) {
+					DataSourceJdbcTask.evictStatements(connection);
+				}
+			}
+			finally {
+				if (tx != null) {
+					try {
+						tx.rollback();
+					}
+					catch (Exception f) {
+						tracer.severe("[xx] Failed to rollback tx", f);
+					}
+				}
+				done.countDown();
+			}
+		}
+
+		private void executeBatch(Connection connection, String query, List<BalanceMutationJdbcTask> batch) throws SQLException {
+			PreparedStatement preparedStatement = batch.get(0).prepareStatement(connection, query);
+			for (BalanceMutationJdbcTask task : batch) {
+				task.bindMutation(preparedStatement, task.settlement.getRequested());
+				preparedStatement.addBatch();
+			}
+			int[] updated = preparedStatement.executeBatch();
+			for (int i = 0; i < updated.length; i++) {
+				if (updated[i] == Statement.SUCCESS_NO_INFO) {
+					throw new SQLException("JDBC driver does not report batch update counts, which group commit requires. Set groupCommitWindowMillis to 0.");
+				}
+				batch.get(i).mutationExecuted(connection, updated[i]);
+			}
+		}
+
+		void await() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					// the leader is using this task, there's no giving up
+					done.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
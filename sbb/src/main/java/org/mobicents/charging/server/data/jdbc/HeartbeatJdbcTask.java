@@ -0,0 +1,143 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Heartbeat probe for the {@link ReplicaRouter}: stamps the heartbeat row with the current time on a primary, or reads
+ * it from a read replica, to tell how far behind it is. Nothing is reported back to the parent.
+ */
+final class HeartbeatJdbcTask extends DataSourceJdbcTask {
+
+	private final String replica;
+	private final Tracer tracer;
+
+	/**
+	 * @param replica the replica JDBC RA entity link the task is run on, null to stamp the primary it is run on
+	 * @param tracer
+	 */
+	HeartbeatJdbcTask(String replica, Tracer tracer) {
+		this.replica = replica;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public Object executeSimple(JdbcTaskContext taskContext) {
+		if (replica == null) {
+			stamp(taskContext);
+		}
+		else {
+			read(taskContext);
+		}
+		return this;
+	}
+
+	private void stamp(JdbcTaskContext taskContext) {
+		SleeTransaction tx = null;
+		Connection connection = null;
+		try {
+			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+			connection = taskContext.getConnection();
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_UPDATE_HEARTBEAT);
+			long now = System.currentTimeMillis();
+			preparedStatement.setLong(1, now);
+			preparedStatement.setLong(2, now);
+			preparedStatement.executeUpdate();
+			tx.commit();
+			tx = null;
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Failed to stamp the replication heartbeat.", e);
+			setFailed();
+			if (connection != null) {
+				evictStatements(connection);
+			}
+		}
+		finally {
+			if (tx != null) {
+				try {
+					tx.rollback();
+				}
+				catch (Exception f) {
+					tracer.severe("[xx] Failed to rollback tx", f);
+				}
+			}
+		}
+	}
+
+	private void read(JdbcTaskContext taskContext) {
+		Connection connection = null;
+		ResultSet resultSet = null;
+		try {
+			connection = taskContext.getConnection();
+			resultSet = prepareStatement(connection, DataSourceSchemaInfo._QUERY_SELECT_HEARTBEAT).executeQuery();
+			if (!resultSet.next()) {
+				throw new IllegalStateException("No heartbeat row, the schema is not migrated on the replica yet.");
+			}
+			if (ReplicaRouter.observed(replica, resultSet.getLong(1))) {
+				long staleness = ReplicaRouter.getStalenessMillis(replica);
+				if (staleness <= ReplicaRouter.getMaxStalenessMillis()) {
+					if (tracer.isInfoEnabled()) {
+						tracer.info("[--] Read replica '" + replica + "' is " + staleness + "ms behind, reading from it.");
+					}
+				}
+				else {
+					tracer.warning("[!!] Read replica '" + replica + "' is " + staleness + "ms behind, over " + ReplicaRouter.getMaxStalenessMillis() + "ms. Reading from its primary.");
+				}
+			}
+		}
+		catch (Exception e) {
+			setFailed();
+			if (connection != null) {
+				evictStatements(connection);
+			}
+			if (ReplicaRouter.unreachable(replica)) {
+				tracer.warning("[!!] Failed to probe read replica '" + replica + "'. Reading from its primary.", e);
+			}
+		}
+		finally {
+			closeQuietly(resultSet);
+		}
+	}
+
+	@Override
+	public void callBackParentOnException(SbbLocalObject parent) {
+		// nothing to report
+	}
+
+	@Override
+	public void callBackParentOnResult(SbbLocalObject parent) {
+		// nothing to report
+	}
+
+}
@@ -0,0 +1,250 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes read only tasks (account lookups and pattern searches) to read replicas of their primary database, as long
+ * as the replica is not further behind than the staleness bound, while balance operations always go to the primary.
+ * 
+ * Replicas are configured per primary, all named by their JDBC RA entity link, with format
+ * <code>primary=replica[,replica...][;primary=...]</code>, eg: <code>JDBCRA=JDBCRA-R1,JDBCRA-R2</code>.
+ * 
+ * How far behind a replica is comes from the {@link DataSourceSchemaInfo#_TBL_HEARTBEAT} row: every probe interval
+ * the primaries get it stamped with the current time and the replicas get it read, the staleness of a replica being
+ * the age of the newest stamp it has. That bounds the replication lag from above, by up to the probe interval, so the
+ * staleness bound must be well above the interval, and the server clocks in sync well within it. Probes are only run
+ * along with other tasks, and a replica not answering them just grows stale, so its reads go back to the primary.
+ */
+final class ReplicaRouter {
+
+	private static final class Replica {
+
+		private final String link;
+
+		// newest heartbeat stamp read from the replica, 0 if none yet
+		private volatile long beat;
+		// whether it was last reported usable, for tracing changes only
+		private volatile boolean usable;
+
+		private final AtomicLong reads = new AtomicLong();
+
+		Replica(String link) {
+			this.link = link;
+		}
+	}
+
+	private static final class Replicas {
+
+		private final Replica[] replicas;
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicLong fallbacks = new AtomicLong();
+
+		Replicas(Replica[] replicas) {
+			this.replicas = replicas;
+		}
+	}
+
+	private static volatile Map<String, Replicas> replicasByPrimary = Collections.emptyMap();
+	private static volatile Map<String, Replica> replicasByLink = Collections.emptyMap();
+
+	private static volatile long maxStalenessMillis;
+	private static volatile long probeIntervalNanos;
+	private static final AtomicLong nextProbe = new AtomicLong(System.nanoTime());
+
+	private ReplicaRouter() {
+	}
+
+	/**
+	 * Sets the read replicas to route to.
+	 * 
+	 * @param definition the replicas of each primary, in <code>primary=replica[,replica...][;...]</code> format, null
+	 *            or empty for none
+	 * @param maxStalenessMillis how far behind a replica may be to still read from it
+	 * @param probeIntervalMillis the time between heartbeat probes
+	 * @throws IllegalArgumentException if the definition is malformed
+	 */
+	static void configure(String definition, long maxStalenessMillis, long probeIntervalMillis) throws IllegalArgumentException {
+		Map<String, Replicas> byPrimary = new LinkedHashMap<String, Replicas>();
+		Map<String, Replica> byLink = new LinkedHashMap<String, Replica>();
+		if (definition != null && definition.trim().length() > 0) {
+			for (String entry : definition.trim().split(";")) {
+				String[] primaryReplicas = entry.trim().split("=");
+				String primary = primaryReplicas[0].trim();
+				if (primary.length() == 0 || primaryReplicas.length != 2 || byPrimary.containsKey(primary)) {
+					throw new IllegalArgumentException("Malformed or duplicate read replicas entry '" + entry + "'. Format should be: primary=replica[,replica...]");
+				}
+				String[] links = primaryReplicas[1].trim().split("\\s*,\\s*");
+				Replica[] replicas = new Replica[links.length];
+				for (int i = 0; i < links.length; i++) {
+					if (links[i].length() == 0 || links[i].equals(primary) || byLink.containsKey(links[i])) {
+						throw new IllegalArgumentException("Malformed or duplicate read replica '" + links[i] + "' in entry '" + entry + "'.");
+					}
+					replicas[i] = new Replica(links[i]);
+					byLink.put(links[i], replicas[i]);
+				}
+				byPrimary.put(primary, new Replicas(replicas));
+			}
+		}
+		ReplicaRouter.maxStalenessMillis = maxStalenessMillis;
+		ReplicaRouter.probeIntervalNanos = probeIntervalMillis * 1000000L;
+		replicasByLink = byLink;
+		replicasByPrimary = byPrimary;
+	}
+
+	static boolean isEnabled() {
+		return !replicasByPrimary.isEmpty();
+	}
+
+	/**
+	 * @return the primaries with read replicas
+	 */
+	static String[] getPrimaries() {
+		return replicasByPrimary.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * @return the read replicas of all the primaries
+	 */
+	static String[] getReplicas() {
+		return replicasByLink.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Picks where to run a read only task, round robin among the replicas of the primary within the staleness bound.
+	 * 
+	 * @param primary the primary JDBC RA entity link
+	 * @return the link of the replica to read from, or the primary if it has none usable
+	 */
+	static String forRead(String primary) {
+		Replicas replicas = replicasByPrimary.get(primary);
+		if (replicas == null) {
+			return primary;
+		}
+		long oldest = System.currentTimeMillis() - maxStalenessMillis;
+		int count = replicas.replicas.length;
+		int start = replicas.next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			Replica replica = replicas.replicas[(start + i) % count];
+			if (replica.beat >= oldest) {
+				replica.reads.incrementAndGet();
+				return replica.link;
+			}
+		}
+		replicas.fallbacks.incrementAndGet();
+		return primary;
+	}
+
+	/**
+	 * @return true if the caller is the one to run the heartbeat probes now, once per probe interval
+	 */
+	static boolean isProbeDue() {
+		if (replicasByPrimary.isEmpty()) {
+			return false;
+		}
+		long now = System.nanoTime();
+		long next = nextProbe.get();
+		return now - next >= 0 && nextProbe.compareAndSet(next, now + probeIntervalNanos);
+	}
+
+	/**
+	 * Records the heartbeat stamp read from a replica.
+	 * 
+	 * @param link the replica JDBC RA entity link
+	 * @param beat the stamp read
+	 * @return true if the replica just became usable, or stopped being so
+	 */
+	static boolean observed(String link, long beat) {
+		Replica replica = replicasByLink.get(link);
+		if (replica == null) {
+			return false;
+		}
+		if (beat > replica.beat) {
+			replica.beat = beat;
+		}
+		return changed(replica, System.currentTimeMillis() - replica.beat <= maxStalenessMillis);
+	}
+
+	/**
+	 * Records a failed heartbeat probe of a replica.
+	 * 
+	 * @param link the replica JDBC RA entity link
+	 * @return true if the replica just stopped being usable
+	 */
+	static boolean unreachable(String link) {
+		Replica replica = replicasByLink.get(link);
+		if (replica == null) {
+			return false;
+		}
+		// it may well be up to date, but its reads would likely fail too
+		replica.beat = 0;
+		return changed(replica, false);
+	}
+
+	private static boolean changed(Replica replica, boolean usable) {
+		if (replica.usable == usable) {
+			return false;
+		}
+		replica.usable = usable;
+		return true;
+	}
+
+	/**
+	 * @param link the replica JDBC RA entity link
+	 * @return how far behind the replica is, in milliseconds, as of its newest heartbeat stamp, -1 if none yet
+	 */
+	static long getStalenessMillis(String link) {
+		Replica replica = replicasByLink.get(link);
+		return replica == null || replica.beat == 0 ? -1 : System.currentTimeMillis() - replica.beat;
+	}
+
+	static long getMaxStalenessMillis() {
+		return maxStalenessMillis;
+	}
+
+	/**
+	 * @return the staleness and reads of each replica, and the reads of each primary which found none usable
+	 */
+	static String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Replicas> entry : replicasByPrimary.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append("; ");
+			}
+			sb.append(entry.getKey()).append(" fallbacks=").append(entry.getValue().fallbacks.get());
+			for (Replica replica : entry.getValue().replicas) {
+				sb.append(", ").append(replica.link).append(" reads=").append(replica.reads.get()).append(" staleness=");
+				long staleness = getStalenessMillis(replica.link);
+				sb.append(staleness < 0 ? "unknown" : staleness + "ms");
+			}
+		}
+		return sb.toString();
+	}
+
+}
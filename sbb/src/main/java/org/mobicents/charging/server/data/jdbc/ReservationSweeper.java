@@ -0,0 +1,338 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * Releases the reservations of sessions not heard of anymore, from a thread of its own, every run interval. Otherwise
+ * they are only released along with a later request of the same user, so the reserved amount of users not sending
+ * any is held for good. Sessions ended by their validity timer have their reservations made expired right away (see
+ * {@link ExpireSessionJdbcTask}), the others expire after the reservation timeout.
+ * 
+ * Expired reservations are found through the reservations expiry time index, the longest expired first, a batch at a
+ * time. Each batch is removed and returned to the balance of its users in one transaction, with a pooled connection
+ * taken for the batch only: the reservations still expired are removed in a JDBC batch, so that any renewed or
+ * released meanwhile by its session is left alone, and what was removed is returned to each user in another, in
+ * MSISDN order, one update per user. With a JDBC driver not telling how many rows each statement of a batch removed,
+ * the reservations are removed one statement at a time instead, as only those actually removed can be returned.
+ * 
+ * Each run reports the reservations released and the reserved amount reclaimed, which are also totalled since start.
+ */
+public final class ReservationSweeper implements Runnable {
+
+	private static ReservationSweeper instance;
+
+	private final long intervalMillis;
+	private final int batchSize;
+	private final Tracer tracer;
+
+	private volatile Map<String, JdbcResourceAdaptorSbbInterface> shards;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// set once the JDBC driver answered a batch without row counts
+	private volatile boolean removeOneAtATime;
+
+	// of the current run
+	private long released;
+	private long releasedUsers;
+	private long reclaimed;
+
+	// since start
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong totalReleased = new AtomicLong();
+	private final AtomicLong totalReclaimed = new AtomicLong();
+
+	private volatile String lastRun = "none yet";
+
+	private ReservationSweeper(Map<String, JdbcResourceAdaptorSbbInterface> shards, long intervalMillis, int batchSize, Tracer tracer) {
+		this.shards = shards;
+		this.intervalMillis = intervalMillis;
+		this.batchSize = Math.max(1, batchSize);
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the sweeper, replacing any already running.
+	 * 
+	 * @param shards the JDBC RA interface of each shard (or the single database) to release reservations on, by link
+	 * @param intervalMillis the time between runs, 0 to not run at all
+	 * @param batchSize the reservations released per batch and transaction
+	 * @param tracer
+	 */
+	public static synchronized void start(Map<String, JdbcResourceAdaptorSbbInterface> shards, long intervalMillis, int batchSize, Tracer tracer) {
+		stop();
+		if (intervalMillis <= 0) {
+			return;
+		}
+		instance = new ReservationSweeper(new LinkedHashMap<String, JdbcResourceAdaptorSbbInterface>(shards), intervalMillis, batchSize, tracer);
+		instance.thread = new Thread(instance, "CS-ReservationSweeper");
+		instance.thread.setDaemon(true);
+		instance.thread.start();
+	}
+
+	/**
+	 * Changes the shards to release reservations on from the next run, eg, after the shard map is reloaded.
+	 * 
+	 * @param shards the JDBC RA interface of each shard, by link
+	 */
+	public static synchronized void setShards(Map<String, JdbcResourceAdaptorSbbInterface> shards) {
+		if (instance != null) {
+			instance.shards = new LinkedHashMap<String, JdbcResourceAdaptorSbbInterface>(shards);
+		}
+	}
+
+	/**
+	 * Stops the sweeper, interrupting the current run between batches.
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.running = false;
+			instance.thread.interrupt();
+			instance = null;
+		}
+	}
+
+	/**
+	 * @return the runs done, reservations released and reserved amount reclaimed since start, and the last run, null
+	 *         if not started
+	 */
+	public static synchronized String getStats() {
+		if (instance == null) {
+			return null;
+		}
+		return "{runs=" + instance.runs.get() + ", released=" + instance.totalReleased.get() + ", reclaimed=" + instance.totalReclaimed.get() + ", last run " + instance.lastRun + "}";
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(intervalMillis);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			if (running) {
+				sweep();
+			}
+		}
+	}
+
+	/**
+	 * Runs once over all the shards.
+	 */
+	void sweep() {
+		released = 0;
+		releasedUsers = 0;
+		reclaimed = 0;
+		int failed = 0;
+		long started = System.nanoTime();
+		for (Map.Entry<String, JdbcResourceAdaptorSbbInterface> shard : shards.entrySet()) {
+			try {
+				sweep(shard.getValue());
+			}
+			catch (SQLException e) {
+				failed++;
+				tracer.warning("[!!] Failed to release expired reservations on '" + shard.getKey() + "'.", e);
+			}
+		}
+		runs.incrementAndGet();
+		totalReleased.addAndGet(released);
+		totalReclaimed.addAndGet(reclaimed);
+
+		long millis = (System.nanoTime() - started) / 1000000L;
+		lastRun = "released " + released + " reservations of " + releasedUsers + " users, reclaiming " + reclaimed + ", in " + millis + "ms" + (failed > 0 ? ", " + failed + " shards failed" : "");
+		if (failed > 0) {
+			tracer.warning("[!!] Reservation sweep " + lastRun + ". Failed shards will be swept again on the next run.");
+		}
+		else if (released > 0) {
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[--] Reservation sweep " + lastRun + ".");
+			}
+		}
+		else if (tracer.isFineEnabled()) {
+			tracer.fine("[--] Reservation sweep " + lastRun + ".");
+		}
+	}
+
+	/**
+	 * Releases the expired reservations of a shard, a batch at a time, until none is left or a batch releases none
+	 * (all renewed by their sessions meanwhile).
+	 */
+	private void sweep(JdbcResourceAdaptorSbbInterface jdbcRA) throws SQLException {
+		String[] msisdns = new String[batchSize];
+		String[] sessionIds = new String[batchSize];
+		long[] ratingGroups = new long[batchSize];
+		long[] amounts = new long[batchSize];
+		while (running) {
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			int read;
+			int removed = 0;
+			Connection connection = jdbcRA.getConnection();
+			try {
+				connection.setAutoCommit(false);
+				read = select(connection, now, msisdns, sessionIds, ratingGroups, amounts);
+				if (read > 0) {
+					removed = release(connection, now, msisdns, sessionIds, ratingGroups, amounts, read);
+				}
+				if (removed < 0) {
+					// what the batch removed is unknown, it's done again one statement at a time
+					connection.rollback();
+					continue;
+				}
+				connection.commit();
+			}
+			catch (SQLException e) {
+				try {
+					connection.rollback();
+				}
+				catch (SQLException f) {
+					// the original failure is the one to report
+				}
+				throw e;
+			}
+			finally {
+				connection.close();
+			}
+			if (read < batchSize || removed == 0) {
+				return;
+			}
+		}
+	}
+
+	private int select(Connection connection, Timestamp now, String[] msisdns, String[] sessionIds, long[] ratingGroups, long[] amounts) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_DUE_RESERVATIONS);
+		try {
+			preparedStatement.setFetchSize(batchSize);
+			preparedStatement.setMaxRows(batchSize);
+			preparedStatement.setTimestamp(1, now);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			int read = 0;
+			try {
+				while (read < batchSize && resultSet.next()) {
+					msisdns[read] = resultSet.getString(1);
+					sessionIds[read] = resultSet.getString(2);
+					ratingGroups[read] = resultSet.getLong(3);
+					amounts[read] = resultSet.getLong(4);
+					read++;
+				}
+			}
+			finally {
+				resultSet.close();
+			}
+			return read;
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	/**
+	 * @return the number of reservations removed and returned to their users, -1 if the JDBC driver didn't tell which
+	 *         were removed, in which case the transaction must be rolled back
+	 */
+	private int release(Connection connection, Timestamp now, String[] msisdns, String[] sessionIds, long[] ratingGroups, long[] amounts, int count) throws SQLException {
+		// what is returned to each user, in MSISDN order, as other batches lock users in
+		Map<String, Long> returned = new TreeMap<String, Long>();
+		int removed = 0;
+		int[] results = new int[count];
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_DELETE_DUE_RESERVATION);
+		try {
+			for (int i = 0; i < count; i++) {
+				preparedStatement.setString(1, msisdns[i]);
+				preparedStatement.setString(2, sessionIds[i]);
+				preparedStatement.setLong(3, ratingGroups[i]);
+				preparedStatement.setTimestamp(4, now);
+				if (removeOneAtATime) {
+					results[i] = preparedStatement.executeUpdate();
+				}
+				else {
+					preparedStatement.addBatch();
+				}
+			}
+			if (!removeOneAtATime) {
+				results = preparedStatement.executeBatch();
+			}
+			for (int i = 0; i < count; i++) {
+				// a reservation renewed by its session meanwhile isn't removed, and must not be returned
+				if (results[i] == Statement.SUCCESS_NO_INFO) {
+					tracer.warning("[!!] JDBC driver does not report batch update counts, expired reservations will be removed one at a time.");
+					removeOneAtATime = true;
+					return -1;
+				}
+				if (results[i] > 0) {
+					Long amount = returned.get(msisdns[i]);
+					returned.put(msisdns[i], amount != null ? amount + amounts[i] : amounts[i]);
+					removed++;
+				}
+			}
+		}
+		finally {
+			preparedStatement.close();
+		}
+		if (returned.isEmpty()) {
+			return 0;
+		}
+
+		long amount = 0;
+		preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_RELEASE);
+		try {
+			for (Map.Entry<String, Long> entry : returned.entrySet()) {
+				preparedStatement.setLong(1, entry.getValue());
+				preparedStatement.setLong(2, entry.getValue());
+				preparedStatement.setString(3, entry.getKey());
+				preparedStatement.addBatch();
+				amount += entry.getValue();
+			}
+			preparedStatement.executeBatch();
+		}
+		finally {
+			preparedStatement.close();
+		}
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Releasing " + removed + " expired reservations: " + returned);
+		}
+		released += removed;
+		releasedUsers += returned.size();
+		reclaimed += amount;
+		return removed;
+	}
+
+}
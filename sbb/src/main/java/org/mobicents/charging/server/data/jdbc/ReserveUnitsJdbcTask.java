@@ -22,147 +22,310 @@
 
 package org.mobicents.charging.server.data.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.slee.SbbLocalObject;
 import javax.slee.facilities.Tracer;
 
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+
 import org.mobicents.charging.server.account.AccountBalanceManagement;
 import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.account.CreditControlUnit;
-import org.mobicents.charging.server.data.UserAccountData;
-import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
 
 /**
+ * Reserves (and updates/terminates) units for all the services of a Credit-Control-Request, in a single
+ * transaction. Each CreditControlInfo is flagged as successful or not on its own, the UserAccountData reports the
+ * user balance after all of them, and is flagged as failure if any of them failed.
+ * 
+ * The balance check, settlement of the previous reservation and new reservation for all the services and units are
+ * done in a single conditional UPDATE, followed by a primary key SELECT to read back the new balance (there's no
+ * portable way to have the UPDATE return it). Only if the whole request doesn't fit, the balance is read and a partial
+ * grant is applied with a second conditional UPDATE.
+ * 
+ * What each session holds reserved is kept in a row per rating group, which is locked and read first, so that
+ * concurrent sessions of the same user each settle their own reservation. The balance is kept net of reservations,
+ * so the check for the whole user is still the single conditional UPDATE. Termination releases every reservation
+ * of the session, and reservations of other sessions found expired are released along. The rows are written before
+ * the UPDATE, as if the whole request is granted, and only corrected after a partial grant, so that the user row is
+ * not locked for any longer than without them.
+ * 
  * @author ammendonca
  * @author rsaranathan
  */
-public class ReserveUnitsJdbcTask extends DataSourceJdbcTask {
+public class ReserveUnitsJdbcTask extends BalanceMutationJdbcTask {
+
+	private static volatile long reservationTimeoutMillis = 90000000L;
+
+	private final String sessionId;
+	private final boolean terminate;
 
-	private CreditControlInfo ccInfo = null;
-	private UserAccountData accountData = null;
+	private Timestamp now;
+	// what the session holds, as read, and what was written ahead, per rating group
+	private final Map<Long, Long> held = new HashMap<Long, Long>();
+	private final Map<Long, Long> written = new HashMap<Long, Long>();
+	// expired reservations of other sessions, released along
+	private final List<Reservation> expired = new ArrayList<Reservation>();
+
+	/**
+	 * Sets for how long a reservation is held without its session being heard of, before it can be released.
+	 * 
+	 * @param timeoutMillis the timeout, which should be above the validity time granted to the sessions
+	 */
+	public static void setReservationTimeout(long timeoutMillis) {
+		reservationTimeoutMillis = timeoutMillis;
+	}
+
+	public ReserveUnitsJdbcTask(List<CreditControlInfo> ccInfos, Tracer tracer) {
+		super(ccInfos, tracer);
+		this.sessionId = ccInfos.get(0).getSessionId();
+		this.terminate = CcRequestType.TERMINATION_REQUEST.toString().equals(ccInfos.get(0).getEventType());
+	}
+
+	@Override
+	protected String getMutationQuery() {
+		return DataSourceSchemaInfo._QUERY_RESERVE;
+	}
+
+	@Override
+	protected String getOperationName() {
+		return "Reserve Units";
+	}
+
+	@Override
+	protected void bindMutation(PreparedStatement preparedStatement, long granted) throws SQLException {
+		if (tracer.isInfoEnabled()) {
+			tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_RESERVE).
+					replaceFirst("\\?", String.valueOf(settlement.getReleased())).
+					replaceFirst("\\?", String.valueOf(granted)).
+					replaceFirst("\\?", String.valueOf(settlement.getSettled())).
+					replaceFirst("\\?", String.valueOf(granted)).
+					replaceFirst("\\?", msisdn).
+					replaceFirst("\\?", String.valueOf(settlement.getReleased())).
+					replaceFirst("\\?", String.valueOf(granted))
+					);
+		}
+		int n = 1;
+		preparedStatement.setLong(n++, settlement.getReleased());
+		preparedStatement.setLong(n++, granted);
+		preparedStatement.setLong(n++, settlement.getSettled());
+		preparedStatement.setLong(n++, granted);
+		preparedStatement.setString(n++, msisdn);
+		preparedStatement.setLong(n++, settlement.getReleased());
+		preparedStatement.setLong(n++, granted);
+	}
 
-	private String msisdn;
-	private ArrayList<CreditControlUnit> ccUnits;
+	@Override
+	protected boolean applyPartially(Connection connection, long balance) throws SQLException {
+		long granted = settlement.grantPartially(balance + settlement.getReleased());
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[//] User does not have sufficient balance for the entire reservation request (" + settlement.getRequested() + "). Balance available: " + balance + ". Reserving " + granted + " instead ...");
+		}
+		//TODO: Need to set Final Unit Indication for this case.
+		// See http://www.ietf.org/rfc/rfc4006.txt, 8.34.  Final-Unit-Indication AVP
+		if (granted > 0) {
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_RESERVE);
+			bindMutation(preparedStatement, granted);
+			return preparedStatement.executeUpdate() == 1;
+		}
+		return settle(connection) == 1;
+	}
 
-	private Tracer tracer;
+	@Override
+	protected void grant(long balance) {
+		if (balance + settlement.getReleased() >= settlement.getRequested()) {
+			settlement.grantAll();
+		}
+		else {
+			settlement.grantPartially(balance + settlement.getReleased());
+		}
+	}
 
-	public ReserveUnitsJdbcTask(CreditControlInfo ccInfo, Tracer tracer) {
-		this.ccInfo = ccInfo;
-		this.msisdn = ccInfo.getSubscriptionId();
-		this.ccUnits = ccInfo.getCcUnits();
-		this.tracer = tracer;
+	@Override
+	protected long getReservedChange() {
+		return settlement.getGranted() - settlement.getSettled();
 	}
 
 	@Override
-	public Object executeSimple(JdbcTaskContext taskContext) {
+	protected void beforeMutation(Connection connection) throws SQLException {
+		now = new Timestamp(System.currentTimeMillis());
+		held.clear();
+		expired.clear();
+		long expiredAmount = 0;
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_SELECT_RESERVATIONS);
+		preparedStatement.setString(1, msisdn);
+		preparedStatement.setString(2, sessionId);
+		preparedStatement.setTimestamp(3, now);
+		ResultSet resultSet = preparedStatement.executeQuery();
 		try {
-			long balance = 0;
-			// get Balance Before (can this be made more efficient?)
-			PreparedStatement preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-			preparedStatement.setString(1, msisdn);
-			preparedStatement.execute();
-			ResultSet resultSet = preparedStatement.getResultSet();
 			while (resultSet.next()) {
-				balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-				ccInfo.setBalanceBefore(balance);
-			}
-			
-			for(int i=0; i<ccUnits.size();i++){
-				CreditControlUnit ccUnit = ccUnits.get(i);
-				if(balance<=0 && ccUnit.getRateForService()>0){
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-					accountData.setBalance(0);
-					accountData.setFailure(true);
-					ccUnit.setReservedUnits(0);
-					ccUnit.setReservedAmount(0);
-					if(tracer.isInfoEnabled()){
-						tracer.info("[//] User does not have sufficient balance for reservation. Balance available: "+balance+".");
-					}
-					break;
-				}else{
-					long reservedAmount = ccUnit.getReservedAmount();
-					long usedAmount = ccUnit.getUsedAmount();
-					long requestedAmount = ccUnit.getRequestedAmount();
-					long requestedUnits = ccUnit.getRequestedUnits();
-					if(ccUnit.getRateForService()>0){
-						//If RSU < balance, reserve and set GSU=balance	
-						if((reservedAmount-usedAmount+requestedAmount)>balance){
-							long newRequestedAmount = balance;
-							long newRequestedUnits = (long) Math.floor(newRequestedAmount/ccUnit.getRateForService()); 
-							if(tracer.isInfoEnabled()){
-								tracer.info("[//] User does not have sufficient balance for the entire reservation request ("+requestedUnits+" " + ccUnit.getUnitType() + " units @rate="+ccUnit.getRateForService()+"). Balance available: "+balance+". Reserving "+newRequestedUnits+" units instead ...");
-							}
-							requestedAmount = newRequestedAmount;
-							requestedUnits = newRequestedUnits;
-							//TODO: Need to set Final Unit Indication for this case.
-							// See http://www.ietf.org/rfc/rfc4006.txt, 8.34.  Final-Unit-Indication AVP
-							
-						}
-					}
-	
-					int n = 1;
-					tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_RESERVE).
-							replaceFirst("\\?", String.valueOf(reservedAmount-usedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", String.valueOf(requestedAmount)).
-							replaceFirst("\\?", msisdn)
-							);
-					preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_RESERVE);
-					preparedStatement.setLong(n++, (reservedAmount-usedAmount));
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setLong(n++, requestedAmount);
-					preparedStatement.setString(n++, msisdn);
-		
-					accountData = new UserAccountData();
-					accountData.setMsisdn(msisdn);
-		
-					if (preparedStatement.executeUpdate() == 1) {
-						// ok great, we have successfully reserved the units
-						preparedStatement = taskContext.getConnection().prepareStatement(DataSourceSchemaInfo._QUERY_SELECT);
-						preparedStatement.setString(1, msisdn);
-						//tracer.info(("[//] Executing DB Statement '" + DataSourceSchemaInfo._QUERY_SELECT).replaceFirst("\\?", msisdn));
-						preparedStatement.execute();
-						resultSet = preparedStatement.getResultSet();
-						while (resultSet.next()) {
-							balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
-							accountData.setBalance(balance);
-							accountData.setFailure(false);
-							ccUnit.setReservedUnits(requestedUnits);
-							ccUnit.setReservedAmount(requestedAmount);
-							ccInfo.setBalanceAfter(balance);
-						}
-					}
-					else {
-						// check what kind of error happened
-						accountData.setBalance(0);
-						accountData.setFailure(true);
-						ccUnit.setReservedUnits(0);
-						ccUnit.setReservedAmount(0);
-					}
+				if (sessionId.equals(resultSet.getString(1))) {
+					held.put(resultSet.getLong(2), resultSet.getLong(3));
+				}
+				else {
+					expired.add(new Reservation(resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3)));
+					expiredAmount += resultSet.getLong(3);
 				}
 			}
 		}
-		catch (Exception e) {
-			tracer.severe("[xx] Failed to execute task to Reserve Units for MSISDN '" + msisdn + "'", e);
+		finally {
+			closeQuietly(resultSet);
+		}
+		settlement.settleHeld(held, terminate, expiredAmount);
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Session '" + sessionId + "' holds " + held + " for MSISDN '" + msisdn + "'" + (expiredAmount > 0 ? ", releasing " + expiredAmount + " expired." : "."));
+		}
+
+		if (!expired.isEmpty()) {
+			preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_DELETE_EXPIRED_RESERVATIONS);
+			preparedStatement.setString(1, msisdn);
+			preparedStatement.setString(2, sessionId);
+			preparedStatement.setTimestamp(3, now);
+			preparedStatement.executeUpdate();
+		}
+
+		// write ahead as if the whole request is granted, which is the usual case
+		written.clear();
+		if (terminate) {
+			if (!held.isEmpty()) {
+				preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_DELETE_SESSION_RESERVATIONS);
+				preparedStatement.setString(1, msisdn);
+				preparedStatement.setString(2, sessionId);
+				preparedStatement.executeUpdate();
+			}
+			return;
+		}
+		for (CreditControlInfo ccInfo : ccInfos) {
+			long amount = 0;
+			for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+				amount += ccUnit.getRequestedAmount();
+			}
+			Long previous = written.put(ccInfo.getRatingGroup(), amount);
+			if (previous != null) {
+				written.put(ccInfo.getRatingGroup(), previous + amount);
+			}
+		}
+		Timestamp expiry = new Timestamp(now.getTime() + reservationTimeoutMillis);
+		for (Map.Entry<Long, Long> entry : written.entrySet()) {
+			writeReservation(connection, entry.getKey(), held.containsKey(entry.getKey()), entry.getValue(), expiry);
 		}
-		return this;
 	}
 
-	public UserAccountData getAccountData() {
-		return accountData;
+	@Override
+	protected void afterSettlement(Connection connection) throws SQLException {
+		if (terminate || settlement.getGranted() == settlement.getRequested()) {
+			return;
+		}
+		Map<Long, Long> reserved = new HashMap<Long, Long>();
+		for (CreditControlInfo ccInfo : ccInfos) {
+			long amount = 0;
+			for (CreditControlUnit ccUnit : ccInfo.getCcUnits()) {
+				amount += ccUnit.getReservedAmount();
+			}
+			Long previous = reserved.put(ccInfo.getRatingGroup(), amount);
+			if (previous != null) {
+				reserved.put(ccInfo.getRatingGroup(), previous + amount);
+			}
+		}
+		Timestamp expiry = new Timestamp(now.getTime() + reservationTimeoutMillis);
+		for (Map.Entry<Long, Long> entry : reserved.entrySet()) {
+			long wrote = written.get(entry.getKey());
+			if (entry.getValue() != wrote) {
+				writeReservation(connection, entry.getKey(), wrote > 0, entry.getValue(), expiry);
+			}
+		}
+	}
+
+	@Override
+	protected void revertBeforeMutation(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_DELETE_SESSION_RESERVATIONS);
+		preparedStatement.setString(1, msisdn);
+		preparedStatement.setString(2, sessionId);
+		preparedStatement.executeUpdate();
+		Timestamp expiry = new Timestamp(now.getTime() + reservationTimeoutMillis);
+		for (Map.Entry<Long, Long> entry : held.entrySet()) {
+			insertReservation(connection, sessionId, entry.getKey(), entry.getValue(), expiry);
+		}
+		// still expired, for the next one to release
+		for (Reservation reservation : expired) {
+			insertReservation(connection, reservation.sessionId, reservation.ratingGroup, reservation.amount, now);
+		}
+	}
+
+	/**
+	 * Sets the amount reserved for a rating group of the session, removing the row if nothing is.
+	 */
+	private void writeReservation(Connection connection, long ratingGroup, boolean exists, long amount, Timestamp expiry) throws SQLException {
+		PreparedStatement preparedStatement;
+		if (exists) {
+			if (amount > 0) {
+				preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_UPDATE_RESERVATION);
+				preparedStatement.setLong(1, amount);
+				preparedStatement.setTimestamp(2, expiry);
+				preparedStatement.setString(3, msisdn);
+				preparedStatement.setString(4, sessionId);
+				preparedStatement.setLong(5, ratingGroup);
+			}
+			else {
+				preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_DELETE_RESERVATION);
+				preparedStatement.setString(1, msisdn);
+				preparedStatement.setString(2, sessionId);
+				preparedStatement.setLong(3, ratingGroup);
+			}
+			preparedStatement.executeUpdate();
+		}
+		else if (amount > 0) {
+			insertReservation(connection, sessionId, ratingGroup, amount, expiry);
+		}
+	}
+
+	private void insertReservation(Connection connection, String sessionId, long ratingGroup, long amount, Timestamp expiry) throws SQLException {
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_INSERT_RESERVATION);
+		preparedStatement.setString(1, msisdn);
+		preparedStatement.setString(2, sessionId);
+		preparedStatement.setLong(3, ratingGroup);
+		preparedStatement.setLong(4, amount);
+		preparedStatement.setTimestamp(5, expiry);
+		preparedStatement.executeUpdate();
+	}
+
+	private int settle(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_SETTLE);
+		int n = 1;
+		preparedStatement.setLong(n++, settlement.getReleased());
+		preparedStatement.setLong(n++, settlement.getSettled());
+		preparedStatement.setString(n++, msisdn);
+		return preparedStatement.executeUpdate();
 	}
 
 	@Override
 	public void callBackParentOnException(SbbLocalObject parent) {
-		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
+		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfos, accountData);
 	}
 
 	@Override
 	public void callBackParentOnResult(SbbLocalObject parent) {
-		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfo, accountData);
+		((AccountBalanceManagement) parent).reserveUnitsResult(ccInfos, accountData);
+	}
+
+	private static class Reservation {
+
+		private final String sessionId;
+		private final long ratingGroup;
+		private final long amount;
+
+		Reservation(String sessionId, long ratingGroup, long amount) {
+			this.sessionId = sessionId;
+			this.ratingGroup = ratingGroup;
+			this.amount = amount;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.account.AccountBalanceManagement;
+import org.mobicents.charging.server.data.UserAccountData;
+
+/**
+ * Pattern search on one of the shards, as part of a scatter-gather over all of them. The search tasks of all shards
+ * share a {@link Gather}, and only the last one to complete calls back the parent, with the results of all of them,
+ * sorted by MSISDN as a single database would. Shards that failed are left out of the results.
+ */
+class ScatterGatherJdbcTask extends GetAccountDataJdbcTask {
+
+	private final Gather gather;
+
+	ScatterGatherJdbcTask(String msisdnPattern, Gather gather, Tracer tracer) {
+		super(msisdnPattern, true, tracer);
+		this.gather = gather;
+	}
+
+	@Override
+	public void callBackParentOnException(SbbLocalObject parent) {
+		setFailed();
+		callBackParentOnResult(parent);
+	}
+
+	@Override
+	public void callBackParentOnResult(SbbLocalObject parent) {
+		List<UserAccountData> result = gather.add(getShard(), isFailed() ? null : getAccountData());
+		if (result != null) {
+			((AccountBalanceManagement) parent).getAccountDataResult(result);
+		}
+	}
+
+	/**
+	 * The results of a scatter-gather, as they come in.
+	 */
+	static class Gather {
+
+		private static final Comparator<UserAccountData> BY_MSISDN = new Comparator<UserAccountData>() {
+			@Override
+			public int compare(UserAccountData a, UserAccountData b) {
+				return a.getMsisdn().compareTo(b.getMsisdn());
+			}
+		};
+
+		private final List<UserAccountData> accountData = new ArrayList<UserAccountData>();
+		private final List<String> failedShards = new ArrayList<String>();
+		private final Tracer tracer;
+		private int pending;
+
+		Gather(int shards, Tracer tracer) {
+			this.pending = shards;
+			this.tracer = tracer;
+		}
+
+		/**
+		 * Adds the results of a shard.
+		 * 
+		 * @param shard the shard
+		 * @param shardAccountData its results, null if it failed
+		 * @return all the results, if these were the last ones, otherwise null
+		 */
+		synchronized List<UserAccountData> add(String shard, List<UserAccountData> shardAccountData) {
+			if (shardAccountData != null) {
+				accountData.addAll(shardAccountData);
+			}
+			else {
+				failedShards.add(shard);
+			}
+			if (--pending > 0) {
+				return null;
+			}
+			if (!failedShards.isEmpty()) {
+				tracer.warning("[!!] Search results are missing the users of failed shards " + failedShards);
+			}
+			Collections.sort(accountData, BY_MSISDN);
+			return accountData;
+		}
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Versioned migrations of the JDBC datasource schema. The schema version is the highest migration recorded in the
+ * {@link DataSourceSchemaInfo#_TBL_SCHEMA_VERSION} table, and only migrations above it are run, in order, each being
+ * recorded once done. Existence of tables, columns and indexes is checked in the database metadata, never by querying
+ * the tables, so starting up takes the same time however many users there are.
+ * 
+ * Migrations are idempotent: each first checks whether what it does is already in place, and then just gets recorded.
+ * That covers schemas which predate the version table (which start at version 0, as do empty databases), a migration
+ * interrupted before being recorded, and a fresh users table, which is already created as of the latest version. It
+ * also covers several servers migrating the same database at once, as a migration failing is checked again before
+ * giving up.
+ * 
+ * Migrations are never removed nor changed once released, only added, with the next version.
+ */
+final class SchemaMigrations {
+
+	private abstract static class Migration {
+
+		private final int version;
+		private final String description;
+
+		Migration(int version, String description) {
+			this.version = version;
+			this.description = description;
+		}
+
+		/**
+		 * @return true if what the migration does is already in place
+		 */
+		abstract boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException;
+
+		abstract void apply(Connection connection, DatabaseMetaData metaData) throws SQLException;
+
+		@Override
+		public String toString() {
+			return version + " (" + description + ")";
+		}
+	}
+
+	private static final Migration[] MIGRATIONS = new Migration[] {
+		new Migration(1, "Users table") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return tableExists(metaData, DataSourceSchemaInfo._TBL_USERS);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE);
+			}
+		},
+		new Migration(2, "Users row version, for optimistic updates") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return columnType(metaData, DataSourceSchemaInfo._TBL_USERS, DataSourceSchemaInfo._COL_VERSION) != null;
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_ADD_VERSION);
+			}
+		},
+		new Migration(3, "Reservations table") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return tableExists(metaData, DataSourceSchemaInfo._TBL_RESERVATIONS);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE_RESERVATIONS);
+			}
+		},
+		new Migration(4, "Reservations expiry index") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return indexExists(metaData, DataSourceSchemaInfo._TBL_RESERVATIONS, DataSourceSchemaInfo._IDX_RESERVATIONS_EXPIRY);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE_RESERVATIONS_INDEX);
+			}
+		},
+		new Migration(5, "Fixed-point balances") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return isBigint(metaData, DataSourceSchemaInfo._COL_BALANCE) && isBigint(metaData, DataSourceSchemaInfo._COL_RESERVED);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				// values were already whole balance units, always read and written as longs but held as FLOAT, the
+				// conversion just rounds away any representation error
+				if (!isBigint(metaData, DataSourceSchemaInfo._COL_BALANCE)) {
+					execute(connection, alterToBigint(metaData, DataSourceSchemaInfo._COL_BALANCE, " NOT NULL"));
+				}
+				if (!isBigint(metaData, DataSourceSchemaInfo._COL_RESERVED)) {
+					execute(connection, alterToBigint(metaData, DataSourceSchemaInfo._COL_RESERVED, ""));
+				}
+			}
+
+			private boolean isBigint(DatabaseMetaData metaData, String column) throws SQLException {
+				Integer type = columnType(metaData, DataSourceSchemaInfo._TBL_USERS, column);
+				return type != null && type == Types.BIGINT;
+			}
+		},
+		new Migration(6, "Users balance expiry index") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return indexExists(metaData, DataSourceSchemaInfo._TBL_USERS, DataSourceSchemaInfo._IDX_USERS_BALANCE_EXPIRY);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE_BALANCE_EXPIRY_INDEX);
+			}
+		},
+		new Migration(7, "Replication heartbeat") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				if (!tableExists(metaData, DataSourceSchemaInfo._TBL_HEARTBEAT)) {
+					return false;
+				}
+				// a single row table, its row may be missing if interrupted right after creating it
+				Statement statement = connection.createStatement();
+				try {
+					return statement.executeQuery(DataSourceSchemaInfo._QUERY_SELECT_HEARTBEAT).next();
+				}
+				finally {
+					statement.close();
+				}
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				if (!tableExists(metaData, DataSourceSchemaInfo._TBL_HEARTBEAT)) {
+					execute(connection, DataSourceSchemaInfo._QUERY_CREATE_HEARTBEAT);
+				}
+				execute(connection, DataSourceSchemaInfo._QUERY_INSERT_HEARTBEAT);
+			}
+		},
+		new Migration(8, "Reservations due index") {
+			@Override
+			boolean isApplied(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				return indexExists(metaData, DataSourceSchemaInfo._TBL_RESERVATIONS, DataSourceSchemaInfo._IDX_RESERVATIONS_DUE);
+			}
+
+			@Override
+			void apply(Connection connection, DatabaseMetaData metaData) throws SQLException {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE_RESERVATIONS_DUE_INDEX);
+			}
+		},
+	};
+
+	private SchemaMigrations() {
+	}
+
+	/**
+	 * @return the version of the schema once migrated
+	 */
+	static int getLatestVersion() {
+		return MIGRATIONS[MIGRATIONS.length - 1].version;
+	}
+
+	/**
+	 * Brings the schema up to the latest version.
+	 * 
+	 * @param connection the connection to use, not closed
+	 * @param tracer the tracer to trace with
+	 * @throws SQLException if a migration fails
+	 */
+	static void migrate(Connection connection, Tracer tracer) throws SQLException {
+		long started = System.nanoTime();
+		DatabaseMetaData metaData = connection.getMetaData();
+		if (!tableExists(metaData, DataSourceSchemaInfo._TBL_SCHEMA_VERSION)) {
+			try {
+				execute(connection, DataSourceSchemaInfo._QUERY_CREATE_SCHEMA_VERSION);
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[><] Executed CREATE Statement (" + DataSourceSchemaInfo._QUERY_CREATE_SCHEMA_VERSION + ")");
+				}
+			}
+			catch (SQLException e) {
+				// unless someone else just created it
+				if (!tableExists(metaData, DataSourceSchemaInfo._TBL_SCHEMA_VERSION)) {
+					throw e;
+				}
+			}
+		}
+
+		int version = getVersion(connection);
+		int initialVersion = version;
+		for (Migration migration : MIGRATIONS) {
+			if (migration.version <= version) {
+				continue;
+			}
+			if (migration.isApplied(connection, metaData)) {
+				if (tracer.isFineEnabled()) {
+					tracer.fine("[><] Schema migration " + migration + " already in place.");
+				}
+			}
+			else {
+				try {
+					migration.apply(connection, metaData);
+				}
+				catch (SQLException e) {
+					if (!migration.isApplied(connection, metaData)) {
+						throw e;
+					}
+				}
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[><] Applied schema migration " + migration + ".");
+				}
+			}
+			record(connection, migration);
+			version = migration.version;
+		}
+
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Schema at version " + version + (version != initialVersion ? ", from " + initialVersion : "") + ". Checked in "
+					+ (System.nanoTime() - started) / 1000000L + "ms.");
+		}
+	}
+
+	private static int getVersion(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(DataSourceSchemaInfo._QUERY_SELECT_SCHEMA_VERSION);
+			// MAX of no rows is NULL, read as 0
+			return resultSet.next() ? resultSet.getInt(1) : 0;
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private static void record(Connection connection, Migration migration) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_INSERT_SCHEMA_VERSION);
+		try {
+			preparedStatement.setInt(1, migration.version);
+			preparedStatement.setString(2, migration.description);
+			preparedStatement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+			preparedStatement.executeUpdate();
+		}
+		catch (SQLException e) {
+			// unless someone else just recorded it
+			if (getVersion(connection) < migration.version) {
+				throw e;
+			}
+		}
+		finally {
+			preparedStatement.close();
+		}
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	// ------------------------------- Metadata -------------------------------
+
+	/**
+	 * @return the name as the database stores unquoted identifiers, for metadata lookups
+	 */
+	private static String identifier(DatabaseMetaData metaData, String name) throws SQLException {
+		if (metaData.storesLowerCaseIdentifiers()) {
+			return name.toLowerCase();
+		}
+		if (metaData.storesUpperCaseIdentifiers()) {
+			return name.toUpperCase();
+		}
+		return name;
+	}
+
+	private static boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+		ResultSet resultSet = metaData.getTables(null, null, identifier(metaData, table), new String[] { "TABLE" });
+		try {
+			return resultSet.next();
+		}
+		finally {
+			resultSet.close();
+		}
+	}
+
+	/**
+	 * @return the {@link Types} of the column, null if there's no such column
+	 */
+	private static Integer columnType(DatabaseMetaData metaData, String table, String column) throws SQLException {
+		ResultSet resultSet = metaData.getColumns(null, null, identifier(metaData, table), identifier(metaData, column));
+		try {
+			return resultSet.next() ? resultSet.getInt("DATA_TYPE") : null;
+		}
+		finally {
+			resultSet.close();
+		}
+	}
+
+	private static boolean indexExists(DatabaseMetaData metaData, String table, String index) throws SQLException {
+		// approximate, so that no statistics are gathered, only the index names are needed
+		ResultSet resultSet = metaData.getIndexInfo(null, null, identifier(metaData, table), false, true);
+		try {
+			while (resultSet.next()) {
+				if (index.equalsIgnoreCase(resultSet.getString("INDEX_NAME"))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			resultSet.close();
+		}
+	}
+
+	/**
+	 * Changing the type of a column is not standard across databases: MySQL redefines the whole column,
+	 * others mostly take the SQL standard form, PostgreSQL included.
+	 */
+	private static String alterToBigint(DatabaseMetaData metaData, String column, String constraints) throws SQLException {
+		String product = metaData.getDatabaseProductName().toLowerCase();
+		if (product.contains("mysql") || product.contains("mariadb")) {
+			return "ALTER TABLE " + DataSourceSchemaInfo._TBL_USERS + " MODIFY " + column + " BIGINT" + constraints;
+		}
+		return "ALTER TABLE " + DataSourceSchemaInfo._TBL_USERS + " ALTER COLUMN " + column + " SET DATA TYPE BIGINT";
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable consistent hash ring, mapping each MSISDN to one of the shards, named by their JDBC RA entity link.
+ * 
+ * It's built from a definition with format <code>link[*weight],...</code>, eg: <code>JDBCRA,JDBCRA-1,JDBCRA-2*2</code>.
+ * Each shard gets {@value #POINTS_PER_WEIGHT} points on the ring per unit of weight, and an MSISDN belongs to the shard
+ * owning the first point at or after its hash, so adding or removing a shard only moves the subscribers between it and
+ * its neighbours, about 1/N of them. Lookups are a binary search on a sorted primitive int array.
+ * 
+ * The ring in use can be swapped at runtime with {@link #setCurrent(ShardRing)}, readers always see a consistent
+ * snapshot.
+ */
+public final class ShardRing {
+
+	private static final int POINTS_PER_WEIGHT = 512;
+
+	// hashes sampled to estimate how much of the ring changes owner between two rings
+	private static final int MOVED_SAMPLES = 1 << 16;
+
+	private static volatile ShardRing current;
+
+	private final String definition;
+	private final String[] shards;
+
+	// sorted ring points, and the owner shard index for each, at the same index
+	private final int[] points;
+	private final int[] owners;
+
+	private ShardRing(String definition, String[] shards, int[] points, int[] owners) {
+		this.definition = definition;
+		this.shards = shards;
+		this.points = points;
+		this.owners = owners;
+	}
+
+	/**
+	 * Builds a ring from its textual definition.
+	 * 
+	 * @param definition the definition, in <code>link[*weight],...</code> format
+	 * @return the ring
+	 * @throws IllegalArgumentException if the definition is empty or malformed
+	 */
+	public static ShardRing parse(String definition) throws IllegalArgumentException {
+		if (definition == null || definition.trim().length() == 0) {
+			throw new IllegalArgumentException("Empty shard map.");
+		}
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		for (String entry : definition.trim().split(",")) {
+			String[] linkWeight = entry.trim().split("\\*");
+			String link = linkWeight[0].trim();
+			int weight = 1;
+			try {
+				if (linkWeight.length == 2) {
+					weight = Integer.parseInt(linkWeight[1].trim());
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Malformed shard weight in entry '" + entry + "'.", e);
+			}
+			if (link.length() == 0 || linkWeight.length > 2 || weight < 1 || weights.containsKey(link)) {
+				throw new IllegalArgumentException("Malformed or duplicate shard entry '" + entry + "'. Format should be: link[*weight]");
+			}
+			weights.put(link, weight);
+		}
+
+		String[] shards = weights.keySet().toArray(new String[weights.size()]);
+		List<long[]> ring = new ArrayList<long[]>();
+		for (int i = 0; i < shards.length; i++) {
+			int count = weights.get(shards[i]) * POINTS_PER_WEIGHT;
+			for (int j = 0; j < count; j++) {
+				ring.add(new long[] { hash(shards[i] + "#" + j), i });
+			}
+		}
+		long[][] sorted = ring.toArray(new long[ring.size()][]);
+		Arrays.sort(sorted, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0]) {
+					return a[0] < b[0] ? -1 : 1;
+				}
+				// ties (unlikely) broken by shard index
+				return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+			}
+		});
+		int[] points = new int[sorted.length];
+		int[] owners = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			points[i] = (int) sorted[i][0];
+			owners[i] = (int) sorted[i][1];
+		}
+		return new ShardRing(definition.trim(), shards, points, owners);
+	}
+
+	/**
+	 * @return the ring currently in use, or null if none was set
+	 */
+	public static ShardRing getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Replaces the ring in use. Requests being routed keep the snapshot they started with.
+	 * 
+	 * @param ring the new ring
+	 */
+	public static void setCurrent(ShardRing ring) {
+		current = ring;
+	}
+
+	/**
+	 * @param msisdn the user MSISDN
+	 * @return the JDBC RA entity link of the shard the user belongs to
+	 */
+	public String shardFor(String msisdn) {
+		return shards[owners[pointFor(hash(msisdn))]];
+	}
+
+	private int pointFor(int hash) {
+		int index = Arrays.binarySearch(points, hash);
+		if (index < 0) {
+			index = -index - 1;
+			if (index == points.length) {
+				// wrap around
+				index = 0;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the JDBC RA entity links of all the shards, in definition order
+	 */
+	public String[] getShards() {
+		return shards.clone();
+	}
+
+	/**
+	 * Estimates the fraction of subscribers that belong to a different shard in another ring, eg, to report what a
+	 * shard map reload implies.
+	 * 
+	 * @param other the other ring
+	 * @return the fraction, from 0 to 1
+	 */
+	public double movedFraction(ShardRing other) {
+		int moved = 0;
+		long step = (1L << 32) / MOVED_SAMPLES;
+		for (int i = 0; i < MOVED_SAMPLES; i++) {
+			int hash = (int) (Integer.MIN_VALUE + i * step);
+			if (!shards[owners[pointFor(hash)]].equals(other.shards[other.owners[other.pointFor(hash)]])) {
+				moved++;
+			}
+		}
+		return (double) moved / MOVED_SAMPLES;
+	}
+
+	private static int hash(String value) {
+		// FNV-1a 64 bit, then murmur3 64 bit finalizer, for a good spread of similar MSISDNs
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (int) hash;
+	}
+
+	@Override
+	public String toString() {
+		return "ShardRing[" + definition + "; Points=" + points.length + "]";
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and error counters of the operations done on a shard (or a read replica, or the single database when not
+ * sharded), since start. Latency is measured from the task being
+ * submitted to the JDBC RA until its result is received, so it includes waiting for a connection and RA thread.
+ */
+public final class ShardStats {
+
+	private static final ConcurrentMap<String, ShardStats> stats = new ConcurrentHashMap<String, ShardStats>();
+
+	private final String shard;
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private ShardStats(String shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * @param shard the shard (or read replica) JDBC RA entity link
+	 * @return the counters for the shard, created if needed
+	 */
+	public static ShardStats get(String shard) {
+		ShardStats shardStats = stats.get(shard);
+		if (shardStats == null) {
+			ShardStats created = new ShardStats(shard);
+			shardStats = stats.putIfAbsent(shard, created);
+			if (shardStats == null) {
+				shardStats = created;
+			}
+		}
+		return shardStats;
+	}
+
+	/**
+	 * @return the counters of all the shards used so far
+	 */
+	public static List<ShardStats> getAll() {
+		return new ArrayList<ShardStats>(stats.values());
+	}
+
+	/**
+	 * Records an operation.
+	 * 
+	 * @param latencyNanos the operation latency
+	 * @param error true if it failed on a database error, or the shard was not available
+	 */
+	public void record(long latencyNanos, boolean error) {
+		operations.incrementAndGet();
+		if (error) {
+			errors.incrementAndGet();
+		}
+		totalLatencyNanos.addAndGet(latencyNanos);
+		long max = maxLatencyNanos.get();
+		while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+			max = maxLatencyNanos.get();
+		}
+	}
+
+	public String getShard() {
+		return shard;
+	}
+
+	public long getOperations() {
+		return operations.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the average latency, in milliseconds
+	 */
+	public double getAverageLatencyMillis() {
+		long count = operations.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * @return the maximum latency, in milliseconds
+	 */
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return "ShardStats[" + shard + "; Operations=" + getOperations() + "; Errors=" + getErrors() + "; AvgLatency=" + String.format("%.2f", getAverageLatencyMillis()) + "ms; MaxLatency="
+				+ String.format("%.2f", getMaxLatencyMillis()) + "ms]";
+	}
+
+}
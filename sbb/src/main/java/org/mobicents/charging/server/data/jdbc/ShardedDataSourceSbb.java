@@ -0,0 +1,539 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.slee.ActivityContextInterface;
+import javax.slee.Sbb;
+import javax.slee.SbbContext;
+import javax.slee.SbbLocalObject;
+import javax.slee.facilities.Tracer;
+import javax.slee.resource.ResourceAdaptorTypeID;
+
+import org.mobicents.charging.server.BaseSbb;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.DataSource;
+import org.mobicents.slee.SbbContextExt;
+import org.mobicents.slee.resource.jdbc.JdbcActivity;
+import org.mobicents.slee.resource.jdbc.JdbcActivityContextInterfaceFactory;
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+import org.mobicents.slee.resource.jdbc.event.JdbcTaskExecutionThrowableEvent;
+import org.mobicents.slee.resource.jdbc.task.simple.SimpleJdbcTaskResultEvent;
+
+/**
+ * Sharded Datasource Child SBB
+ * 
+ * Same as the {@link DataSourceSbb}, but with the users spread over several databases, each with its own JDBC RA
+ * entity (and so connection pool). Every request for a user is routed to its shard by a {@link ShardRing}, while
+ * pattern searches are scattered to all the shards and their results gathered.
+ * 
+ * The shard map is the "shardMap" env-entry, unless a "shardMapFile" is set, a properties file with a "shardMap"
+ * property, which is checked for changes every "shardMapReloadIntervalMillis" and reloaded online. Moving the users of
+ * the shards whose ring segments change is up to the operator. The shards are named by their JDBC RA entity link, which
+ * must be one of the links bound in the SBB descriptor.
+ * 
+ * Account lookups and searches may be routed to read replicas of the shards, see {@link ReplicaRouter}, each being
+ * another JDBC RA entity link bound in the SBB descriptor.
+ * 
+ * Latency and errors are counted per shard and read replica, see {@link ShardStats}.
+ */
+public abstract class ShardedDataSourceSbb extends BaseSbb implements Sbb, DataSource {
+
+	/**
+	 * the SBB object context
+	 */
+	private SbbContextExt sbbContextExt;
+
+	/**
+	 * the SBB logger
+	 */
+	private static Tracer tracer;
+
+	// ------------------------------- JDBC RA --------------------------------
+	private static final ResourceAdaptorTypeID jdbcRATypeID = JdbcResourceAdaptorSbbInterface.RATYPE_ID;
+	private JdbcActivityContextInterfaceFactory jdbcACIF;
+
+	// ------------------------------ Shard Map -------------------------------
+	private static final String SHARD_MAP_PROPERTY = "shardMap";
+
+	private static volatile File shardMapFile;
+	private static volatile long shardMapReloadIntervalNanos;
+	private static volatile long nextShardMapCheck;
+	private static long shardMapLastModified;
+
+	// --------------------------- Local Interface ----------------------------
+
+	@Override
+	public void init() {
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+
+			// group commit of balance operations, if configured
+			long groupCommitWindowMillis = (Long) ctx.lookup("groupCommitWindowMillis");
+			int groupCommitMaxOperations = (Integer) ctx.lookup("groupCommitMaxOperations");
+			GroupCommitter.configure(groupCommitWindowMillis, groupCommitMaxOperations);
+			ReserveUnitsJdbcTask.setReservationTimeout((Long) ctx.lookup("reservationTimeoutMillis"));
+			SubscriberLanes.configure((Integer) ctx.lookup("subscriberLanes"), (Integer) ctx.lookup("laneMaxCoalesced"));
+			BulkLoadJdbcTask.configure((Integer) ctx.lookup("bulkLoadWorkers"), (Integer) ctx.lookup("bulkLoadBatchSize"));
+			VersionedBalanceUpdates.configure((Boolean) ctx.lookup("optimisticBalanceUpdates"), (Integer) ctx.lookup("optimisticMaxRetries"), (Long) ctx.lookup("optimisticBackoffMicros"));
+
+			String shardMap = (String) ctx.lookup("shardMap");
+			String file = null;
+			try {
+				file = (String) ctx.lookup("shardMapFile");
+			}
+			catch (NamingException e) {
+				// an empty value may not be bound at all, no file then
+			}
+			long reloadIntervalMillis = (Long) ctx.lookup("shardMapReloadIntervalMillis");
+
+			ShardRing ring;
+			if (file != null && file.trim().length() > 0) {
+				shardMapFile = new File(file.trim());
+				shardMapReloadIntervalNanos = reloadIntervalMillis * 1000000L;
+				shardMapLastModified = shardMapFile.lastModified();
+				nextShardMapCheck = System.nanoTime() + shardMapReloadIntervalNanos;
+				ring = ShardRing.parse(readShardMap(shardMapFile));
+			}
+			else {
+				shardMapFile = null;
+				ring = ShardRing.parse(shardMap);
+			}
+			ShardRing.setCurrent(ring);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Sharding users as " + ring + (shardMapFile != null ? ", reloaded from " + shardMapFile.getAbsolutePath() : "") + ". Group commit of balance operations "
+						+ (GroupCommitter.isEnabled() ? "enabled." : "disabled.") + " Subscriber lanes " + (SubscriberLanes.isEnabled() ? "enabled." : "disabled.")
+						+ " Optimistic balance updates " + (VersionedBalanceUpdates.isEnabled() ? "enabled." : "disabled."));
+			}
+			createSchemas(ring.getShards());
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to initialize the sharded datasource.", e);
+		}
+		finally {
+			// the schema may have changed under any statements already prepared
+			DataSourceJdbcTask.clearStatementCache();
+		}
+
+		// read replicas, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			String readReplicas = null;
+			try {
+				readReplicas = (String) ctx.lookup("readReplicas");
+			}
+			catch (NamingException e) {
+				// an empty value may not be bound at all, no replicas then
+			}
+			ReplicaRouter.configure(readReplicas, (Long) ctx.lookup("replicaMaxStalenessMillis"), (Long) ctx.lookup("replicaProbeIntervalMillis"));
+			for (String link : ReplicaRouter.getPrimaries()) {
+				if (getJdbcRA(link) == null) {
+					throw new IllegalArgumentException("Shard '" + link + "' is not a JDBC RA entity link bound to the Sharded Datasource SBB.");
+				}
+			}
+			for (String link : ReplicaRouter.getReplicas()) {
+				if (getJdbcRA(link) == null) {
+					throw new IllegalArgumentException("Read replica '" + link + "' is not a JDBC RA entity link bound to the Sharded Datasource SBB.");
+				}
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Read replicas " + (ReplicaRouter.isEnabled() ? "enabled, " + readReplicas + " up to " + ReplicaRouter.getMaxStalenessMillis() + "ms behind." : "disabled."));
+			}
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to configure read replicas. Reading from the shards only.", e);
+			ReplicaRouter.configure(null, 0, 0);
+		}
+
+		// expiry of balances past their expiry date, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			long balanceExpiryIntervalMillis = (Long) ctx.lookup("balanceExpiryIntervalMillis");
+			BalanceExpiryJob.start(getShardRAs(getInitialShards()), balanceExpiryIntervalMillis, (Integer) ctx.lookup("balanceExpiryPartitions"),
+					(Integer) ctx.lookup("balanceExpiryWorkers"), (Integer) ctx.lookup("balanceExpiryBatchSize"), (Double) ctx.lookup("balanceExpiryDutyCycle"), tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Balance expiry " + (balanceExpiryIntervalMillis > 0 ? "enabled, every " + balanceExpiryIntervalMillis + "ms, over each shard." : "disabled."));
+			}
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to configure balance expiry. Balance expiry disabled.", e);
+			BalanceExpiryJob.stop();
+		}
+
+		// release of expired reservations, if configured
+		try {
+			Context ctx = (Context) new InitialContext().lookup("java:comp/env");
+			long reservationSweepIntervalMillis = (Long) ctx.lookup("reservationSweepIntervalMillis");
+			ReservationSweeper.start(getShardRAs(getInitialShards()), reservationSweepIntervalMillis, (Integer) ctx.lookup("reservationSweepBatchSize"), tracer);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Reservation sweeper " + (reservationSweepIntervalMillis > 0 ? "enabled, every " + reservationSweepIntervalMillis + "ms, over each shard." : "disabled."));
+			}
+		}
+		catch (Exception e) {
+			tracer.warning("[!!] Unable to configure the reservation sweeper. Reservation sweeper disabled.", e);
+			ReservationSweeper.stop();
+		}
+	}
+
+	@Override
+	public void stop() {
+		BalanceExpiryJob.stop();
+		ReservationSweeper.stop();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Balance expiry and reservation sweeper stopped.");
+		}
+	}
+
+	@Override
+	public void getUserAccountData(String msisdn) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Calling getUserAccountData(" + msisdn + ")");
+		}
+		executeTaskFor(msisdn, true, new GetAccountDataJdbcTask(msisdn, false, tracer));
+	}
+
+	@Override
+	public void findUserAccountData(String msisdnPattern) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Calling findUserAccountData(" + msisdnPattern + ")");
+		}
+		ShardRing ring = getRing();
+		if (ring == null) {
+			rejectTask(new ScatterGatherJdbcTask(msisdnPattern, new ScatterGatherJdbcTask.Gather(1, tracer), tracer));
+			return;
+		}
+		String[] shards = ring.getShards();
+		ScatterGatherJdbcTask.Gather gather = new ScatterGatherJdbcTask.Gather(shards.length, tracer);
+		for (String shard : shards) {
+			executeTask(ReplicaRouter.forRead(shard), new ScatterGatherJdbcTask(msisdnPattern, gather, tracer));
+		}
+	}
+
+	@Override
+	public void requestUnits(List<CreditControlInfo> ccInfos) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Requesting Units: " + ccInfos);
+		}
+		executeTaskFor(ccInfos.get(0).getSubscriptionId(), false, new ReserveUnitsJdbcTask(ccInfos, tracer));
+	}
+
+	@Override
+	public void directDebitUnits(List<CreditControlInfo> ccInfos) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Debiting Units: " + ccInfos);
+		}
+		executeTaskFor(ccInfos.get(0).getSubscriptionId(), false, new DirectDebitUnitsJdbcTask(ccInfos, tracer));
+	}
+
+	@Override
+	public void updateUser(String msisdn, long balance) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Updating User with MSISDN '" + msisdn + "'. Balance = " + balance);
+		}
+		executeTaskFor(msisdn, false, new UpdateUserJdbcTask(msisdn, balance, tracer));
+	}
+
+	@Override
+	public void expireReservations(String msisdn, String sessionId, List<CreditControlInfo> reservations) {
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Expiring reservations of session '" + sessionId + "' for MSISDN '" + msisdn + "'");
+		}
+		executeTaskFor(msisdn, false, new ExpireSessionJdbcTask(msisdn, sessionId, tracer));
+	}
+
+	@Override
+	public boolean loadUsers(String location) {
+		ShardRing ring = getRing();
+		if (ring == null) {
+			tracer.severe("[xx] No shard map in use, the sharded datasource failed to initialize. Unable to load users.");
+			return false;
+		}
+		String[] shards = ring.getShards();
+		int workers = BulkLoadJdbcTask.getWorkers();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Loading Users from '" + (location != null ? location : "") + "' with " + workers + " workers per shard");
+		}
+		BulkLoadJdbcTask.Load load;
+		try {
+			load = BulkLoadJdbcTask.Load.open(location, ring, workers * shards.length, tracer);
+		}
+		catch (IOException e) {
+			tracer.warning("[!!] Unable to open users file '" + location + "'.", e);
+			return false;
+		}
+		if (load == null) {
+			return false;
+		}
+		for (String shard : shards) {
+			for (int i = 0; i < workers; i++) {
+				executeTask(shard, new BulkLoadJdbcTask(load, tracer));
+			}
+		}
+		return true;
+	}
+
+	// ------------------------------ Shard Map -------------------------------
+
+	/**
+	 * @return the ring to route with, after reloading the shard map if it's time to check it and it has changed, or
+	 *         null if none was installed, as when init failed
+	 */
+	private ShardRing getRing() {
+		if (shardMapFile != null && System.nanoTime() - nextShardMapCheck >= 0) {
+			reloadShardMap();
+		}
+		return ShardRing.getCurrent();
+	}
+
+	private void reloadShardMap() {
+		synchronized (ShardedDataSourceSbb.class) {
+			if (System.nanoTime() - nextShardMapCheck < 0) {
+				// someone else just did
+				return;
+			}
+			nextShardMapCheck = System.nanoTime() + shardMapReloadIntervalNanos;
+			long lastModified = shardMapFile.lastModified();
+			if (lastModified == shardMapLastModified) {
+				return;
+			}
+			shardMapLastModified = lastModified;
+			ShardRing previous = ShardRing.getCurrent();
+			try {
+				ShardRing ring = ShardRing.parse(readShardMap(shardMapFile));
+				String[] shards = ring.getShards();
+				for (String shard : shards) {
+					if (getJdbcRA(shard) == null) {
+						throw new IllegalArgumentException("Shard '" + shard + "' is not a JDBC RA entity link bound to the Sharded Datasource SBB.");
+					}
+				}
+				createSchemas(shards);
+				ShardRing.setCurrent(ring);
+				BalanceExpiryJob.setShards(getShardRAs(shards));
+				ReservationSweeper.setShards(getShardRAs(shards));
+				if (tracer.isInfoEnabled()) {
+					tracer.info("[--] Reloaded shard map as " + ring + (previous != null ? ", about " + Math.round(previous.movedFraction(ring) * 100) + "% of the users change shard." : "."));
+					tracer.info("[--] Shard stats so far: " + ShardStats.getAll());
+				}
+			}
+			catch (Exception e) {
+				tracer.warning("[!!] Unable to reload shard map from " + shardMapFile.getAbsolutePath() + ", keeping " + previous, e);
+			}
+		}
+	}
+
+	private Map<String, JdbcResourceAdaptorSbbInterface> getShardRAs(String[] shards) {
+		Map<String, JdbcResourceAdaptorSbbInterface> jdbcRAs = new LinkedHashMap<String, JdbcResourceAdaptorSbbInterface>();
+		for (String shard : shards) {
+			jdbcRAs.put(shard, getJdbcRA(shard));
+		}
+		return jdbcRAs;
+	}
+
+	private static String readShardMap(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return properties.getProperty(SHARD_MAP_PROPERTY);
+	}
+
+	private void createSchemas(String[] shards) {
+		for (String shard : shards) {
+			JdbcResourceAdaptorSbbInterface jdbcRA = getJdbcRA(shard);
+			if (jdbcRA == null) {
+				tracer.warning("[!!] Shard '" + shard + "' is not a JDBC RA entity link bound to the Sharded Datasource SBB. Its users will fail.");
+				continue;
+			}
+			Connection connection = null;
+			try {
+				connection = jdbcRA.getConnection();
+				DataSourceSchemaInfo.createSchemaIfNeeded(connection, tracer);
+			}
+			catch (SQLException e) {
+				tracer.warning("[!!] Unable to create or migrate the schema on shard '" + shard + "'.", e);
+			}
+			finally {
+				try {
+					if (connection != null) {
+						connection.close();
+					}
+				}
+				catch (SQLException e) {
+					tracer.severe("[xx] Failed to close JDBC Connection", e);
+				}
+			}
+		}
+	}
+
+	private JdbcResourceAdaptorSbbInterface getJdbcRA(String shard) {
+		try {
+			return (JdbcResourceAdaptorSbbInterface) sbbContextExt.getResourceAdaptorInterface(jdbcRATypeID, shard);
+		}
+		catch (Exception e) {
+			// not bound
+			return null;
+		}
+	}
+
+	// ---------------------------- Event Handlers ----------------------------
+
+	/**
+	 * Creates a JDBC activity on the shard RA entity and executes the given task, or fails it right away if the shard
+	 * is not available. Runs the read replica heartbeat probes along, when it's time to.
+	 * 
+	 * @param shard the shard (or read replica) JDBC RA entity link
+	 * @param jdbcTask
+	 */
+	/**
+	 * @return the shards of the ring installed by init, none if it failed to install one
+	 */
+	private String[] getInitialShards() {
+		ShardRing ring = ShardRing.getCurrent();
+		return ring != null ? ring.getShards() : new String[0];
+	}
+
+	/**
+	 * Executes the task on the shard of the user, or on a read replica of it if a read, failing it if there's no ring
+	 * to route with.
+	 */
+	private void executeTaskFor(String msisdn, boolean read, DataSourceJdbcTask jdbcTask) {
+		ShardRing ring = getRing();
+		if (ring == null) {
+			rejectTask(jdbcTask);
+			return;
+		}
+		String shard = ring.shardFor(msisdn);
+		executeTask(read ? ReplicaRouter.forRead(shard) : shard, jdbcTask);
+	}
+
+	/**
+	 * Fails the task without executing it, as the datasource failed to initialize.
+	 */
+	private void rejectTask(DataSourceJdbcTask jdbcTask) {
+		tracer.severe("[xx] No shard map in use, the sharded datasource failed to initialize. Failing request.");
+		jdbcTask.reject(new IllegalStateException("No shard map in use."));
+		jdbcTask.callBackParentOnException(sbbContextExt.getSbbLocalObject().getParent());
+	}
+
+	private void executeTask(String shard, DataSourceJdbcTask jdbcTask) {
+		if (ReplicaRouter.isProbeDue()) {
+			for (String primary : ReplicaRouter.getPrimaries()) {
+				executeTask(primary, new HeartbeatJdbcTask(null, tracer));
+			}
+			for (String replica : ReplicaRouter.getReplicas()) {
+				executeTask(replica, new HeartbeatJdbcTask(replica, tracer));
+			}
+		}
+		jdbcTask.submitted(shard);
+		try {
+			JdbcResourceAdaptorSbbInterface jdbcRA = getJdbcRA(shard);
+			if (jdbcRA == null) {
+				throw new IllegalStateException("Shard '" + shard + "' is not a JDBC RA entity link bound to the Sharded Datasource SBB.");
+			}
+			JdbcActivity jdbcActivity = jdbcRA.createActivity();
+			ActivityContextInterface jdbcACI = jdbcACIF.getActivityContextInterface(jdbcActivity);
+			jdbcACI.attach(sbbContextExt.getSbbLocalObject());
+			jdbcActivity.execute(jdbcTask);
+		}
+		catch (Exception e) {
+			tracer.severe("[xx] Unable to execute task on shard '" + shard + "'.", e);
+			jdbcTask.reject(e);
+			completed(jdbcTask, true);
+			jdbcTask.callBackParentOnException(sbbContextExt.getSbbLocalObject().getParent());
+		}
+	}
+
+	private void completed(DataSourceJdbcTask jdbcTask, boolean error) {
+		ShardStats shardStats = ShardStats.get(jdbcTask.getShard());
+		shardStats.record(System.nanoTime() - jdbcTask.getSubmittedNanos(), error || jdbcTask.isFailed());
+		if (tracer.isFineEnabled()) {
+			tracer.fine("[//] Completed task " + jdbcTask + " on " + shardStats + (SubscriberLanes.isEnabled() ? ". Lanes: " + SubscriberLanes.getStats() : "")
+					+ (VersionedBalanceUpdates.isEnabled() ? ". Optimistic: " + VersionedBalanceUpdates.getStats() : "")
+					+ (ReplicaRouter.isEnabled() ? ". Replicas: " + ReplicaRouter.getStats() : ""));
+		}
+	}
+
+	/**
+	 * Event handler for {@link JdbcTaskExecutionThrowableEvent}.
+	 * 
+	 * @param event
+	 * @param aci
+	 */
+	public void onJdbcTaskExecutionThrowableEvent(JdbcTaskExecutionThrowableEvent event, ActivityContextInterface aci) {
+		if (tracer.isWarningEnabled()) {
+			tracer.warning("Received a JdbcTaskExecutionThrowableEvent, as result of executed task " + event.getTask(), event.getThrowable());
+		}
+		// end jdbc activity
+		((JdbcActivity) aci.getActivity()).endActivity();
+		// call back parent
+		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
+		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		completed(jdbcTask, true);
+		jdbcTask.callBackParentOnException(parent);
+	}
+
+	public void onSimpleJdbcTaskResultEvent(SimpleJdbcTaskResultEvent event, ActivityContextInterface aci) {
+		// end jdbc activity
+		((JdbcActivity) aci.getActivity()).endActivity();
+		// call back parent
+		final SbbLocalObject parent = sbbContextExt.getSbbLocalObject().getParent();
+		final DataSourceJdbcTask jdbcTask = (DataSourceJdbcTask) event.getTask();
+		completed(jdbcTask, false);
+		jdbcTask.callBackParentOnResult(parent);
+	}
+
+	// ---------------------------- SLEE Callbacks ----------------------------
+
+	@Override
+	public void setSbbContext(SbbContext context) {
+		sbbContextExt = (SbbContextExt) context;
+		if (tracer == null) {
+			tracer = sbbContextExt.getTracer("CS-SHARDS");
+		}
+		jdbcACIF = (JdbcActivityContextInterfaceFactory) this.sbbContextExt.getActivityContextInterfaceFactory(jdbcRATypeID);
+	}
+
+	@Override
+	public void unsetSbbContext() {
+		sbbContextExt = null;
+		jdbcACIF = null;
+	}
+}
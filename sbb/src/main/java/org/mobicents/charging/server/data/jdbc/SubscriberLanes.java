@@ -0,0 +1,315 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.slee.facilities.Tracer;
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Ordered per subscriber execution of balance mutations: each subscriber is hashed onto one of a fixed number of
+ * lanes, and each lane executes its tasks one transaction at a time, in arrival order. Tasks for one subscriber never
+ * race for its row, while subscribers on different lanes go in parallel.
+ * 
+ * Like {@link GroupCommitter}, it has no threads of its own: a task arriving at an idle lane makes its JDBC RA thread
+ * the lane consumer, which executes the queued tasks, on its own connection, until its own is done, then hands the
+ * lane over to the thread of the next queued task. Other threads just wait for their task to be done. There's a set
+ * of lanes per shard, as a consumer can only execute tasks for the shard of its connection.
+ * 
+ * The consumer takes the queued tasks, up to a maximum, and applies them in order in a single transaction, coalescing
+ * the operations for the same subscriber (and any other subscriber sharing the lane) into one commit. As a subscriber
+ * is only ever in one lane, transactions of different lanes never lock the same user row.
+ */
+public final class SubscriberLanes {
+
+	private static volatile int laneCount = 0;
+	private static volatile int maxCoalesced = 1;
+
+	// lanes per shard (null when not sharded)
+	private static final Map<String, Lane[]> lanes = new HashMap<String, Lane[]>();
+
+	private SubscriberLanes() {
+	}
+
+	/**
+	 * Configures the lanes. Tasks queued in the lanes in use are still executed.
+	 * 
+	 * @param laneCount the number of lanes, 0 disables lanes; should not exceed the JDBC RA executor threads
+	 * @param maxCoalesced the maximum number of queued tasks applied in a single transaction
+	 */
+	static void configure(int laneCount, int maxCoalesced) {
+		synchronized (lanes) {
+			SubscriberLanes.maxCoalesced = Math.max(1, maxCoalesced);
+			if (SubscriberLanes.laneCount != laneCount) {
+				SubscriberLanes.laneCount = Math.max(0, laneCount);
+				lanes.clear();
+			}
+		}
+	}
+
+	static boolean isEnabled() {
+		return laneCount > 0;
+	}
+
+	/**
+	 * Executes the task in the lane of its subscriber, returning once it's done.
+	 */
+	static void execute(BalanceMutationJdbcTask task, JdbcTaskContext taskContext) {
+		Lane lane = getLane(task.getShard(), task.msisdn);
+		QueuedTask queued = new QueuedTask(task);
+		if (lane.enqueue(queued)) {
+			lane.consume(queued, taskContext);
+		}
+	}
+
+	private static Lane getLane(String shard, String msisdn) {
+		synchronized (lanes) {
+			Lane[] shardLanes = lanes.get(shard);
+			if (shardLanes == null) {
+				shardLanes = new Lane[Math.max(1, laneCount)];
+				for (int i = 0; i < shardLanes.length; i++) {
+					shardLanes[i] = new Lane();
+				}
+				lanes.put(shard, shardLanes);
+			}
+			int h = msisdn.hashCode();
+			h ^= (h >>> 16);
+			return shardLanes[(h & 0x7fffffff) % shardLanes.length];
+		}
+	}
+
+	/**
+	 * @param shard the shard, or null when not sharded
+	 * @return the number of tasks queued in each lane for the shard, including the ones being executed
+	 */
+	public static int[] getQueueDepths(String shard) {
+		Lane[] shardLanes;
+		synchronized (lanes) {
+			shardLanes = lanes.get(shard);
+		}
+		if (shardLanes == null) {
+			return new int[0];
+		}
+		int[] depths = new int[shardLanes.length];
+		for (int i = 0; i < shardLanes.length; i++) {
+			synchronized (shardLanes[i]) {
+				depths[i] = shardLanes[i].queue.size();
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the queue depth and counters of every lane in use, for traces
+	 */
+	public static String getStats() {
+		Map<String, Lane[]> snapshot;
+		synchronized (lanes) {
+			snapshot = new HashMap<String, Lane[]>(lanes);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Lane[]> entry : snapshot.entrySet()) {
+			Lane[] shardLanes = entry.getValue();
+			for (int i = 0; i < shardLanes.length; i++) {
+				Lane lane = shardLanes[i];
+				synchronized (lane) {
+					if (lane.operations == 0 && lane.queue.isEmpty()) {
+						continue;
+					}
+					if (sb.length() > 0) {
+						sb.append("; ");
+					}
+					sb.append(entry.getKey() != null ? entry.getKey() : "").append("#").append(i).append("[Depth=").append(lane.queue.size()).append("; MaxDepth=").append(lane.maxDepth)
+							.append("; Operations=").append(lane.operations).append("; Transactions=").append(lane.transactions).append("]");
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class QueuedTask {
+
+		private final BalanceMutationJdbcTask task;
+
+		// set under the task monitor, which its thread waits on
+		private boolean done = false;
+		private boolean consumer = false;
+
+		QueuedTask(BalanceMutationJdbcTask task) {
+			this.task = task;
+		}
+
+		synchronized void setDone() {
+			done = true;
+			notify();
+		}
+
+		synchronized void setConsumer() {
+			consumer = true;
+			notify();
+		}
+
+		/**
+		 * @return true if the thread is to be the consumer, false if the task is done
+		 */
+		synchronized boolean await() {
+			boolean interrupted = false;
+			// the consumer is using this task, there's no giving up
+			while (!done && !consumer) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return !done;
+		}
+	}
+
+	private static class Lane {
+
+		private final LinkedList<QueuedTask> queue = new LinkedList<QueuedTask>();
+
+		private boolean busy = false;
+
+		private int maxDepth = 0;
+		private long operations = 0;
+		private long transactions = 0;
+
+		/**
+		 * Queues the task and waits for it to be done, unless its thread gets to be the consumer.
+		 * 
+		 * @return true if the thread is the consumer
+		 */
+		boolean enqueue(QueuedTask queued) {
+			synchronized (this) {
+				queue.add(queued);
+				if (queue.size() > maxDepth) {
+					maxDepth = queue.size();
+				}
+				if (!busy) {
+					busy = true;
+					return true;
+				}
+			}
+			return queued.await();
+		}
+
+		/**
+		 * Executes queued tasks until the given one is done, then hands the lane over.
+		 */
+		void consume(QueuedTask own, JdbcTaskContext taskContext) {
+			while (true) {
+				List<QueuedTask> batch = new ArrayList<QueuedTask>();
+				synchronized (this) {
+					// the tasks being executed stay queued, to be counted in the depth
+					Iterator<QueuedTask> it = queue.iterator();
+					while (it.hasNext() && batch.size() < maxCoalesced) {
+						batch.add(it.next());
+					}
+				}
+
+				execute(batch, taskContext);
+
+				QueuedTask next = null;
+				synchronized (this) {
+					operations += batch.size();
+					transactions++;
+					for (QueuedTask queued : batch) {
+						queue.remove(queued);
+					}
+					if (batch.contains(own)) {
+						if (queue.isEmpty()) {
+							busy = false;
+						}
+						else {
+							next = queue.getFirst();
+						}
+					}
+				}
+				for (QueuedTask queued : batch) {
+					if (queued != own) {
+						queued.setDone();
+					}
+				}
+				if (batch.contains(own)) {
+					if (next != null) {
+						next.setConsumer();
+					}
+					return;
+				}
+			}
+		}
+
+		private void execute(List<QueuedTask> batch, JdbcTaskContext taskContext) {
+			Tracer tracer = batch.get(0).task.tracer;
+			SleeTransaction tx = null;
+			Connection connection = null;
+			try {
+				tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+				connection = taskContext.getConnection();
+				for (QueuedTask queued : batch) {
+					queued.task.apply(connection);
+				}
+				tx.commit();
+				tx = null;
+				if (batch.size() > 1 && tracer.isFineEnabled()) {
+					tracer.fine("[//] Coalesced " + batch.size() + " balance operations in a lane.");
+				}
+			}
+			catch (Exception e) {
+				tracer.severe("[xx] Failed to execute " + batch.size() + " balance operations in a lane.", e);
+				for (QueuedTask queued : batch) {
+					queued.task.fail(e);
+				}
+				if (connection != null) {
+					DataSourceJdbcTask.evictStatements(connection);
+				}
+			}
+			finally {
+				if (tx != null) {
+					try {
+						tx.rollback();
+					}
+					catch (Exception f) {
+						tracer.severe("[xx] Failed to rollback tx", f);
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -57,13 +57,14 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 	@Override
 	public Object executeSimple(JdbcTaskContext taskContext) {
 		SleeTransaction tx = null;
+		Connection connection = null;
 		try {
 			tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
-			Connection connection = taskContext.getConnection();
+			connection = taskContext.getConnection();
 			// static value of query string, since its widely used :)
-			PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_INSERT);
+			PreparedStatement preparedStatement = prepareStatement(connection, DataSourceSchemaInfo._QUERY_INSERT);
 			preparedStatement.setString(1, msisdn);
-			preparedStatement.setFloat(2, balance);
+			preparedStatement.setLong(2, balance);
 			preparedStatement.setDate(3, null);
 			preparedStatement.setTimestamp(4, null);
 			preparedStatement.setString(5, "Active");
@@ -76,6 +77,10 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 		}
 		catch (Exception e) {
 			tracer.severe("Failed to execute jdbc task.", e);
+			setFailed();
+			if (connection != null) {
+				evictStatements(connection);
+			}
 			return null;
 		}
 		finally {
@@ -96,7 +101,7 @@ public class UpdateUserJdbcTask extends DataSourceJdbcTask {
 
 	@Override
 	public void callBackParentOnResult(SbbLocalObject parent) {
-		((DiameterChargingServer) parent).updateAccountDataResult(true);
+		((DiameterChargingServer) parent).updateAccountDataResult(!isFailed());
 	}
 
 }
@@ -0,0 +1,161 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.slee.transaction.SleeTransaction;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Optimistic balance mutations: the balance is read along with the user row version, with no lock held, the grant is
+ * worked out from it, and the update is a compare-and-set on the version. If some other operation got to the user row
+ * in between, the transaction is rolled back and the task retried, after a randomized exponential backoff, up to a
+ * maximum number of attempts before the task fails.
+ * 
+ * Unlike the conditional UPDATE, which holds the user row lock from the mutation until the commit, the lock is only
+ * taken by the versioned UPDATE itself, so operations for a busy user don't queue on it while others commit. The price
+ * is a read more per attempt, and the retries when they do collide: it suits users with few concurrent sessions, while
+ * for users with many of them, where most attempts would collide, {@link SubscriberLanes} serialize them instead.
+ * 
+ * Reservation rows of the session are still written within the transaction, so they get locked and retried along.
+ */
+final class VersionedBalanceUpdates {
+
+	private static volatile boolean enabled = false;
+	private static volatile int maxRetries = 8;
+	private static volatile long backoffNanos = TimeUnit.MICROSECONDS.toNanos(500);
+
+	private static final Random random = new Random();
+
+	// counters, for traces
+	private static final AtomicLong operations = new AtomicLong();
+	private static final AtomicLong conflicts = new AtomicLong();
+	private static final AtomicLong exhausted = new AtomicLong();
+	// operations per number of retries they took, the last one counting those that took more
+	private static final AtomicLongArray retries = new AtomicLongArray(5);
+
+	private VersionedBalanceUpdates() {
+	}
+
+	/**
+	 * Configures optimistic balance updates.
+	 * 
+	 * @param enabled whether balance mutations are applied with versioned updates
+	 * @param maxRetries how many times a task is retried after a conflict before it fails
+	 * @param backoffMicros the base backoff before retrying, doubling with every retry
+	 */
+	static void configure(boolean enabled, int maxRetries, long backoffMicros) {
+		VersionedBalanceUpdates.maxRetries = Math.max(0, maxRetries);
+		VersionedBalanceUpdates.backoffNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, backoffMicros));
+		VersionedBalanceUpdates.enabled = enabled;
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Executes the task, retrying it on conflicts, returning once it's committed or failed.
+	 */
+	static void execute(BalanceMutationJdbcTask task, JdbcTaskContext taskContext) {
+		operations.incrementAndGet();
+		for (int attempt = 0; ; attempt++) {
+			SleeTransaction tx = null;
+			Connection connection = null;
+			try {
+				tx = taskContext.getSleeTransactionManager().beginSleeTransaction();
+				connection = taskContext.getConnection();
+				if (task.applyVersioned(connection)) {
+					tx.commit();
+					tx = null;
+					retries.incrementAndGet(Math.min(attempt, retries.length() - 1));
+					return;
+				}
+			}
+			catch (Exception e) {
+				task.fail(e);
+				if (connection != null) {
+					DataSourceJdbcTask.evictStatements(connection);
+				}
+				return;
+			}
+			finally {
+				if (tx != null) {
+					try {
+						tx.rollback();
+					}
+					catch (Exception f) {
+						task.tracer.severe("[xx] Failed to rollback tx", f);
+					}
+				}
+			}
+
+			conflicts.incrementAndGet();
+			if (attempt >= maxRetries) {
+				exhausted.incrementAndGet();
+				task.fail(new SQLException("Balance for MSISDN '" + task.msisdn + "' kept changing, gave up after " + (attempt + 1) + " attempts."));
+				return;
+			}
+			backoff(attempt);
+		}
+	}
+
+	/**
+	 * Sleeps for a random time up to the base backoff doubled for each previous attempt, so that colliding tasks
+	 * spread instead of colliding again.
+	 */
+	private static void backoff(int attempt) {
+		long cap = backoffNanos << Math.min(attempt, 10);
+		if (cap <= 0) {
+			Thread.yield();
+			return;
+		}
+		long nanos;
+		synchronized (random) {
+			nanos = (long) (random.nextDouble() * cap);
+		}
+		LockSupport.parkNanos(nanos);
+	}
+
+	static String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Operations=").append(operations.get()).append("; Conflicts=").append(conflicts.get()).append("; Exhausted=").append(exhausted.get()).append("; Retries=[");
+		for (int i = 0; i < retries.length(); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(i).append(i == retries.length() - 1 ? "+:" : ":").append(retries.get(i));
+		}
+		return sb.append("]").toString();
+	}
+
+}
@@ -0,0 +1,541 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Write-ahead journal of the balance changes done in memory, so that they survive a crash.
+ * 
+ * Every change is appended as a fixed size record with the resulting (after-image) balance and reserved amount of the
+ * user, so replaying records is idempotent. Records are appended to memory-mapped segment files, and made durable with
+ * a group fsync: the first thread waiting for its record forces the segment, covering all the records appended so
+ * far, while any other thread just waits for it.
+ * 
+ * Periodically, a snapshot of the whole table is written and the journal segments it makes redundant are removed. The
+ * snapshot is taken after rolling to a new segment, so replaying the journal from there gives the right balances even
+ * if the snapshot already includes some of the later changes. The two latest snapshots are kept, with the segments
+ * needed to replay from the oldest, in case the latest one is found corrupt.
+ * 
+ * Startup loads the latest valid snapshot and replays the journal after it. A torn record at the end of the last
+ * segment (a crash while appending) is where appending resumes, anywhere else it means corruption and fails recovery.
+ * 
+ * Record format (40 bytes): crc int (of the following 36 bytes), type byte, status byte, 2 padding bytes, sequence
+ * long, encoded MSISDN long, balance long, reserved long.
+ */
+public class BalanceJournal {
+
+	public static final byte TYPE_RESERVE = 1;
+	public static final byte TYPE_DEBIT = 2;
+	public static final byte TYPE_RELEASE = 3;
+	public static final byte TYPE_TOP_UP = 4;
+
+	private static final int RECORD_SIZE = 40;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+
+	private static final int SNAPSHOT_MAGIC = 0x43534253; // "CSBS"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOTS_KEPT = 2;
+
+	private final File directory;
+	private final int segmentSize;
+	private final Tracer tracer;
+
+	// --- guarded by this ---
+	private MappedByteBuffer segment;
+	private long lastSeq;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private final CRC32 crc = new CRC32();
+	private IOException failure;
+
+	// --- guarded by syncLock ---
+	private final Object syncLock = new Object();
+	private long durableSeq;
+	private boolean syncing;
+
+	// one snapshot at a time
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * @param directory where to keep the journal segments and snapshots, created if needed
+	 * @param segmentSize the size of each segment file, in bytes
+	 * @param tracer
+	 */
+	public BalanceJournal(File directory, int segmentSize, Tracer tracer) {
+		this.directory = directory;
+		this.segmentSize = Math.max(RECORD_SIZE * 1024, segmentSize - segmentSize % RECORD_SIZE);
+		this.tracer = tracer;
+	}
+
+	// --- Recovery -------------------------------------------------------------
+
+	/**
+	 * Rebuilds the table from the latest valid snapshot and the journal after it, and gets ready to append.
+	 * 
+	 * @param table the empty table to fill
+	 * @return false if there was nothing to recover from, ie, this is a new journal
+	 * @throws IOException if the journal is corrupt or can't be read
+	 */
+	public synchronized boolean recover(BalanceTable table) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+		long[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		long[] segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+		if (snapshots.length == 0 && segments.length == 0) {
+			openSegment(1, 0);
+			return false;
+		}
+
+		long snapshotSeq = 0;
+		boolean loaded = false;
+		for (int i = snapshots.length - 1; i >= 0 && !loaded; i--) {
+			File file = file(SNAPSHOT_PREFIX, snapshots[i], SNAPSHOT_SUFFIX);
+			if (verifySnapshot(file)) {
+				loadSnapshot(file, table);
+				snapshotSeq = snapshots[i];
+				loaded = true;
+			}
+			else {
+				tracer.severe("[xx] Journal snapshot " + file + " is corrupt, trying an older one.");
+			}
+		}
+		if (snapshots.length > 0 && !loaded) {
+			throw new IOException("No valid journal snapshot found in " + directory);
+		}
+
+		// replay
+		long seq = snapshotSeq;
+		long replayed = 0;
+		for (int i = 0; i < segments.length; i++) {
+			boolean last = i == segments.length - 1;
+			long firstSeq = segments[i];
+			long nextFirstSeq = last ? Long.MAX_VALUE : segments[i + 1];
+			if (nextFirstSeq - 1 <= snapshotSeq) {
+				// all in the snapshot
+				continue;
+			}
+			if (firstSeq > seq + 1) {
+				throw new IOException("Journal segment missing before " + file(SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+			}
+			File file = file(SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX);
+			MappedByteBuffer buffer = map(file, (int) file.length());
+			long expected = firstSeq;
+			while (buffer.remaining() >= RECORD_SIZE) {
+				int position = buffer.position();
+				if (!readRecord(buffer, expected, table, snapshotSeq)) {
+					buffer.position(position);
+					break;
+				}
+				if (expected > snapshotSeq) {
+					replayed++;
+				}
+				expected++;
+			}
+			seq = Math.max(seq, expected - 1);
+			if (last) {
+				// resume appending after the last valid record, clearing whatever follows it, as a record torn by a
+				// crash may be followed by records that made it to disk but were never acknowledged
+				for (int position = buffer.position(); position < buffer.limit(); position++) {
+					buffer.put(position, (byte) 0);
+				}
+				buffer.force();
+				segment = buffer;
+			}
+			else if (expected != nextFirstSeq) {
+				throw new IOException("Journal segment " + file + " is corrupt at record " + expected);
+			}
+		}
+		lastSeq = seq;
+		durableSeq = seq;
+		if (segment == null) {
+			openSegment(seq + 1, 0);
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Recovered " + table.size() + " users from journal: snapshot at " + snapshotSeq + ", " + replayed + " records replayed.");
+		}
+		return true;
+	}
+
+	private boolean readRecord(ByteBuffer buffer, long expectedSeq, BalanceTable table, long snapshotSeq) {
+		int start = buffer.position();
+		int storedCrc = buffer.getInt();
+		crc.reset();
+		for (int i = 4; i < RECORD_SIZE; i++) {
+			crc.update(buffer.get(start + i));
+		}
+		if ((int) crc.getValue() != storedCrc) {
+			return false;
+		}
+		buffer.get(); // type
+		byte status = buffer.get();
+		buffer.getShort();
+		long seq = buffer.getLong();
+		long key = buffer.getLong();
+		long balance = buffer.getLong();
+		long reserved = buffer.getLong();
+		if (seq != expectedSeq) {
+			return false;
+		}
+		if (seq > snapshotSeq) {
+			put(table, key, balance, reserved, status);
+		}
+		return true;
+	}
+
+	// --- Appending ------------------------------------------------------------
+
+	/**
+	 * Appends a record. It's not durable until {@link #awaitDurable(long)} returns. Records for a user must be appended
+	 * in the same order as the changes are applied, ie, while holding the user lock.
+	 * 
+	 * @return the record sequence, to wait for
+	 * @throws IOException if the journal can't be written, from then on it's failed
+	 */
+	public synchronized long append(byte type, long key, long balance, long reserved, byte status) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		try {
+			if (segment.remaining() < RECORD_SIZE) {
+				roll();
+			}
+			long seq = lastSeq + 1;
+			record.clear();
+			record.putInt(0);
+			record.put(type);
+			record.put(status);
+			record.putShort((short) 0);
+			record.putLong(seq);
+			record.putLong(key);
+			record.putLong(balance);
+			record.putLong(reserved);
+			crc.reset();
+			crc.update(record.array(), 4, RECORD_SIZE - 4);
+			record.putInt(0, (int) crc.getValue());
+			record.flip();
+			segment.put(record);
+			lastSeq = seq;
+			return seq;
+		}
+		catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until the record is durable, forcing the journal to disk, unless another thread is already doing it.
+	 * 
+	 * @throws IOException if forcing failed, from then on the journal is failed
+	 */
+	public void awaitDurable(long seq) throws IOException {
+		while (true) {
+			synchronized (syncLock) {
+				while (durableSeq < seq && syncing) {
+					try {
+						syncLock.wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for the journal to be forced.");
+					}
+				}
+				if (durableSeq >= seq) {
+					return;
+				}
+				syncing = true;
+			}
+			// we're the ones forcing it, for everything appended so far
+			long target;
+			MappedByteBuffer buffer;
+			synchronized (this) {
+				if (failure != null) {
+					endSync(0);
+					throw failure;
+				}
+				target = lastSeq;
+				buffer = segment;
+			}
+			try {
+				buffer.force();
+			}
+			catch (RuntimeException e) {
+				IOException f = new IOException("Unable to force journal segment: " + e);
+				synchronized (this) {
+					failure = f;
+				}
+				endSync(0);
+				throw f;
+			}
+			endSync(target);
+		}
+	}
+
+	private void endSync(long target) {
+		synchronized (syncLock) {
+			durableSeq = Math.max(durableSeq, target);
+			syncing = false;
+			syncLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return true if the journal can't be written anymore
+	 */
+	public synchronized boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Moves appending to a new segment, after forcing the current one.
+	 * 
+	 * @return the sequence of the last record in the previous segments
+	 */
+	public synchronized long roll() throws IOException {
+		segment.force();
+		openSegment(lastSeq + 1, 0);
+		return lastSeq;
+	}
+
+	private void openSegment(long firstSeq, int position) throws IOException {
+		segment = map(file(SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX), segmentSize);
+		segment.position(position);
+	}
+
+	private MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size - size % RECORD_SIZE);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// --- Snapshots ------------------------------------------------------------
+
+	/**
+	 * Writes a snapshot of the table and removes what it makes redundant.
+	 * 
+	 * @param table the table being journaled
+	 * @return the snapshot sequence
+	 */
+	public long snapshot(BalanceTable table) throws IOException {
+		synchronized (snapshotLock) {
+			return writeSnapshot(table);
+		}
+	}
+
+	private long writeSnapshot(BalanceTable table) throws IOException {
+		long seq = roll();
+		File tmp = new File(directory, SNAPSHOT_PREFIX + seq + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		long count = 0;
+		try {
+			CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+			DataOutputStream out = new DataOutputStream(cos);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(seq);
+			for (int slot = 0; slot < table.slots(); slot++) {
+				long key = table.getKey(slot);
+				if (key == MsisdnCodec.NONE) {
+					continue;
+				}
+				long balance;
+				long reserved;
+				byte status;
+				synchronized (table.lockFor(slot)) {
+					balance = table.getBalance(slot);
+					reserved = table.getReserved(slot);
+					status = table.getStatus(slot);
+				}
+				out.writeLong(key);
+				out.writeLong(balance);
+				out.writeLong(reserved);
+				out.writeByte(status);
+				count++;
+			}
+			out.writeLong(MsisdnCodec.NONE);
+			out.writeLong(count);
+			out.flush();
+			// the checksum itself is not part of the checksum
+			new DataOutputStream(fos).writeLong(cos.getChecksum().getValue());
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		File file = file(SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX);
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		cleanup();
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[--] Wrote journal snapshot at " + seq + " with " + count + " users.");
+		}
+		return seq;
+	}
+
+	private boolean verifySnapshot(File file) throws IOException {
+		long length = file.length();
+		if (length < 36) {
+			return false;
+		}
+		CheckedInputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+		try {
+			byte[] buffer = new byte[1 << 16];
+			long remaining = length - 8;
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n < 0) {
+					return false;
+				}
+				remaining -= n;
+			}
+			long computed = in.getChecksum().getValue();
+			return computed == new DataInputStream(in).readLong();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void loadSnapshot(File file, BalanceTable table) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Unknown journal snapshot format in " + file);
+			}
+			in.readLong();
+			long count = 0;
+			while (true) {
+				long key = in.readLong();
+				if (key == MsisdnCodec.NONE) {
+					break;
+				}
+				put(table, key, in.readLong(), in.readLong(), in.readByte());
+				count++;
+			}
+			if (in.readLong() != count) {
+				throw new IOException("Journal snapshot " + file + " is incomplete.");
+			}
+		}
+		catch (EOFException e) {
+			throw new IOException("Journal snapshot " + file + " is incomplete.");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void put(BalanceTable table, long key, long balance, long reserved, byte status) throws IllegalStateException {
+		int slot = table.insert(key, balance, reserved, status);
+		if (slot < 0) {
+			throw new IllegalStateException("Too many users to recover in memory, " + table.size() + " recovered so far.");
+		}
+		synchronized (table.lockFor(slot)) {
+			table.set(slot, balance, reserved, status);
+		}
+	}
+
+	/**
+	 * Removes the older snapshots, and the segments not needed to replay from the oldest kept.
+	 */
+	private void cleanup() {
+		long[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		if (snapshots.length < SNAPSHOTS_KEPT) {
+			return;
+		}
+		long oldestKept = snapshots[snapshots.length - SNAPSHOTS_KEPT];
+		for (int i = 0; i < snapshots.length - SNAPSHOTS_KEPT; i++) {
+			delete(file(SNAPSHOT_PREFIX, snapshots[i], SNAPSHOT_SUFFIX));
+		}
+		long[] segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+		for (int i = 0; i < segments.length - 1; i++) {
+			if (segments[i + 1] - 1 <= oldestKept) {
+				delete(file(SEGMENT_PREFIX, segments[i], SEGMENT_SUFFIX));
+			}
+		}
+	}
+
+	private void delete(File file) {
+		if (!file.delete()) {
+			tracer.warning("[!!] Unable to delete " + file);
+		}
+	}
+
+	// --- Files ----------------------------------------------------------------
+
+	private File file(String prefix, long seq, String suffix) {
+		return new File(directory, prefix + String.format("%020d", seq) + suffix);
+	}
+
+	/**
+	 * @return the sequences of the files with the given prefix and suffix, sorted
+	 */
+	private long[] list(final String prefix, final String suffix) {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(suffix);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+		long[] seqs = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			seqs[i] = Long.parseLong(names[i].substring(prefix.length(), names[i].length() - suffix.length()));
+		}
+		Arrays.sort(seqs);
+		return seqs;
+	}
+
+}
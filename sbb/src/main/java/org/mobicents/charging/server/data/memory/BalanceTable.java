@@ -0,0 +1,224 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open addressing (linear probing) table of user balances, keyed by {@link MsisdnCodec encoded MSISDN}, with the
+ * values kept in primitive arrays, indexed by slot.
+ * 
+ * Lookups are lock-free: keys are published with a volatile write, after the slot values are set, and are never
+ * removed. Values are guarded by a lock striped by slot, see {@link #lockFor(int)}, which must be held to read or
+ * change them, so that a check and update of a balance is atomic. Inserts are serialized among themselves.
+ * 
+ * The table has a fixed capacity, set at creation, and each slot has a dirty flag for write-behind.
+ */
+public final class BalanceTable {
+
+	public static final byte STATUS_ACTIVE = 0;
+	public static final byte STATUS_INACTIVE = 1;
+
+	private static final int STRIPES = 256;
+
+	private final AtomicLongArray keys;
+	private final long[] balances;
+	private final long[] reserved;
+	private final byte[] statuses;
+	private final boolean[] dirty;
+
+	private final Object[] locks = new Object[STRIPES];
+	private final Object insertLock = new Object();
+
+	private final int mask;
+	private final int maxSize;
+	private volatile int size;
+
+	/**
+	 * @param maxSize the maximum number of users in the table
+	 */
+	public BalanceTable(int maxSize) {
+		// keep the load factor at 3/4 at most
+		long wanted = Math.max(2, maxSize + (maxSize + 2) / 3);
+		if (wanted > (1 << 30)) {
+			throw new IllegalArgumentException("Balance table capacity too big: " + maxSize);
+		}
+		int slots = Integer.highestOneBit((int) wanted - 1) << 1;
+		this.mask = slots - 1;
+		this.maxSize = maxSize;
+		this.keys = new AtomicLongArray(slots);
+		this.balances = new long[slots];
+		this.reserved = new long[slots];
+		this.statuses = new byte[slots];
+		this.dirty = new boolean[slots];
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @param key the encoded MSISDN
+	 * @return the slot for the user, or -1 if not in the table
+	 */
+	public int find(long key) {
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = keys.get(slot);
+			if (k == key) {
+				return slot;
+			}
+			if (k == MsisdnCodec.NONE) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Inserts a user, if not in the table yet. The new slot is clean, it's up to the caller to flag it as dirty if it
+	 * needs to be written.
+	 * 
+	 * @param key the encoded MSISDN
+	 * @return the slot for the user, either existing (its values left untouched) or new, or -1 if the table is full
+	 */
+	public int insert(long key, long balance, long reservedAmount, byte status) {
+		synchronized (insertLock) {
+			int slot = hash(key) & mask;
+			while (true) {
+				long k = keys.get(slot);
+				if (k == key) {
+					return slot;
+				}
+				if (k == MsisdnCodec.NONE) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (size >= maxSize) {
+				return -1;
+			}
+			synchronized (lockFor(slot)) {
+				balances[slot] = balance;
+				reserved[slot] = reservedAmount;
+				statuses[slot] = status;
+				dirty[slot] = false;
+			}
+			// publish
+			keys.set(slot, key);
+			size++;
+			return slot;
+		}
+	}
+
+	/**
+	 * @return the lock guarding the values of the slot
+	 */
+	public Object lockFor(int slot) {
+		return locks[slot & (STRIPES - 1)];
+	}
+
+	public long getKey(int slot) {
+		return keys.get(slot);
+	}
+
+	// --- the following require holding lockFor(slot) -----------------------
+
+	public long getBalance(int slot) {
+		return balances[slot];
+	}
+
+	public void setBalance(int slot, long balance) {
+		balances[slot] = balance;
+	}
+
+	public long getReserved(int slot) {
+		return reserved[slot];
+	}
+
+	public byte getStatus(int slot) {
+		return statuses[slot];
+	}
+
+	/**
+	 * Sets all the values of a user, as when recovering them.
+	 */
+	public void set(int slot, long balance, long reservedAmount, byte status) {
+		balances[slot] = balance;
+		reserved[slot] = reservedAmount;
+		statuses[slot] = status;
+	}
+
+	/**
+	 * Adds to the balance and reserved amount of a user.
+	 */
+	public void add(int slot, long balanceDelta, long reservedDelta) {
+		balances[slot] += balanceDelta;
+		reserved[slot] += reservedDelta;
+	}
+
+	/**
+	 * Flags the slot as dirty.
+	 * 
+	 * @return true if it was clean, ie, it must be queued for write-behind
+	 */
+	public boolean markDirty(int slot) {
+		boolean wasClean = !dirty[slot];
+		dirty[slot] = true;
+		return wasClean;
+	}
+
+	/**
+	 * Flags the slot as clean, as its values are about to be written.
+	 */
+	public void clearDirty(int slot) {
+		dirty[slot] = false;
+	}
+
+	// -------------------------------------------------------------------------
+
+	/**
+	 * @return the number of users in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots, ie, the exclusive upper bound for slot numbers
+	 */
+	public int slots() {
+		return mask + 1;
+	}
+
+	private static int hash(long key) {
+		// murmur3 64 bit finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+}
@@ -0,0 +1,541 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.data.BalanceSettlement;
+import org.mobicents.charging.server.data.UserAccountData;
+import org.mobicents.charging.server.data.jdbc.DataSourceSchemaInfo;
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * In-memory primary store of user balances, shared by all the in-memory datasource SBB entities.
+ * 
+ * The users table is loaded into a {@link BalanceTable} on start, and from then on balances are checked and changed in
+ * memory only, atomically per user, with the same semantics as the JDBC datasource (see {@link BalanceSettlement}).
+ * Changes are persisted asynchronously by a {@link WriteBehindWriter}. The lag is bounded: once a maximum number of
+ * users have changes not written yet, new reservations and debits are refused, until the writer catches up with half
+ * of them.
+ * 
+ * Optionally, every change is also appended to a {@link BalanceJournal} and made durable before being reported, so
+ * that no change is lost on a crash. The store is then rebuilt from the journal on start, instead of the users table,
+ * which is just brought up to date with it in the background. If the journal fails, reservations and debits are
+ * refused from then on.
+ * 
+ * The store is stopped when the service is deactivated, waiting for the writer to write the pending changes.
+ */
+public final class MemoryBalanceStore {
+
+	// how long stopping waits for the pending changes to be written
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	private static MemoryBalanceStore instance;
+
+	private final BalanceTable table;
+	private final WriteBehindWriter writer;
+	private final int maxPendingWrites;
+	private final BalanceJournal journal;
+	private final Tracer tracer;
+
+	// whether requests are being refused, to trace only when that changes
+	private final AtomicBoolean refusing = new AtomicBoolean();
+	private final AtomicBoolean journalFailed = new AtomicBoolean();
+
+	private Thread writerThread;
+	private Snapshotter snapshotter;
+	private Thread snapshotterThread;
+
+	private MemoryBalanceStore(BalanceTable table, WriteBehindWriter writer, int maxPendingWrites, BalanceJournal journal, Tracer tracer) {
+		this.table = table;
+		this.writer = writer;
+		this.maxPendingWrites = maxPendingWrites;
+		this.journal = journal;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Starts the store, loading all the users from the users table, unless already started.
+	 * 
+	 * @param capacity the maximum number of users
+	 * @param flushIntervalMillis the maximum time between write-behind flushes
+	 * @param maxPendingWrites the maximum number of users with changes not written yet
+	 * @param journalDirectory the directory for the journal, or null not to journal changes
+	 * @param journalSegmentSize the size of each journal segment file, in bytes
+	 * @param snapshotIntervalMillis the time between journal snapshots
+	 * @param jdbcRA the JDBC RA interface, to get connections from
+	 * @param tracer
+	 * @return the store
+	 * @throws SQLException if loading the users fails
+	 * @throws IOException if recovering from the journal fails
+	 */
+	public static synchronized MemoryBalanceStore start(int capacity, long flushIntervalMillis, int maxPendingWrites, File journalDirectory, int journalSegmentSize, long snapshotIntervalMillis,
+			JdbcResourceAdaptorSbbInterface jdbcRA, Tracer tracer) throws SQLException, IOException {
+		if (instance == null) {
+			BalanceTable table = new BalanceTable(capacity);
+			BalanceJournal journal = null;
+			boolean recovered = false;
+			if (journalDirectory != null) {
+				journal = new BalanceJournal(journalDirectory, journalSegmentSize, tracer);
+				recovered = journal.recover(table);
+			}
+			if (!recovered) {
+				load(table, jdbcRA, tracer);
+				if (journal != null) {
+					// start the journal from what was loaded
+					journal.snapshot(table);
+				}
+			}
+			WriteBehindWriter writer = new WriteBehindWriter(table, jdbcRA, flushIntervalMillis, recovered, tracer);
+			Thread thread = new Thread(writer, "CS-WriteBehind");
+			thread.setDaemon(true);
+			thread.start();
+			instance = new MemoryBalanceStore(table, writer, maxPendingWrites, journal, tracer);
+			instance.writerThread = thread;
+			if (journal != null) {
+				instance.snapshotter = new Snapshotter(journal, table, snapshotIntervalMillis, tracer);
+				instance.snapshotterThread = new Thread(instance.snapshotter, "CS-Snapshot");
+				instance.snapshotterThread.setDaemon(true);
+				instance.snapshotterThread.start();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the store, or null if not started
+	 */
+	public static synchronized MemoryBalanceStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Stops the store, once all changes are written, or the writer failed to write them or gave up waiting.
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.writer.stop();
+			try {
+				instance.writerThread.join(STOP_TIMEOUT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (instance.writerThread.isAlive()) {
+				instance.tracer.severe("[xx] Write-behind still writing after " + STOP_TIMEOUT_MILLIS + "ms while stopping, some of the last changes may be lost.");
+			}
+			if (instance.snapshotter != null) {
+				// a last snapshot, for a quicker start, once any periodic one is done
+				instance.snapshotter.stop();
+				try {
+					instance.snapshotterThread.join(STOP_TIMEOUT_MILLIS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (!instance.journal.isFailed()) {
+					try {
+						long started = System.currentTimeMillis();
+						instance.journal.snapshot(instance.table);
+						if (instance.tracer.isInfoEnabled()) {
+							instance.tracer.info("[><] Journal snapshot written in " + (System.currentTimeMillis() - started) + "ms while stopping.");
+						}
+					}
+					catch (IOException e) {
+						instance.tracer.warning("[!!] Failed to write journal snapshot while stopping.", e);
+					}
+				}
+			}
+			instance = null;
+		}
+	}
+
+	private static void load(BalanceTable table, JdbcResourceAdaptorSbbInterface jdbcRA, Tracer tracer) throws SQLException {
+		Connection connection = jdbcRA.getConnection();
+		try {
+			DataSourceSchemaInfo.createSchemaIfNeeded(connection, tracer);
+			PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_ALL);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			try {
+				while (resultSet.next()) {
+					String msisdn = resultSet.getString(DataSourceSchemaInfo._COL_MSISDN);
+					long key = MsisdnCodec.encode(msisdn);
+					if (key == MsisdnCodec.NONE) {
+						tracer.warning("[!!] User with MSISDN '" + msisdn + "' can't be kept in memory (up to " + MsisdnCodec.MAX_DIGITS + " digits only). Skipped.");
+						continue;
+					}
+					byte status = "Active".equalsIgnoreCase(resultSet.getString(DataSourceSchemaInfo._COL_USER_STATUS)) ? BalanceTable.STATUS_ACTIVE : BalanceTable.STATUS_INACTIVE;
+					if (table.insert(key, resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE), resultSet.getLong(DataSourceSchemaInfo._COL_RESERVED), status) < 0) {
+						throw new SQLException("Too many users to load in memory, capacity is " + table.size() + ".");
+					}
+				}
+			}
+			finally {
+				resultSet.close();
+			}
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[><] Loaded " + table.size() + " users in memory.");
+			}
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Reserves (and updates/terminates) units for all the services of a Credit-Control-Request.
+	 * 
+	 * @param ccInfos one CreditControlInfo per service, all for the same user, updated with the outcome
+	 * @return the user account data, same as the JDBC datasource would report
+	 */
+	public UserAccountData reserve(List<CreditControlInfo> ccInfos) {
+		return apply(ccInfos, false);
+	}
+
+	/**
+	 * Debits units for all the services of a Credit-Control-Request.
+	 * 
+	 * @param ccInfos one CreditControlInfo per service, all for the same user, updated with the outcome
+	 * @return the user account data, same as the JDBC datasource would report
+	 */
+	public UserAccountData debit(List<CreditControlInfo> ccInfos) {
+		return apply(ccInfos, true);
+	}
+
+	private UserAccountData apply(List<CreditControlInfo> ccInfos, boolean debit) {
+		String msisdn = ccInfos.get(0).getSubscriptionId();
+		BalanceSettlement settlement = new BalanceSettlement(ccInfos);
+		UserAccountData accountData = new UserAccountData();
+
+		int slot = slotOf(msisdn);
+		if (slot < 0) {
+			settlement.denyAll();
+			accountData.setFailure(true);
+			if (tracer.isInfoEnabled()) {
+				tracer.info("[//] User with MSISDN '" + msisdn + "' not found.");
+			}
+			return accountData;
+		}
+
+		int pending = writer.getPending();
+		// once refusing, keep it until the writer has caught up with half of it, not to flap around the maximum
+		if (refusing.get() ? pending > maxPendingWrites / 2 : pending >= maxPendingWrites) {
+			if (refusing.compareAndSet(false, true)) {
+				tracer.warning("[!!] Refusing reservations and debits, " + pending + " users have changes not persisted yet.");
+			}
+			for (CreditControlInfo ccInfo : ccInfos) {
+				ccInfo.setSuccess(false);
+			}
+			return null;
+		}
+		else if (refusing.get() && refusing.compareAndSet(true, false)) {
+			tracer.info("[--] Accepting reservations and debits again, " + pending + " users have changes not persisted yet.");
+		}
+
+		long requested = settlement.getRequested();
+		long released = debit ? 0 : settlement.getReleased();
+		long balance;
+		long seq = 0;
+		boolean queue;
+		synchronized (table.lockFor(slot)) {
+			long available = table.getBalance(slot) + released;
+			if (available >= requested) {
+				settlement.grantAll();
+			}
+			else if (debit) {
+				settlement.grantWholeServices(available);
+			}
+			else {
+				settlement.grantPartially(available);
+			}
+			long granted = settlement.getGranted();
+			long balanceDelta = released - granted;
+			long reservedDelta = debit ? 0 : granted - settlement.getSettled();
+			if (journal != null) {
+				byte type = debit ? BalanceJournal.TYPE_DEBIT : requested == 0 ? BalanceJournal.TYPE_RELEASE : BalanceJournal.TYPE_RESERVE;
+				try {
+					// journaled before applied, so the journal order per user is the change order
+					seq = journal.append(type, table.getKey(slot), table.getBalance(slot) + balanceDelta, table.getReserved(slot) + reservedDelta, table.getStatus(slot));
+				}
+				catch (IOException e) {
+					return journalFailed(ccInfos, e);
+				}
+			}
+			table.add(slot, balanceDelta, reservedDelta);
+			balance = table.getBalance(slot);
+			queue = table.markDirty(slot);
+		}
+		if (queue) {
+			writer.enqueue(slot);
+		}
+		if (journal != null) {
+			try {
+				journal.awaitDurable(seq);
+			}
+			catch (IOException e) {
+				// already applied in memory, but it can't be reported as done
+				return journalFailed(ccInfos, e);
+			}
+		}
+
+		settlement.setBalances(balance);
+		accountData.setMsisdn(msisdn);
+		accountData.setBalance(balance);
+		for (CreditControlInfo ccInfo : ccInfos) {
+			if (!ccInfo.isSuccessful()) {
+				accountData.setFailure(true);
+			}
+		}
+		return accountData;
+	}
+
+	/**
+	 * @param msisdn the user MSISDN
+	 * @return the user account data, or null if not found
+	 */
+	public UserAccountData get(String msisdn) {
+		int slot = slotOf(msisdn);
+		return slot < 0 ? null : toAccountData(slot);
+	}
+
+	/**
+	 * @param msisdn the user MSISDN
+	 * @return true if the user exists
+	 */
+	public boolean contains(String msisdn) {
+		return slotOf(msisdn) >= 0;
+	}
+
+	/**
+	 * Searches users by MSISDN pattern. Scans the whole table, for management only.
+	 * 
+	 * @param msisdnPattern the SQL LIKE pattern, eg: "%" for all users or "351%" for a prefix
+	 * @return the matching users
+	 */
+	public List<UserAccountData> find(String msisdnPattern) {
+		Pattern pattern = MsisdnCodec.toRegex(msisdnPattern);
+		List<UserAccountData> result = new ArrayList<UserAccountData>();
+		for (int slot = 0; slot < table.slots(); slot++) {
+			long key = table.getKey(slot);
+			if (key != MsisdnCodec.NONE && pattern.matcher(MsisdnCodec.decode(key)).matches()) {
+				result.add(toAccountData(slot));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a user with the given balance, unless already present, in which case its balance and reservations are
+	 * left untouched (as when loading the users file over a store recovered from the journal).
+	 * 
+	 * @return false if the user already exists or can't be kept in memory
+	 */
+	public boolean insert(String msisdn, long balance) {
+		return slotOf(msisdn) < 0 && update(msisdn, balance);
+	}
+
+	/**
+	 * Sets the balance of a user, creating it if needed.
+	 * 
+	 * @return false if the user can't be kept in memory
+	 */
+	public boolean update(String msisdn, long balance) {
+		long key = MsisdnCodec.encode(msisdn);
+		if (key == MsisdnCodec.NONE) {
+			tracer.warning("[!!] User with MSISDN '" + msisdn + "' can't be kept in memory (up to " + MsisdnCodec.MAX_DIGITS + " digits only).");
+			return false;
+		}
+		int slot = table.insert(key, balance, 0, BalanceTable.STATUS_ACTIVE);
+		if (slot < 0) {
+			tracer.warning("[!!] User with MSISDN '" + msisdn + "' can't be kept in memory, capacity (" + table.size() + " users) reached.");
+			return false;
+		}
+		long seq = 0;
+		boolean queue;
+		synchronized (table.lockFor(slot)) {
+			if (journal != null) {
+				try {
+					seq = journal.append(BalanceJournal.TYPE_TOP_UP, key, balance, table.getReserved(slot), table.getStatus(slot));
+				}
+				catch (IOException e) {
+					journalFailed(null, e);
+					return false;
+				}
+			}
+			table.setBalance(slot, balance);
+			queue = table.markDirty(slot);
+		}
+		if (queue) {
+			writer.enqueue(slot);
+		}
+		if (journal != null) {
+			try {
+				journal.awaitDurable(seq);
+			}
+			catch (IOException e) {
+				journalFailed(null, e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back to the balance what a session holds reserved, as its next request would have, when the session
+	 * ended without terminating. Never releases more than the user holds reserved.
+	 * 
+	 * @param msisdn the user of the session
+	 * @param amount the amount reserved by the session
+	 * @return the amount released, or -1 if it failed to be journaled
+	 */
+	public long release(String msisdn, long amount) {
+		int slot = slotOf(msisdn);
+		if (slot < 0 || amount <= 0) {
+			return 0;
+		}
+		long seq = 0;
+		boolean queue;
+		synchronized (table.lockFor(slot)) {
+			amount = Math.min(amount, table.getReserved(slot));
+			if (amount <= 0) {
+				return 0;
+			}
+			if (journal != null) {
+				try {
+					seq = journal.append(BalanceJournal.TYPE_RELEASE, table.getKey(slot), table.getBalance(slot) + amount, table.getReserved(slot) - amount, table.getStatus(slot));
+				}
+				catch (IOException e) {
+					journalFailed(null, e);
+					return -1;
+				}
+			}
+			table.add(slot, amount, -amount);
+			queue = table.markDirty(slot);
+		}
+		if (queue) {
+			writer.enqueue(slot);
+		}
+		if (journal != null) {
+			try {
+				journal.awaitDurable(seq);
+			}
+			catch (IOException e) {
+				journalFailed(null, e);
+				return -1;
+			}
+		}
+		return amount;
+	}
+
+	private UserAccountData journalFailed(List<CreditControlInfo> ccInfos, IOException e) {
+		if (journalFailed.compareAndSet(false, true)) {
+			tracer.severe("[xx] Balance journal failed, refusing reservations and debits from now on.", e);
+		}
+		if (ccInfos != null) {
+			for (CreditControlInfo ccInfo : ccInfos) {
+				ccInfo.setSuccess(false);
+			}
+		}
+		return null;
+	}
+
+	private int slotOf(String msisdn) {
+		long key = MsisdnCodec.encode(msisdn);
+		return key == MsisdnCodec.NONE ? -1 : table.find(key);
+	}
+
+	private UserAccountData toAccountData(int slot) {
+		UserAccountData accountData = new UserAccountData();
+		accountData.setMsisdn(MsisdnCodec.decode(table.getKey(slot)));
+		synchronized (table.lockFor(slot)) {
+			accountData.setBalance(table.getBalance(slot));
+		}
+		return accountData;
+	}
+
+	/**
+	 * Writes a journal snapshot periodically, so that the journal doesn't grow forever.
+	 */
+	private static class Snapshotter implements Runnable {
+
+		private final BalanceJournal journal;
+		private final BalanceTable table;
+		private final long intervalMillis;
+		private final Tracer tracer;
+
+		private volatile boolean running = true;
+
+		Snapshotter(BalanceJournal journal, BalanceTable table, long intervalMillis, Tracer tracer) {
+			this.journal = journal;
+			this.table = table;
+			this.intervalMillis = Math.max(1000, intervalMillis);
+			this.tracer = tracer;
+		}
+
+		void stop() {
+			running = false;
+			synchronized (this) {
+				notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (this) {
+					try {
+						if (running) {
+							wait(intervalMillis);
+						}
+					}
+					catch (InterruptedException e) {
+						running = false;
+					}
+				}
+				if (!running || journal.isFailed()) {
+					break;
+				}
+				try {
+					journal.snapshot(table);
+				}
+				catch (IOException e) {
+					tracer.warning("[!!] Failed to write journal snapshot. Will retry in " + intervalMillis + "ms.", e);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.util.regex.Pattern;
+
+/**
+ * Encodes MSISDNs (up to 18 decimal digits) as positive longs, so that they can be kept in primitive tables. Leading
+ * zeros are kept by prefixing the digits with a 1 before parsing, eg: "00001000" is encoded as 100001000. As no
+ * encoding is 0, it can be used for empty slots.
+ */
+public final class MsisdnCodec {
+
+	/**
+	 * Returned for MSISDNs which can't be encoded.
+	 */
+	public static final long NONE = 0;
+
+	public static final int MAX_DIGITS = 18;
+
+	private MsisdnCodec() {
+	}
+
+	/**
+	 * @param msisdn the MSISDN, may be null
+	 * @return the encoded MSISDN, or {@link #NONE} if it's null, empty, not all digits or too long
+	 */
+	public static long encode(String msisdn) {
+		if (msisdn == null) {
+			return NONE;
+		}
+		int length = msisdn.length();
+		if (length == 0 || length > MAX_DIGITS) {
+			return NONE;
+		}
+		long value = 1;
+		for (int i = 0; i < length; i++) {
+			char c = msisdn.charAt(i);
+			if (c < '0' || c > '9') {
+				return NONE;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @param encoded an encoded MSISDN, other than {@link #NONE}
+	 * @return the MSISDN
+	 */
+	public static String decode(long encoded) {
+		// drop the leading 1
+		return Long.toString(encoded).substring(1);
+	}
+
+	/**
+	 * Compiles a SQL LIKE pattern on MSISDNs, as taken by the datasources, to the equivalent regular expression, for
+	 * stores which scan the users themselves.
+	 * 
+	 * @param likePattern the SQL LIKE pattern, eg: "%" for all users or "351%" for a prefix
+	 * @return the equivalent regular expression
+	 */
+	public static Pattern toRegex(String likePattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < likePattern.length(); i++) {
+			char c = likePattern.charAt(i);
+			if (c == '%' || c == '_') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '%' ? ".*" : ".");
+			}
+			else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+}
@@ -0,0 +1,333 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+
+import javax.slee.facilities.Tracer;
+
+import org.mobicents.charging.server.data.jdbc.DataSourceSchemaInfo;
+import org.mobicents.slee.resource.jdbc.JdbcResourceAdaptorSbbInterface;
+
+/**
+ * Writes the dirty users of a {@link BalanceTable} back to the users table, from a thread of its own, in JDBC batches.
+ * 
+ * Dirty slots are queued only once until written, so the queue can't hold more than the table slots, and its length
+ * is the number of users whose changes are not persisted yet. The queue is written whenever a batch is full or the
+ * flush interval elapses, whatever comes first. If writing fails, the batch is queued again and retried after the
+ * flush interval. Users not in the table yet (inserted in memory) are inserted. When stopped, the queue is written
+ * one last time.
+ * 
+ * When the balances were recovered from a journal rather than loaded from the users table, the table is first
+ * reconciled: users whose values differ, or who are missing from the table, are queued to be written, and users only
+ * in the table are added to memory.
+ */
+public class WriteBehindWriter implements Runnable {
+
+	private static final int BATCH_SIZE = 256;
+
+	private final BalanceTable table;
+	private final JdbcResourceAdaptorSbbInterface jdbcRA;
+	private final long flushIntervalMillis;
+	private final Tracer tracer;
+
+	// ring of dirty slots
+	private final int[] queue;
+	private int head;
+	private int count;
+
+	private volatile boolean running = true;
+	private boolean reconcile;
+
+	// set once the JDBC driver answered a batch without row counts, users are then written back one at a time
+	private boolean oneAtATime;
+
+	/**
+	 * @param reconcile true to reconcile the users table with the balance table before writing
+	 */
+	public WriteBehindWriter(BalanceTable table, JdbcResourceAdaptorSbbInterface jdbcRA, long flushIntervalMillis, boolean reconcile, Tracer tracer) {
+		this.table = table;
+		this.jdbcRA = jdbcRA;
+		this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+		this.reconcile = reconcile;
+		this.tracer = tracer;
+		this.queue = new int[table.slots()];
+	}
+
+	/**
+	 * Queues a slot to be written. Must only be called when {@link BalanceTable#markDirty(int)} returned true.
+	 */
+	public void enqueue(int slot) {
+		synchronized (queue) {
+			queue[(head + count) % queue.length] = slot;
+			if (++count >= BATCH_SIZE) {
+				queue.notify();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of users with changes not written yet
+	 */
+	public int getPending() {
+		synchronized (queue) {
+			return count;
+		}
+	}
+
+	/**
+	 * Stops the writer, once whatever is queued is written.
+	 */
+	public void stop() {
+		running = false;
+		synchronized (queue) {
+			queue.notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (reconcile && running) {
+			try {
+				reconcile();
+				reconcile = false;
+			}
+			catch (SQLException e) {
+				tracer.warning("[!!] Failed to reconcile users with the recovered balances. Will retry in " + flushIntervalMillis + "ms.", e);
+				sleep();
+			}
+		}
+		int[] slots = new int[BATCH_SIZE];
+		long[] values = new long[BATCH_SIZE * 3];
+		while (true) {
+			int n = take(slots);
+			if (n == 0) {
+				if (!running) {
+					// all written
+					break;
+				}
+				continue;
+			}
+			// snapshot
+			for (int i = 0; i < n; i++) {
+				int slot = slots[i];
+				synchronized (table.lockFor(slot)) {
+					table.clearDirty(slot);
+					values[i * 3] = table.getBalance(slot);
+					values[i * 3 + 1] = table.getReserved(slot);
+					values[i * 3 + 2] = table.getStatus(slot);
+				}
+			}
+			try {
+				write(slots, values, n);
+			}
+			catch (Exception e) {
+				if (!running) {
+					tracer.severe("[xx] Failed to write back " + n + " users while stopping, their last changes are lost.", e);
+					break;
+				}
+				tracer.warning("[!!] Failed to write back " + n + " users. Will retry in " + flushIntervalMillis + "ms.", e);
+				for (int i = 0; i < n; i++) {
+					int slot = slots[i];
+					boolean requeue;
+					synchronized (table.lockFor(slot)) {
+						requeue = table.markDirty(slot);
+					}
+					if (requeue) {
+						enqueue(slot);
+					}
+				}
+				sleep();
+			}
+		}
+	}
+
+	/**
+	 * Takes up to a batch of slots from the queue, waiting for the batch to fill up or the flush interval to elapse.
+	 */
+	private int take(int[] slots) {
+		synchronized (queue) {
+			if (count < slots.length && running) {
+				try {
+					queue.wait(flushIntervalMillis);
+				}
+				catch (InterruptedException e) {
+					running = false;
+				}
+			}
+			int n = Math.min(count, slots.length);
+			for (int i = 0; i < n; i++) {
+				slots[i] = queue[head];
+				head = (head + 1) % queue.length;
+			}
+			count -= n;
+			return n;
+		}
+	}
+
+	private void write(int[] slots, long[] values, int n) throws SQLException {
+		Connection connection = jdbcRA.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			PreparedStatement update = connection.prepareStatement(DataSourceSchemaInfo._QUERY_WRITE_BACK);
+			int[] updated = new int[n];
+			for (int i = 0; i < n; i++) {
+				bindWriteBack(update, slots[i], values, i);
+				if (oneAtATime) {
+					updated[i] = update.executeUpdate();
+				}
+				else {
+					update.addBatch();
+				}
+			}
+			if (!oneAtATime) {
+				updated = update.executeBatch();
+			}
+
+			// users created in memory, insert and then write back the reserved amount too
+			for (int i = 0; i < n; i++) {
+				if (updated[i] == Statement.SUCCESS_NO_INFO) {
+					if (!oneAtATime) {
+						tracer.warning("[!!] JDBC driver does not report batch update counts, users will be written back one at a time.");
+						oneAtATime = true;
+					}
+					// it sets absolute values, writing it back again tells whether the user row exists
+					bindWriteBack(update, slots[i], values, i);
+					updated[i] = update.executeUpdate();
+				}
+				if (updated[i] == 0) {
+					PreparedStatement insert = connection.prepareStatement(DataSourceSchemaInfo._QUERY_INSERT);
+					insert.setString(1, MsisdnCodec.decode(table.getKey(slots[i])));
+					insert.setLong(2, values[i * 3]);
+					insert.setDate(3, null);
+					insert.setTimestamp(4, null);
+					insert.setString(5, values[i * 3 + 2] == BalanceTable.STATUS_ACTIVE ? "Active" : "Inactive");
+					insert.executeUpdate();
+					bindWriteBack(update, slots[i], values, i);
+					update.executeUpdate();
+				}
+			}
+			connection.commit();
+			if (tracer.isFineEnabled()) {
+				tracer.fine("[//] Wrote back " + n + " users.");
+			}
+		}
+		catch (SQLException e) {
+			try {
+				connection.rollback();
+			}
+			catch (SQLException f) {
+				// the original failure is the one to report
+			}
+			throw e;
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	private void reconcile() throws SQLException {
+		BitSet seen = new BitSet(table.slots());
+		int queued = 0;
+		int added = 0;
+		Connection connection = jdbcRA.getConnection();
+		try {
+			PreparedStatement preparedStatement = connection.prepareStatement(DataSourceSchemaInfo._QUERY_SELECT_ALL);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			try {
+				while (resultSet.next()) {
+					long key = MsisdnCodec.encode(resultSet.getString(DataSourceSchemaInfo._COL_MSISDN));
+					if (key == MsisdnCodec.NONE) {
+						continue;
+					}
+					long balance = resultSet.getLong(DataSourceSchemaInfo._COL_BALANCE);
+					long reserved = resultSet.getLong(DataSourceSchemaInfo._COL_RESERVED);
+					int slot = table.find(key);
+					if (slot < 0) {
+						// created in the users table while down
+						byte status = "Active".equalsIgnoreCase(resultSet.getString(DataSourceSchemaInfo._COL_USER_STATUS)) ? BalanceTable.STATUS_ACTIVE : BalanceTable.STATUS_INACTIVE;
+						slot = table.insert(key, balance, reserved, status);
+						if (slot >= 0) {
+							seen.set(slot);
+							added++;
+						}
+						continue;
+					}
+					seen.set(slot);
+					boolean queue;
+					synchronized (table.lockFor(slot)) {
+						queue = (table.getBalance(slot) != balance || table.getReserved(slot) != reserved) && table.markDirty(slot);
+					}
+					if (queue) {
+						enqueue(slot);
+						queued++;
+					}
+				}
+			}
+			finally {
+				resultSet.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+		for (int slot = seen.nextClearBit(0); slot < table.slots(); slot = seen.nextClearBit(slot + 1)) {
+			if (table.getKey(slot) == MsisdnCodec.NONE) {
+				continue;
+			}
+			boolean queue;
+			synchronized (table.lockFor(slot)) {
+				queue = table.markDirty(slot);
+			}
+			if (queue) {
+				enqueue(slot);
+				queued++;
+			}
+		}
+		if (tracer.isInfoEnabled()) {
+			tracer.info("[><] Reconciled users with the recovered balances: " + queued + " to write back, " + added + " added in memory.");
+		}
+	}
+
+	private void bindWriteBack(PreparedStatement preparedStatement, int slot, long[] values, int i) throws SQLException {
+		preparedStatement.setLong(1, values[i * 3]);
+		preparedStatement.setLong(2, values[i * 3 + 1]);
+		preparedStatement.setString(3, MsisdnCodec.decode(table.getKey(slot)));
+	}
+
+	private void sleep() {
+		try {
+			Thread.sleep(flushIntervalMillis);
+		}
+		catch (InterruptedException e) {
+			running = false;
+		}
+	}
+
+}
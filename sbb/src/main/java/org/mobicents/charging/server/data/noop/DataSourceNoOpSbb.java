@@ -5,6 +5,7 @@ import org.mobicents.charging.server.account.CreditControlInfo;
 import org.mobicents.charging.server.data.DataSource;
 
 import javax.slee.Sbb;
+import java.util.List;
 
 /**
  * @author ammendonca
@@ -24,21 +25,30 @@ public abstract class DataSourceNoOpSbb extends BaseSbb implements Sbb, DataSour
 		// NO-OP
 	}
 
+	/**
+	 * Searches the user account data from the database, by msisdn pattern
+	 *
+	 * @param msisdnPattern
+	 */
+	public void findUserAccountData(String msisdnPattern) {
+		// NO-OP
+	}
+
 	/**
 	 * Places a new initial/update/terminate request for a user.
 	 *
-	 * @param ccInfo
+	 * @param ccInfos
 	 */
-	public void requestUnits(CreditControlInfo ccInfo) {
+	public void requestUnits(List<CreditControlInfo> ccInfos) {
 		// NO-OP
 	}
 
 	/**
 	 * Places a new event/direct-debit request for a user.
 	 *
-	 * @param ccInfo
+	 * @param ccInfos
 	 */
-	public void directDebitUnits(CreditControlInfo ccInfo) {
+	public void directDebitUnits(List<CreditControlInfo> ccInfos) {
 		// NO-OP
 	}
 
@@ -46,4 +56,13 @@ public abstract class DataSourceNoOpSbb extends BaseSbb implements Sbb, DataSour
 		// NO-OP
 	}
 
+	public void expireReservations(String msisdn, String sessionId, List<CreditControlInfo> reservations) {
+		// NO-OP
+	}
+
+	public boolean loadUsers(String location) {
+		// NO-OP
+		return true;
+	}
+
 }
@@ -24,6 +24,8 @@ package org.mobicents.charging.server.ratingengine;
 
 import java.io.Serializable;
 
+import org.mobicents.charging.server.Money;
+
 /**
  * Helper class for handling Rating Information
  * 
@@ -31,13 +33,16 @@ import java.io.Serializable;
  */
 public class RatingInfo implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 
 	private int responseCode;
 	private String sessionId;
 	private long actualTime;
 	private long currentTime;
-	private double rate;
+	/**
+	 * Rate, in millionths of a balance unit per unit, see {@link Money}.
+	 */
+	private long rate;
 	private String rateDescription;
 	private String ratePromo;
 	
@@ -46,7 +51,7 @@ public class RatingInfo implements Serializable {
 		this.sessionId = sessionId;
 	}
 	
-	public RatingInfo(int responseCode, String sessionId, long actualTime, long currentTime, double rate, String rateDescription, String ratePromo){
+	public RatingInfo(int responseCode, String sessionId, long actualTime, long currentTime, long rate, String rateDescription, String ratePromo){
 		this.responseCode = responseCode;
 		this.sessionId = sessionId;
 		this.actualTime = actualTime;
@@ -87,11 +92,11 @@ public class RatingInfo implements Serializable {
 		this.currentTime = currentTime;
 	}
 
-	public double getRate() {
+	public long getRate() {
 		return rate;
 	}
 
-	public void setRate(double rate) {
+	public void setRate(long rate) {
 		this.rate = rate;
 	}
 
@@ -117,7 +122,7 @@ public class RatingInfo implements Serializable {
 			"sessionId: " 			+ sessionId + "; " +
 			"actualTime: " 			+ actualTime + "; " +
 			"currentTime: " 		+ currentTime + "; " +
-			"sessionId: " 			+ rate + "; " +
+			"rate: " 				+ Money.formatRate(rate) + "; " +
 			"rateDescription: " 	+ rateDescription + "; " +
 			"ratePromo: " 			+ ratePromo + "; " +
 			"]";
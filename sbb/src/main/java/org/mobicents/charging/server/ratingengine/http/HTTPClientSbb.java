@@ -55,6 +55,7 @@ import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.mobicents.charging.server.BaseSbb;
 import org.mobicents.charging.server.DiameterChargingServer;
+import org.mobicents.charging.server.Money;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 import org.mobicents.slee.SbbContextExt;
@@ -251,7 +252,7 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 		String sessionId = diameterSessionId;
 		long actualTime = 0;
 		long currentTime = 0;
-		double rate = 0.0D;
+		long rate = 0;
 		String rateDescription = "";
 		String ratePromo = "";
 		try {
@@ -270,7 +271,7 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 			}
 			actualTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("actualTime").item(0)));
 			currentTime = Long.parseLong(getCharacterDataFromElement((Element) element.getElementsByTagName("currentTime").item(0)));
-			rate = Double.parseDouble(getCharacterDataFromElement((Element) element.getElementsByTagName("rate").item(0)));
+			rate = Money.parseRate(getCharacterDataFromElement((Element) element.getElementsByTagName("rate").item(0)));
 			rateDescription = getCharacterDataFromElement((Element) element.getElementsByTagName("rateDescription").item(0));
 			ratePromo = getCharacterDataFromElement((Element) element.getElementsByTagName("ratePromo").item(0));
 
@@ -279,7 +280,7 @@ public abstract class HTTPClientSbb extends BaseSbb implements Sbb, RatingEngine
 							"sessionId="+sessionId+"; "+
 							"actualTime="+actualTime+"; "+
 							"currentTime="+currentTime+"; "+
-							"rate="+rate+"; "+
+							"rate="+Money.formatRate(rate)+"; "+
 							"rateDescription="+rateDescription+"; "+
 							"ratePromo="+ratePromo);
 
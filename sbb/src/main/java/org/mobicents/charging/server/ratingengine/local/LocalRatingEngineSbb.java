@@ -23,6 +23,7 @@
 package org.mobicents.charging.server.ratingengine.local;
 
 import org.mobicents.charging.server.BaseSbb;
+import org.mobicents.charging.server.Money;
 import org.mobicents.charging.server.ratingengine.RatingEngineClient;
 import org.mobicents.charging.server.ratingengine.RatingInfo;
 import org.mobicents.slee.SbbContextExt;
@@ -97,7 +98,7 @@ public class LocalRatingEngineSbb extends BaseSbb implements Sbb, RatingEngineCl
 			tracer.info("[$$] SID<" + sessionId + "> Performing rating with the SIMPLE Rating Module.");
 		}
 		RatingInfo ri = new RatingInfo(0, sessionId);
-		ri.setRate(1.0);
+		ri.setRate(Money.RATE_ONE);
 
 		return ri;
 	}
@@ -0,0 +1,87 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+
+/**
+ * Helpers to test the Externalizable encodings of the charging state, through the same object streams the container
+ * uses for CMP passivation and replication.
+ */
+public final class ExternalizableTestSupport {
+
+	/**
+	 * Writes an encoding by hand, as an older (or broken) writer would.
+	 */
+	public interface Encoder {
+
+		void encode(ObjectOutput out) throws IOException;
+	}
+
+	private ExternalizableTestSupport() {
+	}
+
+	public static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T extends Externalizable> T roundTrip(T value) throws IOException, ClassNotFoundException {
+		return (T) deserialize(serialize(value));
+	}
+
+	/**
+	 * @param encoder the hand-written encoding
+	 * @return an input positioned at the start of the encoding, to pass to readExternal
+	 */
+	public static ObjectInput inputOf(Encoder encoder) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		encoder.encode(out);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+}
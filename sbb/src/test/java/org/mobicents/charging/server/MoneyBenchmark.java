@@ -0,0 +1,94 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.util.Random;
+
+/**
+ * Cost of the fixed-point conversions against the double arithmetic they replaced, (long) Math.ceil(units * rate)
+ * and (long) Math.floor(amount / rate), over realistic values: up to a million units, rates with up to 4 decimal
+ * places. Also counts how often the double path is wrong. Not run as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -cp sbb/target/classes:sbb/target/test-classes org.mobicents.charging.server.MoneyBenchmark [rounds]
+ * </pre>
+ */
+public class MoneyBenchmark {
+
+	private static final int VALUES = 1 << 16;
+	private static final int PASSES = 300;
+	private static final int CHECKS = 5000000;
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+
+		long[] units = new long[VALUES];
+		long[] rates = new long[VALUES];
+		double[] doubleRates = new double[VALUES];
+		Random random = new Random(1);
+		for (int i = 0; i < VALUES; i++) {
+			units[i] = random.nextInt(1000000);
+			rates[i] = nextRate(random);
+			doubleRates[i] = Double.parseDouble(Money.formatRate(rates[i]));
+		}
+
+		long wrong = 0;
+		for (int i = 0; i < CHECKS; i++) {
+			long unit = random.nextInt(1000000);
+			long rate = nextRate(random);
+			double doubleRate = Double.parseDouble(Money.formatRate(rate));
+			if ((long) Math.ceil(unit * doubleRate) != Money.amountFor(unit, rate) || (long) Math.floor(unit / doubleRate) != Money.unitsFor(unit, rate)) {
+				wrong++;
+			}
+		}
+		System.out.println("double path wrong in " + wrong + " of " + CHECKS + " cases");
+
+		// the first rounds warm up
+		for (int round = 0; round < rounds; round++) {
+			long sink = 0;
+			long started = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < VALUES; i++) {
+					sink += (long) Math.ceil(units[i] * doubleRates[i]) + (long) Math.floor(units[i] / doubleRates[i]);
+				}
+			}
+			long doubles = System.nanoTime() - started;
+			started = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < VALUES; i++) {
+					sink += Money.amountFor(units[i], rates[i]) + Money.unitsFor(units[i], rates[i]);
+				}
+			}
+			long fixed = System.nanoTime() - started;
+			double ops = (double) PASSES * VALUES;
+			System.out.printf("amount + units: double %.1f ns, Money %.1f ns (%d)%n", doubles / ops, fixed / ops, sink & 1);
+		}
+	}
+
+	// 0.0001 to 0.9999
+	private static long nextRate(Random random) {
+		return (1 + random.nextInt(9999)) * 100L;
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the fixed-point conversions against BigDecimal arithmetic, over random values from a fixed seed, biased
+ * towards the edges (zero, one, the rate scale, values near {@link Long#MAX_VALUE}).
+ */
+public class MoneyTest {
+
+	private static final int CASES = 200000;
+
+	private static final BigInteger ONE = BigInteger.valueOf(Money.RATE_ONE);
+	private static final BigInteger MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+	private static long nextValue(Random random) {
+		switch (random.nextInt(8)) {
+		case 0:
+			return random.nextInt(3);
+		case 1:
+			return Long.MAX_VALUE - random.nextInt(3);
+		case 2:
+			return Money.RATE_ONE + random.nextInt(3) - 1;
+		case 3:
+			return (random.nextLong() & Long.MAX_VALUE) >>> random.nextInt(63);
+		case 4:
+			return random.nextInt(1000000);
+		default:
+			return random.nextLong() & Long.MAX_VALUE;
+		}
+	}
+
+	private static long saturated(BigInteger value) {
+		return value.compareTo(MAX) > 0 ? Long.MAX_VALUE : value.longValue();
+	}
+
+	private static long expectedAmount(long units, long rate) {
+		BigInteger[] qr = BigInteger.valueOf(units).multiply(BigInteger.valueOf(rate)).divideAndRemainder(ONE);
+		return saturated(qr[1].signum() != 0 ? qr[0].add(BigInteger.ONE) : qr[0]);
+	}
+
+	private static long expectedUnits(long amount, long rate) {
+		return saturated(BigInteger.valueOf(amount).multiply(ONE).divide(BigInteger.valueOf(rate)));
+	}
+
+	@Test
+	public void amountForIsUnitsTimesRateRoundedUpAndSaturated() {
+		Random random = new Random(1);
+		for (int i = 0; i < CASES; i++) {
+			long units = nextValue(random);
+			long rate = nextValue(random);
+			assertEquals(units + " x " + rate, expectedAmount(units, rate), Money.amountFor(units, rate));
+		}
+	}
+
+	@Test
+	public void amountForUnitsBeyondLongRange() {
+		// unsigned 64 bit AVPs beyond the long range read as negative: nothing covers them, unless free
+		assertEquals(Long.MAX_VALUE, Money.amountFor(-1, 1));
+		assertEquals(Long.MAX_VALUE, Money.amountFor(Long.MIN_VALUE, Money.RATE_ONE));
+		assertEquals(0, Money.amountFor(-1, 0));
+	}
+
+	@Test
+	public void unitsForIsAmountDividedByRateRoundedDownAndSaturated() {
+		Random random = new Random(2);
+		for (int i = 0; i < CASES; i++) {
+			long amount = nextValue(random);
+			long rate = Math.max(1, nextValue(random));
+			assertEquals(amount + " / " + rate, expectedUnits(amount, rate), Money.unitsFor(amount, rate));
+		}
+	}
+
+	@Test
+	public void unitsForAreTheMostTheAmountPaysFor() {
+		Random random = new Random(3);
+		for (int i = 0; i < CASES; i++) {
+			long amount = random.nextInt(Integer.MAX_VALUE);
+			long rate = 1 + random.nextInt(100 * (int) Money.RATE_ONE);
+			long units = Money.unitsFor(amount, rate);
+			assertTrue(units + " units at " + rate + " cost more than " + amount, Money.amountFor(units, rate) <= amount);
+			assertTrue(units + 1 + " units at " + rate + " cost no more than " + amount, Money.amountFor(units + 1, rate) > amount);
+		}
+	}
+
+	@Test
+	public void exactWhereDoublesAreNot() {
+		// (long) Math.ceil(100 * 0.07) is 8
+		assertEquals(7, Money.amountFor(100, Money.parseRate("0.07")));
+		assertEquals(100, Money.unitsFor(7, Money.parseRate("0.07")));
+		assertEquals(3, Money.amountFor(10, Money.parseRate("0.3")));
+	}
+
+	@Test
+	public void parseRateRoundsUpBeyondTheScale() {
+		assertEquals(70000, Money.parseRate("0.07"));
+		assertEquals(1500, Money.parseRate("1.5E-3"));
+		assertEquals(Money.RATE_ONE, Money.parseRate(" 1 "));
+		assertEquals(1, Money.parseRate("0.0000001"));
+		assertEquals(2, Money.parseRate("0.0000010001"));
+		assertEquals(0, Money.parseRate("0"));
+		assertEquals(0, Money.parseRate("0.000000000"));
+
+		Random random = new Random(4);
+		for (int i = 0; i < CASES; i++) {
+			BigDecimal value = new BigDecimal(BigInteger.valueOf(random.nextLong() & 0x7FFFFFFFFFFL), random.nextInt(20));
+			long expected = value.setScale(Money.RATE_SCALE, RoundingMode.UP).unscaledValue().longValue();
+			assertEquals(value.toString(), expected, Money.parseRate(value.toString()));
+			assertEquals(value.toPlainString(), expected, Money.parseRate(value.toPlainString()));
+		}
+	}
+
+	@Test
+	public void parseRateRejectsInvalidRates() {
+		String[] invalid = { "-0.01", "-1E-9", "9223372036854.775808", "1E20", "", "abc", "0.07 EUR" };
+		for (String value : invalid) {
+			try {
+				Money.parseRate(value);
+				fail("Parsed '" + value + "'");
+			}
+			catch (NumberFormatException e) {
+				// expected
+			}
+		}
+		assertEquals(Long.MAX_VALUE, Money.parseRate("9223372036854.775807"));
+	}
+
+	@Test
+	public void formattedRatesParseBack() {
+		Random random = new Random(5);
+		for (int i = 0; i < CASES; i++) {
+			long rate = nextValue(random);
+			String formatted = Money.formatRate(rate);
+			assertEquals(formatted, rate, Money.parseRate(formatted));
+			assertEquals(formatted, BigDecimal.valueOf(rate, Money.RATE_SCALE).stripTrailingZeros().toPlainString(), formatted);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void amountForRejectsNegativeRate() {
+		Money.amountFor(1, -1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unitsForRejectsZeroRate() {
+		Money.unitsFor(1, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unitsForRejectsNegativeAmount() {
+		Money.unitsFor(-1, 1);
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Session supervision with millions of armed sessions. Measures arming, re-arming (as on every CCR-U) and disarming
+ * from several threads and the memory per armed session, against a scheduled executor task per session. Then checks
+ * expiry: sessions due over a few seconds, half of them re-armed, must all expire exactly once, never early. Not run
+ * as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -Xmx2g -cp sbb/target/classes:sbb/target/test-classes:&lt;dependencies&gt; org.mobicents.charging.server.SessionSupervisorBenchmark [sessions] [threads]
+ * </pre>
+ */
+public class SessionSupervisorBenchmark {
+
+	private static final long VALIDITY_TIME_MILLIS = 86400000L;
+
+	private interface Operation {
+		void run(int i);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		final String[] keys = new String[sessions];
+		final Long[] ids = new Long[sessions];
+		for (int i = 0; i < sessions; i++) {
+			keys[i] = "pcef.example.org;" + (1000000000L + i) + ";" + i;
+			ids[i] = Long.valueOf(i);
+		}
+
+		wheel(keys, ids, threads);
+		executor(keys, threads);
+		expiry(keys, ids);
+	}
+
+	private static void wheel(final String[] keys, final Long[] ids, int threads) throws InterruptedException {
+		int n = keys.length;
+		long before = usedMemory();
+		final SessionSupervisor<Long> supervisor = new SessionSupervisor<Long>("benchmark", 1000, 131072, new SessionSupervisor.Expiry<Long>() {
+			public void expired(List<Long> sessions) {
+			}
+		}, newTracer());
+		Operation arm = new Operation() {
+			public void run(int i) {
+				supervisor.arm(keys[i], ids[i], VALIDITY_TIME_MILLIS);
+			}
+		};
+		Operation disarm = new Operation() {
+			public void run(int i) {
+				supervisor.disarm(keys[i]);
+			}
+		};
+		// the first rounds warm up
+		for (int round = 0; round < 3; round++) {
+			long armNanos = parallel(threads, n, arm);
+			long rearmNanos = parallel(threads, n, arm);
+			long disarmNanos = parallel(threads, n, disarm);
+			System.out.printf("wheel, %d sessions, %d threads: arm %.0f ns, re-arm %.0f ns, disarm %.0f ns%n", n, threads, (double) armNanos / n,
+					(double) rearmNanos / n, (double) disarmNanos / n);
+		}
+		parallel(threads, n, arm);
+		System.out.printf("wheel, %d armed: %.0f bytes/session%n", supervisor.size(), (double) (usedMemory() - before) / n);
+		supervisor.stop();
+	}
+
+	/**
+	 * A task per session, cancelled and scheduled again when re-armed.
+	 */
+	private static void executor(final String[] keys, int threads) throws InterruptedException {
+		int n = keys.length;
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		executor.setRemoveOnCancelPolicy(true);
+		final ConcurrentHashMap<String, ScheduledFuture<?>> futures = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+		final Runnable timeout = new Runnable() {
+			public void run() {
+			}
+		};
+		long before = usedMemory();
+		for (int round = 0; round < 3; round++) {
+			long armNanos = parallel(threads, n, new Operation() {
+				public void run(int i) {
+					futures.put(keys[i], executor.schedule(timeout, VALIDITY_TIME_MILLIS, TimeUnit.MILLISECONDS));
+				}
+			});
+			long rearmNanos = parallel(threads, n, new Operation() {
+				public void run(int i) {
+					futures.get(keys[i]).cancel(false);
+					futures.put(keys[i], executor.schedule(timeout, VALIDITY_TIME_MILLIS, TimeUnit.MILLISECONDS));
+				}
+			});
+			if (round == 2) {
+				System.out.printf("executor, %d armed: %.0f bytes/session%n", futures.size(), (double) (usedMemory() - before) / n);
+			}
+			long disarmNanos = parallel(threads, n, new Operation() {
+				public void run(int i) {
+					futures.remove(keys[i]).cancel(false);
+				}
+			});
+			System.out.printf("executor, %d sessions, %d threads: arm %.0f ns, re-arm %.0f ns, disarm %.0f ns%n", n, threads, (double) armNanos / n,
+					(double) rearmNanos / n, (double) disarmNanos / n);
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * All sessions due in 6 to 9s, with 10ms ticks, half of them re-armed to 7 to 10s.
+	 */
+	private static void expiry(String[] keys, Long[] ids) throws InterruptedException {
+		int n = keys.length;
+		final long[] due = new long[n];
+		final AtomicLong expired = new AtomicLong();
+		final AtomicLong twice = new AtomicLong();
+		final AtomicLong early = new AtomicLong();
+		final AtomicLong batches = new AtomicLong();
+		final AtomicLong totalLateness = new AtomicLong();
+		final AtomicLong maxLateness = new AtomicLong();
+		SessionSupervisor<Long> supervisor = new SessionSupervisor<Long>("benchmark", 10, 512, new SessionSupervisor.Expiry<Long>() {
+			public void expired(List<Long> sessions) {
+				// only the tick thread calls back
+				long now = System.nanoTime();
+				batches.incrementAndGet();
+				for (Long id : sessions) {
+					int i = id.intValue();
+					if (due[i] == 0) {
+						twice.incrementAndGet();
+						continue;
+					}
+					long lateness = now - due[i];
+					due[i] = 0;
+					if (lateness < 0) {
+						early.incrementAndGet();
+					}
+					totalLateness.addAndGet(lateness);
+					maxLateness.set(Math.max(maxLateness.get(), lateness));
+					expired.incrementAndGet();
+				}
+			}
+		}, newTracer());
+
+		Random random = new Random(1);
+		long started = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			long timeout = 6000 + random.nextInt(3000);
+			due[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			supervisor.arm(keys[i], ids[i], timeout);
+		}
+		for (int i = 0; i < n; i += 2) {
+			long timeout = 7000 + random.nextInt(3000);
+			due[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			supervisor.arm(keys[i], ids[i], timeout);
+		}
+		System.out.printf("expiry, armed and re-armed in %.0f ms%n", (System.nanoTime() - started) / 1e6);
+		while (expired.get() < n && System.nanoTime() - started < TimeUnit.SECONDS.toNanos(40)) {
+			Thread.sleep(50);
+		}
+		// anything expiring twice would come after the last one
+		Thread.sleep(200);
+		supervisor.stop();
+		System.out.printf("expiry, %d of %d expired in %d batches, %d twice, %d early, late by %.1f ms avg and %.1f ms max (10 ms ticks)%n", expired.get(), n,
+				batches.get(), twice.get(), early.get(), totalLateness.get() / 1e6 / Math.max(1, expired.get()), maxLateness.get() / 1e6);
+	}
+
+	/**
+	 * @return the nanoseconds it took to run the operation for all of 0 to n - 1, split among the threads
+	 */
+	private static long parallel(int threads, final int n, final Operation operation) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int from = (int) ((long) n * t / threads);
+			final int to = (int) ((long) n * (t + 1) / threads);
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i = from; i < to; i++) {
+						operation.run(i);
+					}
+				}
+			};
+		}
+		long started = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return System.nanoTime() - started;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static Tracer newTracer() {
+		return (Tracer) Proxy.newProxyInstance(Tracer.class.getClassLoader(), new Class[] { Tracer.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("severe")) {
+					System.out.println("  " + args[0]);
+				}
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+}
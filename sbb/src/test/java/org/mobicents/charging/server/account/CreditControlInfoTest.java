@@ -0,0 +1,180 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.account;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.RequestedActionType;
+import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
+
+import org.junit.Test;
+import org.mobicents.charging.server.ExternalizableSupport;
+import org.mobicents.charging.server.ExternalizableTestSupport;
+import org.mobicents.charging.server.account.CreditControlInfo.ErrorCodeType;
+
+public class CreditControlInfoTest {
+
+	/**
+	 * Writes a Credit Control in the v1 format, without Rating-Group and Service-Identifier(s), holding a v1 unit.
+	 */
+	public static void writeV1(ObjectOutput out, String sessionId, String msisdn, long balanceAfter) throws IOException {
+		out.writeByte(1);
+		ExternalizableSupport.writeString(out, sessionId);
+		out.writeInt(2);
+		out.writeInt(ExternalizableSupport.NULL_ENUM);
+		out.writeInt(SubscriptionIdType.END_USER_E164.getValue());
+		ExternalizableSupport.writeString(out, msisdn);
+		out.writeLong(1400000000000L);
+		ExternalizableSupport.writeString(out, "UPDATE_REQUEST");
+		out.writeBoolean(true);
+		out.writeLong(0);
+		out.writeInt(ExternalizableSupport.NULL_ENUM);
+		ExternalizableSupport.writeString(out, null);
+		out.writeLong(balanceAfter + 100);
+		out.writeLong(balanceAfter);
+		out.writeInt(1);
+		CreditControlUnitTest.writeV1(out, CcUnitType.TOTAL_OCTETS, 1000, 1000, 500, 0.25);
+		out.writeInt(1);
+		out.writeUTF("apn");
+		out.writeBoolean(true);
+		out.writeUTF("internet");
+	}
+
+	static CreditControlInfo newInfo(String sessionId, long ratingGroup, long... serviceIds) {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setSessionId(sessionId);
+		ccInfo.setRequestNumber(7);
+		ccInfo.setRequestedAction(RequestedActionType.DIRECT_DEBITING);
+		ccInfo.setSubscriptionIdType(SubscriptionIdType.END_USER_E164);
+		ccInfo.setSubscriptionId("351912345678");
+		ccInfo.setRatingGroup(ratingGroup);
+		ccInfo.setServiceIds(serviceIds);
+		ccInfo.setEventTimestamp(1400000000123L);
+		ccInfo.setEventType("UPDATE_REQUEST");
+		ccInfo.setSuccess(false);
+		ccInfo.setErrorCode(302);
+		ccInfo.setErrorMessage("Not enough balance");
+		ccInfo.setBalanceBefore(1000);
+		ccInfo.setBalanceAfter(250);
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		ccUnits.add(CreditControlUnitTest.newUnit(CcUnitType.INPUT_OCTETS, 4096, "0.001"));
+		ccUnits.add(CreditControlUnitTest.newUnit(CcUnitType.TIME, 300, "0.5"));
+		ccInfo.setCcUnits(ccUnits);
+		ccInfo.addServiceInfo("location", "Lisbon");
+		ccInfo.addServiceInfo("apn", "internet");
+		ccInfo.addServiceInfo("data-amount", Long.valueOf(42));
+		return ccInfo;
+	}
+
+	static void assertSameInfo(CreditControlInfo expected, CreditControlInfo actual) {
+		assertEquals(expected.getSessionId(), actual.getSessionId());
+		assertEquals(expected.getRequestNumber(), actual.getRequestNumber());
+		assertEquals(expected.getRequestedAction(), actual.getRequestedAction());
+		assertEquals(expected.getSubscriptionIdType(), actual.getSubscriptionIdType());
+		assertEquals(expected.getSubscriptionId(), actual.getSubscriptionId());
+		assertEquals(expected.getRatingGroup(), actual.getRatingGroup());
+		assertArrayEquals(expected.getServiceIds(), actual.getServiceIds());
+		assertEquals(expected.getEventTimestamp(), actual.getEventTimestamp());
+		assertEquals(expected.getEventType(), actual.getEventType());
+		assertEquals(expected.isSuccessful(), actual.isSuccessful());
+		assertEquals(expected.getErrorCode(), actual.getErrorCode());
+		assertEquals(expected.getErrorCodeType(), actual.getErrorCodeType());
+		assertEquals(expected.getErrorMessage(), actual.getErrorMessage());
+		assertEquals(expected.getBalanceBefore(), actual.getBalanceBefore());
+		assertEquals(expected.getBalanceAfter(), actual.getBalanceAfter());
+		if (expected.getCcUnits() == null) {
+			assertNull(actual.getCcUnits());
+		}
+		else {
+			assertEquals(expected.getCcUnits().size(), actual.getCcUnits().size());
+			for (int i = 0; i < expected.getCcUnits().size(); i++) {
+				CreditControlUnitTest.assertSameUnit(expected.getCcUnits().get(i), actual.getCcUnits().get(i));
+			}
+		}
+		assertEquals(new HashSet<String>(Arrays.asList(expected.getServiceInfoKeys())), new HashSet<String>(Arrays.asList(actual.getServiceInfoKeys())));
+		for (String name : expected.getServiceInfoKeys()) {
+			assertEquals(expected.getServiceInfo(name), actual.getServiceInfo(name));
+		}
+	}
+
+	@Test
+	public void roundTripKeepsAllFields() throws Exception {
+		CreditControlInfo ccInfo = newInfo("session-1;1234;5678", 10, 1, 2, 3);
+		CreditControlInfo read = ExternalizableTestSupport.roundTrip(ccInfo);
+		assertEquals(ErrorCodeType.NotEnoughBalance, read.getErrorCodeType());
+		assertSameInfo(ccInfo, read);
+	}
+
+	@Test
+	public void roundTripKeepsNulls() throws Exception {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setSessionId(null);
+		ccInfo.setSubscriptionId(null);
+		ccInfo.setEventType(null);
+		ccInfo.setErrorMessage(null);
+		assertSameInfo(ccInfo, ExternalizableTestSupport.roundTrip(ccInfo));
+	}
+
+	@Test
+	public void readsV1WithoutRatingGroup() throws Exception {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				writeV1(out, "session-v1", "351911111111", 900);
+			}
+		}));
+		assertEquals("session-v1", ccInfo.getSessionId());
+		assertEquals(2, ccInfo.getRequestNumber());
+		assertNull(ccInfo.getRequestedAction());
+		assertEquals(SubscriptionIdType.END_USER_E164, ccInfo.getSubscriptionIdType());
+		assertEquals("351911111111", ccInfo.getSubscriptionId());
+		assertEquals(0, ccInfo.getRatingGroup());
+		assertNull(ccInfo.getServiceIds());
+		assertEquals(1000, ccInfo.getBalanceBefore());
+		assertEquals(900, ccInfo.getBalanceAfter());
+		assertEquals(1, ccInfo.getCcUnits().size());
+		assertEquals(250000, ccInfo.getCcUnits().get(0).getRateForService());
+		assertEquals("internet", ccInfo.getServiceInfo("apn"));
+	}
+
+	@Test(expected = InvalidClassException.class)
+	public void rejectsNewerVersion() throws Exception {
+		new CreditControlInfo().readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(3);
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.account;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutput;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+import org.junit.Test;
+import org.mobicents.charging.server.ExternalizableSupport;
+import org.mobicents.charging.server.ExternalizableTestSupport;
+import org.mobicents.charging.server.Money;
+
+public class CreditControlUnitTest {
+
+	/**
+	 * Writes a unit in the v1 format, with the rate as a double.
+	 */
+	public static void writeV1(ObjectOutput out, CcUnitType unitType, long requestedUnits, long reservedUnits, long usedUnits, double rate) throws IOException {
+		out.writeByte(1);
+		out.writeInt(unitType != null ? unitType.getValue() : ExternalizableSupport.NULL_ENUM);
+		out.writeLong(requestedUnits);
+		out.writeLong(requestedUnits * 2);
+		out.writeLong(reservedUnits);
+		out.writeLong(reservedUnits * 2);
+		out.writeLong(usedUnits);
+		out.writeLong(usedUnits * 2);
+		out.writeDouble(rate);
+	}
+
+	static CreditControlUnit newUnit(CcUnitType unitType, long units, String rate) {
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		ccUnit.setUnitType(unitType);
+		ccUnit.setRequestedUnits(units);
+		ccUnit.setRequestedAmount(units * 3);
+		ccUnit.setReservedUnits(units - 1);
+		ccUnit.setReservedAmount((units - 1) * 3);
+		ccUnit.setUsedUnits(units / 2);
+		ccUnit.setUsedAmount(units / 2 * 3);
+		ccUnit.setRateForService(Money.parseRate(rate));
+		return ccUnit;
+	}
+
+	static void assertSameUnit(CreditControlUnit expected, CreditControlUnit actual) {
+		assertEquals(expected.getUnitType(), actual.getUnitType());
+		assertEquals(expected.getRequestedUnits(), actual.getRequestedUnits());
+		assertEquals(expected.getRequestedAmount(), actual.getRequestedAmount());
+		assertEquals(expected.getReservedUnits(), actual.getReservedUnits());
+		assertEquals(expected.getReservedAmount(), actual.getReservedAmount());
+		assertEquals(expected.getUsedUnits(), actual.getUsedUnits());
+		assertEquals(expected.getUsedAmount(), actual.getUsedAmount());
+		assertEquals(expected.getRateForService(), actual.getRateForService());
+	}
+
+	@Test
+	public void roundTripKeepsAllFields() throws Exception {
+		CreditControlUnit ccUnit = newUnit(CcUnitType.TOTAL_OCTETS, Long.MAX_VALUE / 4, "0.000125");
+		assertSameUnit(ccUnit, ExternalizableTestSupport.roundTrip(ccUnit));
+	}
+
+	@Test
+	public void roundTripKeepsNullUnitType() throws Exception {
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		CreditControlUnit read = ExternalizableTestSupport.roundTrip(ccUnit);
+		assertNull(read.getUnitType());
+		assertSameUnit(ccUnit, read);
+	}
+
+	@Test
+	public void readsV1RateAsFixedPoint() throws Exception {
+		final double[] rates = { 0, 0.25, 1.5, 0.000001, 0.1, 12345.678901 };
+		for (final double rate : rates) {
+			CreditControlUnit ccUnit = new CreditControlUnit();
+			ccUnit.readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+				public void encode(ObjectOutput out) throws IOException {
+					writeV1(out, CcUnitType.TIME, 60, 50, 40, rate);
+				}
+			}));
+			assertEquals(CcUnitType.TIME, ccUnit.getUnitType());
+			assertEquals(60, ccUnit.getRequestedUnits());
+			assertEquals(120, ccUnit.getRequestedAmount());
+			assertEquals(50, ccUnit.getReservedUnits());
+			assertEquals(100, ccUnit.getReservedAmount());
+			assertEquals(40, ccUnit.getUsedUnits());
+			assertEquals(80, ccUnit.getUsedAmount());
+			assertEquals(Money.parseRate(Double.toString(rate)), ccUnit.getRateForService());
+		}
+	}
+
+	@Test(expected = InvalidClassException.class)
+	public void rejectsNewerVersion() throws Exception {
+		new CreditControlUnit().readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(3);
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.account;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutput;
+
+import org.junit.Test;
+import org.mobicents.charging.server.ExternalizableSupport;
+import org.mobicents.charging.server.ExternalizableTestSupport;
+import org.mobicents.charging.server.account.UnitReservation.ErrorCodeType;
+
+public class UnitReservationTest {
+
+	static void assertSameReservation(UnitReservation expected, UnitReservation actual) {
+		assertEquals(expected.isSuccess(), actual.isSuccess());
+		assertEquals(expected.getErrorCode(), actual.getErrorCode());
+		assertEquals(expected.getErrorCodeType(), actual.getErrorCodeType());
+		assertEquals(expected.getUnits(), actual.getUnits());
+		assertEquals(expected.getSessionId(), actual.getSessionId());
+		assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	@Test
+	public void roundTripKeepsGrantedReservation() throws Exception {
+		UnitReservation reservation = new UnitReservation(true, 1500, "session-1", 1400000000000L);
+		UnitReservation read = ExternalizableTestSupport.roundTrip(reservation);
+		assertTrue(read.isSuccess());
+		assertNull(read.getErrorCodeType());
+		assertSameReservation(reservation, read);
+	}
+
+	@Test
+	public void roundTripKeepsDeniedReservation() throws Exception {
+		UnitReservation reservation = new UnitReservation(302, "Not enough balance", "session-2", 1400000000001L);
+		UnitReservation read = ExternalizableTestSupport.roundTrip(reservation);
+		assertFalse(read.isSuccess());
+		assertEquals(ErrorCodeType.NotEnoughBalance, read.getErrorCodeType());
+		assertSameReservation(reservation, read);
+	}
+
+	@Test
+	public void roundTripKeepsNulls() throws Exception {
+		UnitReservation reservation = new UnitReservation(false, 0, null, 0, null, 0);
+		assertSameReservation(reservation, ExternalizableTestSupport.roundTrip(reservation));
+	}
+
+	@Test
+	public void readsV1() throws Exception {
+		UnitReservation reservation = new UnitReservation();
+		reservation.readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(1);
+				out.writeBoolean(false);
+				out.writeLong(201);
+				ExternalizableSupport.writeString(out, "Unknown user");
+				out.writeLong(0);
+				ExternalizableSupport.writeString(out, "session-v1");
+				out.writeLong(1400000000002L);
+				out.writeInt(ErrorCodeType.InvalidUser.ordinal());
+			}
+		}));
+		assertSameReservation(new UnitReservation(201, "Unknown user", "session-v1", 1400000000002L), reservation);
+	}
+
+	@Test(expected = InvalidClassException.class)
+	public void rejectsNewerVersion() throws Exception {
+		new UnitReservation().readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(2);
+			}
+		}));
+	}
+
+}
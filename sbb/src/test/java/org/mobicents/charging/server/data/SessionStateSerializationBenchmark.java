@@ -0,0 +1,122 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
+
+import org.mobicents.charging.server.ExternalizableTestSupport;
+import org.mobicents.charging.server.Money;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.charging.server.account.UnitReservation;
+
+/**
+ * Encoded size and serialize + deserialize throughput of the session state kept in CMP fields, through the object
+ * streams the container uses for passivation and replication. Not run as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -cp sbb/target/classes:sbb/target/test-classes:&lt;dependencies&gt; org.mobicents.charging.server.data.SessionStateSerializationBenchmark [seconds]
+ * </pre>
+ */
+public class SessionStateSerializationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+
+		measure("UserSessionInfo", newUpdateSession(), seconds);
+		measure("UnitReservation", new UnitReservation(true, 1500, "pcef.example.org;1400000000;12345", 1400000000000L), seconds);
+	}
+
+	/**
+	 * @return a typical session after an update request: one MSCC, three unit types, two captured AVPs
+	 */
+	static UserSessionInfo newUpdateSession() {
+		UserSessionInfo sessionInfo = new UserSessionInfo();
+		sessionInfo.setSessionStartTime(System.currentTimeMillis());
+		sessionInfo.setRequest(UserSessionInfoTest.newRequest("pcef.example.org;1400000000;12345", CcRequestType.UPDATE_REQUEST, 2, 1));
+		sessionInfo.setEndUserType(SubscriptionIdType.END_USER_E164);
+		sessionInfo.setEndUserId("351912345678");
+		sessionInfo.setServiceIds(new long[] { 1 });
+
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setSessionId(sessionInfo.getSessionId());
+		ccInfo.setRequestNumber(2);
+		ccInfo.setSubscriptionIdType(SubscriptionIdType.END_USER_E164);
+		ccInfo.setSubscriptionId("351912345678");
+		ccInfo.setRatingGroup(10);
+		ccInfo.setServiceIds(new long[] { 1 });
+		ccInfo.setEventTimestamp(System.currentTimeMillis());
+		ccInfo.setEventType(CcRequestType.UPDATE_REQUEST.toString());
+		ccInfo.setSuccess(true);
+		ccInfo.setBalanceBefore(100000);
+		ccInfo.setBalanceAfter(99000);
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		CcUnitType[] unitTypes = { CcUnitType.INPUT_OCTETS, CcUnitType.OUTPUT_OCTETS, CcUnitType.TOTAL_OCTETS };
+		for (CcUnitType unitType : unitTypes) {
+			CreditControlUnit ccUnit = new CreditControlUnit();
+			ccUnit.setUnitType(unitType);
+			ccUnit.setRequestedUnits(1048576);
+			ccUnit.setReservedUnits(1048576);
+			ccUnit.setUsedUnits(524288);
+			ccUnit.setRateForService(Money.parseRate("0.001"));
+			ccUnits.add(ccUnit);
+		}
+		ccInfo.setCcUnits(ccUnits);
+		ccInfo.addServiceInfo("location", "268-01-1234-5678");
+		ccInfo.addServiceInfo("apn", "internet.example.org");
+
+		List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>();
+		ccInfos.add(ccInfo);
+		sessionInfo.addReservations(ccInfos);
+		return sessionInfo;
+	}
+
+	private static void measure(String name, Object value, long seconds) throws Exception {
+		byte[] bytes = ExternalizableTestSupport.serialize(value);
+		// warm up, then measure
+		run(value, seconds * 1000000000L / 2);
+		long started = System.nanoTime();
+		long ops = run(value, seconds * 1000000000L);
+		long elapsed = System.nanoTime() - started;
+		System.out.println(name + ": " + bytes.length + " bytes, " + (ops * 1000000000L / elapsed) + " serialize + deserialize/s");
+	}
+
+	private static long run(Object value, long nanos) throws Exception {
+		long deadline = System.nanoTime() + nanos;
+		long ops = 0;
+		while (System.nanoTime() - deadline < 0) {
+			for (int i = 0; i < 1000; i++) {
+				ExternalizableTestSupport.deserialize(ExternalizableTestSupport.serialize(value));
+			}
+			ops += 1000;
+		}
+		return ops;
+	}
+
+}
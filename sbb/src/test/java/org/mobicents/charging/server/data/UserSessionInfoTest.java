@@ -0,0 +1,243 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutput;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.java.slee.resource.diameter.base.events.avp.DiameterIdentity;
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+import net.java.slee.resource.diameter.cca.events.avp.SubscriptionIdType;
+import net.java.slee.resource.diameter.ro.events.RoCreditControlRequest;
+
+import org.junit.Test;
+import org.mobicents.charging.server.ExternalizableSupport;
+import org.mobicents.charging.server.ExternalizableTestSupport;
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlInfoTest;
+import org.mobicents.charging.server.account.CreditControlUnit;
+
+public class UserSessionInfoTest {
+
+	/**
+	 * @return a request answering only what {@link UserSessionInfo#setRequest(RoCreditControlRequest)} reads
+	 */
+	public static RoCreditControlRequest newRequest(final String sessionId, final CcRequestType requestType, final long requestNumber, final int msccCount) {
+		return (RoCreditControlRequest) Proxy.newProxyInstance(RoCreditControlRequest.class.getClassLoader(), new Class<?>[] { RoCreditControlRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getSessionId")) {
+							return sessionId;
+						}
+						if (name.equals("getCcRequestType")) {
+							return requestType;
+						}
+						if (name.equals("getCcRequestNumber")) {
+							return requestNumber;
+						}
+						if (name.equals("getOriginHost")) {
+							return new DiameterIdentity("pcef.example.org");
+						}
+						if (name.equals("getOriginRealm")) {
+							return new DiameterIdentity("example.org");
+						}
+						if (name.equals("getDestinationHost")) {
+							return null;
+						}
+						if (name.equals("getDestinationRealm")) {
+							return new DiameterIdentity("charging.example.org");
+						}
+						if (name.equals("getMultipleServicesCreditControls")) {
+							return Array.newInstance(method.getReturnType().getComponentType(), msccCount);
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	static UserSessionInfo newSession() {
+		UserSessionInfo sessionInfo = new UserSessionInfo();
+		sessionInfo.setSessionStartTime(1400000000000L);
+		sessionInfo.setRequest(newRequest("session-1;1234;5678", CcRequestType.UPDATE_REQUEST, 3, 2));
+		sessionInfo.setEndUserType(SubscriptionIdType.END_USER_E164);
+		sessionInfo.setEndUserId("351912345678");
+		sessionInfo.setServiceIds(new long[] { 1, 2, 3 });
+
+		List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>();
+		ccInfos.add(newInfo(10, 1, 1000));
+		ccInfos.add(newInfo(20, 2, 900));
+		sessionInfo.addReservations(ccInfos);
+		ccInfos = new ArrayList<CreditControlInfo>();
+		ccInfos.add(newInfo(10, 1, 800));
+		sessionInfo.addReservations(ccInfos);
+		return sessionInfo;
+	}
+
+	private static CreditControlInfo newInfo(long ratingGroup, long serviceId, long balanceAfter) {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setSessionId("session-1;1234;5678");
+		ccInfo.setRatingGroup(ratingGroup);
+		ccInfo.setServiceIds(new long[] { serviceId });
+		ccInfo.setSuccess(true);
+		ccInfo.setBalanceBefore(balanceAfter + 100);
+		ccInfo.setBalanceAfter(balanceAfter);
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		ccUnit.setUnitType(CcUnitType.TOTAL_OCTETS);
+		ccUnit.setReservedUnits(1000);
+		ccUnit.setUsedUnits(500);
+		ccUnit.setUsedAmount(50);
+		ccUnits.add(ccUnit);
+		ccInfo.setCcUnits(ccUnits);
+		return ccInfo;
+	}
+
+	static void assertSameSession(UserSessionInfo expected, UserSessionInfo actual) {
+		assertEquals(expected.getSessionStartTime(), actual.getSessionStartTime());
+		assertEquals(expected.getSessionId(), actual.getSessionId());
+		assertEquals(expected.getEndUserType(), actual.getEndUserType());
+		assertEquals(expected.getEndUserId(), actual.getEndUserId());
+		assertEquals(expected.getRequestType(), actual.getRequestType());
+		assertEquals(expected.getRequestNumber(), actual.getRequestNumber());
+		assertEquals(expected.getOriginHost(), actual.getOriginHost());
+		assertEquals(expected.getOriginRealm(), actual.getOriginRealm());
+		assertEquals(expected.getDestinationHost(), actual.getDestinationHost());
+		assertEquals(expected.getDestinationRealm(), actual.getDestinationRealm());
+		assertEquals(expected.getMsccCount(), actual.getMsccCount());
+		assertArrayEquals(expected.getServiceIds(), actual.getServiceIds());
+		assertEquals(expected.getLastReservations().size(), actual.getLastReservations().size());
+		for (int i = 0; i < expected.getLastReservations().size(); i++) {
+			assertEquals(expected.getLastReservations().get(i).getRatingGroup(), actual.getLastReservations().get(i).getRatingGroup());
+			assertEquals(expected.getLastReservations().get(i).getBalanceAfter(), actual.getLastReservations().get(i).getBalanceAfter());
+		}
+		for (CcUnitType unitType : CcUnitType.values()) {
+			assertEquals(expected.getTotalUsedUnits(unitType), actual.getTotalUsedUnits(unitType));
+			assertEquals(expected.getTotalUsedAmount(unitType), actual.getTotalUsedAmount(unitType));
+		}
+		assertEquals(expected.getBalanceBefore(), actual.getBalanceBefore());
+		assertEquals(expected.getBalanceAfter(), actual.getBalanceAfter());
+		assertEquals(expected.getEventCount(), actual.getEventCount());
+	}
+
+	@Test
+	public void roundTripKeepsAllFields() throws Exception {
+		UserSessionInfo sessionInfo = newSession();
+		UserSessionInfo read = ExternalizableTestSupport.roundTrip(sessionInfo);
+		assertEquals(CcRequestType.UPDATE_REQUEST, read.getRequestType());
+		assertEquals(2, read.getLastReservations().size());
+		assertEquals(1500, read.getTotalUsedUnits(CcUnitType.TOTAL_OCTETS));
+		assertEquals(800, read.getLastReservation(10, new long[] { 1 }).getBalanceAfter());
+		assertSameSession(sessionInfo, read);
+	}
+
+	@Test
+	public void roundTripKeepsEmptySession() throws Exception {
+		UserSessionInfo read = ExternalizableTestSupport.roundTrip(new UserSessionInfo());
+		// no request yet, so no request type to compare
+		assertNull(read.getSessionId());
+		assertNull(read.getEndUserId());
+		assertNull(read.getOriginHost());
+		assertEquals(0, read.getMsccCount());
+		assertNull(read.getServiceIds());
+		assertTrue(read.getLastReservations().isEmpty());
+		assertEquals(0, read.getTotalUsedUnits(CcUnitType.TIME));
+		assertEquals(0, read.getEventCount());
+	}
+
+	@Test
+	public void readsV1WithSingleReservation() throws Exception {
+		UserSessionInfo sessionInfo = new UserSessionInfo();
+		sessionInfo.readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(1);
+				out.writeLong(1400000000000L);
+				ExternalizableSupport.writeString(out, "session-v1");
+				out.writeInt(SubscriptionIdType.END_USER_E164.getValue());
+				ExternalizableSupport.writeString(out, "351911111111");
+				out.writeInt(CcRequestType.UPDATE_REQUEST.getValue());
+				out.writeLong(4);
+				ExternalizableSupport.writeString(out, "pcef.example.org");
+				ExternalizableSupport.writeString(out, "example.org");
+				ExternalizableSupport.writeString(out, null);
+				ExternalizableSupport.writeString(out, "charging.example.org");
+				// each MSCC Rating-Group, then its Service-Identifier(s)
+				ExternalizableSupport.writeLongs(out, new long[] { 10, 20 });
+				ExternalizableSupport.writeLongs(out, new long[] { 1 });
+				ExternalizableSupport.writeLongs(out, new long[] { 2, 3 });
+				ExternalizableSupport.writeLongs(out, new long[] { 1, 2, 3 });
+				out.writeBoolean(true);
+				CreditControlInfoTest.writeV1(out, "session-v1", "351911111111", 900);
+				long[] totals = new long[CcUnitType.values().length];
+				totals[CcUnitType.TOTAL_OCTETS.ordinal()] = 500;
+				ExternalizableSupport.writeLongs(out, totals);
+				ExternalizableSupport.writeLongs(out, totals);
+				out.writeLong(1000);
+				out.writeLong(900);
+				out.writeInt(2);
+			}
+		}));
+		assertEquals("session-v1", sessionInfo.getSessionId());
+		assertEquals(SubscriptionIdType.END_USER_E164, sessionInfo.getEndUserType());
+		assertEquals("351911111111", sessionInfo.getEndUserId());
+		assertEquals(CcRequestType.UPDATE_REQUEST, sessionInfo.getRequestType());
+		assertEquals(4, sessionInfo.getRequestNumber());
+		assertEquals("pcef.example.org", sessionInfo.getOriginHost());
+		assertNull(sessionInfo.getDestinationHost());
+		assertEquals(2, sessionInfo.getMsccCount());
+		assertArrayEquals(new long[] { 1, 2, 3 }, sessionInfo.getServiceIds());
+		assertEquals(1, sessionInfo.getLastReservations().size());
+		assertEquals(900, sessionInfo.getLastReservations().get(0).getBalanceAfter());
+		assertEquals(500, sessionInfo.getTotalUsedUnits(CcUnitType.TOTAL_OCTETS));
+		assertEquals(1000, sessionInfo.getBalanceBefore());
+		assertEquals(900, sessionInfo.getBalanceAfter());
+		assertEquals(2, sessionInfo.getEventCount());
+
+		// and written back in the current format
+		assertSameSession(sessionInfo, ExternalizableTestSupport.roundTrip(sessionInfo));
+	}
+
+	@Test(expected = InvalidClassException.class)
+	public void rejectsNewerVersion() throws Exception {
+		new UserSessionInfo().readExternal(ExternalizableTestSupport.inputOf(new ExternalizableTestSupport.Encoder() {
+			public void encode(ObjectOutput out) throws IOException {
+				out.writeByte(3);
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,558 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.slee.transaction.SleeTransaction;
+import javax.slee.transaction.SleeTransactionManager;
+
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * In-process stand-in for the database behind the JDBC datasource, for benchmarks. It interprets the statements of
+ * {@link DataSourceSchemaInfo} the balance tasks issue against the users and reservations tables, counting them by
+ * statement, with a fixed latency per statement and per commit, and the locking of a two-phase locking database:
+ * rows written or selected for update stay locked, in FIFO order, until the transaction ends. Reads which don't lock
+ * see the last committed row. Rollback restores what the transaction changed.
+ * 
+ * Each thread has its own connection and transaction, as the JDBC RA executor threads do.
+ */
+class LockingFakeDatabase {
+
+	private final long statementNanos;
+	private final long commitNanos;
+
+	// balance, reserved, version, with the uncommitted changes
+	private final Map<String, long[]> users = new ConcurrentHashMap<String, long[]>();
+	// the same, as last committed
+	private final Map<String, long[]> committed = new ConcurrentHashMap<String, long[]>();
+	// MSISDN -> "SESSION_ID|RATING_GROUP" -> amount, expiry time
+	private final Map<String, TreeMap<String, long[]>> reservations = new ConcurrentHashMap<String, TreeMap<String, long[]>>();
+
+	private final ConcurrentHashMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+
+	private final AtomicLong statements = new AtomicLong();
+	private final ConcurrentHashMap<String, AtomicLong> statementsBySql = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong rollbacks = new AtomicLong();
+	private final AtomicLong userLockWaits = new AtomicLong();
+	private final AtomicLong userLockWaitNanos = new AtomicLong();
+
+	private final ThreadLocal<Transaction> transactions = new ThreadLocal<Transaction>() {
+		@Override
+		protected Transaction initialValue() {
+			return new Transaction();
+		}
+	};
+
+	private final ThreadLocal<Connection> connections = new ThreadLocal<Connection>() {
+		@Override
+		protected Connection initialValue() {
+			return newConnection();
+		}
+	};
+
+	private class Transaction {
+		final List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+		final LinkedList<Runnable> undo = new LinkedList<Runnable>();
+		final Set<String> written = new HashSet<String>();
+	}
+
+	LockingFakeDatabase(long statementMicros, long commitMicros) {
+		this.statementNanos = statementMicros * 1000;
+		this.commitNanos = commitMicros * 1000;
+	}
+
+	/**
+	 * Drops everything and creates the users, with no reservations.
+	 */
+	void reset(int subscribers, long balance) {
+		users.clear();
+		committed.clear();
+		reservations.clear();
+		locks.clear();
+		statements.set(0);
+		statementsBySql.clear();
+		rollbacks.set(0);
+		userLockWaits.set(0);
+		userLockWaitNanos.set(0);
+		for (int i = 0; i < subscribers; i++) {
+			users.put(msisdn(i), new long[] { balance, 0, 0 });
+			committed.put(msisdn(i), new long[] { balance, 0, 0 });
+			reservations.put(msisdn(i), new TreeMap<String, long[]>());
+		}
+	}
+
+	static String msisdn(int i) {
+		return "u" + i;
+	}
+
+	Set<String> getMsisdns() {
+		return users.keySet();
+	}
+
+	long getBalance(String msisdn) {
+		return users.get(msisdn)[0];
+	}
+
+	long getReserved(String msisdn) {
+		return users.get(msisdn)[1];
+	}
+
+	/**
+	 * @return the sum of the reservation rows of the user
+	 */
+	long getReservationRowsAmount(String msisdn) {
+		long amount = 0;
+		synchronized (table(msisdn)) {
+			for (long[] row : table(msisdn).values()) {
+				amount += row[0];
+			}
+		}
+		return amount;
+	}
+
+	int getReservationRows(String msisdn) {
+		synchronized (table(msisdn)) {
+			return table(msisdn).size();
+		}
+	}
+
+	long getStatements() {
+		return statements.get();
+	}
+
+	/**
+	 * @return the statements executed of the given SQL, out of those of {@link #getStatements()}
+	 */
+	long getStatements(String sql) {
+		AtomicLong count = statementsBySql.get(sql);
+		return count != null ? count.get() : 0;
+	}
+
+	long getRollbacks() {
+		return rollbacks.get();
+	}
+
+	long getUserLockWaits() {
+		return userLockWaits.get();
+	}
+
+	long getUserLockWaitNanos() {
+		return userLockWaitNanos.get();
+	}
+
+	/**
+	 * @return a task context for the calling thread's connection and transactions
+	 */
+	JdbcTaskContext newTaskContext() {
+		final SleeTransactionManager transactionManager = (SleeTransactionManager) proxy(SleeTransactionManager.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("beginSleeTransaction")) {
+					return newTransaction();
+				}
+				return defaultValue(method);
+			}
+		});
+		return (JdbcTaskContext) proxy(JdbcTaskContext.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getConnection")) {
+					return connections.get();
+				}
+				if (method.getName().equals("getSleeTransactionManager")) {
+					return transactionManager;
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private SleeTransaction newTransaction() {
+		return (SleeTransaction) proxy(SleeTransaction.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("commit")) {
+					delay(commitNanos);
+					commit(transactions.get());
+				}
+				else if (method.getName().equals("rollback")) {
+					rollback(transactions.get());
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private void commit(Transaction tx) {
+		for (String msisdn : tx.written) {
+			committed.put(msisdn, users.get(msisdn).clone());
+		}
+		end(tx);
+	}
+
+	private void rollback(Transaction tx) {
+		rollbacks.incrementAndGet();
+		for (Runnable undo : tx.undo) {
+			undo.run();
+		}
+		end(tx);
+	}
+
+	private void end(Transaction tx) {
+		tx.written.clear();
+		tx.undo.clear();
+		for (ReentrantLock lock : tx.held) {
+			lock.unlock();
+		}
+		tx.held.clear();
+	}
+
+	private void lock(Transaction tx, String key) {
+		ReentrantLock lock = locks.get(key);
+		if (lock == null) {
+			locks.putIfAbsent(key, new ReentrantLock(true));
+			lock = locks.get(key);
+		}
+		if (lock.isHeldByCurrentThread()) {
+			return;
+		}
+		if (!lock.tryLock()) {
+			long started = System.nanoTime();
+			lock.lock();
+			if (key.startsWith("U:")) {
+				userLockWaitNanos.addAndGet(System.nanoTime() - started);
+				userLockWaits.incrementAndGet();
+			}
+		}
+		tx.held.add(lock);
+	}
+
+	private void writeUser(Transaction tx, String msisdn) {
+		final long[] user = users.get(msisdn);
+		final long[] before = user.clone();
+		tx.undo.addFirst(new Runnable() {
+			public void run() {
+				System.arraycopy(before, 0, user, 0, before.length);
+			}
+		});
+		tx.written.add(msisdn);
+	}
+
+	private void writeRow(Transaction tx, final String msisdn, final String key) {
+		long[] row = row(msisdn, key);
+		final long[] before = row == null ? null : row.clone();
+		tx.undo.addFirst(new Runnable() {
+			public void run() {
+				synchronized (table(msisdn)) {
+					if (before == null) {
+						table(msisdn).remove(key);
+					}
+					else {
+						table(msisdn).put(key, before);
+					}
+				}
+			}
+		});
+	}
+
+	private Object execute(Transaction tx, String sql, Object[] p) throws SQLException {
+		statements.incrementAndGet();
+		AtomicLong count = statementsBySql.get(sql);
+		if (count == null) {
+			statementsBySql.putIfAbsent(sql, new AtomicLong());
+			count = statementsBySql.get(sql);
+		}
+		count.incrementAndGet();
+		delay(statementNanos);
+
+		if (sql.equals(DataSourceSchemaInfo._QUERY_RESERVE)) {
+			String msisdn = (String) p[4];
+			lock(tx, "U:" + msisdn);
+			long[] user = users.get(msisdn);
+			if (user == null || user[0] + l(p[5]) < l(p[6])) {
+				return 0;
+			}
+			writeUser(tx, msisdn);
+			user[0] += l(p[0]) - l(p[1]);
+			user[1] += l(p[3]) - l(p[2]);
+			user[2]++;
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_DEBIT)) {
+			String msisdn = (String) p[1];
+			lock(tx, "U:" + msisdn);
+			long[] user = users.get(msisdn);
+			if (user == null || user[0] < l(p[2])) {
+				return 0;
+			}
+			writeUser(tx, msisdn);
+			user[0] -= l(p[0]);
+			user[2]++;
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_SETTLE)) {
+			String msisdn = (String) p[2];
+			lock(tx, "U:" + msisdn);
+			long[] user = users.get(msisdn);
+			if (user == null) {
+				return 0;
+			}
+			writeUser(tx, msisdn);
+			user[0] += l(p[0]);
+			user[1] -= l(p[1]);
+			user[2]++;
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_SELECT_BALANCE)) {
+			long[] user = users.get(p[0]);
+			return resultSet(user == null ? Collections.<Object[]> emptyList() : Collections.singletonList(new Object[] { user[0] }));
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_SELECT_BALANCE_VERSION)) {
+			long[] user = committed.get(p[0]);
+			return resultSet(user == null ? Collections.<Object[]> emptyList() : Collections.singletonList(new Object[] { user[0], user[2] }));
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_VERSIONED_UPDATE)) {
+			String msisdn = (String) p[2];
+			lock(tx, "U:" + msisdn);
+			long[] user = users.get(msisdn);
+			if (user == null || user[2] != l(p[3])) {
+				return 0;
+			}
+			writeUser(tx, msisdn);
+			user[0] += l(p[0]);
+			user[1] += l(p[1]);
+			user[2]++;
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_SELECT_RESERVATIONS)) {
+			// the rows of the session and the expired ones, for update
+			String msisdn = (String) p[0];
+			String sessionId = (String) p[1];
+			long now = ((Timestamp) p[2]).getTime();
+			List<Object[]> rows = new ArrayList<Object[]>();
+			for (String key : keys(msisdn)) {
+				if (!selected(msisdn, key, sessionId, now)) {
+					continue;
+				}
+				lock(tx, "R:" + msisdn + "|" + key);
+				if (selected(msisdn, key, sessionId, now)) {
+					rows.add(new Object[] { sessionOf(key), ratingGroupOf(key), row(msisdn, key)[0] });
+				}
+			}
+			return resultSet(rows);
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_INSERT_RESERVATION)) {
+			String msisdn = (String) p[0];
+			String key = p[1] + "|" + l(p[2]);
+			lock(tx, "R:" + msisdn + "|" + key);
+			synchronized (table(msisdn)) {
+				if (table(msisdn).containsKey(key)) {
+					throw new SQLException("Duplicate key " + key);
+				}
+				writeRow(tx, msisdn, key);
+				table(msisdn).put(key, new long[] { l(p[3]), ((Timestamp) p[4]).getTime() });
+			}
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_UPDATE_RESERVATION)) {
+			String msisdn = (String) p[2];
+			String key = p[3] + "|" + l(p[4]);
+			lock(tx, "R:" + msisdn + "|" + key);
+			if (row(msisdn, key) == null) {
+				return 0;
+			}
+			writeRow(tx, msisdn, key);
+			synchronized (table(msisdn)) {
+				table(msisdn).put(key, new long[] { l(p[0]), ((Timestamp) p[1]).getTime() });
+			}
+			return 1;
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_DELETE_RESERVATION)) {
+			String msisdn = (String) p[0];
+			String key = p[1] + "|" + l(p[2]);
+			lock(tx, "R:" + msisdn + "|" + key);
+			writeRow(tx, msisdn, key);
+			synchronized (table(msisdn)) {
+				return table(msisdn).remove(key) != null ? 1 : 0;
+			}
+		}
+		if (sql.equals(DataSourceSchemaInfo._QUERY_DELETE_SESSION_RESERVATIONS) || sql.equals(DataSourceSchemaInfo._QUERY_DELETE_EXPIRED_RESERVATIONS)) {
+			boolean expired = sql.equals(DataSourceSchemaInfo._QUERY_DELETE_EXPIRED_RESERVATIONS);
+			String msisdn = (String) p[0];
+			String sessionId = (String) p[1];
+			long now = expired ? ((Timestamp) p[2]).getTime() : 0;
+			int deleted = 0;
+			for (String key : keys(msisdn)) {
+				long[] row = row(msisdn, key);
+				boolean match = expired ? !sessionOf(key).equals(sessionId) && row != null && row[1] < now : sessionOf(key).equals(sessionId);
+				if (!match) {
+					continue;
+				}
+				lock(tx, "R:" + msisdn + "|" + key);
+				writeRow(tx, msisdn, key);
+				synchronized (table(msisdn)) {
+					if (table(msisdn).remove(key) != null) {
+						deleted++;
+					}
+				}
+			}
+			return deleted;
+		}
+		throw new SQLException("Unexpected statement " + sql);
+	}
+
+	private boolean selected(String msisdn, String key, String sessionId, long now) {
+		long[] row = row(msisdn, key);
+		return row != null && (sessionOf(key).equals(sessionId) || row[1] < now);
+	}
+
+	private static String sessionOf(String key) {
+		return key.substring(0, key.lastIndexOf('|'));
+	}
+
+	private static long ratingGroupOf(String key) {
+		return Long.parseLong(key.substring(key.lastIndexOf('|') + 1));
+	}
+
+	private TreeMap<String, long[]> table(String msisdn) {
+		return reservations.get(msisdn);
+	}
+
+	private long[] row(String msisdn, String key) {
+		synchronized (table(msisdn)) {
+			return table(msisdn).get(key);
+		}
+	}
+
+	private List<String> keys(String msisdn) {
+		synchronized (table(msisdn)) {
+			return new ArrayList<String>(table(msisdn).keySet());
+		}
+	}
+
+	private static long l(Object value) {
+		return ((Number) value).longValue();
+	}
+
+	private static void delay(long nanos) {
+		if (nanos > 0) {
+			LockSupport.parkNanos(nanos);
+		}
+	}
+
+	// --- JDBC proxies ---------------------------------------------------------
+
+	private Connection newConnection() {
+		return (Connection) proxy(Connection.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("prepareStatement")) {
+					return newStatement((String) args[0]);
+				}
+				if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private PreparedStatement newStatement(final String sql) {
+		final Object[] parameters = new Object[16];
+		return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+				String name = method.getName();
+				if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+					parameters[(Integer) args[0] - 1] = args[1];
+					return null;
+				}
+				if (name.equals("executeUpdate") || name.equals("executeQuery")) {
+					return execute(transactions.get(), sql, parameters);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static ResultSet resultSet(final List<Object[]> rows) {
+		return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+			private int row = -1;
+
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("next")) {
+					return ++row < rows.size();
+				}
+				// columns by label are only read from single column results
+				int column = args != null && args[0] instanceof Integer ? (Integer) args[0] - 1 : 0;
+				if (name.equals("getLong")) {
+					return ((Number) rows.get(row)[column]).longValue();
+				}
+				if (name.equals("getString")) {
+					return (String) rows.get(row)[column];
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(LockingFakeDatabase.class.getClassLoader(), new Class[] { type }, handler);
+	}
+
+	static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+}
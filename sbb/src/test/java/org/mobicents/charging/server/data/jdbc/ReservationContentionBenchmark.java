@@ -0,0 +1,277 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Contention of credit-control sessions sharing a subscriber, through {@link ReserveUnitsJdbcTask} against a
+ * {@link LockingFakeDatabase}. Every thread runs sessions of an INITIAL, 4 UPDATE and a TERMINATE request for its
+ * subscriber, and each run reports CCRs per second, latency, statements per CCR and waits for the user row lock. It
+ * checks that balance, reserved and charged amounts add up to the initial balance for every subscriber, and that the
+ * reservation rows add up to the reserved amount.
+ * 
+ * By default balances are updated under the user row lock. With <code>-Doptimistic=true</code> they are versioned
+ * updates instead, see {@link VersionedBalanceUpdates}, retried up to <code>-DmaxRetries</code> times after a
+ * <code>-DbackoffMicros</code> base backoff; the retry counters printed after each run are cumulative. With
+ * <code>-Dlanes=N</code> the tasks for a user go through its lane, see {@link SubscriberLanes}.
+ * 
+ * The "expiry" mode instead abandons sessions and checks their reservations are released once expired, by the next
+ * session of the same user, and that a session coming back late doesn't release them twice.
+ * 
+ * Not run as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -DstatementMicros=500 -DcommitMicros=1000 -cp sbb/target/classes:sbb/target/test-classes:&lt;dependencies&gt; org.mobicents.charging.server.data.jdbc.ReservationContentionBenchmark [threads] [sessions per subscriber,...] [bench|expiry]
+ * </pre>
+ */
+public class ReservationContentionBenchmark {
+
+	private static final long INITIAL_BALANCE = 1000000;
+	private static final int SESSIONS_PER_THREAD = 20;
+	private static final int UPDATES = 4;
+
+	private static final AtomicInteger severeTraces = new AtomicInteger();
+
+	private final LockingFakeDatabase database = new LockingFakeDatabase(Long.getLong("statementMicros", 500), Long.getLong("commitMicros", 1000));
+	private final JdbcTaskContext taskContext = database.newTaskContext();
+	private final Tracer tracer = newTracer();
+
+	private final AtomicLong ccrs = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Map<String, AtomicLong> charged = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<Long>();
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		String sessionsPerSubscriber = args.length > 1 ? args[1] : "1,8,64";
+		String mode = args.length > 2 ? args[2] : "bench";
+
+		int lanes = Integer.getInteger("lanes", 0);
+		if (lanes > 0) {
+			SubscriberLanes.configure(lanes, Integer.getInteger("coalesce", 16));
+		}
+		if (Boolean.getBoolean("optimistic")) {
+			VersionedBalanceUpdates.configure(true, Integer.getInteger("maxRetries", 8), Long.getLong("backoffMicros", 500));
+		}
+
+		ReservationContentionBenchmark benchmark = new ReservationContentionBenchmark();
+		if (mode.equals("expiry")) {
+			benchmark.expiry();
+			return;
+		}
+		for (String sessions : sessionsPerSubscriber.split(",")) {
+			benchmark.run(threads, Integer.parseInt(sessions.trim()));
+		}
+	}
+
+	private void reset(int subscribers) {
+		database.reset(subscribers, INITIAL_BALANCE);
+		charged.clear();
+		for (String msisdn : database.getMsisdns()) {
+			charged.put(msisdn, new AtomicLong());
+		}
+		latencies.clear();
+		ccrs.set(0);
+		failed.set(0);
+	}
+
+	private void run(int threads, int sessionsPerSubscriber) throws InterruptedException {
+		final int subscribers = Math.max(1, threads / sessionsPerSubscriber);
+		reset(subscribers);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long started = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			executor.execute(new Runnable() {
+				public void run() {
+					for (int i = 0; i < SESSIONS_PER_THREAD; i++) {
+						session(LockingFakeDatabase.msisdn(thread % subscribers), "s" + thread + "-" + i, UPDATES, false);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(30, TimeUnit.MINUTES);
+		double seconds = (System.nanoTime() - started) / 1e9;
+
+		Long[] sorted = latencies.toArray(new Long[0]);
+		Arrays.sort(sorted);
+		long waits = database.getUserLockWaits();
+		System.out.printf("%d threads, %d sessions/subscriber, %d subscribers: %d CCRs, %d failed, %.0f CCR/s, p50 %.2f ms, p99 %.2f ms, "
+				+ "%.2f statements/CCR, %d rollbacks, %d user lock waits of %.2f ms avg, conserved: %s%n", threads, sessionsPerSubscriber,
+				subscribers, ccrs.get(), failed.get(), ccrs.get() / seconds, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+				database.getStatements() / (double) ccrs.get(), database.getRollbacks(), waits, waits == 0 ? 0 : database.getUserLockWaitNanos() / 1e6 / waits,
+				checkConserved());
+		if (VersionedBalanceUpdates.isEnabled()) {
+			System.out.println("  optimistic updates: " + VersionedBalanceUpdates.getStats());
+		}
+	}
+
+	/**
+	 * Abandoned sessions hold their reservations until they expire, then the next session of the user releases them.
+	 */
+	private void expiry() throws InterruptedException {
+		ReserveUnitsJdbcTask.setReservationTimeout(200);
+
+		reset(4);
+		for (int i = 0; i < 40; i++) {
+			session(LockingFakeDatabase.msisdn(i % 4), "abandoned" + i, 2, true);
+		}
+		long reserved = 0;
+		int rows = 0;
+		for (String msisdn : database.getMsisdns()) {
+			reserved += database.getReserved(msisdn);
+			rows += database.getReservationRows(msisdn);
+		}
+		System.out.println("40 abandoned sessions: reserved " + reserved + " in " + rows + " rows");
+		Thread.sleep(300);
+		for (int i = 0; i < 4; i++) {
+			session(LockingFakeDatabase.msisdn(i), "new" + i, 1, false);
+		}
+		reserved = 0;
+		rows = 0;
+		for (String msisdn : database.getMsisdns()) {
+			reserved += database.getReserved(msisdn);
+			rows += database.getReservationRows(msisdn);
+		}
+		System.out.println("after they expired and one session per user: reserved " + reserved + " in " + rows + " rows, conserved: " + checkConserved());
+
+		// a session terminating after its reservation was released doesn't get it back again
+		reset(1);
+		String msisdn = LockingFakeDatabase.msisdn(0);
+		session(msisdn, "late", 0, true);
+		Thread.sleep(300);
+		session(msisdn, "other", 0, false);
+		ccr(newRequest(msisdn, "late", CcRequestType.TERMINATION_REQUEST, 10, 5, 0));
+		System.out.println("late terminate after expiry: balance " + database.getBalance(msisdn) + ", reserved " + database.getReserved(msisdn) + ", charged "
+				+ charged.get(msisdn) + ", conserved: " + checkConserved());
+	}
+
+	/**
+	 * An INITIAL request, the updates, each using up to 8 of what was granted, and a TERMINATE using up to 5, unless
+	 * the session is abandoned.
+	 */
+	private void session(String msisdn, String sessionId, int updates, boolean abandon) {
+		long held = Math.max(0, ccr(newRequest(msisdn, sessionId, CcRequestType.INITIAL_REQUEST, 0, 0, 10)));
+		for (int i = 0; i < updates; i++) {
+			long granted = ccr(newRequest(msisdn, sessionId, CcRequestType.UPDATE_REQUEST, held, Math.min(held, 8), 10));
+			if (granted >= 0) {
+				held = granted;
+			}
+		}
+		if (!abandon) {
+			ccr(newRequest(msisdn, sessionId, CcRequestType.TERMINATION_REQUEST, held, Math.min(held, 5), 0));
+		}
+	}
+
+	/**
+	 * @return the amount reserved for the request, -1 if it failed
+	 */
+	private long ccr(CreditControlInfo ccInfo) {
+		long started = System.nanoTime();
+		ReserveUnitsJdbcTask task = new ReserveUnitsJdbcTask(Collections.singletonList(ccInfo), tracer);
+		task.executeSimple(taskContext);
+		latencies.add(System.nanoTime() - started);
+		ccrs.incrementAndGet();
+		if (task.isFailed() || task.getAccountData() == null) {
+			failed.incrementAndGet();
+			return -1;
+		}
+		CreditControlUnit ccUnit = ccInfo.getCcUnits().get(0);
+		charged.get(ccInfo.getSubscriptionId()).addAndGet(ccUnit.getUsedAmount());
+		return ccUnit.getReservedAmount();
+	}
+
+	private static CreditControlInfo newRequest(String msisdn, String sessionId, CcRequestType type, long reserved, long used, long requested) {
+		CreditControlInfo ccInfo = new CreditControlInfo();
+		ccInfo.setSubscriptionId(msisdn);
+		ccInfo.setSessionId(sessionId);
+		ccInfo.setEventType(type.toString());
+		ccInfo.setRatingGroup(1);
+		CreditControlUnit ccUnit = new CreditControlUnit();
+		ccUnit.setUnitType(CcUnitType.TIME);
+		ccUnit.setRequestedUnits(requested);
+		ccUnit.setRequestedAmount(requested);
+		ccUnit.setReservedAmount(reserved);
+		ccUnit.setUsedUnits(used);
+		ccUnit.setUsedAmount(used);
+		ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+		ccUnits.add(ccUnit);
+		ccInfo.setCcUnits(ccUnits);
+		return ccInfo;
+	}
+
+	private String checkConserved() {
+		for (String msisdn : database.getMsisdns()) {
+			long balance = database.getBalance(msisdn);
+			long reserved = database.getReserved(msisdn);
+			if (balance < 0) {
+				return "no, negative balance for " + msisdn;
+			}
+			if (balance + reserved + charged.get(msisdn).get() != INITIAL_BALANCE) {
+				return "no, " + msisdn + " has balance " + balance + ", reserved " + reserved + " and charged " + charged.get(msisdn);
+			}
+			if (database.getReservationRowsAmount(msisdn) != reserved) {
+				return "no, " + msisdn + " has reserved " + reserved + " but rows of " + database.getReservationRowsAmount(msisdn);
+			}
+		}
+		return "yes";
+	}
+
+	private static Tracer newTracer() {
+		return (Tracer) Proxy.newProxyInstance(Tracer.class.getClassLoader(), new Class[] { Tracer.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				// failed tasks are counted, only the first few are shown
+				if (method.getName().equals("severe") && severeTraces.incrementAndGet() <= 3) {
+					System.out.println("  " + Arrays.toString(args));
+				}
+				return LockingFakeDatabase.defaultValue(method);
+			}
+		});
+	}
+
+}
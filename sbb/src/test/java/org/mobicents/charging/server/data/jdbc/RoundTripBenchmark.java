@@ -0,0 +1,175 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.slee.facilities.Tracer;
+
+import net.java.slee.resource.diameter.cca.events.avp.CcRequestType;
+import net.java.slee.resource.diameter.cca.events.avp.CcUnitType;
+
+import org.mobicents.charging.server.account.CreditControlInfo;
+import org.mobicents.charging.server.account.CreditControlUnit;
+import org.mobicents.slee.resource.jdbc.task.JdbcTaskContext;
+
+/**
+ * Round trips to the database per Credit-Control-Request, through {@link ReserveUnitsJdbcTask} and
+ * {@link DirectDebitUnitsJdbcTask} against a {@link LockingFakeDatabase}, for requests of one service and of three,
+ * with two units (time and octets) each. Every session is an INITIAL, an UPDATE and a TERMINATE request, followed by
+ * a direct debit of the same services.
+ * 
+ * The statements on the user row (balance check, reservation, debit and read back of the balance) are reported apart
+ * from those on the reservation rows of the session. The former don't depend on the number of units, where the
+ * SELECT followed by an UPDATE per unit used before took 3 for 2 units and 7 for 6, which is printed alongside. With
+ * <code>-DstatementMicros</code> and <code>-DcommitMicros</code> each statement and commit takes that long, and the
+ * time per CCR shows what the round trips cost.
+ * 
+ * Not run as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -DstatementMicros=500 -DcommitMicros=1000 -cp sbb/target/classes:sbb/target/test-classes:&lt;dependencies&gt; org.mobicents.charging.server.data.jdbc.RoundTripBenchmark [sessions]
+ * </pre>
+ */
+public class RoundTripBenchmark {
+
+	private static final long INITIAL_BALANCE = Long.MAX_VALUE / 4;
+	private static final CcUnitType[] UNIT_TYPES = { CcUnitType.TIME, CcUnitType.TOTAL_OCTETS };
+
+	private static final String[] USER_ROW_STATEMENTS = { DataSourceSchemaInfo._QUERY_RESERVE, DataSourceSchemaInfo._QUERY_SETTLE,
+			DataSourceSchemaInfo._QUERY_DEBIT, DataSourceSchemaInfo._QUERY_SELECT_BALANCE, DataSourceSchemaInfo._QUERY_SELECT_BALANCE_VERSION,
+			DataSourceSchemaInfo._QUERY_VERSIONED_UPDATE };
+
+	private final LockingFakeDatabase database = new LockingFakeDatabase(Long.getLong("statementMicros", 0), Long.getLong("commitMicros", 0));
+	private final JdbcTaskContext taskContext = database.newTaskContext();
+	private final Tracer tracer = newTracer();
+
+	// of each request type: CCRs, user row statements, all statements, nanos, failed
+	private final long[][] counts = new long[4][5];
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		RoundTripBenchmark benchmark = new RoundTripBenchmark();
+		for (int services : new int[] { 1, 3 }) {
+			// warm up, then measure
+			benchmark.run(services, sessions / 10, false);
+			benchmark.run(services, sessions, true);
+		}
+	}
+
+	private void run(int services, int sessions, boolean print) {
+		database.reset(1, INITIAL_BALANCE);
+		for (long[] count : counts) {
+			Arrays.fill(count, 0);
+		}
+		String msisdn = LockingFakeDatabase.msisdn(0);
+		for (int i = 0; i < sessions; i++) {
+			String sessionId = "s" + i;
+			ccr(0, new ReserveUnitsJdbcTask(newRequest(msisdn, sessionId, CcRequestType.INITIAL_REQUEST, services, 0, 0, 10), tracer));
+			ccr(1, new ReserveUnitsJdbcTask(newRequest(msisdn, sessionId, CcRequestType.UPDATE_REQUEST, services, 10, 8, 10), tracer));
+			ccr(2, new ReserveUnitsJdbcTask(newRequest(msisdn, sessionId, CcRequestType.TERMINATION_REQUEST, services, 10, 5, 0), tracer));
+			ccr(3, new DirectDebitUnitsJdbcTask(newRequest(msisdn, "e" + i, CcRequestType.EVENT_REQUEST, services, 0, 0, 10), tracer));
+		}
+		if (!print) {
+			return;
+		}
+		int units = services * UNIT_TYPES.length;
+		String[] names = { "INITIAL", "UPDATE", "TERMINATE", "direct debit" };
+		for (int type = 0; type < counts.length; type++) {
+			long[] count = counts[type];
+			System.out.printf("%d service%s, %d units, %s: %.2f user row statements/CCR (%d before), %.2f reservation row statements/CCR, %.1f us/CCR, %d failed%n",
+					services, services == 1 ? "" : "s", units, names[type], count[1] / (double) count[0], 1 + units, (count[2] - count[1]) / (double) count[0], count[3] / 1e3 / count[0],
+					count[4]);
+		}
+	}
+
+	private void ccr(int type, BalanceMutationJdbcTask task) {
+		long userRow = userRowStatements();
+		long all = database.getStatements();
+		long started = System.nanoTime();
+		task.executeSimple(taskContext);
+		long[] count = counts[type];
+		count[3] += System.nanoTime() - started;
+		count[0]++;
+		count[1] += userRowStatements() - userRow;
+		count[2] += database.getStatements() - all;
+		if (task.isFailed() || task.getAccountData() == null) {
+			count[4]++;
+		}
+	}
+
+	private long userRowStatements() {
+		long statements = 0;
+		for (String sql : USER_ROW_STATEMENTS) {
+			statements += database.getStatements(sql);
+		}
+		return statements;
+	}
+
+	/**
+	 * A request for the services, one rating group each, with each unit type reserved, used and requested as given.
+	 */
+	private static List<CreditControlInfo> newRequest(String msisdn, String sessionId, CcRequestType type, int services, long reserved, long used, long requested) {
+		List<CreditControlInfo> ccInfos = new ArrayList<CreditControlInfo>();
+		for (int service = 0; service < services; service++) {
+			CreditControlInfo ccInfo = new CreditControlInfo();
+			ccInfo.setSubscriptionId(msisdn);
+			ccInfo.setSessionId(sessionId);
+			ccInfo.setEventType(type.toString());
+			ccInfo.setRatingGroup(service + 1);
+			ArrayList<CreditControlUnit> ccUnits = new ArrayList<CreditControlUnit>();
+			for (CcUnitType unitType : UNIT_TYPES) {
+				CreditControlUnit ccUnit = new CreditControlUnit();
+				ccUnit.setUnitType(unitType);
+				ccUnit.setRequestedUnits(requested);
+				ccUnit.setRequestedAmount(requested);
+				ccUnit.setReservedAmount(reserved);
+				ccUnit.setUsedUnits(used);
+				ccUnit.setUsedAmount(used);
+				ccUnits.add(ccUnit);
+			}
+			ccInfo.setCcUnits(ccUnits);
+			ccInfos.add(ccInfo);
+		}
+		return ccInfos;
+	}
+
+	private static Tracer newTracer() {
+		return (Tracer) Proxy.newProxyInstance(Tracer.class.getClassLoader(), new Class[] { Tracer.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("severe")) {
+					System.out.println("  " + Arrays.toString(args));
+				}
+				return LockingFakeDatabase.defaultValue(method);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2014, TeleStax and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for
+ * a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.charging.server.data.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.slee.facilities.Tracer;
+
+/**
+ * Startup of the in-memory datasource from its journal: fills a table with millions of subscribers, writes a snapshot,
+ * appends journal records after it and times recovering a new table from both, checking the replayed balances. Then
+ * measures journaled appends from several threads, each waiting for its record to be durable, to show the group
+ * fsync at work. Not run as part of the tests, run it with:
+ * 
+ * <pre>
+ * java -Xmx4g -cp sbb/target/classes:sbb/target/test-classes:&lt;dependencies&gt; org.mobicents.charging.server.data.memory.BalanceJournalStartupBenchmark [subscribers] [records] [directory]
+ * </pre>
+ */
+public class BalanceJournalStartupBenchmark {
+
+	private static final int SEGMENT_SIZE = 64 << 20;
+
+	private static final int DURABLE_APPENDS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int records = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		File directory = new File(args.length > 2 ? args[2] : new File(System.getProperty("java.io.tmpdir"), "balance-journal-benchmark").getPath());
+		Tracer tracer = newTracer();
+
+		clear(directory);
+		try {
+			BalanceTable table = new BalanceTable(subscribers);
+			BalanceJournal journal = new BalanceJournal(directory, SEGMENT_SIZE, tracer);
+			journal.recover(table);
+
+			long started = System.nanoTime();
+			for (int i = 0; i < subscribers; i++) {
+				table.insert(MsisdnCodec.encode(msisdn(i)), 1000, 0, BalanceTable.STATUS_ACTIVE);
+			}
+			System.out.printf("filled %d subscribers in %.0f ms%n", subscribers, millisSince(started));
+
+			started = System.nanoTime();
+			journal.snapshot(table);
+			System.out.printf("snapshot written in %.0f ms, %d MB%n", millisSince(started), sizeOf(directory, ".snap") >> 20);
+
+			// records after the snapshot, forced every 100 as concurrent requests would
+			Set<Long> changed = new HashSet<Long>();
+			Random random = new Random(1);
+			long seq = 0;
+			started = System.nanoTime();
+			for (int i = 0; i < records; i++) {
+				long key = MsisdnCodec.encode(msisdn(random.nextInt(subscribers)));
+				seq = journal.append(BalanceJournal.TYPE_RESERVE, key, 990, 10, BalanceTable.STATUS_ACTIVE);
+				changed.add(key);
+				if (i % 100 == 99) {
+					journal.awaitDurable(seq);
+				}
+			}
+			journal.awaitDurable(seq);
+			System.out.printf("appended %d records in %.0f ms%n", records, millisSince(started));
+
+			// as after a crash, the old instances are simply dropped
+			journal = null;
+			table = null;
+			System.gc();
+
+			started = System.nanoTime();
+			BalanceTable recovered = new BalanceTable(subscribers);
+			journal = new BalanceJournal(directory, SEGMENT_SIZE, tracer);
+			journal.recover(recovered);
+			System.out.printf("startup from snapshot (%d subscribers) and %d records in %.0f ms%n", recovered.size(), records, millisSince(started));
+
+			int wrong = 0;
+			for (Long key : changed) {
+				int slot = recovered.find(key);
+				if (slot < 0 || recovered.getBalance(slot) != 990 || recovered.getReserved(slot) != 10) {
+					wrong++;
+				}
+			}
+			System.out.println("replayed subscribers with a wrong balance: " + wrong + " of " + changed.size());
+
+			for (int threads : new int[] { 1, 8, 32 }) {
+				System.out.printf("durable appends, %d threads: %.0f/s%n", threads, durableAppends(journal, subscribers, threads));
+			}
+		}
+		finally {
+			clear(directory);
+		}
+	}
+
+	private static double durableAppends(final BalanceJournal journal, final int subscribers, int threads) throws InterruptedException {
+		final int perThread = DURABLE_APPENDS / threads;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < perThread; i++) {
+							long key = MsisdnCodec.encode(msisdn(random.nextInt(subscribers)));
+							journal.awaitDurable(journal.append(BalanceJournal.TYPE_DEBIT, key, 980, 10, BalanceTable.STATUS_ACTIVE));
+						}
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+		long started = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return perThread * threads / (millisSince(started) / 1000);
+	}
+
+	private static String msisdn(int i) {
+		return "3519" + String.format("%08d", i);
+	}
+
+	private static double millisSince(long started) {
+		return (System.nanoTime() - started) / 1e6;
+	}
+
+	private static long sizeOf(File directory, String suffix) {
+		long size = 0;
+		for (File file : directory.listFiles()) {
+			if (file.getName().endsWith(suffix)) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	private static void clear(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static Tracer newTracer() {
+		return (Tracer) Proxy.newProxyInstance(Tracer.class.getClassLoader(), new Class[] { Tracer.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("severe") || method.getName().equals("warning") || method.getName().equals("info")) {
+					System.out.println("  " + args[0]);
+				}
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+}